@@ -0,0 +1,164 @@
+package com.stackframe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes deterministic synthetic vCard files that look like real exported address books: a mix of 2.1, 3.0 and 4.0
+ * cards with folded lines, typed phone numbers, emails and addresses, an occasional embedded photo, and the kind of
+ * mess that {@link VCardUtil#cleanup} exists for, such as blank emails, empty organizations and duplicated properties.
+ * The same seed and card count always produce the same bytes.
+ */
+public final class CorpusGenerator {
+
+    private static final String[] GIVEN = {"Ada", "Alan", "Grace", "Edsger", "Barbara", "Donald", "Frances", "Ken",
+            "Margaret", "Dennis", "Radia", "Niklaus", "Sophie", "John", "Hedy", "Tim", "Katherine", "Linus", "Anita",
+            "Bjarne", "José", "Zoë", "Ørjan", "Ingrid"};
+    private static final String[] FAMILY = {"Lovelace", "Turing", "Hopper", "Dijkstra", "Liskov", "Knuth", "Allen",
+            "Thompson", "Hamilton", "Ritchie", "Perlman", "Wirth", "Wilson", "McCarthy", "Lamarr", "Berners-Lee",
+            "Johnson", "Torvalds", "Borg", "Stroustrup", "Núñez", "O'Brien", "van der Berg", "Østergaard"};
+    private static final String[] ORGANIZATIONS = {"Acme Corporation", "Globex", "Initech", "Umbrella", "Hooli",
+            "Stark Industries", "Wayne Enterprises", "Cyberdyne Systems", "Soylent", "Tyrell Corporation"};
+    private static final String[] STREETS = {"Main St", "Oak Ave", "Elm St", "Maple Dr", "Cedar Ln", "Pine Rd"};
+    private static final String[] CITIES = {"Springfield", "Riverside", "Franklin", "Greenville", "Bristol"};
+    private static final String[] PHONE_TYPES = {"HOME", "WORK", "CELL"};
+
+    private static final double PHOTO_FRACTION = 0.02;
+    private static final int PHOTO_BYTES = 4096;
+
+    private final Random random;
+
+    public CorpusGenerator(final long seed) {
+        random = new Random(seed);
+    }
+
+    private String pick(final String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private String phone() {
+        return String.format("(%03d) %03d-%04d", 200 + random.nextInt(800), random.nextInt(1000),
+                random.nextInt(10000));
+    }
+
+    private static void fold(final StringBuilder out, final String line) {
+        // Fold at 75 characters, continuing with a single space, as RFC 6350 describes.
+        int start = 0;
+        while (line.length() - start > 75) {
+            out.append(line, start, start + 75).append("\r\n ");
+            start += 75;
+        }
+
+        out.append(line, start, line.length()).append("\r\n");
+    }
+
+    private void card(final StringBuilder out, final int index) {
+        final int version = random.nextInt(3);
+        final String given = pick(GIVEN);
+        final String family = pick(FAMILY);
+        final String email = (given + "." + family + index).toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9.]", "")
+                + "@example.com";
+        out.append("BEGIN:VCARD\r\n");
+        out.append(version == 0 ? "VERSION:2.1\r\n" : version == 1 ? "VERSION:3.0\r\n" : "VERSION:4.0\r\n");
+        fold(out, "N:" + family + ";" + given + ";;;");
+        fold(out, "FN:" + given + " " + family);
+        if (random.nextInt(4) == 0) {
+            fold(out, "ORG:" + pick(ORGANIZATIONS));
+        } else if (random.nextInt(10) == 0) {
+            out.append("ORG:;\r\n");
+        }
+
+        final int phones = random.nextInt(4);
+        for (int i = 0; i < phones; i++) {
+            final String type = pick(PHONE_TYPES);
+            if (version == 0) {
+                fold(out, "TEL;" + type + ";VOICE:" + phone());
+            } else if (version == 1) {
+                fold(out, "TEL;TYPE=" + type + ",VOICE:" + phone());
+            } else {
+                fold(out, "TEL;TYPE=" + type.toLowerCase(Locale.ROOT) + ";VALUE=uri:tel:+1-"
+                        + phone().replaceAll("[^0-9]", "").replaceFirst("(\\d{3})(\\d{3})", "$1-$2-"));
+            }
+        }
+
+        fold(out, (version == 0 ? "EMAIL;INTERNET:" : "EMAIL;TYPE=INTERNET:") + email);
+        if (random.nextInt(5) == 0) {
+            // A duplicate that differs only by case, and a blank one.
+            final String prefix = version == 0 ? "EMAIL;INTERNET:" : "EMAIL;TYPE=INTERNET:";
+            fold(out, prefix + email.toUpperCase(Locale.ROOT));
+            fold(out, prefix);
+        }
+
+        if (random.nextBoolean()) {
+            fold(out, (version == 0 ? "ADR;HOME:" : "ADR;TYPE=HOME:") + ";;" + (1 + random.nextInt(9999)) + " "
+                    + pick(STREETS) + ";" + pick(CITIES) + ";CA;" + (90000 + random.nextInt(9999)) + ";USA");
+        }
+
+        if (random.nextInt(8) == 0) {
+            fold(out, "NOTE:" + "Met at the conference. ".repeat(1 + random.nextInt(8)).trim());
+        }
+
+        if (random.nextDouble() < PHOTO_FRACTION) {
+            final byte[] photo = new byte[PHOTO_BYTES];
+            random.nextBytes(photo);
+            final String data = Base64.getEncoder().encodeToString(photo);
+            if (version == 0) {
+                fold(out, "PHOTO;ENCODING=BASE64;TYPE=JPEG:" + data);
+                out.append("\r\n");
+            } else if (version == 1) {
+                fold(out, "PHOTO;ENCODING=b;TYPE=JPEG:" + data);
+            } else {
+                fold(out, "PHOTO:data:image/jpeg;base64," + data);
+            }
+        }
+
+        out.append("END:VCARD\r\n");
+    }
+
+    /**
+     * @return the UTF-8 bytes of a corpus of the given number of cards
+     */
+    public byte[] generate(final int cards) {
+        final StringBuilder out = new StringBuilder(cards * 300);
+        for (int i = 0; i < cards; i++) {
+            card(out, i);
+        }
+
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a corpus to a file, in batches so that even a million cards need little memory.
+     */
+    public void write(final int cards, final File file) throws IOException {
+        try (final OutputStream out = new FileOutputStream(file)) {
+            final StringBuilder batch = new StringBuilder();
+            for (int i = 0; i < cards; i++) {
+                card(batch, i);
+                if (batch.length() > 1 << 20) {
+                    out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+                    batch.setLength(0);
+                }
+            }
+
+            out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: CorpusGenerator <cards> <file> [seed]");
+            System.exit(2);
+        }
+
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        new CorpusGenerator(seed).write(Integer.parseInt(args[0]), new File(args[1]));
+    }
+
+}
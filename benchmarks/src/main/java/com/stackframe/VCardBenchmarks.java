@@ -0,0 +1,153 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import ezvcard.io.text.VCardReader;
+import ezvcard.io.text.VCardWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per-card work of opening, cleaning, listing and saving an address book against a generated corpus.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class VCardBenchmarks {
+
+    @Param({"1000", "100000"})
+    public int cards;
+
+    private byte[] corpus;
+    private File corpusFile;
+    private List<VCard> parsed;
+    private List<VCard> cleaned;
+
+    /**
+     * Discards what is written to it, counting the characters so that the work cannot be optimized away.
+     */
+    private static final class NullWriter extends Writer {
+
+        private long count;
+
+        @Override
+        public void write(final char[] buffer, final int offset, final int length) {
+            count += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static List<VCard> parse(final byte[] bytes) throws IOException {
+        final List<VCard> result = new ArrayList<>();
+        try (final VCardReader reader = new VCardReader(
+                new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8))) {
+            VCard card;
+            while ((card = reader.readNext()) != null) {
+                result.add(card);
+            }
+        }
+
+        return result;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = new CorpusGenerator(1).generate(cards);
+        corpusFile = File.createTempFile("corpus", ".vcf");
+        Files.write(corpusFile.toPath(), corpus);
+        parsed = parse(corpus);
+        cleaned = new ArrayList<>(parsed.size());
+        for (final VCard card : parsed) {
+            cleaned.add(VCardUtil.cleanup(card));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        corpusFile.delete();
+    }
+
+    @Benchmark
+    public List<VCard> readSequential() throws IOException {
+        return parse(corpus);
+    }
+
+    @Benchmark
+    public int readParallel() throws IOException, InterruptedException {
+        final int[] count = new int[1];
+        try (final FileChannel channel = FileChannel.open(corpusFile.toPath(), StandardOpenOption.READ)) {
+            new ParallelVCardParser().parse(channel, CardSpans.scan(channel), card -> card,
+                    chunk -> count[0] += chunk.getCards().size(), () -> false);
+        }
+
+        return count[0];
+    }
+
+    @Benchmark
+    public void cleanup(final Blackhole blackhole) {
+        for (final VCard card : parsed) {
+            blackhole.consume(VCardUtil.cleanup(card));
+        }
+    }
+
+    @Benchmark
+    public VCardVersion highestVersion() {
+        return VCardUtil.highestVersion(parsed);
+    }
+
+    @Benchmark
+    public void listDisplayName(final Blackhole blackhole) {
+        for (final VCard card : cleaned) {
+            blackhole.consume(ContactCurator.listDisplayName(card));
+        }
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        final NullWriter out = new NullWriter();
+        final VCardWriter writer = new VCardWriter(out, VCardVersion.V3_0);
+        for (final VCard card : cleaned) {
+            writer.write(card);
+        }
+
+        writer.flush();
+        return out.count;
+    }
+
+}
@@ -0,0 +1,490 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import ezvcard.io.text.VCardReader;
+import ezvcard.io.text.VCardWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The headless command line mode: cleans up many contact files at once, optionally merging duplicate contacts and
+ * converting them to another vCard version or to CSV or JSON Lines, on a bounded pool of threads. Each file is read,
+ * cleaned and written by one thread; a file that fails is reported and the rest carry on. Files are replaced
+ * atomically, so a run that is killed never leaves one half written.
+ * <p>
+ * Files are streamed from reader to writer, so they are never held in memory as a whole, except for a file written as
+ * vCard without {@code --version}, whose cards must all be read to find the highest version among them, and a file
+ * whose duplicates are merged. Merged cards are still written straight to the file as each group is merged, rather
+ * than gathered into a merged copy of the file first.
+ */
+final class BatchCleaner {
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILURES = 1;
+    static final int EXIT_USAGE = 2;
+
+    private static final int QUEUE = 1024;
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "usage: ContactCurator [options] <file or directory>...",
+            "  Cleans up .vcf, .csv and .jsonl files; directories are searched recursively.",
+            "  --output <dir>     write cleaned files under this directory",
+            "  --in-place         replace each file with its cleaned version",
+            "  --version <v>      write vCard 2.1, 3.0 or 4.0 (default: highest version in each file)",
+            "  --format <f>       write vcf, csv or jsonl files (default: the format of each file)",
+            "  --merge <p>        merge duplicate contacts in vCard output, the first, last, most-complete or newest",
+            "                     card of each group winning",
+            "  --threads <n>      number of files to process at once (default: number of processors)");
+
+    private final List<Path> inputs = new ArrayList<>();
+    private Path outputDirectory;
+    private boolean inPlace;
+    private VCardVersion version;
+    private ContactFormat format;
+    private MergePrecedence merge;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private final CardCleaner cleaner = CardCleaner.standard();
+
+    /**
+     * The outcome of one file.
+     */
+    private static final class Result {
+
+        private final Path input;
+        private final Path output;
+        private final int cards;
+        private final long bytes;
+        private final Exception error;
+
+        private Result(final Path input, final Path output, final int cards, final long bytes, final Exception error) {
+            this.input = input;
+            this.output = output;
+            this.cards = cards;
+            this.bytes = bytes;
+            this.error = error;
+        }
+
+    }
+
+    /**
+     * A file to clean and where to write it.
+     */
+    private static final class Job {
+
+        private final Path input;
+        private final Path output;
+
+        private Job(final Path input, final Path output) {
+            this.input = input;
+            this.output = output;
+        }
+
+    }
+
+    private static VCardVersion parseVersion(final String s) {
+        for (final VCardVersion v : VCardVersion.values()) {
+            if (v.getVersion().equals(s)) {
+                return v;
+            }
+        }
+
+        throw new IllegalArgumentException("unknown vCard version: " + s);
+    }
+
+    private static MergePrecedence parsePrecedence(final String s) {
+        for (final MergePrecedence p : MergePrecedence.values()) {
+            if (p.name().replace('_', '-').equalsIgnoreCase(s)) {
+                return p;
+            }
+        }
+
+        throw new IllegalArgumentException("unknown merge precedence: " + s);
+    }
+
+    private static ContactFormat parseFormat(final String s) {
+        final ContactFormat format = ContactFormat.of(Path.of("contacts." + s));
+        if (format == null || !format.getExtension().equals("." + s)) {
+            throw new IllegalArgumentException("unknown format: " + s);
+        }
+
+        return format;
+    }
+
+    private void parseArguments(final String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            switch (arg) {
+                case "--output":
+                    outputDirectory = Path.of(value(args, ++i, arg));
+                    break;
+                case "--in-place":
+                    inPlace = true;
+                    break;
+                case "--version":
+                    version = parseVersion(value(args, ++i, arg));
+                    break;
+                case "--format":
+                    format = parseFormat(value(args, ++i, arg));
+                    break;
+                case "--merge":
+                    merge = parsePrecedence(value(args, ++i, arg));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value(args, ++i, arg));
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("--threads must be at least 1");
+                    }
+
+                    break;
+                default:
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("unknown option: " + arg);
+                    }
+
+                    inputs.add(Path.of(arg));
+            }
+        }
+
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("no input files");
+        }
+
+        if (inPlace == (outputDirectory != null)) {
+            throw new IllegalArgumentException("exactly one of --output and --in-place is required");
+        }
+
+        if (inPlace && format != null) {
+            throw new IllegalArgumentException("--format cannot be used with --in-place");
+        }
+
+        // A table file written in its own format has no vCard version to convert to.
+        final boolean tableOutput = format != null ? format != ContactFormat.VCARD : inputs.stream().anyMatch(
+                input -> !Files.isDirectory(input) && input.getFileName() != null
+                        && ContactFormat.orVCard(input) != ContactFormat.VCARD);
+        if (version != null && tableOutput) {
+            throw new IllegalArgumentException("--version can only be used with vCard output");
+        }
+
+        if (merge != null && tableOutput) {
+            throw new IllegalArgumentException("--merge can only be used with vCard output");
+        }
+    }
+
+    private static String value(final String[] args, final int i, final String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+
+        return args[i];
+    }
+
+    /**
+     * Expands the inputs into jobs, keeping the layout of directories under the output directory.
+     */
+    private List<Job> jobs() throws IOException {
+        final List<Job> jobs = new ArrayList<>();
+        for (final Path input : inputs) {
+            // An input such as .. or / has no name of its own until it is made absolute, and a root has none at all.
+            final Path name = input.toAbsolutePath().normalize().getFileName();
+            final Path target = inPlace ? null : name == null ? outputDirectory : outputDirectory.resolve(name);
+            if (Files.isDirectory(input)) {
+                final List<Path> files;
+                try (final Stream<Path> walk = Files.walk(input)) {
+                    files = walk.filter(ContactFormat::isContactFile).sorted().collect(Collectors.toList());
+                }
+
+                for (final Path file : files) {
+                    jobs.add(new Job(file, inPlace ? file : output(target.resolve(input.relativize(file)))));
+                }
+            } else {
+                jobs.add(new Job(input, inPlace ? input : output(target)));
+            }
+        }
+
+        return jobs;
+    }
+
+    /**
+     * @return where a file is written in the output directory, with the extension of the format it is written in
+     */
+    private Path output(final Path file) {
+        return format == null ? file : format.withExtension(file);
+    }
+
+    /**
+     * @return the cards a reader reads, as they are read
+     */
+    private static Iterator<VCard> cards(final VCardReader reader) {
+        return new Iterator<VCard>() {
+
+            private VCard next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = reader.readNext();
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public VCard next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final VCard card = next;
+                next = null;
+                return card;
+            }
+
+        };
+    }
+
+    /**
+     * The cards of a CSV or JSON Lines file, read by {@link ContactTable#read} on a thread of its own and handed over
+     * through a bounded queue, so that only a few of them are held at once.
+     */
+    private static final class TableCards implements Iterator<VCard>, Closeable {
+
+        private static final VCard END = new VCard();
+
+        private final BlockingQueue<VCard> queue = new ArrayBlockingQueue<>(QUEUE);
+        private final Thread thread;
+        private volatile boolean closed;
+        private Exception error;
+        private VCard next;
+
+        private TableCards(final Path file, final ContactFormat format) {
+            thread = new Thread(() -> {
+                try {
+                    ContactTable.read(file, format, card -> {
+                        try {
+                            queue.put(card);
+                        } catch (final InterruptedException e) {
+                            throw new CancellationException();
+                        }
+                    }, () -> closed);
+                } catch (final Exception e) {
+                    error = e;
+                }
+
+                try {
+                    queue.put(END);
+                } catch (final InterruptedException e) {
+                    // Closed, so nobody is waiting for the end.
+                }
+            }, "Read " + file.getFileName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException();
+                }
+            }
+
+            if (next != END) {
+                return true;
+            }
+
+            // The queue orders the error before the end.
+            if (error instanceof IOException) {
+                throw new UncheckedIOException((IOException) error);
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error != null) {
+                throw new CancellationException();
+            }
+
+            return false;
+        }
+
+        @Override
+        public VCard next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final VCard card = next;
+            next = null;
+            return card;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            thread.interrupt();
+            queue.clear();
+            try {
+                thread.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    /**
+     * Replaces a file with cards, merging their duplicates as each group is written.
+     *
+     * @return the number of cards written
+     */
+    private int merge(final Path target, final List<VCard> cards, final VCardVersion version) throws IOException {
+        final List<int[]> groups = new DuplicateDetector().findDuplicates(cards);
+        CardFileWriter.replace(target, channel -> {
+            final VCardWriter writer = CardPhotos.register(new VCardWriter(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), version));
+            try {
+                VCardUtil.mergeAll(cards, groups, merge, writer);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            }
+
+            writer.flush();
+        }, percent -> {
+        });
+        return cards.size() - groups.stream().mapToInt(group -> group.length - 1).sum();
+    }
+
+    private Result clean(final Job job) {
+        int count = 0;
+        try {
+            final long bytes = Files.size(job.input);
+            final ContactFormat from = ContactFormat.orVCard(job.input);
+            final ContactFormat to = format != null ? format : from;
+            final Path parent = job.output.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+
+            try (final VCardReader reader = from == ContactFormat.VCARD ? new VCardReader(job.input.toFile()) : null;
+                 final TableCards table = from == ContactFormat.VCARD ? null : new TableCards(job.input, from)) {
+                final Iterator<VCard> cards = reader != null ? cards(reader) : table;
+                if (!cards.hasNext()) {
+                    throw new IOException("no vCards found");
+                }
+
+                if (to != ContactFormat.VCARD) {
+                    count = ContactTable.write(job.output, cards, cleaner::clean, to, n -> {
+                    }, () -> false);
+                } else if (version != null && merge == null) {
+                    count = CardFileWriter.write(job.output, cards, cleaner::clean, version, () -> false);
+                } else {
+                    final List<VCard> cleaned = new ArrayList<>();
+                    cards.forEachRemaining(card -> cleaned.add(cleaner.clean(card)));
+                    count = cleaned.size();
+                    final VCardVersion v = version != null ? version : VCardUtil.highestVersion(cleaned);
+                    if (merge == null) {
+                        CardFileWriter.write(job.output, cleaned, v, percent -> {
+                        }, () -> false);
+                    } else {
+                        count = merge(job.output, cleaned, v);
+                    }
+                }
+            }
+
+            return new Result(job.input, job.output, count, bytes, null);
+        } catch (final UncheckedIOException e) {
+            return new Result(job.input, job.output, count, 0, e.getCause());
+        } catch (final Exception e) {
+            return new Result(job.input, job.output, count, 0, e);
+        }
+    }
+
+    private int run(final PrintStream out, final PrintStream err) throws IOException, InterruptedException {
+        final List<Job> jobs = jobs();
+        final long start = System.nanoTime();
+        final int[] totals = new int[2];
+        final long[] bytes = new long[1];
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            OrderedParallel.map(jobs.iterator(), this::clean, result -> {
+                if (result.error != null) {
+                    totals[1]++;
+                    err.println(result.input + ": " + result.error.getLocalizedMessage());
+                } else {
+                    totals[0] += result.cards;
+                    bytes[0] += result.bytes;
+                    out.println(result.input + " -> " + result.output + " (" + result.cards + " cards)");
+                }
+            }, pool, threads * 2, () -> false);
+        } catch (final ExecutionException e) {
+            // Each step catches its own failures, so this can only be a bug.
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        final double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        out.printf(Locale.ROOT, "%d files, %d failed, %d cards, %.1f MB in %.2f s (%.0f cards/s, %.1f MB/s)%n",
+                jobs.size(), totals[1], totals[0], bytes[0] / 1e6, seconds, totals[0] / Math.max(seconds, 1e-9),
+                bytes[0] / 1e6 / Math.max(seconds, 1e-9));
+        for (final CardCleaner.Counter counter : cleaner.getCounters()) {
+            if (counter.getChanged() + counter.getRemoved() > 0) {
+                out.printf(Locale.ROOT, "  %s: %d changed, %d removed%n", counter.getName(), counter.getChanged(),
+                        counter.getRemoved());
+            }
+        }
+
+        return totals[1] == 0 ? EXIT_OK : EXIT_FAILURES;
+    }
+
+    /**
+     * Runs the command line mode.
+     *
+     * @return the process exit code: {@link #EXIT_OK}, {@link #EXIT_FAILURES} if any file failed, or
+     * {@link #EXIT_USAGE} if the arguments were wrong
+     */
+    static int run(final String[] args, final PrintStream out, final PrintStream err) {
+        final BatchCleaner cleaner = new BatchCleaner();
+        try {
+            cleaner.parseArguments(args);
+        } catch (final IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        try {
+            return cleaner.run(out, err);
+        } catch (final IOException | InterruptedException e) {
+            err.println(e);
+            return EXIT_FAILURES;
+        }
+    }
+
+}
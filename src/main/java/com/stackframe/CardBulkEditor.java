@@ -0,0 +1,225 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.property.Address;
+import ezvcard.property.Birthday;
+import ezvcard.property.Categories;
+import ezvcard.property.Email;
+import ezvcard.property.Nickname;
+import ezvcard.property.Note;
+import ezvcard.property.Organization;
+import ezvcard.property.Photo;
+import ezvcard.property.Role;
+import ezvcard.property.Telephone;
+import ezvcard.property.Title;
+import ezvcard.property.Url;
+import ezvcard.property.VCardProperty;
+
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.UnaryOperator;
+
+/**
+ * Applies one change to many cards on a background thread and works out the result as a single edit, so the caller
+ * updates the store, the list and the journal once however many cards changed. The cards are taken in batches that
+ * are edited in parallel and gathered in position order. Progress is reported as the percentage of cards done. A
+ * cancelled bulk edit changes nothing.
+ * <p>
+ * A change is a function that returns the card itself if there is nothing to do, like {@link CardCleaner#clean}, so
+ * cards that already have what is asked for are left alone and are not marked modified.
+ */
+class CardBulkEditor extends SwingWorker<EditJournal.Edit<CardEntry>, Void> {
+
+    private static final int BATCH = 512;
+
+    /**
+     * The cleaners of the bulk cleanups, kept for the whole session so that their counters add up across bulk edits.
+     */
+    private static final CardCleaner CLEAN_UP = CardCleaner.standard();
+    private static final CardCleaner PHONE_NUMBERS = new CardCleaner(List.of(CardCleaner.rule("Phone numbers to E.164",
+            Telephone.class, CardCleaner::toE164)));
+
+    /**
+     * The kinds of property that can be removed from cards in bulk, by what they are called in the user interface.
+     */
+    static final Map<String, Class<? extends VCardProperty>> REMOVABLE;
+
+    static {
+        final Map<String, Class<? extends VCardProperty>> removable = new LinkedHashMap<>();
+        removable.put("Organizations", Organization.class);
+        removable.put("Titles", Title.class);
+        removable.put("Roles", Role.class);
+        removable.put("Emails", Email.class);
+        removable.put("Telephone numbers", Telephone.class);
+        removable.put("Addresses", Address.class);
+        removable.put("URLs", Url.class);
+        removable.put("Nicknames", Nickname.class);
+        removable.put("Birthdays", Birthday.class);
+        removable.put("Categories", Categories.class);
+        removable.put("Notes", Note.class);
+        removable.put("Photos", Photo.class);
+        REMOVABLE = Collections.unmodifiableMap(removable);
+    }
+
+    private final List<CardEntry> entries;
+    private final int[] positions;
+    private final UnaryOperator<VCard> change;
+
+    /**
+     * @param entries   the entries, read on the event dispatch thread; the edit refers to their positions
+     * @param positions the positions of the entries to change, in ascending order
+     * @param change    the change to make to each card, or null to delete the cards
+     */
+    CardBulkEditor(final List<CardEntry> entries, final int[] positions, final UnaryOperator<VCard> change) {
+        this.entries = List.copyOf(entries);
+        this.positions = positions.clone();
+        this.change = change;
+    }
+
+    /**
+     * @return a change that gives cards one organization in place of any they had
+     */
+    static UnaryOperator<VCard> setOrganization(final String name) {
+        return card -> {
+            final List<Organization> organizations = card.getOrganizations();
+            if (organizations.size() == 1 && organizations.get(0).getValues().equals(List.of(name))) {
+                return card;
+            }
+
+            final Organization organization = new Organization();
+            organization.getValues().add(name);
+            final VCard edited = new VCard(card.getVersion());
+            // The new organization takes the place of the first old one.
+            boolean added = false;
+            for (final VCardProperty property : card) {
+                if (!(property instanceof Organization)) {
+                    edited.addProperty(property);
+                } else if (!added) {
+                    edited.addProperty(organization);
+                    added = true;
+                }
+            }
+
+            if (!added) {
+                edited.addProperty(organization);
+            }
+
+            return edited;
+        };
+    }
+
+    /**
+     * @return a change that removes every property of a type from cards
+     */
+    static <P extends VCardProperty> UnaryOperator<VCard> removeProperties(final String name, final Class<P> type) {
+        return new CardCleaner(List.of(CardCleaner.rule("Remove " + name, type,
+                (property, context) -> CleanupRule.Outcome.REMOVED)))::clean;
+    }
+
+    /**
+     * @return a change that runs the {@link CardCleaner#standard} cleanup rules on cards
+     */
+    static UnaryOperator<VCard> cleanUp() {
+        return CLEAN_UP::clean;
+    }
+
+    /**
+     * @return a change that rewrites cards' phone numbers in E.164 form where it can be worked out
+     */
+    static UnaryOperator<VCard> reformatPhoneNumbers() {
+        return PHONE_NUMBERS::clean;
+    }
+
+    /**
+     * @return the cleaners of the bulk cleanups, by what the cleanups are called in the user interface
+     */
+    static Map<String, CardCleaner> getCleaners() {
+        final Map<String, CardCleaner> cleaners = new LinkedHashMap<>();
+        cleaners.put("Clean up", CLEAN_UP);
+        cleaners.put("Reformat phone numbers", PHONE_NUMBERS);
+        return cleaners;
+    }
+
+    /**
+     * @return the start of each batch, as an index into the positions
+     */
+    private Iterator<Integer> batches() {
+        return new Iterator<Integer>() {
+
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < positions.length;
+            }
+
+            @Override
+            public Integer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final int start = next;
+                next += BATCH;
+                return start;
+            }
+
+        };
+    }
+
+    /**
+     * @return for each position in a batch, the entry to replace it with, or null if its card did not change
+     */
+    private CardEntry[] edit(final int start) {
+        final CardEntry[] edited = new CardEntry[Math.min(positions.length, start + BATCH) - start];
+        for (int i = 0; i < edited.length && !isCancelled(); i++) {
+            final CardEntry entry = entries.get(positions[start + i]);
+            final VCard card = entry.getCard();
+            final VCard changed = change.apply(card);
+            if (changed != card) {
+                edited[i] = CardEntry.edited(CardPhotos.offload(changed), entry.getOrigin());
+            }
+        }
+
+        return edited;
+    }
+
+    @Override
+    protected EditJournal.Edit<CardEntry> doInBackground() throws InterruptedException {
+        final EditJournal.Edit<CardEntry> edit = new EditJournal.Edit<>();
+        if (change == null) {
+            // Deleting needs no card read.
+            Arrays.stream(positions).forEach(edit::remove);
+            return edit;
+        }
+
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        final int[] done = new int[1];
+        try {
+            OrderedParallel.map(batches(), this::edit, edited -> {
+                for (int i = 0; i < edited.length; i++) {
+                    if (edited[i] != null) {
+                        edit.change(positions[done[0] + i], edited[i]);
+                    }
+                }
+
+                done[0] += edited.length;
+                setProgress(done[0] * 100 / positions.length);
+            }, pool, pool.getParallelism() * 2, this::isCancelled);
+        } catch (final ExecutionException e) {
+            // Changing a card fails only if the change or the card is broken.
+            throw new IllegalStateException(e.getCause());
+        }
+
+        return edit;
+    }
+
+}
@@ -0,0 +1,436 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.parameter.EmailType;
+import ezvcard.parameter.TelephoneType;
+import ezvcard.property.Email;
+import ezvcard.property.Note;
+import ezvcard.property.Organization;
+import ezvcard.property.Telephone;
+import ezvcard.property.TextProperty;
+import ezvcard.property.VCardProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Cleans cards by running a pipeline of {@link CleanupRule}s fused into one traversal of each card's properties: each
+ * property is handed to every rule registered for its type, in order. Each rule counts the properties it changed and
+ * removed, for diagnostics.
+ * <p>
+ * The traversal only reads the card. Most cards need no cleanup, and they are returned as they are; only a card that a
+ * rule changes is rebuilt, from copies of the properties that were changed and the original objects of the rest.
+ * <p>
+ * The {@link #standard} rules trim whitespace, drop blank and duplicate email addresses, phone numbers and
+ * organizations, and rewrite phone numbers in E.164 form where the country is known: numbers written with a
+ * {@code +} or {@code 00} prefix always, others only if a default country calling code is set with the system property
+ * {@code contactcurator.countryCode}. Cards are cleaned as they are read with the {@link #baseline} rules alone, which
+ * only drop blank email addresses and organizations, so opening a file does not rewrite cards nobody asked to change;
+ * the standard rules are run by the batch cleaner and by bulk edit.
+ * <p>
+ * A cleaner can be shared between threads.
+ */
+final class CardCleaner {
+
+    private static final String COUNTRY_CODE = System.getProperty("contactcurator.countryCode");
+    private static final Pattern PHONE_PUNCTUATION = Pattern.compile("[\\s().\\-/]");
+    private static final CardCleaner DEFAULT = baseline();
+
+    /**
+     * How often one rule changed or removed a property.
+     */
+    static final class Counter {
+
+        private final String name;
+        private final LongAdder changed = new LongAdder();
+        private final LongAdder removed = new LongAdder();
+
+        private Counter(final String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getChanged() {
+            return changed.sum();
+        }
+
+        long getRemoved() {
+            return removed.sum();
+        }
+
+        void reset() {
+            changed.reset();
+            removed.reset();
+        }
+
+    }
+
+    /**
+     * A rule and its position in the pipeline.
+     */
+    private static final class Step {
+
+        private final CleanupRule<?> rule;
+        private final int index;
+
+        private Step(final CleanupRule<?> rule, final int index) {
+            this.rule = rule;
+            this.index = index;
+        }
+
+    }
+
+    private final List<CleanupRule<?>> rules;
+    private final List<Counter> counters = new ArrayList<>();
+
+    /**
+     * The steps that apply to each property class, worked out once per class.
+     */
+    private final ClassValue<Step[]> steps = new ClassValue<>() {
+
+        @Override
+        protected Step[] computeValue(final Class<?> type) {
+            final List<Step> applicable = new ArrayList<>();
+            for (int i = 0; i < rules.size(); i++) {
+                if (rules.get(i).getPropertyType().isAssignableFrom(type)) {
+                    applicable.add(new Step(rules.get(i), i));
+                }
+            }
+
+            return applicable.toArray(new Step[0]);
+        }
+
+    };
+
+    /**
+     * @param rules the rules, in the order they run on each property
+     */
+    CardCleaner(final List<CleanupRule<?>> rules) {
+        this.rules = List.copyOf(rules);
+        for (final CleanupRule<?> rule : this.rules) {
+            counters.add(new Counter(rule.getName()));
+        }
+    }
+
+    /**
+     * @return the cleaner with the {@link #baseline} rules that cards are cleaned with as they are read
+     */
+    static CardCleaner getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return a new cleaner that only removes blank emails and organizations, with its own counters
+     */
+    static CardCleaner baseline() {
+        return new CardCleaner(List.of(
+                rule("Remove blank emails", Email.class, CardCleaner::removeBlank),
+                rule("Remove blank organizations", Organization.class, CardCleaner::removeBlank)));
+    }
+
+    /**
+     * @return a new cleaner with the built-in rules and its own counters
+     */
+    static CardCleaner standard() {
+        return new CardCleaner(List.of(
+                rule("Trim whitespace", TextProperty.class, CardCleaner::trim),
+                rule("Remove blank emails", Email.class, CardCleaner::removeBlank),
+                rule("Remove duplicate emails", Email.class,
+                        (email, context) -> dedupe(email, VCardUtil.normalizeEmail(email.getValue()), context)),
+                rule("Remove blank organizations", Organization.class, CardCleaner::removeBlank),
+                rule("Phone numbers to E.164", Telephone.class, CardCleaner::toE164),
+                rule("Remove duplicate phone numbers", Telephone.class,
+                        (phone, context) -> dedupe(phone, phoneKey(phone), context))));
+    }
+
+    /**
+     * @return a rule made of a function
+     */
+    static <P extends VCardProperty> CleanupRule<P> rule(final String name, final Class<P> type,
+                                                         final BiFunction<P, CleanupRule.Context,
+                                                                 CleanupRule.Outcome> apply) {
+        return new CleanupRule<>() {
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public Class<P> getPropertyType() {
+                return type;
+            }
+
+            @Override
+            public Outcome apply(final P property, final Context context) {
+                return apply.apply(property, context);
+            }
+
+        };
+    }
+
+    /**
+     * @return the counters of the rules, in pipeline order
+     */
+    List<Counter> getCounters() {
+        return Collections.unmodifiableList(counters);
+    }
+
+    void resetCounters() {
+        counters.forEach(Counter::reset);
+    }
+
+    private static <P extends VCardProperty> CleanupRule.Outcome apply(final CleanupRule<P> rule,
+                                                                      final VCardProperty property,
+                                                                      final CleanupRule.Context context) {
+        return rule.apply(rule.getPropertyType().cast(property), context);
+    }
+
+    /**
+     * The state of cleaning one card, all of it made only when a rule needs it.
+     */
+    private final class Pass implements CleanupRule.Context {
+
+        private List<Map<Object, VCardProperty>> seen;
+
+        /**
+         * Each changed property's copy, keyed by both the original and the copy itself.
+         */
+        private Map<VCardProperty, VCardProperty> copies;
+        private Set<VCardProperty> removed;
+        private int step;
+
+        @Override
+        public Map<Object, VCardProperty> seen() {
+            if (seen == null) {
+                seen = new ArrayList<>(Collections.nCopies(rules.size(), null));
+            }
+
+            Map<Object, VCardProperty> scratch = seen.get(step);
+            if (scratch == null) {
+                scratch = new HashMap<>();
+                seen.set(step, scratch);
+            }
+
+            return scratch;
+        }
+
+        @Override
+        public <T extends VCardProperty> T edit(final T property) {
+            if (copies == null) {
+                copies = new IdentityHashMap<>();
+            }
+
+            VCardProperty copy = copies.get(property);
+            if (copy == null) {
+                copy = property.copy();
+                copies.put(property, copy);
+                copies.put(copy, copy);
+            }
+
+            @SuppressWarnings("unchecked") final T typed = (T) copy;
+            return typed;
+        }
+
+        /**
+         * @return the latest version of a property of the card
+         */
+        private VCardProperty current(final VCardProperty property) {
+            return copies == null ? property : copies.getOrDefault(property, property);
+        }
+
+    }
+
+    /**
+     * Cleans a card.
+     *
+     * @return the card itself if no rule changed it, or else a cleaned card that shares every property that was not
+     * changed with it, in the same order
+     */
+    VCard clean(final VCard card) {
+        Pass pass = null;
+        for (final VCardProperty property : card) {
+            for (final Step step : steps.get(property.getClass())) {
+                if (pass == null) {
+                    pass = new Pass();
+                }
+
+                pass.step = step.index;
+                final CleanupRule.Outcome outcome = apply(step.rule, pass.current(property), pass);
+                if (outcome == CleanupRule.Outcome.CHANGED) {
+                    counters.get(step.index).changed.increment();
+                } else if (outcome == CleanupRule.Outcome.REMOVED) {
+                    counters.get(step.index).removed.increment();
+                    if (pass.removed == null) {
+                        pass.removed = Collections.newSetFromMap(new IdentityHashMap<>());
+                    }
+
+                    pass.removed.add(property);
+                    break;
+                }
+            }
+        }
+
+        if (pass == null || (pass.copies == null && pass.removed == null)) {
+            return card;
+        }
+
+        final VCard cleaned = new VCard(card.getVersion());
+        for (final VCardProperty property : card) {
+            if (pass.removed == null || !pass.removed.contains(property)) {
+                cleaned.addProperty(pass.current(property));
+            }
+        }
+
+        return cleaned;
+    }
+
+    private static boolean isNullOrBlank(final String s) {
+        return s == null || s.isBlank();
+    }
+
+    private static CleanupRule.Outcome removeBlank(final Email email, final CleanupRule.Context context) {
+        return isNullOrBlank(email.getValue()) ? CleanupRule.Outcome.REMOVED : CleanupRule.Outcome.KEPT;
+    }
+
+    private static CleanupRule.Outcome removeBlank(final Organization org, final CleanupRule.Context context) {
+        return org.getValues().stream().allMatch(CardCleaner::isNullOrBlank)
+                ? CleanupRule.Outcome.REMOVED : CleanupRule.Outcome.KEPT;
+    }
+
+    private static CleanupRule.Outcome trim(final TextProperty property, final CleanupRule.Context context) {
+        // A note's layout is part of what it says.
+        final String value = property.getValue();
+        if (property instanceof Note || value == null) {
+            return CleanupRule.Outcome.KEPT;
+        }
+
+        final String trimmed = value.strip();
+        if (trimmed.equals(value)) {
+            return CleanupRule.Outcome.KEPT;
+        }
+
+        context.edit(property).setValue(trimmed);
+        return CleanupRule.Outcome.CHANGED;
+    }
+
+    /**
+     * Removes a property whose key was already seen in the card, adding its types to the one that was kept.
+     */
+    private static CleanupRule.Outcome dedupe(final VCardProperty property, final Object key,
+                                              final CleanupRule.Context context) {
+        if (key == null) {
+            return CleanupRule.Outcome.KEPT;
+        }
+
+        final VCardProperty kept = context.seen().putIfAbsent(key, property);
+        if (kept == null) {
+            return CleanupRule.Outcome.KEPT;
+        }
+
+        if (kept instanceof Email) {
+            final List<EmailType> types = ((Email) kept).getTypes();
+            if (!types.containsAll(((Email) property).getTypes())) {
+                addMissing(((Email) context.edit(kept)).getTypes(), ((Email) property).getTypes());
+            }
+        } else if (kept instanceof Telephone) {
+            final List<TelephoneType> types = ((Telephone) kept).getTypes();
+            if (!types.containsAll(((Telephone) property).getTypes())) {
+                addMissing(((Telephone) context.edit(kept)).getTypes(), ((Telephone) property).getTypes());
+            }
+        }
+
+        return CleanupRule.Outcome.REMOVED;
+    }
+
+    private static <T> void addMissing(final List<T> to, final List<T> from) {
+        for (final T item : from) {
+            if (!to.contains(item)) {
+                to.add(item);
+            }
+        }
+    }
+
+    /**
+     * @return a key that two phone numbers share only if they are the same number: its E.164 form if it has one, or
+     * else the number without its spacing and punctuation, keeping any extension; or null if it has no digits
+     */
+    static String phoneKey(final Telephone phone) {
+        final String number = VCardUtil.phoneNumber(phone);
+        if (number == null || number.chars().noneMatch(c -> c >= '0' && c <= '9')) {
+            return null;
+        }
+
+        final String e164 = e164(number, COUNTRY_CODE);
+        return e164 != null ? e164 : PHONE_PUNCTUATION.matcher(number).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    static CleanupRule.Outcome toE164(final Telephone phone, final CleanupRule.Context context) {
+        final String text = phone.getText();
+        final String e164 = text == null ? null : e164(text, COUNTRY_CODE);
+        if (e164 == null || e164.equals(text)) {
+            return CleanupRule.Outcome.KEPT;
+        }
+
+        context.edit(phone).setText(e164);
+        return CleanupRule.Outcome.CHANGED;
+    }
+
+    /**
+     * Rewrites a phone number in E.164 form: a plus sign, the country calling code and the national number, with no
+     * punctuation. A trunk prefix written as {@code (0)} after the country code is dropped. Numbers with letters,
+     * pauses, extension separators or service codes, such as {@code ext}, {@code w}, {@code p}, {@code ,}, {@code ;},
+     * {@code *} or {@code #}, are left alone, as are North American numbers without an area code.
+     *
+     * @param countryCode the country calling code of numbers written without one, or null if it is unknown
+     * @return the number in E.164 form, or null if it cannot be worked out
+     */
+    static String e164(final String number, final String countryCode) {
+        final String trimmed = number.strip().replace("(0)", "");
+        final StringBuilder digits = new StringBuilder(trimmed.length());
+        for (int i = 0; i < trimmed.length(); i++) {
+            final char c = trimmed.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if (Character.isLetter(c) || c == ',' || c == ';' || c == '*' || c == '#') {
+                return null;
+            }
+        }
+
+        final String international;
+        if (trimmed.startsWith("+")) {
+            international = digits.toString();
+        } else if (digits.length() > 2 && digits.charAt(0) == '0' && digits.charAt(1) == '0') {
+            international = digits.substring(2);
+        } else if (countryCode == null) {
+            return null;
+        } else if (countryCode.equals("1")) {
+            // North American numbers have no trunk prefix but are often written with the country code anyway.
+            if (digits.length() == 10) {
+                international = "1" + digits;
+            } else if (digits.length() == 11 && digits.charAt(0) == '1') {
+                international = digits.toString();
+            } else {
+                return null;
+            }
+        } else {
+            international = countryCode + (digits.length() > 0 && digits.charAt(0) == '0'
+                    ? digits.substring(1) : digits);
+        }
+
+        return international.length() >= 8 && international.length() <= 15 ? "+" + international : null;
+    }
+
+}
@@ -0,0 +1,397 @@
+package com.stackframe;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The requests a CardDAV (RFC 6352) address book collection is synchronized with: a sync-collection report (RFC 6578)
+ * for what changed since a sync token, an addressbook-multiget report for the cards themselves, and conditional PUTs
+ * and DELETEs for local changes. Requests are blocking, so several can be in flight at once from different threads;
+ * the underlying {@link HttpClient} keeps their connections open between them.
+ */
+final class CardDavClient {
+
+    private static final String DAV = "DAV:";
+    private static final String CARDDAV = "urn:ietf:params:xml:ns:carddav";
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+
+    private static final XMLInputFactory XML = XMLInputFactory.newFactory();
+
+    static {
+        XML.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL).build();
+    private final URI collection;
+    private final String user;
+    private final String authorization;
+
+    /**
+     * A member of the collection as a multistatus response describes it.
+     */
+    static final class Member {
+
+        private String href;
+        private String etag;
+        private String data;
+        private int status = 200;
+
+        /**
+         * @return the member's href, as the server gave it
+         */
+        String getHref() {
+            return href;
+        }
+
+        /**
+         * @return the member's entity tag, or null if the server did not give one
+         */
+        String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @return the text of the member's vCard, or null if it was not asked for or not found
+         */
+        String getData() {
+            return data;
+        }
+
+        boolean isFound() {
+            return status / 100 == 2;
+        }
+
+    }
+
+    /**
+     * What changed in the collection since a sync token.
+     */
+    static final class Changes {
+
+        private final List<Member> changed = new ArrayList<>();
+        private final List<String> removed = new ArrayList<>();
+        private String token;
+        private boolean truncated;
+
+        /**
+         * @return the members added or changed, with their entity tags
+         */
+        List<Member> getChanged() {
+            return changed;
+        }
+
+        /**
+         * @return the hrefs of the members removed
+         */
+        List<String> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return the token to ask for later changes with
+         */
+        String getToken() {
+            return token;
+        }
+
+        /**
+         * @return true if the server left some changes out, which are reported when asked again with the new token
+         */
+        boolean isTruncated() {
+            return truncated;
+        }
+
+    }
+
+    /**
+     * Thrown when a conditional request fails because the member is not as it was last seen.
+     */
+    static final class ConflictException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        ConflictException(final String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * Thrown when the server no longer accepts a sync token, so every member has to be listed again.
+     */
+    static final class InvalidTokenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        InvalidTokenException(final String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * @param collection the URL of the address book collection
+     * @param user       the user name for basic authentication, or null to send none
+     * @param password   the password for basic authentication
+     */
+    CardDavClient(final URI collection, final String user, final char[] password) {
+        final String path = collection.getRawPath() == null || collection.getRawPath().isEmpty() ? "/"
+                : collection.getRawPath();
+        this.collection = path.endsWith("/") ? collection : collection.resolve(path + "/");
+        this.user = user == null ? "" : user;
+        authorization = this.user.isEmpty() ? null : "Basic " + Base64.getEncoder()
+                .encodeToString((user + ':' + new String(password)).getBytes(StandardCharsets.UTF_8));
+    }
+
+    URI getCollection() {
+        return collection;
+    }
+
+    /**
+     * @return the user name, or an empty string if there is none
+     */
+    String getUser() {
+        return user;
+    }
+
+    /**
+     * @return the href a new card with a UID is put at, named after the UID, without any {@code urn:uuid:} prefix, if
+     * it is safe in a URL
+     */
+    String hrefFor(final String uid) {
+        final String bare = uid != null && uid.startsWith("urn:uuid:") ? uid.substring("urn:uuid:".length()) : uid;
+        final String name = bare != null && bare.matches("[A-Za-z0-9._~-]{1,200}") ? bare
+                : UUID.randomUUID().toString();
+        return collection.getRawPath() + name + ".vcf";
+    }
+
+    private HttpRequest.Builder request(final String href) {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(collection.resolve(href)).timeout(TIMEOUT);
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+
+        return builder;
+    }
+
+    private static String escape(final String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private HttpResponse<InputStream> report(final String depth, final String body)
+            throws IOException, InterruptedException {
+        return http.send(request(collection.getRawPath()).header("Depth", depth)
+                .header("Content-Type", "application/xml; charset=utf-8")
+                .method("REPORT", HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8)).build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    private static String text(final HttpResponse<InputStream> response) throws IOException {
+        try (final InputStream in = response.body()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Asks what changed since a sync token.
+     *
+     * @param token the token from the last sync, or null to have every member listed
+     * @throws InvalidTokenException if the server no longer accepts the token
+     */
+    Changes changes(final String token) throws IOException, InterruptedException {
+        final HttpResponse<InputStream> response = report("0", "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<D:sync-collection xmlns:D=\"DAV:\">"
+                + (token == null ? "<D:sync-token/>" : "<D:sync-token>" + escape(token) + "</D:sync-token>")
+                + "<D:sync-level>1</D:sync-level><D:prop><D:getetag/></D:prop></D:sync-collection>");
+        if (response.statusCode() == 403 || response.statusCode() == 409) {
+            final String error = text(response);
+            if (error.contains("valid-sync-token")) {
+                throw new InvalidTokenException("the sync token is no longer valid");
+            }
+
+            throw new IOException("sync-collection: " + response.statusCode());
+        }
+
+        final Changes changes = new Changes();
+        for (final Member member : multistatus(response, "sync-collection", changes)) {
+            if (collection.resolve(member.href).equals(collection)) {
+                changes.truncated |= member.status == 507;
+            } else if (member.status == 404) {
+                changes.removed.add(member.href);
+            } else if (member.isFound()) {
+                changes.changed.add(member);
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Fetches members' cards in one request.
+     *
+     * @return the members found, each with its entity tag and vCard text
+     */
+    List<Member> multiget(final List<String> hrefs) throws IOException, InterruptedException {
+        final StringBuilder body = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<C:addressbook-multiget xmlns:D=\"DAV:\" xmlns:C=\"urn:ietf:params:xml:ns:carddav\">"
+                + "<D:prop><D:getetag/><C:address-data/></D:prop>");
+        for (final String href : hrefs) {
+            body.append("<D:href>").append(escape(href)).append("</D:href>");
+        }
+
+        body.append("</C:addressbook-multiget>");
+        final List<Member> found = new ArrayList<>(hrefs.size());
+        for (final Member member : multistatus(report("1", body.toString()), "addressbook-multiget", null)) {
+            if (member.isFound() && member.data != null) {
+                found.add(member);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Writes a card, as long as the member is still as it was last seen.
+     *
+     * @param etag the member's entity tag when it was last seen, or null if it must not exist yet
+     * @return the member's new entity tag, or null if the server did not give one
+     * @throws ConflictException if the member changed, or exists when it should not
+     */
+    String put(final String href, final byte[] card, final String etag) throws IOException, InterruptedException {
+        final HttpRequest.Builder builder = request(href).header("Content-Type", "text/vcard; charset=utf-8")
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(card));
+        final HttpResponse<Void> response = http.send(etag == null ? builder.header("If-None-Match", "*").build()
+                : builder.header("If-Match", etag).build(), HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 412) {
+            throw new ConflictException(href + " was changed on the server");
+        } else if (response.statusCode() / 100 != 2) {
+            throw new IOException("PUT " + href + ": " + response.statusCode());
+        }
+
+        return response.headers().firstValue("ETag").orElse(null);
+    }
+
+    /**
+     * Removes a member, as long as it is still as it was last seen. A member that is already gone is not an error.
+     *
+     * @throws ConflictException if the member changed
+     */
+    void delete(final String href, final String etag) throws IOException, InterruptedException {
+        final HttpRequest.Builder builder = request(href).DELETE();
+        final HttpResponse<Void> response = http.send(etag == null ? builder.build()
+                : builder.header("If-Match", etag).build(), HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 412) {
+            throw new ConflictException(href + " was changed on the server");
+        } else if (response.statusCode() / 100 != 2 && response.statusCode() != 404) {
+            throw new IOException("DELETE " + href + ": " + response.statusCode());
+        }
+    }
+
+    /**
+     * Reads the responses of a 207 Multi-Status body as it arrives.
+     *
+     * @param changes receives the sync token, if not null
+     */
+    private static List<Member> multistatus(final HttpResponse<InputStream> response, final String what,
+                                            final Changes changes) throws IOException {
+        if (response.statusCode() != 207) {
+            text(response);
+            throw new IOException(what + ": " + response.statusCode());
+        }
+
+        final List<Member> members = new ArrayList<>();
+        try (final InputStream in = response.body()) {
+            final XMLStreamReader reader = XML.createXMLStreamReader(in);
+            try {
+                Member member = null;
+                boolean inPropstat = false;
+                int propstatStatus = 200;
+                String etag = null;
+                String data = null;
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        final String namespace = reader.getNamespaceURI();
+                        final String name = reader.getLocalName();
+                        if (DAV.equals(namespace) && name.equals("response")) {
+                            member = new Member();
+                        } else if (DAV.equals(namespace) && name.equals("propstat")) {
+                            inPropstat = true;
+                            propstatStatus = 200;
+                            etag = null;
+                            data = null;
+                        } else if (DAV.equals(namespace) && name.equals("sync-token") && member == null) {
+                            if (changes != null) {
+                                changes.token = reader.getElementText().trim();
+                            }
+                        } else if (member != null && DAV.equals(namespace) && name.equals("href") && !inPropstat) {
+                            member.href = reader.getElementText().trim();
+                        } else if (member != null && DAV.equals(namespace) && name.equals("status")) {
+                            final int status = status(reader.getElementText());
+                            if (inPropstat) {
+                                propstatStatus = status;
+                            } else {
+                                member.status = status;
+                            }
+                        } else if (inPropstat && DAV.equals(namespace) && name.equals("getetag")) {
+                            etag = reader.getElementText().trim();
+                        } else if (inPropstat && CARDDAV.equals(namespace) && name.equals("address-data")) {
+                            data = reader.getElementText();
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && DAV.equals(reader.getNamespaceURI())) {
+                        if (reader.getLocalName().equals("propstat")) {
+                            inPropstat = false;
+                            // Properties that were not found come back in a propstat of their own.
+                            if (member != null && propstatStatus / 100 == 2) {
+                                member.etag = etag != null ? etag : member.etag;
+                                member.data = data != null ? data : member.data;
+                            }
+                        } else if (reader.getLocalName().equals("response") && member != null) {
+                            if (member.href != null) {
+                                members.add(member);
+                            }
+
+                            member = null;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException e) {
+            throw new IOException(what + ": " + e.getMessage(), e);
+        }
+
+        return members;
+    }
+
+    /**
+     * @return the code of an HTTP status line such as {@code HTTP/1.1 404 Not Found}
+     */
+    private static int status(final String line) {
+        final String[] parts = line.trim().split("\\s+");
+        try {
+            return parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
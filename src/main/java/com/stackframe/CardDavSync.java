@@ -0,0 +1,697 @@
+package com.stackframe;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import ezvcard.property.Uid;
+
+import javax.swing.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Synchronizes an address book with a CardDAV collection on a background thread, moving only what changed on either
+ * side since the last sync. The server is asked what changed since the sync token of the last sync, and only the cards
+ * whose entity tags differ from the ones last seen are fetched, {@link #BATCH} to a request with up to
+ * {@link #REQUESTS} requests in flight. Local changes are found without touching the cards: an entry is unchanged if
+ * it is the same entry at the same revision as after the last sync. They are written back with conditional requests,
+ * so nothing changed on the server in the meantime is overwritten.
+ * <p>
+ * A card changed on both sides takes the server's version, and the local version is kept as a new card with a new UID,
+ * so that it can be merged by hand, unless both sides made the same change. A card removed on one side and changed on
+ * the other is kept.
+ * <p>
+ * The state a sync leaves behind can be {@link State#save saved} and {@link State#load loaded} again, so that the
+ * next session, or the next sync after one whose result could not be applied, still knows what was synchronized. A
+ * state read back is not tied to entries: its members are matched to cards by UID, and a card counts as changed
+ * locally if its text differs from the text last synchronized. Without any state, cards already in the address book
+ * are matched to the server's by UID, and those whose text differs are handled as changed on both sides.
+ */
+class CardDavSync extends SwingWorker<CardDavSync.Result, Void> {
+
+    static final int BATCH = 100;
+    static final int REQUESTS = 4;
+
+    private static final int MAGIC = 0x43434431;
+    private static final int FORMAT = 1;
+
+    private final CardDavClient client;
+    private final State state;
+    private final List<CardEntry> entries;
+    private final int[] revisions;
+    private final long[] uidHashes;
+
+    /**
+     * The last seen version of a member of the collection, the hash of the card's text as it was synchronized, and the
+     * entry it was synchronized with, if it is still known.
+     */
+    private static final class Link {
+
+        private final String href;
+        private final String etag;
+        private final CardEntry entry;
+        private final int revision;
+        private final long uidHash;
+        private final long contentHash;
+
+        private Link(final String href, final String etag, final CardEntry entry, final int revision,
+                     final long contentHash) {
+            this(href, etag, entry, revision, entry.getUidHash(), contentHash);
+        }
+
+        private Link(final String href, final String etag, final CardEntry entry, final int revision,
+                     final long uidHash, final long contentHash) {
+            this.href = href;
+            this.etag = etag;
+            this.entry = entry;
+            this.revision = revision;
+            this.uidHash = uidHash;
+            this.contentHash = contentHash;
+        }
+
+        /**
+         * @return the link without its entry, to be matched to one again by UID and text
+         */
+        private Link detached() {
+            return entry == null ? this : new Link(href, etag, null, 0, uidHash, contentHash);
+        }
+
+    }
+
+    /**
+     * What a sync leaves behind for the next one: the collection's sync token and the link between its members and
+     * the entries. A state is never changed; each sync makes a new one.
+     */
+    static final class State {
+
+        private final URI collection;
+        private final String token;
+        private final Map<String, Link> links;
+
+        /**
+         * Makes the state of a collection that was never synchronized.
+         */
+        State(final URI collection) {
+            this(collection, null, Collections.emptyMap());
+        }
+
+        private State(final URI collection, final String token, final Map<String, Link> links) {
+            this.collection = collection;
+            this.token = token;
+            this.links = links;
+        }
+
+        URI getCollection() {
+            return collection;
+        }
+
+        /**
+         * @return the token to ask for changes since the last sync with, or null if there was none
+         */
+        String getToken() {
+            return token;
+        }
+
+        /**
+         * @return the number of members of the collection that are linked to entries
+         */
+        int size() {
+            return links.size();
+        }
+
+        /**
+         * @return the same state with its members no longer tied to entries, for when the entries it knew may have
+         * been replaced without its knowledge
+         */
+        State detached() {
+            final Map<String, Link> detached = new HashMap<>(links.size());
+            links.forEach((href, link) -> detached.put(href, link.detached()));
+            return new State(collection, token, detached);
+        }
+
+        /**
+         * @param book the address book file, or null if the cards have none
+         * @return where the state of syncing an address book with a collection is kept
+         */
+        static Path fileFor(final URI collection, final Path book) {
+            final String key = collection + "\n" + (book == null ? "" : book.toAbsolutePath().normalize());
+            return SnapshotCache.directory().resolve(SnapshotCache.digest(key) + ".carddav");
+        }
+
+        /**
+         * Writes the state, without its ties to entries, replacing any earlier one.
+         */
+        void save(final Path file) throws IOException {
+            SnapshotCache.createDirectory(file.getParent());
+            CardFileWriter.replace(file, channel -> {
+                final DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeUTF(collection.toString());
+                out.writeBoolean(token != null);
+                if (token != null) {
+                    out.writeUTF(token);
+                }
+
+                out.writeInt(links.size());
+                for (final Link link : links.values()) {
+                    out.writeUTF(link.href);
+                    out.writeBoolean(link.etag != null);
+                    if (link.etag != null) {
+                        out.writeUTF(link.etag);
+                    }
+
+                    out.writeLong(link.uidHash);
+                    out.writeLong(link.contentHash);
+                }
+
+                out.flush();
+            }, percent -> {
+            });
+        }
+
+        /**
+         * @return the state saved for a collection, detached from any entries, or a state that was never synchronized
+         * if there is none or it is unreadable
+         */
+        static State load(final Path file, final URI collection) {
+            if (!Files.exists(file)) {
+                return new State(collection);
+            }
+
+            try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+                    1 << 16))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT || !in.readUTF().equals(collection.toString())) {
+                    return new State(collection);
+                }
+
+                final String token = in.readBoolean() ? in.readUTF() : null;
+                final int n = in.readInt();
+                final Map<String, Link> links = new HashMap<>(n);
+                for (int i = 0; i < n; i++) {
+                    final String href = in.readUTF();
+                    final String etag = in.readBoolean() ? in.readUTF() : null;
+                    links.put(href, new Link(href, etag, null, 0, in.readLong(), in.readLong()));
+                }
+
+                return new State(collection, token, links);
+            } catch (final IOException e) {
+                System.err.println(e);
+                e.printStackTrace();
+                return new State(collection);
+            }
+        }
+
+    }
+
+    /**
+     * The changes a sync makes to the address book, and what it did.
+     */
+    static final class Result {
+
+        private final EditJournal.Edit<CardEntry> edit = new EditJournal.Edit<>();
+        private final Map<String, Exception> failures = new LinkedHashMap<>();
+        private State state;
+        private int fetched;
+        private int removed;
+        private int pushed;
+        private int deleted;
+        private int conflicts;
+
+        /**
+         * @return the entries to replace, the positions to remove and the entries to append
+         */
+        EditJournal.Edit<CardEntry> getEdit() {
+            return edit;
+        }
+
+        /**
+         * @return the state for the next sync, which is only valid once the edit is applied
+         */
+        State getState() {
+            return state;
+        }
+
+        /**
+         * @return the hrefs of the cards that could not be written or removed on the server and why; they are tried
+         * again on the next sync
+         */
+        Map<String, Exception> getFailures() {
+            return failures;
+        }
+
+        int getFetched() {
+            return fetched;
+        }
+
+        int getRemoved() {
+            return removed;
+        }
+
+        int getPushed() {
+            return pushed;
+        }
+
+        int getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @return the number of cards changed on both sides, whose local versions were kept as new cards
+         */
+        int getConflicts() {
+            return conflicts;
+        }
+
+    }
+
+    /**
+     * A card to write to the server.
+     */
+    private static final class Upload {
+
+        private final CardEntry entry;
+        private final int revision;
+        private final String href;
+        private final String etag;
+
+        private Upload(final CardEntry entry, final int revision, final String href, final String etag) {
+            this.entry = entry;
+            this.revision = revision;
+            this.href = href;
+            this.etag = etag;
+        }
+
+    }
+
+    /**
+     * What became of a request about one card: the new entity tag and the hash of the text written if it was a write
+     * that succeeded, or the failure.
+     */
+    private static final class Outcome<T> {
+
+        private final T item;
+        private final String etag;
+        private final long contentHash;
+        private final IOException error;
+
+        private Outcome(final T item, final String etag, final long contentHash, final IOException error) {
+            this.item = item;
+            this.etag = etag;
+            this.contentHash = contentHash;
+            this.error = error;
+        }
+
+    }
+
+    /**
+     * A card fetched from the server, and the hash of its text as it would be written back.
+     */
+    private static final class Fetched {
+
+        private final CardEntry entry;
+        private final long contentHash;
+
+        private Fetched(final CardEntry entry, final long contentHash) {
+            this.entry = entry;
+            this.contentHash = contentHash;
+        }
+
+    }
+
+    /**
+     * @param state   the state left by the last sync with the collection
+     * @param entries the address book's entries, read on the event dispatch thread
+     */
+    CardDavSync(final CardDavClient client, final State state, final List<CardEntry> entries) {
+        this.client = client;
+        this.state = state;
+        this.entries = new ArrayList<>(entries);
+        final int n = entries.size();
+        revisions = new int[n];
+        uidHashes = new long[n];
+        for (int i = 0; i < n; i++) {
+            revisions[i] = entries.get(i).getRevision();
+            uidHashes[i] = entries.get(i).getUidHash();
+        }
+    }
+
+    @Override
+    protected Result doInBackground() throws IOException, InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(REQUESTS);
+        try {
+            return sync(pool);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs requests on the pool through {@link OrderedParallel#map}, letting their I/O failures through as they are.
+     */
+    private <T, R> void map(final Iterator<T> inputs, final OrderedParallel.Step<? super T, ? extends R> step,
+                            final Consumer<? super R> sink, final ExecutorService pool)
+            throws IOException, InterruptedException {
+        try {
+            OrderedParallel.map(inputs, step, sink, pool, REQUESTS * 2, this::isCancelled);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private Result sync(final ExecutorService pool) throws IOException, InterruptedException {
+        final Result result = new Result();
+        final int n = entries.size();
+
+        // Find each linked member's entry, and whether it was changed since the last sync.
+        final Map<CardEntry, Integer> positions = new IdentityHashMap<>(n);
+        for (int i = 0; i < n; i++) {
+            positions.put(entries.get(i), i);
+        }
+
+        final Map<String, Link> links = new HashMap<>(state.links);
+        final String[] hrefs = new String[n];
+        final boolean[] changedLocally = new boolean[n];
+        final Map<String, Integer> linkedPositions = new HashMap<>();
+        final Map<Long, Link> orphans = new HashMap<>();
+        final Map<String, Link> removedLocally = new HashMap<>();
+        final Map<Long, Link> unboundWithoutUid = new HashMap<>();
+        for (final Link link : links.values()) {
+            final Integer position = link.entry == null ? null : positions.get(link.entry);
+            if (position != null) {
+                hrefs[position] = link.href;
+                changedLocally[position] = revisions[position] != link.revision;
+                linkedPositions.put(link.href, position);
+            } else if (link.entry == null && link.uidHash == 0) {
+                unboundWithoutUid.putIfAbsent(link.contentHash, link);
+            } else if (link.uidHash == 0 || orphans.putIfAbsent(link.uidHash, link) != null) {
+                removedLocally.put(link.href, link);
+            }
+        }
+
+        // An entry that replaced a linked one, as an edit or a merge does, carries on its UID.
+        final Map<Long, Integer> unlinked = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (hrefs[i] == null && uidHashes[i] != 0) {
+                final Link orphan = orphans.remove(uidHashes[i]);
+                if (orphan != null) {
+                    hrefs[i] = orphan.href;
+                    linkedPositions.put(orphan.href, i);
+                    // A link read back is matched by text, as its entry may have been read again since.
+                    changedLocally[i] = orphan.entry != null || contentHash(entries.get(i)) != orphan.contentHash;
+                    if (!changedLocally[i]) {
+                        links.put(orphan.href, new Link(orphan.href, orphan.etag, entries.get(i), revisions[i],
+                                orphan.contentHash));
+                    }
+                } else {
+                    unlinked.putIfAbsent(uidHashes[i], i);
+                }
+            }
+        }
+
+        // Members without a UID can only be matched by their unchanged text.
+        for (int i = 0; i < n && !unboundWithoutUid.isEmpty(); i++) {
+            if (hrefs[i] == null && uidHashes[i] == 0) {
+                final Link link = unboundWithoutUid.remove(contentHash(entries.get(i)));
+                if (link != null) {
+                    hrefs[i] = link.href;
+                    linkedPositions.put(link.href, i);
+                    links.put(link.href, new Link(link.href, link.etag, entries.get(i), revisions[i],
+                            link.contentHash));
+                }
+            }
+        }
+
+        orphans.values().forEach(link -> removedLocally.put(link.href, link));
+        unboundWithoutUid.values().forEach(link -> removedLocally.put(link.href, link));
+
+        // Ask what changed on the server, starting over if the token is no longer accepted.
+        final Map<String, String> changed = new LinkedHashMap<>();
+        final TreeSet<String> removed = new TreeSet<>();
+        String token = state.token;
+        boolean full = token == null;
+        while (true) {
+            final CardDavClient.Changes changes;
+            try {
+                changes = client.changes(token);
+            } catch (final CardDavClient.InvalidTokenException e) {
+                if (token == null) {
+                    throw e;
+                }
+
+                token = null;
+                full = true;
+                changed.clear();
+                removed.clear();
+                continue;
+            }
+
+            for (final CardDavClient.Member member : changes.getChanged()) {
+                changed.put(member.getHref(), member.getEtag());
+                removed.remove(member.getHref());
+            }
+
+            for (final String href : changes.getRemoved()) {
+                removed.add(href);
+                changed.remove(href);
+            }
+
+            token = changes.getToken();
+            if (!changes.isTruncated() || token == null) {
+                break;
+            }
+        }
+
+        if (full) {
+            for (final String href : links.keySet()) {
+                if (!changed.containsKey(href)) {
+                    removed.add(href);
+                }
+            }
+        }
+
+        // Our own writes come back as changes; they are skipped by their entity tags.
+        changed.entrySet().removeIf(change -> change.getValue() != null && links.containsKey(change.getKey())
+                && change.getValue().equals(links.get(change.getKey()).etag));
+
+        final TreeMap<Integer, CardEntry> replaced = new TreeMap<>();
+        final TreeSet<Integer> removals = new TreeSet<>();
+        final List<Upload> uploads = new ArrayList<>();
+        for (final String href : removed) {
+            links.remove(href);
+            removedLocally.remove(href);
+            final Integer position = linkedPositions.remove(href);
+            if (position != null) {
+                hrefs[position] = null;
+                if (changedLocally[position]) {
+                    // The local edit survives; the card is written again as a new member.
+                    changedLocally[position] = false;
+                    uploads.add(new Upload(entries.get(position), revisions[position], href, null));
+                } else {
+                    removals.add(position);
+                    result.removed++;
+                }
+            }
+        }
+
+        // Fetch the changed cards and put each in the place of the entry it was linked to.
+        final List<List<String>> batches = new ArrayList<>();
+        final List<String> toFetch = new ArrayList<>(changed.keySet());
+        for (int i = 0; i < toFetch.size(); i += BATCH) {
+            batches.add(toFetch.subList(i, Math.min(toFetch.size(), i + BATCH)));
+        }
+
+        final int[] done = new int[2];
+        done[1] = batches.size() + uploads.size() + removedLocally.size();
+        map(batches.iterator(), batch -> {
+            // The cards are parsed here, on the pool, as the responses arrive.
+            final Map<CardDavClient.Member, Fetched> cards = new LinkedHashMap<>();
+            for (final CardDavClient.Member member : client.multiget(batch)) {
+                final VCard card = Ezvcard.parse(member.getData()).first();
+                if (card != null) {
+                    final CardEntry entry = new CardEntry(CardPhotos.offload(card), true);
+                    cards.put(member, new Fetched(entry, contentHash(entry)));
+                }
+            }
+
+            return cards;
+        }, cards -> {
+            for (final Map.Entry<CardDavClient.Member, Fetched> fetched : cards.entrySet()) {
+                final CardDavClient.Member member = fetched.getKey();
+                final CardEntry entry = fetched.getValue().entry;
+                final long hash = fetched.getValue().contentHash;
+                final String href = member.getHref();
+                Integer position = linkedPositions.get(href);
+                if (position == null && entry.getUidHash() != 0 && !links.containsKey(href)) {
+                    // Without a link there is no telling which side changed, so a difference is a conflict.
+                    position = unlinked.remove(entry.getUidHash());
+                    if (position != null) {
+                        changedLocally[position] = true;
+                    }
+                }
+
+                removedLocally.remove(href);
+                result.fetched++;
+                if (position == null) {
+                    result.edit.add(entry);
+                } else if (changedLocally[position] && contentHash(entries.get(position)) == hash) {
+                    // Both sides made the same change, such as a write of ours whose result was not applied.
+                    changedLocally[position] = false;
+                    hrefs[position] = href;
+                    linkedPositions.put(href, position);
+                    links.put(href, new Link(href, member.getEtag(), entries.get(position), revisions[position],
+                            hash));
+                    continue;
+                } else {
+                    if (changedLocally[position]) {
+                        final CardEntry copy = copyWithNewUid(entries.get(position));
+                        result.edit.add(copy);
+                        uploads.add(new Upload(copy, copy.getRevision(), client.hrefFor(copy.getCard().getUid()
+                                .getValue()), null));
+                        done[1]++;
+                        changedLocally[position] = false;
+                        result.conflicts++;
+                    }
+
+                    hrefs[position] = href;
+                    replaced.put(position, entry);
+                }
+
+                links.put(href, new Link(href, member.getEtag(), entry, entry.getRevision(), hash));
+            }
+
+            setProgress(++done[0] * 100 / done[1]);
+        }, pool);
+
+        // Write back what changed here, giving new cards a UID if they have none.
+        for (int i = 0; i < n; i++) {
+            if (hrefs[i] != null && changedLocally[i]) {
+                uploads.add(new Upload(entries.get(i), revisions[i], hrefs[i], links.get(hrefs[i]).etag));
+                done[1]++;
+            } else if (hrefs[i] == null && !removals.contains(i)) {
+                CardEntry entry = entries.get(i);
+                if (uidHashes[i] == 0) {
+                    entry = copyWithNewUid(entry);
+                    replaced.put(i, entry);
+                }
+
+                uploads.add(new Upload(entry, entry == entries.get(i) ? revisions[i] : entry.getRevision(),
+                        client.hrefFor(entry.getCard().getUid().getValue()), null));
+                done[1]++;
+            }
+        }
+
+        map(uploads.iterator(), upload -> {
+            final byte[] bytes = encode(upload.entry.getCard());
+            try {
+                return new Outcome<>(upload, client.put(upload.href, bytes, upload.etag), CardSpans.hash(bytes),
+                        null);
+            } catch (final IOException e) {
+                return new Outcome<>(upload, null, 0, e);
+            }
+        }, outcome -> {
+            final Upload upload = outcome.item;
+            if (outcome.error == null) {
+                links.put(upload.href, new Link(upload.href, outcome.etag, upload.entry, upload.revision,
+                        outcome.contentHash));
+                result.pushed++;
+            } else if (!(outcome.error instanceof CardDavClient.ConflictException) || upload.etag == null) {
+                // A card changed on the server too is fetched on the next sync and handled as a conflict there.
+                result.failures.put(upload.href, outcome.error);
+            }
+
+            setProgress(++done[0] * 100 / done[1]);
+        }, pool);
+
+        map(removedLocally.values().iterator(), link -> {
+            try {
+                client.delete(link.href, link.etag);
+                return new Outcome<>(link, null, 0, null);
+            } catch (final IOException e) {
+                return new Outcome<>(link, null, 0, e);
+            }
+        }, outcome -> {
+            if (outcome.error == null) {
+                links.remove(outcome.item.href);
+                result.deleted++;
+            } else if (!(outcome.error instanceof CardDavClient.ConflictException)) {
+                // A card changed on the server is fetched on the next sync and kept.
+                result.failures.put(outcome.item.href, outcome.error);
+            }
+
+            setProgress(++done[0] * 100 / done[1]);
+        }, pool);
+
+        for (final Map.Entry<Integer, CardEntry> replacement : replaced.entrySet()) {
+            result.edit.change(replacement.getKey(), replacement.getValue());
+        }
+
+        removals.forEach(result.edit::remove);
+        result.state = new State(state.collection, token, links);
+        return result;
+    }
+
+    /**
+     * @return a new entry with a copy of an entry's card under a new UID
+     */
+    private static CardEntry copyWithNewUid(final CardEntry entry) {
+        final VCard copy = new VCard(entry.getCard());
+        copy.setUid(Uid.random());
+        return new CardEntry(copy, true);
+    }
+
+    /**
+     * @return the hash of an entry's card as it would be written to the server
+     */
+    private static long contentHash(final CardEntry entry) {
+        try {
+            return CardSpans.hash(encode(entry.getCard()));
+        } catch (final IOException e) {
+            // Writing a card to memory fails only if the card is broken.
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return a card's text, in vCard 3.0 if it is older, as every CardDAV server understands that
+     */
+    private static byte[] encode(final VCard card) throws IOException {
+        if (card.getVersion() != VCardVersion.V2_1) {
+            return CardFileWriter.encode(card);
+        }
+
+        final VCard copy = new VCard(card);
+        copy.setVersion(VCardVersion.V3_0);
+        return CardFileWriter.encode(copy);
+    }
+
+}
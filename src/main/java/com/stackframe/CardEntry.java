@@ -0,0 +1,386 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import ezvcard.property.StructuredName;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.Comparator;
+
+/**
+ * A card in an open address book together with what the list needs to show and sort it: the display name and a
+ * collation key for sorting by family and given name. Both are derived once, when the entry is created or its card is
+ * replaced, so painting and sorting never look inside the card.
+ * <p>
+ * An entry also remembers where its card's text is in the file it was read from, for as long as the card is unchanged,
+ * and the bytes it was last saved as, so that saving can copy unchanged cards instead of serializing them again. When
+ * that file is mapped into memory, an unchanged entry can let go of its card with {@link #unload} and parse it again
+ * from the mapping whenever it is asked for, so that a large address book only keeps its list fields on the heap.
+ * <p>
+ * For matching cards against a new version of their file without parsing them, an entry also keeps a hash of the
+ * text its card was last read from or written as, and a hash of the card's UID.
+ * <p>
+ * Whether the card has an embedded photo is also known without parsing it, so that the list only asks
+ * {@link PhotoThumbnails} for the photos of cards that have one.
+ * <p>
+ * Entries may be created on any thread; after that they belong to the event dispatch thread, except that
+ * {@link #getCard} may be called from any thread.
+ */
+final class CardEntry {
+
+    /**
+     * Orders entries by family name, then given name, using the default locale's collation rules.
+     */
+    static final Comparator<CardEntry> BY_NAME = Comparator.comparing(e -> e.sortKey);
+
+    /**
+     * Collators are not thread safe, and keys are computed on whatever thread creates the entry. Keys from clones of
+     * one collator compare consistently with each other.
+     */
+    private static final Collator COLLATOR = Collator.getInstance();
+    private static final ThreadLocal<Collator> COLLATORS = ThreadLocal.withInitial(() -> (Collator) COLLATOR.clone());
+
+    /**
+     * The card, or null while it is only in {@link #source}'s mapped file.
+     */
+    private volatile VCard card;
+    private VCardVersion version;
+    private int revision;
+    private String displayName;
+    private CollationKey sortKey;
+    private char indexLetter;
+    private boolean photo;
+
+    private final Path origin;
+    private long textHash;
+    private long uidHash;
+    private boolean edited;
+    private boolean modified = true;
+    private volatile Source source;
+    private VCardVersion encodedVersion;
+    private byte[] encoded;
+
+    /**
+     * Where a card's text is. Replaced as a whole so that a thread parsing the card never sees half of a change.
+     */
+    private static final class Source {
+
+        private final long start;
+        private final long end;
+        private final VCardVersion version;
+        private final MappedCardFile file;
+
+        private Source(final long start, final long end, final VCardVersion version, final MappedCardFile file) {
+            this.start = start;
+            this.end = end;
+            this.version = version;
+            this.file = file;
+        }
+
+    }
+
+    CardEntry(final VCard card) {
+        this(card, true, null);
+    }
+
+    /**
+     * @param modified false if the card is exactly as it was parsed from its file
+     */
+    CardEntry(final VCard card, final boolean modified) {
+        this(card, modified, null);
+    }
+
+    /**
+     * @param modified false if the card is exactly as it was parsed from its file
+     * @param origin   the file the card was read from, or null if it was not read from a file
+     */
+    CardEntry(final VCard card, final boolean modified, final Path origin) {
+        this.origin = origin;
+        setCard(card);
+        this.modified = modified;
+        edited = false;
+    }
+
+    /**
+     * Makes an entry for a card that holds unsaved edits of a card read from a file, such as one recovered from the
+     * file's journal, so that a reload of the file keeps it in place of the file's version.
+     */
+    static CardEntry edited(final VCard card, final Path origin) {
+        final CardEntry entry = new CardEntry(card, true, origin);
+        entry.edited = true;
+        return entry;
+    }
+
+    private CardEntry(final String displayName, final String sortString, final char indexLetter,
+                      final VCardVersion version, final Path origin, final long uidHash, final boolean photo) {
+        this.displayName = displayName;
+        this.photo = photo;
+        this.uidHash = uidHash;
+        this.sortKey = COLLATORS.get().getCollationKey(sortString);
+        this.indexLetter = indexLetter;
+        this.version = version;
+        this.origin = origin;
+    }
+
+    /**
+     * Makes an entry for an unchanged card from list fields that were computed earlier, without parsing the card; it
+     * is parsed from the mapped file when it is first asked for.
+     *
+     * @param sortString the string the entry sorts by, as returned by {@link #getSortString}
+     * @param uidHash    the hash of the card's UID, as returned by {@link #getUidHash}
+     * @param photo      whether the card has an embedded photo, as returned by {@link #hasPhoto}
+     */
+    static CardEntry restore(final String displayName, final String sortString, final char indexLetter,
+                             final Path origin, final long start, final long end, final VCardVersion version,
+                             final MappedCardFile file, final long uidHash, final boolean photo) {
+        final CardEntry entry = new CardEntry(displayName, sortString, indexLetter, version, origin, uidHash, photo);
+        entry.setSource(start, end, version, file);
+        return entry;
+    }
+
+    /**
+     * @return the file the card was read from, which stays the same when the card is edited, or null
+     */
+    Path getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return the {@link CardSpans#hash} of the text the card was last read from or written as, or 0 if unknown
+     */
+    long getTextHash() {
+        return textHash;
+    }
+
+    void setTextHash(final long textHash) {
+        this.textHash = textHash;
+    }
+
+    /**
+     * @return the {@link CardSpans#hash} of the card's UID, or 0 if it has none
+     */
+    long getUidHash() {
+        return uidHash;
+    }
+
+    /**
+     * @return true if the card was replaced since the entry was made, and so holds an edit that is not in any file
+     * until it is saved
+     */
+    boolean isEdited() {
+        return edited;
+    }
+
+    /**
+     * @return the card, parsed again from the mapped file if it was unloaded; it must not be modified, only replaced
+     * with {@link #setCard}
+     */
+    VCard getCard() {
+        final VCard c = card;
+        if (c != null) {
+            return c;
+        }
+
+        final Source s = source;
+        return s.file.parse(s.start, s.end, textHash);
+    }
+
+    /**
+     * @return the version of the card, without parsing it
+     */
+    VCardVersion getVersion() {
+        return version;
+    }
+
+    /**
+     * @return a number that changes whenever the card is replaced
+     */
+    int getRevision() {
+        return revision;
+    }
+
+    /**
+     * Replaces the card, recomputing the derived keys.
+     */
+    void setCard(final VCard card) {
+        // The card is set before the source is dropped, so a reader on another thread always finds one of them.
+        this.card = card;
+        version = card.getVersion();
+        revision++;
+        edited = true;
+        modified = true;
+        uidHash = card.getUid() == null || card.getUid().getValue() == null ? 0
+                : CardSpans.hash(card.getUid().getValue().getBytes(StandardCharsets.UTF_8));
+        source = null;
+        encodedVersion = null;
+        encoded = null;
+        displayName = ContactCurator.listDisplayName(card);
+        final String sortString = sortString(card, displayName);
+        sortKey = COLLATORS.get().getCollationKey(sortString);
+        indexLetter = indexLetter(sortString);
+        photo = CardPhotos.hasEmbedded(card);
+    }
+
+    /**
+     * @return true if the card differs from its text in the file it was read from, or was not read from a file
+     */
+    boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Records that the card is exactly the text in a range of its source file.
+     *
+     * @param version the vCard version the text is written in
+     */
+    void setSource(final long start, final long end, final VCardVersion version) {
+        setSource(start, end, version, null);
+    }
+
+    /**
+     * Records that the card is exactly the text in a range of a mapped file, from which it can be parsed again after
+     * it is unloaded.
+     *
+     * @param version the vCard version the text is written in
+     * @param file    the mapped file, or null if there is none
+     */
+    void setSource(final long start, final long end, final VCardVersion version, final MappedCardFile file) {
+        if (card == null && source != null && file == null) {
+            // The card cannot be parsed again from the new source, so it has to be held from now on.
+            card = getCard();
+        }
+
+        modified = false;
+        edited = false;
+        source = new Source(start, end, version, file);
+        encodedVersion = null;
+        encoded = null;
+    }
+
+    /**
+     * Holds the card in memory and forgets its source, for a card whose text in its file was replaced by something
+     * other than the card itself, such as the card converted to another version.
+     */
+    void detachSource() {
+        load();
+
+        source = null;
+        modified = true;
+        encodedVersion = null;
+        encoded = null;
+    }
+
+    /**
+     * @return true if the card's source text is unchanged and written in the given version
+     */
+    boolean hasSource(final VCardVersion version) {
+        final Source s = source;
+        return !modified && s != null && s.version == version;
+    }
+
+    long getSourceStart() {
+        return source.start;
+    }
+
+    long getSourceEnd() {
+        return source.end;
+    }
+
+    /**
+     * Lets go of the card if it can be parsed again from a mapped file.
+     */
+    void unload() {
+        final Source s = source;
+        if (!modified && s != null && s.file != null) {
+            card = null;
+        }
+    }
+
+    /**
+     * Parses the card if it was unloaded and holds it from now on.
+     */
+    void load() {
+        if (card == null) {
+            card = getCard();
+        }
+    }
+
+    /**
+     * @return true if the card is held in memory rather than parsed on demand
+     */
+    boolean isLoaded() {
+        return card != null;
+    }
+
+    /**
+     * @return the bytes the card was last serialized as in the given version, or null
+     */
+    byte[] getEncoded(final VCardVersion version) {
+        return version == encodedVersion ? encoded : null;
+    }
+
+    void setEncoded(final VCardVersion version, final byte[] bytes) {
+        encodedVersion = version;
+        encoded = bytes;
+    }
+
+    /**
+     * @return true if the card has a photo whose image is in the card rather than at a URL
+     */
+    boolean hasPhoto() {
+        return photo;
+    }
+
+    String getDisplayName() {
+        return displayName;
+    }
+
+    CollationKey getSortKey() {
+        return sortKey;
+    }
+
+    /**
+     * @return the string the entry's sort key was made from
+     */
+    String getSortString() {
+        return sortKey.getSourceString();
+    }
+
+    /**
+     * @return the letter A to Z this entry sorts under, or '#' for anything else
+     */
+    char getIndexLetter() {
+        return indexLetter;
+    }
+
+    private static String sortString(final VCard card, final String displayName) {
+        final StructuredName n = card.getStructuredName();
+        if (n != null) {
+            final String family = n.getFamily() == null ? "" : n.getFamily().trim();
+            final String given = n.getGiven() == null ? "" : n.getGiven().trim();
+            if (!family.isEmpty() || !given.isEmpty()) {
+                return (family + " " + given).trim();
+            }
+        }
+
+        return displayName;
+    }
+
+    private static char indexLetter(final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                final String base = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+                final char letter = Character.toUpperCase(base.charAt(0));
+                return letter >= 'A' && letter <= 'Z' ? letter : '#';
+            }
+        }
+
+        return '#';
+    }
+
+}
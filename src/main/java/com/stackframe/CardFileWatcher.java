@@ -0,0 +1,81 @@
+package com.stackframe;
+
+import javax.swing.SwingUtilities;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches one file for changes made by other processes and reports them on the event dispatch thread. The file's
+ * directory is watched, so that a file replaced by a rename is noticed as well as one rewritten in place, and a burst
+ * of events, such as a sync job writing a large file in pieces, is reported once it has been quiet for
+ * {@link #QUIET_MILLIS}.
+ * <p>
+ * The watcher cannot tell this process's own writes from anyone else's; whoever receives the reports has to.
+ */
+final class CardFileWatcher implements Closeable {
+
+    private static final long QUIET_MILLIS = 500;
+
+    private final Path file;
+    private final WatchService service;
+
+    /**
+     * Starts watching a file.
+     *
+     * @param changed run on the event dispatch thread after the file was created, modified or replaced
+     */
+    CardFileWatcher(final Path file, final Runnable changed) throws IOException {
+        this.file = file.toAbsolutePath();
+        service = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        final Thread thread = new Thread(() -> watch(changed), "watcher for " + this.file.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    private boolean concernsFile(final WatchKey key) {
+        boolean concerned = false;
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            concerned |= event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context());
+        }
+
+        key.reset();
+        return concerned;
+    }
+
+    private void watch(final Runnable changed) {
+        try {
+            while (true) {
+                if (concernsFile(service.take())) {
+                    WatchKey key;
+                    while ((key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                        concernsFile(key);
+                    }
+
+                    SwingUtilities.invokeLater(changed);
+                }
+            }
+        } catch (final ClosedWatchServiceException | InterruptedException e) {
+            // The watcher was closed.
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+
+}
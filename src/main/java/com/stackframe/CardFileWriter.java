@@ -0,0 +1,322 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import ezvcard.io.text.VCardWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * Writes vCard files so that a crash or a failed write never leaves the target half written. The cards are written
+ * through a large buffer to a temporary file in the target's directory, which is forced to disk and then moved over
+ * the target in one step.
+ * <p>
+ * When saving an open address book, unchanged cards are copied from the file they were read from with
+ * {@link FileChannel#transferTo}, so the cost of a save grows with the size of the edit rather than of the book, and
+ * their embedded photos pass through as the text they were read as, without being decoded.
+ */
+final class CardFileWriter {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private CardFileWriter() {
+    }
+
+    /**
+     * Writes the body of a file.
+     */
+    interface Body {
+
+        void write(FileChannel channel) throws IOException;
+
+    }
+
+    /**
+     * @return a card's text in its own version, in UTF-8 whatever the version
+     */
+    static byte[] encode(final VCard card) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final VCardWriter writer = CardPhotos.register(
+                new VCardWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8), card.getVersion()))) {
+            writer.setAddProdId(false);
+            writer.write(card);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces a file with the given cards.
+     *
+     * @param target    the file to write
+     * @param cards     the cards, which must not change while they are written
+     * @param version   the vCard version to write
+     * @param progress  receives the percentage of cards written so far
+     * @param cancelled checked as cards are written; when it returns true, the target is left as it was
+     * @return the size of the new file in bytes
+     * @throws IOException           if the file could not be written; the target is left as it was
+     * @throws CancellationException if writing was cancelled
+     */
+    static long write(final Path target, final List<VCard> cards, final VCardVersion version,
+                      final IntConsumer progress, final BooleanSupplier cancelled) throws IOException {
+        return replace(target, channel -> {
+            // VCardWriter chooses the character encoding for the version, just as when it is given a file.
+            final VCardWriter writer = CardPhotos.register(new VCardWriter(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), version));
+            for (int i = 0; i < cards.size(); i++) {
+                checkpoint(i, cards.size(), progress, cancelled);
+                writer.write(cards.get(i));
+            }
+
+            writer.flush();
+        }, progress);
+    }
+
+    /**
+     * Replaces a file with cards taken one at a time, so they need not all be held at once.
+     *
+     * @param items     the items to write
+     * @param card      gets an item's card
+     * @param cancelled checked as cards are written; when it returns true, the target is left as it was
+     * @return the number of cards written
+     * @throws IOException           if the file could not be written; the target is left as it was
+     * @throws CancellationException if writing was cancelled
+     * @see #write(Path, List, VCardVersion, IntConsumer, BooleanSupplier)
+     */
+    static <T> int write(final Path target, final Iterator<T> items, final Function<? super T, VCard> card,
+                         final VCardVersion version, final BooleanSupplier cancelled) throws IOException {
+        final int[] count = new int[1];
+        replace(target, channel -> {
+            final VCardWriter writer = CardPhotos.register(new VCardWriter(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), version));
+            while (items.hasNext()) {
+                if (count[0] % PROGRESS_INTERVAL == 0 && cancelled.getAsBoolean()) {
+                    throw new CancellationException();
+                }
+
+                writer.write(card.apply(items.next()));
+                count[0]++;
+            }
+
+            writer.flush();
+        }, percent -> {
+        });
+        return count[0];
+    }
+
+    /**
+     * Replaces a file with the cards of the given entries, copying the text of unchanged cards straight from their
+     * source file and reusing the bytes that changed cards were last serialized as. Only cards without either are
+     * serialized, and their bytes are kept in their entries for the next save.
+     *
+     * @param target    the file to write
+     * @param entries   the entries, whose cards must not change while they are written
+     * @param version   the vCard version to write
+     * @param source    the file the entries' source ranges refer to, which must not change while it is copied, or
+     *                  null to serialize every card
+     * @param progress  receives the percentage of cards written so far
+     * @param cancelled checked as cards are written; when it returns true, the target is left as it was
+     * @return the offset of each entry's card in the new file, followed by the size of the file
+     * @throws IOException           if the file could not be written; the target is left as it was
+     * @throws CancellationException if writing was cancelled
+     */
+    static long[] write(final Path target, final List<CardEntry> entries, final VCardVersion version,
+                        final Path source, final IntConsumer progress, final BooleanSupplier cancelled)
+            throws IOException {
+        final long[] offsets = new long[entries.size() + 1];
+        replace(target, channel -> {
+            try (final FileChannel in = source == null ? null : FileChannel.open(source, StandardOpenOption.READ)) {
+                final Assembler out = new Assembler(channel, in);
+                final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                final VCardWriter encoder = CardPhotos.register(new VCardWriter(buffer, version));
+                for (int i = 0; i < entries.size(); i++) {
+                    checkpoint(i, entries.size(), progress, cancelled);
+                    offsets[i] = out.position;
+                    final CardEntry entry = entries.get(i);
+                    if (in != null && entry.hasSource(version)) {
+                        out.copy(entry.getSourceStart(), entry.getSourceEnd());
+                    } else {
+                        byte[] bytes = entry.getEncoded(version);
+                        if (bytes == null) {
+                            encoder.write(entry.getCard());
+                            encoder.flush();
+                            bytes = buffer.toByteArray();
+                            buffer.reset();
+                            entry.setEncoded(version, bytes);
+                        }
+
+                        out.write(bytes);
+                    }
+                }
+
+                out.flush();
+                offsets[entries.size()] = out.position;
+            }
+        }, progress);
+        return offsets;
+    }
+
+    /**
+     * Writes a mix of byte arrays and ranges of a source file to a channel, coalescing adjacent ranges so that a run
+     * of unchanged cards is one transfer.
+     */
+    private static final class Assembler {
+
+        private final FileChannel channel;
+        private final FileChannel source;
+        private final BufferedOutputStream out;
+        private long position;
+        private long runStart = -1;
+        private long runEnd = -1;
+
+        Assembler(final FileChannel channel, final FileChannel source) {
+            this.channel = channel;
+            this.source = source;
+            out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        }
+
+        void copy(final long start, final long end) throws IOException {
+            if (start != runEnd) {
+                flushRun();
+                runStart = start;
+            }
+
+            runEnd = end;
+            position += end - start;
+        }
+
+        void write(final byte[] bytes) throws IOException {
+            flushRun();
+            out.write(bytes);
+            position += bytes.length;
+        }
+
+        private void flushRun() throws IOException {
+            if (runStart >= 0) {
+                out.flush();
+                long done = runStart;
+                while (done < runEnd) {
+                    final long n = source.transferTo(done, runEnd - done, channel);
+                    if (n <= 0) {
+                        throw new EOFException("the source file is shorter than expected");
+                    }
+
+                    done += n;
+                }
+
+                runStart = -1;
+                runEnd = -1;
+            }
+        }
+
+        void flush() throws IOException {
+            flushRun();
+            out.flush();
+        }
+
+    }
+
+    private static void checkpoint(final int i, final int count, final IntConsumer progress,
+                                   final BooleanSupplier cancelled) {
+        if (i % PROGRESS_INTERVAL == 0) {
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException();
+            }
+
+            progress.accept((int) ((long) i * 100 / count));
+        }
+    }
+
+    /**
+     * Replaces a file with whatever a body writes, through a temporary file that is forced to disk and moved over the
+     * target in one step.
+     *
+     * @return the size of the new file in bytes
+     */
+    static long replace(final Path target, final Body body, final IntConsumer progress) throws IOException {
+        return replace(target, target, body, progress);
+    }
+
+    /**
+     * Replaces a file as {@link #replace(Path, Body, IntConsumer)} does, giving it the permissions of another file,
+     * such as the address book that a cache or journal file holds cards from.
+     *
+     * @param like the file whose permissions the new file gets, if it exists
+     */
+    static long replace(final Path target, final Path like, final Body body, final IntConsumer progress)
+            throws IOException {
+        final Path absolute = target.toAbsolutePath();
+        final Path directory = absolute.getParent();
+        final Path temp = Files.createTempFile(directory, "." + absolute.getFileName(), ".tmp");
+        boolean moved = false;
+        try {
+            try (final FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                body.write(channel);
+                channel.force(true);
+            }
+
+            copyPermissions(like, temp);
+            final long size = Files.size(temp);
+            try {
+                Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            moved = true;
+            forceDirectory(directory);
+            progress.accept(100);
+            return size;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Gives the new file the permissions of the one it replaces, where the file system has POSIX permissions. A file
+     * that replaces nothing keeps the owner only permissions of a temporary file, as it may hold anyone's contacts.
+     */
+    private static void copyPermissions(final Path from, final Path to) {
+        try {
+            if (Files.exists(from)) {
+                Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+            }
+        } catch (final UnsupportedOperationException | IOException e) {
+            // Not every file system has POSIX permissions; the temporary file's defaults will have to do.
+        }
+    }
+
+    /**
+     * Makes the rename itself durable. Not every platform can open a directory, so failure is ignored.
+     */
+    private static void forceDirectory(final Path directory) {
+        try (final FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (final IOException e) {
+            // The file's contents are already on disk; only the rename might be lost in a crash.
+        }
+    }
+
+}
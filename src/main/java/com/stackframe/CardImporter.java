@@ -0,0 +1,140 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.io.text.VCardReader;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Imports many contact files into one address book on a background thread. The given files, and the files in any
+ * {@link ContactFormat} under the given directories, are read concurrently on a bounded pool, one file per thread,
+ * and each file's cards are published as one batch once it and every file before it are done, so cards arrive in the
+ * order the files were given. Progress is reported as the percentage of files finished. A file that cannot be read is
+ * recorded in {@link #getFailures} and the rest carry on.
+ */
+class CardImporter extends SwingWorker<Integer, List<CardEntry>> {
+
+    private final List<Path> inputs;
+    private final Map<Path, Exception> failures = new LinkedHashMap<>();
+
+    /**
+     * The cards of one file, or why it could not be read.
+     */
+    private static final class Result {
+
+        private final Path file;
+        private final List<CardEntry> entries;
+        private final Exception error;
+
+        private Result(final Path file, final List<CardEntry> entries, final Exception error) {
+            this.file = file;
+            this.entries = entries;
+            this.error = error;
+        }
+
+    }
+
+    CardImporter(final List<Path> inputs) {
+        this.inputs = List.copyOf(inputs);
+    }
+
+    /**
+     * @return the files that could not be read and why; only complete once the import is done
+     */
+    Map<Path, Exception> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Expands directories into the contact files under them, in name order, and drops files that were named twice.
+     */
+    static List<Path> files(final List<Path> inputs) throws IOException {
+        final Set<Path> files = new LinkedHashSet<>();
+        for (final Path input : inputs) {
+            if (Files.isDirectory(input)) {
+                try (final Stream<Path> walk = Files.walk(input)) {
+                    walk.filter(ContactFormat::isContactFile).sorted()
+                            .forEach(file -> files.add(file.toAbsolutePath().normalize()));
+                }
+            } else {
+                files.add(input.toAbsolutePath().normalize());
+            }
+        }
+
+        return new ArrayList<>(files);
+    }
+
+    private static Result read(final Path file) {
+        final Metrics.Timer timer = Metrics.start(Metrics.Phase.PARSE);
+        final List<CardEntry> entries = new ArrayList<>();
+        final ContactFormat format = ContactFormat.orVCard(file);
+        try {
+            if (format == ContactFormat.VCARD) {
+                try (final VCardReader reader = new VCardReader(file.toFile())) {
+                    VCard card;
+                    while ((card = reader.readNext()) != null) {
+                        // Imported cards are held whether or not cleanup changes them.
+                        entries.add(CardLoader.entry(CardPhotos.offload(card), file));
+                    }
+                }
+            } else {
+                ContactTable.read(file, format, card -> entries.add(CardLoader.entry(card, file)), () -> false);
+            }
+
+            timer.stop(entries.size(), Files.size(file));
+            return new Result(file, entries, null);
+        } catch (final IOException | RuntimeException e) {
+            return new Result(file, null, e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(file, null, e);
+        }
+    }
+
+    @Override
+    protected Integer doInBackground() throws IOException, InterruptedException {
+        final List<Path> files = files(inputs);
+        if (files.isEmpty()) {
+            throw new IOException("no .vcf, .csv or .jsonl files were found");
+        }
+
+        final int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final int[] done = new int[2];
+        try {
+            OrderedParallel.map(files.iterator(), CardImporter::read, result -> {
+                if (result.error != null) {
+                    failures.put(result.file, result.error);
+                } else if (!result.entries.isEmpty()) {
+                    publish(result.entries);
+                    done[1] += result.entries.size();
+                }
+
+                done[0]++;
+                setProgress(done[0] * 100 / files.size());
+            }, pool, threads * 2, this::isCancelled);
+        } catch (final ExecutionException e) {
+            // Each file catches its own failures, so this can only be a bug.
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return done[1];
+    }
+
+}
@@ -0,0 +1,262 @@
+package com.stackframe;
+
+import javax.swing.AbstractListModel;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * A list model over a {@link CardStore}. By default it shows every entry in file order straight from the store. A
+ * filtered or name sorted view is kept as an array of store positions, so no entries are copied, and every change is
+ * reported as the narrowest interval events that describe it. Paired with a list that has fixed cell sizes, the cost
+ * of a change is proportional to the rows that are visible or changed.
+ * <p>
+ * The model belongs to the event dispatch thread. Whoever changes the store must tell the model through
+ * {@link #entriesAppended}, {@link #entriesChanged}, {@link #entriesRemoved} or {@link #storeReplaced}.
+ */
+final class CardListModel extends AbstractListModel<CardEntry> {
+
+    static final String INDEX_LETTERS = "#ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    private final CardStore store;
+
+    /**
+     * The store positions shown, in order, or null if every entry is shown in file order.
+     */
+    private int[] view;
+    private int viewSize;
+
+    private Predicate<CardEntry> filter;
+    private boolean byName;
+
+    /**
+     * For each of {@link #INDEX_LETTERS}, the first position in a name sorted view that sorts under it, or -1.
+     */
+    private int[] letterStarts;
+
+    CardListModel(final CardStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public int getSize() {
+        return view == null ? store.size() : viewSize;
+    }
+
+    @Override
+    public CardEntry getElementAt(final int i) {
+        return store.get(view == null ? i : view[i]);
+    }
+
+    /**
+     * Shows only the entries that pass a filter, optionally in name order.
+     *
+     * @param filter the filter, or null to show every entry
+     * @param byName true to sort by name, false to keep file order
+     */
+    void setView(final Predicate<CardEntry> filter, final boolean byName) {
+        this.filter = filter;
+        this.byName = byName;
+        final int oldSize = getSize();
+        letterStarts = null;
+        if (filter == null && !byName) {
+            view = null;
+            viewSize = 0;
+        } else {
+            final int[] order = byName ? store.byName() : null;
+            final int n = store.size();
+            view = new int[filter == null ? n : Math.min(n, 16)];
+            viewSize = 0;
+            for (int i = 0; i < n; i++) {
+                final int position = order == null ? i : order[i];
+                if (filter == null || filter.test(store.get(position))) {
+                    if (viewSize == view.length) {
+                        view = Arrays.copyOf(view, Math.min(n, viewSize * 2));
+                    }
+
+                    view[viewSize++] = position;
+                }
+            }
+
+            if (byName) {
+                indexLetters();
+            }
+        }
+
+        fireResized(oldSize, getSize());
+    }
+
+    private void indexLetters() {
+        letterStarts = new int[INDEX_LETTERS.length()];
+        Arrays.fill(letterStarts, -1);
+        for (int i = 0; i < viewSize; i++) {
+            final int letter = INDEX_LETTERS.indexOf(store.get(view[i]).getIndexLetter());
+            if (letterStarts[letter] < 0) {
+                letterStarts[letter] = i;
+            }
+        }
+    }
+
+    boolean isViewed() {
+        return view != null;
+    }
+
+    /**
+     * Reports entries that were just appended to the store. In a view they go to the end, passing the filter but out
+     * of name order, and take their sorted place the next time the view is set.
+     */
+    void entriesAppended(final int count) {
+        if (count == 0) {
+            return;
+        }
+
+        if (view == null) {
+            fireIntervalAdded(this, store.size() - count, store.size() - 1);
+        } else {
+            final int first = viewSize;
+            for (int position = store.size() - count; position < store.size(); position++) {
+                if (filter == null || filter.test(store.get(position))) {
+                    if (viewSize == view.length) {
+                        view = Arrays.copyOf(view, Math.max(16, viewSize * 2));
+                    }
+
+                    view[viewSize++] = position;
+                }
+            }
+
+            if (viewSize > first) {
+                fireIntervalAdded(this, first, viewSize - 1);
+            }
+        }
+    }
+
+    /**
+     * Reports that the entries at some store positions now pass the filter, as the results of a search arrive. They go
+     * to the end of the view, out of name order, and take their sorted place the next time the view is set.
+     */
+    void entriesPassed(final int[] positions) {
+        if (view == null || positions.length == 0) {
+            return;
+        }
+
+        final int first = viewSize;
+        if (viewSize + positions.length > view.length) {
+            view = Arrays.copyOf(view, Math.max(viewSize + positions.length, viewSize * 2));
+        }
+
+        System.arraycopy(positions, 0, view, viewSize, positions.length);
+        viewSize += positions.length;
+        fireIntervalAdded(this, first, viewSize - 1);
+    }
+
+    /**
+     * Reports that the entries at the given store positions, in ascending order, were edited in place, as one event
+     * per run of adjacent rows that show them. They keep their place in a view until the view is set again.
+     */
+    void entriesChanged(final int[] positions) {
+        final int[] rows;
+        if (view == null) {
+            rows = positions;
+        } else {
+            final int[] found = new int[Math.min(positions.length, viewSize)];
+            int count = 0;
+            for (int i = 0; i < viewSize && count < found.length; i++) {
+                if (Arrays.binarySearch(positions, view[i]) >= 0) {
+                    found[count++] = i;
+                }
+            }
+
+            rows = Arrays.copyOf(found, count);
+        }
+
+        int runStart = 0;
+        for (int i = 0; i < rows.length; i++) {
+            if (i == rows.length - 1 || rows[i + 1] != rows[i] + 1) {
+                fireContentsChanged(this, rows[runStart], rows[i]);
+                runStart = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Reports that the entries at the given store positions, in ascending order, were just removed from the store.
+     * The rows that showed them are reported as removed, last run first, and the rest keep their order.
+     */
+    void entriesRemoved(final int[] positions) {
+        if (positions.length == 0) {
+            return;
+        }
+
+        final int[] rows;
+        if (view == null) {
+            rows = positions;
+        } else {
+            // Drop the removed positions from the view and shift the rest down past the ones removed before them.
+            final int[] removedRows = new int[Math.min(positions.length, viewSize)];
+            int removed = 0;
+            int kept = 0;
+            for (int i = 0; i < viewSize; i++) {
+                final int found = Arrays.binarySearch(positions, view[i]);
+                if (found >= 0) {
+                    removedRows[removed++] = i;
+                } else {
+                    view[kept++] = view[i] - (-found - 1);
+                }
+            }
+
+            viewSize = kept;
+            rows = Arrays.copyOf(removedRows, removed);
+            if (byName) {
+                indexLetters();
+            }
+        }
+
+        int runEnd = rows.length - 1;
+        for (int i = rows.length - 1; i >= 0; i--) {
+            if (i == 0 || rows[i - 1] != rows[i] - 1) {
+                fireIntervalRemoved(this, rows[i], rows[runEnd]);
+                runEnd = i - 1;
+            }
+        }
+    }
+
+    /**
+     * Reports that the store's entries were all replaced, recomputing a view if there is one.
+     *
+     * @param oldSize the number of rows the model had before the store changed
+     */
+    void storeReplaced(final int oldSize) {
+        if (view != null) {
+            setView(filter, byName);
+        } else {
+            fireResized(oldSize, store.size());
+        }
+    }
+
+    private void fireResized(final int oldSize, final int newSize) {
+        if (newSize < oldSize) {
+            fireIntervalRemoved(this, newSize, oldSize - 1);
+        } else if (newSize > oldSize) {
+            fireIntervalAdded(this, oldSize, newSize - 1);
+        }
+
+        if (newSize > 0 && oldSize > 0) {
+            fireContentsChanged(this, 0, Math.min(oldSize, newSize) - 1);
+        }
+    }
+
+    /**
+     * @return the first position at or after the given index letter in a name sorted view, or -1
+     */
+    int firstIndexOf(final char letter) {
+        if (letterStarts != null) {
+            for (int i = INDEX_LETTERS.indexOf(letter); i >= 0 && i < letterStarts.length; i++) {
+                if (letterStarts[i] >= 0) {
+                    return letterStarts[i];
+                }
+            }
+        }
+
+        return -1;
+    }
+
+}
@@ -0,0 +1,322 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import ezvcard.io.text.VCardReader;
+
+import javax.swing.*;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the vCards in a file on a background thread, cleaning each one as it is read and publishing them in batches so
+ * that the GUI can show the first contacts while the rest of the file is still being read. Progress is reported as the
+ * percentage of the file's bytes consumed so far.
+ * <p>
+ * Files whose card boundaries can be found by {@link CardSpans} are parsed in parallel by a
+ * {@link ParallelVCardParser}; anything else (e.g. a file in a multi-byte encoding such as UTF-16) falls back to a
+ * single sequential reader.
+ * <p>
+ * A file of at least {@link #LAZY_BYTES} is also mapped into memory, and every card that cleanup left unchanged is
+ * unloaded once its list fields are known, to be parsed again from the mapping when it is needed. Only the entries and
+ * the cards that cleanup changed stay on the heap, so files many times larger than the heap can be opened. A smaller
+ * file is mapped too as soon as a card with an embedded photo is read from it, and the unchanged cards with photos are
+ * unloaded in the same way; the photos of cards that cleanup changed are moved off the heap (see {@link CardPhotos}).
+ * <p>
+ * A file that has not changed since it was last read is restored from its {@link SnapshotCache} snapshot instead, with
+ * no parsing at all.
+ * <p>
+ * Once the file is read, the edits left unsaved in its {@link EditJournal} by an earlier session are recovered.
+ */
+class CardLoader extends SwingWorker<Integer, List<CardEntry>> {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final long BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The size from which files are mapped and their cards parsed on demand, which can be set with the system
+     * property {@code contactcurator.lazyBytes}.
+     */
+    static final long LAZY_BYTES = Long.getLong("contactcurator.lazyBytes", 64L << 20);
+
+    private final File file;
+    private final ParallelVCardParser parser = new ParallelVCardParser();
+    private volatile CardStore.Source source;
+    private volatile List<String> searchTexts;
+    private volatile EditJournal.Recovery recovery;
+
+    /**
+     * Where the text of each card read so far starts in the file, if the card is unchanged, or -1, for replaying the
+     * journal. Only used on the worker thread.
+     */
+    private long[] starts = new long[0];
+    private int located;
+
+    CardLoader(final File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the file as it was when it was read, if the loaded entries record their source ranges in it, or null
+     */
+    CardStore.Source getSource() {
+        return source;
+    }
+
+    /**
+     * @return the flattened search text of each loaded card, in order, if the file was restored from a snapshot, or
+     * null
+     */
+    List<String> getSearchTexts() {
+        return searchTexts;
+    }
+
+    /**
+     * @return the unsaved edits found in the file's {@link EditJournal} once it was read, or null if there were none
+     */
+    EditJournal.Recovery getRecovery() {
+        return recovery;
+    }
+
+    @Override
+    protected Integer doInBackground() throws IOException, InterruptedException {
+        final CardStore.Source before = CardStore.Source.of(file.toPath());
+        final int count = read(before);
+        if (!isCancelled()) {
+            recovery = EditJournal.recover(file.toPath(), before, Arrays.copyOf(starts, located));
+        }
+
+        return count;
+    }
+
+    private int read(final CardStore.Source before) throws IOException, InterruptedException {
+        final Metrics.Timer timer = Metrics.start(Metrics.Phase.PARSE);
+        final SnapshotCache.Restored restored = SnapshotCache.read(before);
+        if (restored != null) {
+            final List<CardEntry> entries = restored.getEntries();
+            for (int i = 0; i < entries.size() && !isCancelled(); i += BATCH_SIZE) {
+                final List<CardEntry> batch = entries.subList(i, Math.min(entries.size(), i + BATCH_SIZE));
+                located(batch);
+                publish(batch);
+            }
+
+            timer.stop(entries.size(), before.getSize());
+            searchTexts = restored.getTexts();
+            source = before;
+            return entries.size();
+        }
+
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long length = channel.size();
+            final CardSpans spans = CardSpans.scan(channel);
+            if (spans.size() == 0) {
+                final int count = readSequentially();
+                timer.stop(count, length);
+                return count;
+            }
+
+            // The last card's range can only be copied on its own if it ends with a line break.
+            final boolean terminated = ParallelVCardParser.read(channel, length - 1, length)[0] == '\n';
+            final MappedCardFile[] mapped = {length >= LAZY_BYTES ? MappedCardFile.map(file.toPath()) : null};
+            final int[] count = new int[1];
+            parser.parse(channel, spans, card -> entry(card, file.toPath()), chunk -> {
+                final List<CardEntry> entries = chunk.getCards();
+                if (mapped[0] == null && entries.stream().anyMatch(CardEntry::hasPhoto)) {
+                    mapped[0] = mapQuietly(file.toPath());
+                }
+
+                locate(chunk, spans, spans.end(spans.size() - 1) < length || terminated, mapped[0]);
+                located(entries);
+                publish(entries);
+                count[0] += chunk.getCards().size();
+                if (length > 0) {
+                    setProgress((int) Math.min(100, chunk.getEnd() * 100 / length));
+                }
+            }, this::isCancelled);
+            timer.stop(count[0], length);
+            source = before;
+            return count[0];
+        }
+    }
+
+    /**
+     * Cleans a card that was just read and makes an entry for it.
+     *
+     * @param origin the file the card was read from
+     */
+    static CardEntry entry(final VCard card, final Path origin) {
+        final long start = Metrics.now();
+        final VCard cleaned = CardCleaner.getDefault().clean(card);
+        Metrics.add(Metrics.Phase.CLEANUP, start, 1, 0);
+        // An unchanged card's photos stay where they are, as the card is parsed from the file when it is needed.
+        return cleaned == card ? new CardEntry(card, false, origin)
+                : new CardEntry(CardPhotos.offload(cleaned), true, origin);
+    }
+
+    /**
+     * @return a mapping of a file, or null if it cannot be mapped, in which case the cards just stay in memory
+     */
+    static MappedCardFile mapQuietly(final Path file) {
+        try {
+            return MappedCardFile.map(file);
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decides whether an unchanged entry should parse its card from a mapping: every card does in a file of at least
+     * {@link #LAZY_BYTES}, and only cards with embedded photos in a smaller one.
+     *
+     * @param mapped a mapping of the file the entry's card is in, or null
+     * @return the mapping, or null if the entry should hold its card
+     */
+    static MappedCardFile mappingFor(final CardEntry entry, final MappedCardFile mapped) {
+        return mapped != null && (mapped.size() >= LAZY_BYTES || entry.hasPhoto()) ? mapped : null;
+    }
+
+    /**
+     * Gives each entry of a parsed chunk the hash of its text and, where it is unchanged, its span, if the chunk's
+     * cards and spans correspond one to one.
+     *
+     * @param reusableLast true if the file's last span can be copied on its own
+     * @param mapped       the mapped file, or null
+     */
+    static void locate(final ParallelVCardParser.Chunk<CardEntry> chunk, final CardSpans spans,
+                       final boolean reusableLast, final MappedCardFile mapped) {
+        final List<CardEntry> entries = chunk.getCards();
+        if (entries.size() == chunk.getSpanCount()) {
+            for (int i = 0; i < entries.size(); i++) {
+                final int span = chunk.getFirstSpan() + i;
+                entries.get(i).setTextHash(CardSpans.hash(chunk.getBytes(),
+                        (int) (spans.start(span) - chunk.getStart()), (int) spans.length(span)));
+                if (span < spans.size() - 1 || reusableLast) {
+                    setSource(entries.get(i), spans.start(span), spans.end(span), mapped);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records where an unchanged card's text is, unloading the card if {@link #mappingFor} says it should be parsed
+     * from the mapping. The file was read in the platform's default encoding, and a saved vCard 4.0 file is always
+     * UTF-8, so a 4.0 card's text is only reusable if those are the same.
+     */
+    static void setSource(final CardEntry entry, final long start, final long end, final MappedCardFile mapped) {
+        final VCardVersion version = entry.getVersion();
+        if (!entry.isModified()
+                && (version != VCardVersion.V4_0 || Charset.defaultCharset().equals(StandardCharsets.UTF_8))) {
+            final MappedCardFile mapping = mappingFor(entry, mapped);
+            if (mapping == null && mapped != null && !entry.isLoaded()) {
+                // A card that stays in memory is parsed from its text in the new file, as the old file may have been
+                // rewritten in place.
+                entry.setSource(start, end, version, mapped);
+                entry.load();
+            }
+
+            entry.setSource(start, end, version, mapping);
+            entry.unload();
+        }
+    }
+
+    private void located(final List<CardEntry> entries) {
+        if (located + entries.size() > starts.length) {
+            starts = Arrays.copyOf(starts, Math.max(located + entries.size(), starts.length * 2));
+        }
+
+        for (final CardEntry entry : entries) {
+            starts[located++] = entry.hasSource(entry.getVersion()) ? entry.getSourceStart() : -1;
+        }
+    }
+
+    private int readSequentially() throws IOException {
+        final long length = file.length();
+        int count = 0;
+        try (final CountingInputStream in = new CountingInputStream(new FileInputStream(file));
+             final VCardReader reader = new VCardReader(new BufferedReader(new InputStreamReader(in)))) {
+            List<CardEntry> batch = new ArrayList<>();
+            long batchStart = System.nanoTime();
+            VCard card;
+            while (!isCancelled() && (card = reader.readNext()) != null) {
+                batch.add(entry(card, file.toPath()));
+                count++;
+                if (batch.size() >= BATCH_SIZE || System.nanoTime() - batchStart >= BATCH_NANOS) {
+                    located(batch);
+                    publish(batch);
+                    batch = new ArrayList<>();
+                    batchStart = System.nanoTime();
+                    if (length > 0) {
+                        setProgress((int) Math.min(100, in.getCount() * 100 / length));
+                    }
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                located(batch);
+                publish(batch);
+            }
+        }
+
+        return count;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private volatile long count;
+
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+    }
+
+}
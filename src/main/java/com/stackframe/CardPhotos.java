@@ -0,0 +1,215 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.io.StreamWriter;
+import ezvcard.io.scribe.ImagePropertyScribe;
+import ezvcard.parameter.ImageType;
+import ezvcard.parameter.VCardParameters;
+import ezvcard.property.Photo;
+import ezvcard.property.VCardProperty;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the images embedded in cards' {@code PHOTO} properties out of the heap. Exports from phones embed a photo in
+ * most cards, and those images are most of the cards' size.
+ * <p>
+ * An unchanged card with a photo is not held at all: its entry parses it from the mapped file when it is needed (see
+ * {@link CardLoader}). A card that has to be held because cleanup changed it has its photos {@linkplain #offload moved}
+ * into direct buffers, where the images stay until they are shown or the card is written. Images are only decoded by
+ * {@link PhotoThumbnails}, and only at the sizes they are shown at.
+ */
+final class CardPhotos {
+
+    private CardPhotos() {
+    }
+
+    /**
+     * A photo whose image is held in a direct buffer, outside the heap, and copied out only when it is asked for. It
+     * must not be changed with {@link #setData} or {@link #setUrl}; replace the property instead.
+     */
+    static final class OffHeapPhoto extends Photo {
+
+        private final ByteBuffer image;
+
+        private OffHeapPhoto(final Photo photo) {
+            super((byte[]) null, photo.getContentType());
+            setGroup(photo.getGroup());
+            setParameters(new VCardParameters(photo.getParameters()));
+            final byte[] data = photo.getData();
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+            buffer.put(data).flip();
+            image = buffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * Copies a photo, sharing its image, which never changes.
+         */
+        OffHeapPhoto(final OffHeapPhoto original) {
+            super(original);
+            image = original.image;
+        }
+
+        /**
+         * @return a read-only view of the image
+         */
+        ByteBuffer getImage() {
+            return image.duplicate();
+        }
+
+        /**
+         * @return a copy of the image on the heap
+         */
+        @Override
+        public byte[] getData() {
+            final byte[] data = new byte[image.remaining()];
+            image.duplicate().get(data);
+            return data;
+        }
+
+        @Override
+        public OffHeapPhoto copy() {
+            return new OffHeapPhoto(this);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * super.hashCode() + image.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return super.equals(obj) && image.equals(((OffHeapPhoto) obj).image);
+        }
+
+    }
+
+    /**
+     * Writes off-heap photos exactly as ezvcard writes any other photo, encoding the image as it goes. It is registered
+     * for the off-heap class but makes ordinary photos, so a photo it reads from a URL is one like any other.
+     */
+    private static final class OffHeapPhotoScribe extends ImagePropertyScribe<Photo> {
+
+        @SuppressWarnings("unchecked")
+        private OffHeapPhotoScribe() {
+            super((Class<Photo>) (Class<? extends Photo>) OffHeapPhoto.class, "PHOTO");
+        }
+
+        @Override
+        protected Photo _newInstance(final String url, final ImageType contentType) {
+            return new Photo(url, contentType);
+        }
+
+        @Override
+        protected Photo _newInstance(final byte[] data, final ImageType contentType) {
+            return new OffHeapPhoto(new Photo(data, contentType));
+        }
+
+    }
+
+    /**
+     * Lets a writer write cards with off-heap photos.
+     *
+     * @return the writer
+     */
+    static <W extends StreamWriter> W register(final W writer) {
+        writer.registerScribe(new OffHeapPhotoScribe());
+        return writer;
+    }
+
+    /**
+     * @return every photo of a card, including off-heap ones that were added to it as properties of their own class
+     */
+    static List<Photo> photos(final VCard card) {
+        final List<Photo> photos = new ArrayList<>();
+        for (final VCardProperty property : card) {
+            if (property instanceof Photo) {
+                photos.add((Photo) property);
+            }
+        }
+
+        return photos;
+    }
+
+    /**
+     * @return true if a photo's image is in the card rather than at a URL
+     */
+    static boolean isEmbedded(final Photo photo) {
+        return photo instanceof OffHeapPhoto || photo.getData() != null;
+    }
+
+    /**
+     * @return true if any of a card's photos has its image in the card
+     */
+    static boolean hasEmbedded(final VCard card) {
+        for (final VCardProperty property : card) {
+            if (property instanceof Photo && isEmbedded((Photo) property)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Moves the images of a card's embedded photos into direct buffers, replacing each photo in place.
+     *
+     * @param card a card that nothing else refers to yet, such as one that was just read
+     * @return the card
+     */
+    static VCard offload(final VCard card) {
+        final List<Photo> photos = card.getPhotos();
+        for (int i = 0; i < photos.size(); i++) {
+            final Photo photo = photos.get(i);
+            if (!(photo instanceof OffHeapPhoto) && photo.getData() != null) {
+                photos.set(i, new OffHeapPhoto(photo));
+            }
+        }
+
+        return card;
+    }
+
+    /**
+     * @return a stream of an embedded photo's image that reads an off-heap image where it is
+     */
+    static InputStream open(final Photo photo) {
+        if (!(photo instanceof OffHeapPhoto)) {
+            return new ByteArrayInputStream(photo.getData());
+        }
+
+        final ByteBuffer image = ((OffHeapPhoto) photo).getImage();
+        return new InputStream() {
+
+            @Override
+            public int read() {
+                return image.hasRemaining() ? image.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) {
+                if (len == 0) {
+                    return 0;
+                }
+
+                if (!image.hasRemaining()) {
+                    return -1;
+                }
+
+                final int n = Math.min(len, image.remaining());
+                image.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return image.remaining();
+            }
+
+        };
+    }
+
+}
@@ -0,0 +1,379 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.property.Address;
+import ezvcard.property.Email;
+import ezvcard.property.FormattedName;
+import ezvcard.property.Nickname;
+import ezvcard.property.Note;
+import ezvcard.property.Organization;
+import ezvcard.property.StructuredName;
+import ezvcard.property.Telephone;
+import ezvcard.property.Url;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A predicate over the values of some of a card's properties, for searches the {@link SearchIndex} cannot answer: a
+ * regular expression, or text within an edit distance or above a Jaro-Winkler similarity. A card passes if any one
+ * value passes. Fuzzy queries are compared, ignoring case, with each whole value and with each of its words, so that
+ * "Lovlace" finds "Ada Lovelace".
+ * <p>
+ * Queries are tested on many threads at once. Each thread keeps its own scratch space for the distance tables and its
+ * own regular expression matcher, so testing a card allocates nothing beyond what reading its properties does.
+ */
+final class CardQuery implements Predicate<VCard> {
+
+    /**
+     * The properties a query looks at.
+     */
+    enum Field {
+
+        ANY("Any field"),
+        NAMES("Names"),
+        ORGANIZATIONS("Organizations"),
+        EMAILS("Emails"),
+        TELEPHONE_NUMBERS("Telephone numbers"),
+        ADDRESSES("Addresses"),
+        URLS("URLs"),
+        NOTES("Notes");
+
+        private final String description;
+
+        Field(final String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+
+    }
+
+    /**
+     * How a query compares values with its text.
+     */
+    enum Mode {
+
+        REGEX("Matches regular expression"),
+        EDIT_DISTANCE("Within edit distance"),
+        SIMILARITY("Jaro-Winkler similarity at least");
+
+        private final String description;
+
+        Mode(final String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+
+    }
+
+    /**
+     * Per thread buffers for the distance computations, grown as longer values come along.
+     */
+    private static final class Scratch {
+
+        private int[] previous = new int[64];
+        private int[] current = new int[64];
+        private boolean[] queryMatched = new boolean[64];
+        private boolean[] valueMatched = new boolean[64];
+
+        private void ensure(final int size) {
+            if (previous.length < size) {
+                final int grown = Math.max(size, previous.length * 2);
+                previous = new int[grown];
+                current = new int[grown];
+                queryMatched = new boolean[grown];
+                valueMatched = new boolean[grown];
+            }
+        }
+
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final Field field;
+    private final Mode mode;
+    private final String text;
+    private final int maxDistance;
+    private final double minSimilarity;
+    private final ThreadLocal<Matcher> matcher;
+
+    private CardQuery(final Field field, final Mode mode, final String text, final int maxDistance,
+                      final double minSimilarity, final Pattern pattern) {
+        this.field = field;
+        this.mode = mode;
+        this.text = text;
+        this.maxDistance = maxDistance;
+        this.minSimilarity = minSimilarity;
+        matcher = pattern == null ? null : ThreadLocal.withInitial(() -> pattern.matcher(""));
+    }
+
+    /**
+     * @throws java.util.regex.PatternSyntaxException if the expression is not valid
+     */
+    static CardQuery regex(final Field field, final String regex) {
+        return new CardQuery(field, Mode.REGEX, regex, 0, 0,
+                Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+    }
+
+    static CardQuery editDistance(final Field field, final String text, final int maxDistance) {
+        return new CardQuery(field, Mode.EDIT_DISTANCE, text.toLowerCase(Locale.ROOT), maxDistance, 0, null);
+    }
+
+    /**
+     * @param minSimilarity the lowest Jaro-Winkler similarity that passes, from 0 to 1
+     */
+    static CardQuery similarity(final Field field, final String text, final double minSimilarity) {
+        return new CardQuery(field, Mode.SIMILARITY, text.toLowerCase(Locale.ROOT), 0, minSimilarity, null);
+    }
+
+    @Override
+    public boolean test(final VCard card) {
+        final Scratch scratch = SCRATCH.get();
+        final Field f = field;
+        if (f == Field.ANY || f == Field.NAMES) {
+            for (final FormattedName n : card.getFormattedNames()) {
+                if (matches(n.getValue(), scratch)) {
+                    return true;
+                }
+            }
+
+            for (final StructuredName n : card.getStructuredNames()) {
+                if (matches(n.getGiven(), scratch) || matches(n.getFamily(), scratch)
+                        || any(n.getAdditionalNames(), scratch) || any(n.getPrefixes(), scratch)
+                        || any(n.getSuffixes(), scratch)) {
+                    return true;
+                }
+            }
+
+            for (final Nickname n : card.getNicknames()) {
+                if (any(n.getValues(), scratch)) {
+                    return true;
+                }
+            }
+        }
+
+        if (f == Field.ANY || f == Field.ORGANIZATIONS) {
+            for (final Organization o : card.getOrganizations()) {
+                if (any(o.getValues(), scratch)) {
+                    return true;
+                }
+            }
+        }
+
+        if (f == Field.ANY || f == Field.EMAILS) {
+            for (final Email e : card.getEmails()) {
+                if (matches(e.getValue(), scratch)) {
+                    return true;
+                }
+            }
+        }
+
+        if (f == Field.ANY || f == Field.TELEPHONE_NUMBERS) {
+            for (final Telephone t : card.getTelephoneNumbers()) {
+                if (matches(VCardUtil.phoneNumber(t), scratch)) {
+                    return true;
+                }
+            }
+        }
+
+        if (f == Field.ANY || f == Field.ADDRESSES) {
+            for (final Address a : card.getAddresses()) {
+                if (any(a.getPoBoxes(), scratch) || any(a.getExtendedAddresses(), scratch)
+                        || any(a.getStreetAddresses(), scratch) || matches(a.getLocality(), scratch)
+                        || matches(a.getRegion(), scratch) || matches(a.getPostalCode(), scratch)
+                        || matches(a.getCountry(), scratch)) {
+                    return true;
+                }
+            }
+        }
+
+        if (f == Field.ANY || f == Field.URLS) {
+            for (final Url u : card.getUrls()) {
+                if (matches(u.getValue(), scratch)) {
+                    return true;
+                }
+            }
+        }
+
+        if (f == Field.ANY || f == Field.NOTES) {
+            for (final Note n : card.getNotes()) {
+                if (matches(n.getValue(), scratch)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private boolean any(final List<String> values, final Scratch scratch) {
+        for (int i = 0; i < values.size(); i++) {
+            if (matches(values.get(i), scratch)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean matches(final String value, final Scratch scratch) {
+        if (value == null) {
+            return false;
+        }
+
+        if (mode == Mode.REGEX) {
+            return matcher.get().reset(value).find();
+        }
+
+        if (fuzzyMatches(value, 0, value.length(), scratch)) {
+            return true;
+        }
+
+        // Then each word on its own.
+        int start = -1;
+        for (int i = 0; i <= value.length(); i++) {
+            final boolean letter = i < value.length() && Character.isLetterOrDigit(value.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                if ((start > 0 || i < value.length()) && fuzzyMatches(value, start, i, scratch)) {
+                    return true;
+                }
+
+                start = -1;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean fuzzyMatches(final String value, final int start, final int end, final Scratch scratch) {
+        return mode == Mode.EDIT_DISTANCE ? distance(text, value, start, end, maxDistance, scratch) <= maxDistance
+                : similarity(text, value, start, end, scratch) >= minSimilarity;
+    }
+
+    /**
+     * @return the Levenshtein distance between a lower case query and a value, ignoring case, or more than
+     * {@code max} if it is more than that
+     */
+    static int distance(final String query, final String value, final int max) {
+        return distance(query, value, 0, value.length(), max, SCRATCH.get());
+    }
+
+    private static int distance(final String query, final String value, final int start, final int end,
+                                final int max, final Scratch scratch) {
+        final int n = query.length();
+        final int m = end - start;
+        if (Math.abs(n - m) > max) {
+            return max + 1;
+        }
+
+        scratch.ensure(m + 1);
+        int[] previous = scratch.previous;
+        int[] current = scratch.current;
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= n; i++) {
+            final char q = query.charAt(i - 1);
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= m; j++) {
+                final int cost = q == Character.toLowerCase(value.charAt(start + j - 1)) ? 0 : 1;
+                current[j] = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+
+            // Every later row is at least as far as this one's nearest cell.
+            if (rowMin > max) {
+                return max + 1;
+            }
+
+            final int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        return previous[m];
+    }
+
+    /**
+     * @return the Jaro-Winkler similarity of a lower case query and a value, ignoring case, from 0 for nothing in
+     * common to 1 for the same text
+     */
+    static double similarity(final String query, final String value) {
+        return similarity(query, value, 0, value.length(), SCRATCH.get());
+    }
+
+    private static double similarity(final String query, final String value, final int start, final int end,
+                                     final Scratch scratch) {
+        final int n = query.length();
+        final int m = end - start;
+        if (n == 0 || m == 0) {
+            return n == m ? 1 : 0;
+        }
+
+        scratch.ensure(Math.max(n, m));
+        final boolean[] queryMatched = scratch.queryMatched;
+        final boolean[] valueMatched = scratch.valueMatched;
+        Arrays.fill(queryMatched, 0, n, false);
+        Arrays.fill(valueMatched, 0, m, false);
+        final int window = Math.max(0, Math.max(n, m) / 2 - 1);
+        int matches = 0;
+        for (int i = 0; i < n; i++) {
+            final char q = query.charAt(i);
+            for (int j = Math.max(0, i - window); j < Math.min(m, i + window + 1); j++) {
+                if (!valueMatched[j] && q == Character.toLowerCase(value.charAt(start + j))) {
+                    queryMatched[i] = true;
+                    valueMatched[j] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+
+        if (matches == 0) {
+            return 0;
+        }
+
+        int transpositions = 0;
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (queryMatched[i]) {
+                while (!valueMatched[k]) {
+                    k++;
+                }
+
+                if (query.charAt(i) != Character.toLowerCase(value.charAt(start + k))) {
+                    transpositions++;
+                }
+
+                k++;
+            }
+        }
+
+        final double jaro = ((double) matches / n + (double) matches / m
+                + (matches - transpositions / 2.0) / matches) / 3;
+        int prefix = 0;
+        while (prefix < Math.min(4, Math.min(n, m))
+                && query.charAt(prefix) == Character.toLowerCase(value.charAt(start + prefix))) {
+            prefix++;
+        }
+
+        return jaro + prefix * 0.1 * (1 - jaro);
+    }
+
+}
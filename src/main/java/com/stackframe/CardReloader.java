@@ -0,0 +1,292 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.io.text.VCardReader;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Works out on a background thread how an open address book has to change to match a new version of its file, so
+ * that only the cards that were added, removed or changed have to be touched. Each card of the new file is first
+ * matched to an entry by the hash of its text, which needs no parsing; only the cards that match nothing are parsed,
+ * and matched to the remaining entries by UID.
+ * <p>
+ * Only entries that came from the file take part: entries imported from elsewhere are kept. Entries with unsaved
+ * edits are kept too, whatever happened to their card in the file, and the file's cards that unsaved edits replaced or
+ * removed, as recorded by {@link CardStore#supersede}, are claimed like an entry's card rather than added again.
+ */
+class CardReloader extends SwingWorker<CardReloader.Diff, Void> {
+
+    private static final long CHUNK_BYTES = 1 << 20;
+
+    private final Path file;
+    private final long[] textHashes;
+    private final long[] uidHashes;
+    private final boolean[] fromFile;
+    private final boolean[] edited;
+    private final List<long[]> superseded;
+    private final boolean map;
+
+    /**
+     * The changes that turn the address book into the new file's contents, in terms of the store positions the
+     * reloader was given. They are applied in order: changes and rebases, then removals, then additions.
+     */
+    static final class Diff {
+
+        private final CardStore.Source source;
+        private final List<long[]> rebased = new ArrayList<>();
+        private final List<long[]> superseded = new ArrayList<>();
+        private final EditJournal.Edit<CardEntry> edit = new EditJournal.Edit<>();
+        private MappedCardFile mapped;
+
+        private Diff(final CardStore.Source source) {
+            this.source = source;
+        }
+
+        /**
+         * @return the new file as it was when it was read
+         */
+        CardStore.Source getSource() {
+            return source;
+        }
+
+        /**
+         * @return the mapping of the new file that rebased entries should parse their cards from, or null
+         */
+        MappedCardFile getMapped() {
+            return mapped;
+        }
+
+        /**
+         * @return for each entry whose text is unchanged, its position and its new start and end in the file
+         */
+        List<long[]> getRebased() {
+            return rebased;
+        }
+
+        /**
+         * @return the superseded cards that are still in the new file, to be recorded in place of the old ones
+         */
+        List<long[]> getSuperseded() {
+            return superseded;
+        }
+
+        /**
+         * @return the entries to replace, the positions to remove and the entries to append, in file order
+         */
+        EditJournal.Edit<CardEntry> getEdit() {
+            return edit;
+        }
+
+    }
+
+    /**
+     * @param file       the new version of the file
+     * @param entries    the address book's entries, read on the event dispatch thread
+     * @param superseded the text and UID hashes of the file's cards that unsaved edits replaced or removed
+     */
+    CardReloader(final Path file, final List<CardEntry> entries, final List<long[]> superseded) {
+        this.file = file;
+        this.superseded = List.copyOf(superseded);
+        final int n = entries.size();
+        textHashes = new long[n];
+        uidHashes = new long[n];
+        fromFile = new boolean[n];
+        edited = new boolean[n];
+        boolean anyUnloaded = false;
+        for (int i = 0; i < n; i++) {
+            final CardEntry entry = entries.get(i);
+            textHashes[i] = entry.getTextHash();
+            uidHashes[i] = entry.getUidHash();
+            fromFile[i] = entry.getTextHash() != 0 || file.equals(entry.getOrigin());
+            edited[i] = entry.isEdited();
+            anyUnloaded |= !entry.isLoaded();
+        }
+
+        // Unloaded cards must move to a mapping of the new file, as the old one may no longer hold their text.
+        map = anyUnloaded;
+    }
+
+    private static long[] hashes(final FileChannel channel, final CardSpans spans) throws IOException {
+        final long[] hashes = new long[spans.size()];
+        int first = 0;
+        while (first < spans.size()) {
+            int last = first;
+            while (last + 1 < spans.size() && spans.end(last + 1) - spans.start(first) <= CHUNK_BYTES) {
+                last++;
+            }
+
+            final byte[] bytes = ParallelVCardParser.read(channel, spans.start(first), spans.end(last));
+            for (int i = first; i <= last; i++) {
+                hashes[i] = CardSpans.hash(bytes, (int) (spans.start(i) - spans.start(first)), (int) spans.length(i));
+            }
+
+            first = last + 1;
+        }
+
+        return hashes;
+    }
+
+    private static <K> void push(final Map<K, ArrayDeque<Integer>> index, final K key, final int value) {
+        index.computeIfAbsent(key, k -> new ArrayDeque<>()).add(value);
+    }
+
+    private static <K> int poll(final Map<K, ArrayDeque<Integer>> index, final K key) {
+        final ArrayDeque<Integer> values = index.get(key);
+        return values == null || values.isEmpty() ? -1 : values.poll();
+    }
+
+    /**
+     * Parses the spans that matched no entry, in parallel, giving each card its span if it had one to itself.
+     */
+    private List<CardEntry> parse(final FileChannel channel, final CardSpans spans, final long[] hashes,
+                                  final List<Integer> unmatched, final boolean reusableLast,
+                                  final MappedCardFile mapped) throws IOException {
+        try {
+            return unmatched.parallelStream().map(span -> {
+                try {
+                    final List<CardEntry> entries = ParallelVCardParser.parse(
+                            ParallelVCardParser.read(channel, spans.start(span), spans.end(span)),
+                            card -> CardLoader.entry(card, file));
+                    if (entries.size() == 1) {
+                        entries.get(0).setTextHash(hashes[span]);
+                        if (span < spans.size() - 1 || reusableLast) {
+                            CardLoader.setSource(entries.get(0), spans.start(span), spans.end(span), mapped);
+                        }
+                    }
+
+                    return entries;
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).flatMap(List::stream).collect(Collectors.toList());
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private List<CardEntry> readSequentially() throws IOException {
+        final List<CardEntry> entries = new ArrayList<>();
+        try (final VCardReader reader = new VCardReader(file.toFile())) {
+            VCard card;
+            while ((card = reader.readNext()) != null) {
+                entries.add(CardLoader.entry(card, file));
+            }
+        }
+
+        return entries;
+    }
+
+    @Override
+    protected Diff doInBackground() throws IOException {
+        final Diff diff = new Diff(CardStore.Source.of(file));
+        final int[] match = new int[textHashes.length];
+        // The superseded cards not found by their text, which are looked for by UID among the parsed cards.
+        final List<long[]> unfound = new ArrayList<>();
+        final List<CardEntry> fresh;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long length = channel.size();
+            final CardSpans spans = CardSpans.scan(channel);
+            if (spans.size() == 0) {
+                // Without card boundaries there is nothing to hash, so every card is parsed and matched by UID.
+                Arrays.fill(match, -1);
+                unfound.addAll(superseded);
+                fresh = readSequentially();
+            } else {
+                final boolean terminated = ParallelVCardParser.read(channel, length - 1, length)[0] == '\n';
+                final MappedCardFile mapped = map || length >= CardLoader.LAZY_BYTES ? MappedCardFile.map(file) : null;
+                diff.mapped = mapped;
+                setProgress(10);
+                final long[] hashes = hashes(channel, spans);
+                setProgress(50);
+
+                // The last card can only be given its span if it ends with a line break, so otherwise it is parsed.
+                final boolean reusableLast = spans.end(spans.size() - 1) < length || terminated;
+                final Map<Long, ArrayDeque<Integer>> byText = new HashMap<>();
+                for (int i = 0; i < (reusableLast ? spans.size() : spans.size() - 1); i++) {
+                    push(byText, hashes[i], i);
+                }
+
+                final boolean[] matched = new boolean[spans.size()];
+                for (int i = 0; i < match.length; i++) {
+                    match[i] = fromFile[i] && textHashes[i] != 0 ? poll(byText, textHashes[i]) : -1;
+                    if (match[i] >= 0) {
+                        matched[match[i]] = true;
+                        if (!edited[i]) {
+                            diff.rebased.add(new long[]{i, spans.start(match[i]), spans.end(match[i])});
+                        }
+                    }
+                }
+
+                for (final long[] card : superseded) {
+                    final int span = card[0] != 0 ? poll(byText, card[0]) : -1;
+                    if (span >= 0) {
+                        matched[span] = true;
+                        diff.superseded.add(card);
+                    } else {
+                        unfound.add(card);
+                    }
+                }
+
+                final List<Integer> unmatched = IntStream.range(0, spans.size()).filter(i -> !matched[i]).boxed()
+                        .collect(Collectors.toList());
+                fresh = parse(channel, spans, hashes, unmatched, reusableLast, mapped);
+            }
+        }
+
+        setProgress(90);
+        final Map<Long, ArrayDeque<Integer>> byUid = new HashMap<>();
+        for (int i = 0; i < fresh.size(); i++) {
+            if (fresh.get(i).getUidHash() != 0) {
+                push(byUid, fresh.get(i).getUidHash(), i);
+            }
+        }
+
+        final boolean[] claimed = new boolean[fresh.size()];
+        for (int i = 0; i < match.length; i++) {
+            if (match[i] >= 0 || !fromFile[i]) {
+                continue;
+            }
+
+            final int other = uidHashes[i] != 0 ? poll(byUid, uidHashes[i]) : -1;
+            if (other >= 0) {
+                claimed[other] = true;
+                if (!edited[i]) {
+                    diff.edit.change(i, fresh.get(other));
+                }
+            } else if (!edited[i]) {
+                diff.edit.remove(i);
+            }
+        }
+
+        for (final long[] card : unfound) {
+            final int other = card[1] != 0 ? poll(byUid, card[1]) : -1;
+            if (other >= 0) {
+                claimed[other] = true;
+                diff.superseded.add(card);
+            }
+        }
+
+        for (int i = 0; i < fresh.size(); i++) {
+            if (!claimed[i]) {
+                diff.edit.add(fresh.get(i));
+            }
+        }
+
+        return diff;
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+
+/**
+ * Tests every card against a {@link CardQuery} on a background thread. The cards are split into slices that are tested
+ * in parallel, and each slice's matches are published as store positions in ascending order as soon as it and every
+ * slice before it are done, so the results can be shown while the search goes on. Progress is reported as the
+ * percentage of cards tested. A cancelled search has already published what it found.
+ */
+class CardSearch extends SwingWorker<Integer, int[]> {
+
+    private static final int SLICE = 512;
+
+    private final List<CardEntry> entries;
+    private final Predicate<VCard> query;
+
+    /**
+     * @param entries the entries to search, read on the event dispatch thread; their positions are the ones published
+     */
+    CardSearch(final List<CardEntry> entries, final Predicate<VCard> query) {
+        this.entries = List.copyOf(entries);
+        this.query = query;
+    }
+
+    /**
+     * @return the start of each slice of positions
+     */
+    private Iterator<Integer> slices() {
+        return new Iterator<Integer>() {
+
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < entries.size();
+            }
+
+            @Override
+            public Integer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final int start = next;
+                next += SLICE;
+                return start;
+            }
+
+        };
+    }
+
+    private int[] search(final int start) {
+        final int end = Math.min(entries.size(), start + SLICE);
+        int[] matches = null;
+        int count = 0;
+        for (int i = start; i < end && !isCancelled(); i++) {
+            if (query.test(entries.get(i).getCard())) {
+                if (matches == null) {
+                    matches = new int[end - i];
+                }
+
+                matches[count++] = i;
+            }
+        }
+
+        return matches == null ? new int[0] : Arrays.copyOf(matches, count);
+    }
+
+    @Override
+    protected Integer doInBackground() throws InterruptedException {
+        final Metrics.Timer timer = Metrics.start(Metrics.Phase.SEARCH);
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        final int[] done = new int[2];
+        try {
+            OrderedParallel.map(slices(), this::search, matches -> {
+                if (matches.length > 0) {
+                    publish(matches);
+                    done[1] += matches.length;
+                }
+
+                done[0] = Math.min(entries.size(), done[0] + SLICE);
+                setProgress(done[0] * 100 / entries.size());
+            }, pool, pool.getParallelism() * 2, this::isCancelled);
+        } catch (final ExecutionException e) {
+            // Testing a card fails only if its query or the card is broken.
+            throw new IllegalStateException(e.getCause());
+        }
+
+        timer.stop(done[0], 0);
+        return done[1];
+    }
+
+}
@@ -0,0 +1,211 @@
+package com.stackframe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * The byte ranges of the top level vCards in a file, found by scanning for BEGIN:VCARD and END:VCARD lines without
+ * parsing any properties. Folded lines and quoted-printable soft line breaks are treated as continuations of the
+ * property they belong to, so a value that happens to contain BEGIN:VCARD at the start of a physical line is not
+ * mistaken for a card boundary. Nested cards (e.g. a vCard 2.1 AGENT) stay inside the span of their enclosing card.
+ */
+final class CardSpans {
+
+    private static final byte[] BEGIN = "BEGIN:VCARD".getBytes();
+    private static final byte[] END = "END:VCARD".getBytes();
+    private static final byte[] QUOTED_PRINTABLE = "QUOTED-PRINTABLE".getBytes();
+    private static final int MAX_PREFIX = 256;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private long[] starts;
+    private long[] ends;
+    private int size;
+
+    private CardSpans(final int capacity) {
+        starts = new long[capacity];
+        ends = new long[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    long start(final int i) {
+        return starts[i];
+    }
+
+    long end(final int i) {
+        return ends[i];
+    }
+
+    long length(final int i) {
+        return ends[i] - starts[i];
+    }
+
+    /**
+     * Hashes a card's text, so that cards can be matched by content without being parsed. The hash is a CRC-32C and a
+     * CRC-32 side by side, which are both computed in hardware on common processors, and is never 0.
+     */
+    static long hash(final byte[] bytes, final int offset, final int length) {
+        final CRC32C crc32c = new CRC32C();
+        crc32c.update(bytes, offset, length);
+        final CRC32 crc32 = new CRC32();
+        crc32.update(bytes, offset, length);
+        final long hash = crc32c.getValue() << 32 | crc32.getValue();
+        return hash == 0 ? 1 : hash;
+    }
+
+    static long hash(final byte[] bytes) {
+        return hash(bytes, 0, bytes.length);
+    }
+
+    private void add(final long start, final long end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    private static boolean startsWithIgnoreCase(final byte[] line, final int length, final byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (Character.toUpperCase(line[i]) != prefix[i]) {
+                return false;
+            }
+        }
+
+        for (int i = prefix.length; i < length; i++) {
+            if (line[i] != ' ' && line[i] != '\t') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean containsIgnoreCase(final byte[] line, final int length, final byte[] s) {
+        outer:
+        for (int i = 0; i + s.length <= length; i++) {
+            for (int j = 0; j < s.length; j++) {
+                if (Character.toUpperCase(line[i + j]) != s[j]) {
+                    continue outer;
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Scans a channel from its beginning to its end. The channel's position is not used or changed.
+     *
+     * @param channel the channel to scan
+     * @return the spans of the top level cards, in file order
+     * @throws IOException if the channel cannot be read
+     */
+    static CardSpans scan(final FileChannel channel) throws IOException {
+        final long length = channel.size();
+        final CardSpans spans = new CardSpans(Math.max(16, (int) Math.min(1 << 20, length / 512)));
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final byte[] bytes = buffer.array();
+        final byte[] line = new byte[MAX_PREFIX];
+        int lineLength = 0;
+        int colon = -1;
+        boolean atLineStart = true;
+        boolean continuation = false;
+        boolean quotedPrintable = false;
+        byte last = 0;
+        long lineStart = 0;
+        long cardStart = -1;
+        int depth = 0;
+        long position = 0;
+
+        // Skip a UTF-8 byte order mark so that it is not part of the first line.
+        if (length >= 3) {
+            final ByteBuffer bom = ByteBuffer.allocate(3);
+            channel.read(bom, 0);
+            if ((bom.get(0) & 0xff) == 0xef && (bom.get(1) & 0xff) == 0xbb && (bom.get(2) & 0xff) == 0xbf) {
+                position = 3;
+                lineStart = 3;
+            }
+        }
+
+        while (position < length) {
+            buffer.clear();
+            final int n = channel.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+
+            for (int i = 0; i < n; i++) {
+                final byte b = bytes[i];
+                if (atLineStart) {
+                    atLineStart = false;
+                    if (b == ' ' || b == '\t') {
+                        continuation = true;
+                    }
+                }
+
+                if (b == '\n') {
+                    final long next = position + i + 1;
+                    if (!continuation) {
+                        quotedPrintable = colon > 0 && containsIgnoreCase(line, colon, QUOTED_PRINTABLE);
+                        final int trimmed = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1
+                                : lineLength;
+                        if (startsWithIgnoreCase(line, trimmed, BEGIN)) {
+                            if (depth++ == 0) {
+                                cardStart = lineStart;
+                            }
+                        } else if (depth > 0 && startsWithIgnoreCase(line, trimmed, END)) {
+                            if (--depth == 0) {
+                                spans.add(cardStart, next);
+                            }
+                        }
+                    }
+
+                    // A quoted-printable value that ends in '=' continues on the next physical line.
+                    continuation = quotedPrintable && last == '=';
+                    atLineStart = true;
+                    lineLength = 0;
+                    colon = -1;
+                    lineStart = next;
+                    last = 0;
+                } else {
+                    if (lineLength < MAX_PREFIX) {
+                        if (b == ':' && colon < 0) {
+                            colon = lineLength;
+                        }
+
+                        line[lineLength++] = b;
+                    }
+
+                    if (b != '\r') {
+                        last = b;
+                    }
+                }
+            }
+
+            position += n;
+        }
+
+        if (depth > 0) {
+            spans.add(cardStart, length);
+        }
+
+        return spans;
+    }
+
+}
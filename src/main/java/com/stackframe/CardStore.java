@@ -0,0 +1,214 @@
+package com.stackframe;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The cards of an open address book, in file order. Every change bumps a version number so that work done on an older
+ * snapshot, such as a search index or a sort order, can be recognized as stale.
+ * <p>
+ * The store also knows which file the entries' source ranges (see {@link CardEntry#setSource}) refer to, and how that
+ * file looked when the ranges were recorded, so that the ranges are only trusted while the file is unchanged. It
+ * remembers the cards of that file that unsaved edits replaced or removed, so that a reload does not bring them back.
+ * <p>
+ * A store belongs to the event dispatch thread.
+ */
+final class CardStore {
+
+    private final List<CardEntry> entries = new ArrayList<>();
+    private final List<CardEntry> readOnly = Collections.unmodifiableList(entries);
+    private int version;
+
+    /**
+     * Store positions in name order, kept until the cards change.
+     */
+    private int[] byName;
+    private int byNameVersion;
+
+    private Source source;
+
+    /**
+     * The text and UID hashes of the cards of the source file whose entries were replaced or removed by edits that
+     * are not saved yet.
+     */
+    private List<long[]> superseded = new ArrayList<>();
+
+    /**
+     * A file as it was at a moment in time.
+     */
+    static final class Source {
+
+        private final Path path;
+        private final long size;
+        private final FileTime modified;
+
+        private Source(final Path path, final long size, final FileTime modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        static Source of(final Path path) throws IOException {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Source(path, attributes.size(), attributes.lastModifiedTime());
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        FileTime getModified() {
+            return modified;
+        }
+
+        boolean isUnchanged() {
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return attributes.size() == size && attributes.lastModifiedTime().equals(modified);
+            } catch (final IOException e) {
+                return false;
+            }
+        }
+
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    CardEntry get(final int i) {
+        return entries.get(i);
+    }
+
+    /**
+     * @return a read only view of the entries that follows later changes
+     */
+    List<CardEntry> asList() {
+        return readOnly;
+    }
+
+    int version() {
+        return version;
+    }
+
+    void addAll(final Collection<CardEntry> added) {
+        entries.addAll(added);
+        version++;
+    }
+
+    /**
+     * Replaces the entry at a position, for a card that was edited.
+     */
+    void set(final int i, final CardEntry entry) {
+        entries.set(i, entry);
+        version++;
+    }
+
+    /**
+     * Removes the entries at the given positions, which must be in ascending order.
+     */
+    void removeAll(final int[] positions) {
+        int next = 0;
+        int kept = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            if (next < positions.length && positions[next] == i) {
+                next++;
+            } else {
+                entries.set(kept++, entries.get(i));
+            }
+        }
+
+        entries.subList(kept, entries.size()).clear();
+        version++;
+    }
+
+    void clear() {
+        entries.clear();
+        source = null;
+        superseded = new ArrayList<>();
+        version++;
+    }
+
+    /**
+     * Records that the entry at a position is about to be replaced or removed by an edit that is not saved yet. Only
+     * an entry that still stands for its card in the source file is recorded; the card of one that was edited before
+     * was recorded then.
+     */
+    void supersede(final int i) {
+        final CardEntry entry = entries.get(i);
+        if (!entry.isEdited() && source != null && source.getPath().equals(entry.getOrigin())
+                && (entry.getTextHash() != 0 || entry.getUidHash() != 0)) {
+            superseded.add(new long[]{entry.getTextHash(), entry.getUidHash()});
+        }
+    }
+
+    /**
+     * @return the text and UID hashes of the cards of the source file that unsaved edits replaced or removed
+     */
+    List<long[]> getSuperseded() {
+        return Collections.unmodifiableList(superseded);
+    }
+
+    /**
+     * Replaces the cards recorded by {@link #supersede}, such as with those still in the file after a reload, or with
+     * none once the edits are saved.
+     */
+    void setSuperseded(final List<long[]> superseded) {
+        this.superseded = new ArrayList<>(superseded);
+    }
+
+    /**
+     * Sets the file that the entries' source ranges refer to.
+     *
+     * @param source the file, or null if there is none
+     */
+    void setSource(final Source source) {
+        this.source = source;
+    }
+
+    /**
+     * @return the file that the entries' source ranges refer to, or null if there is none or it has changed since
+     */
+    Path unchangedSource() {
+        return source != null && source.isUnchanged() ? source.getPath() : null;
+    }
+
+    /**
+     * @return the store positions of every entry in name order; the array is shared and must not be modified
+     */
+    int[] byName() {
+        if (byName == null || byNameVersion != version) {
+            final Integer[] order = new Integer[entries.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+
+            Arrays.parallelSort(order, (a, b) -> CardEntry.BY_NAME.compare(entries.get(a), entries.get(b)));
+            byName = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                byName[i] = order[i];
+            }
+
+            byNameVersion = version;
+        }
+
+        return byName;
+    }
+
+}
@@ -0,0 +1,299 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.parameter.AddressType;
+import ezvcard.parameter.EmailType;
+import ezvcard.parameter.TelephoneType;
+import ezvcard.property.Address;
+import ezvcard.property.Birthday;
+import ezvcard.property.Email;
+import ezvcard.property.FormattedName;
+import ezvcard.property.Organization;
+import ezvcard.property.Role;
+import ezvcard.property.StructuredName;
+import ezvcard.property.Telephone;
+import ezvcard.property.Title;
+import ezvcard.property.Url;
+
+import javax.swing.BorderFactory;
+import javax.swing.BoxLayout;
+import javax.swing.ImageIcon;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Rectangle;
+import java.text.DateFormatSymbols;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows the details of one card. The sections and their rows are built once and re-bound to whichever card is
+ * selected, and the text of the rows for recently shown cards is kept in a small LRU cache, so moving through the
+ * list only sets label text. A card's photo is shown above the sections once {@link PhotoThumbnails} has decoded it.
+ * <p>
+ * The viewer belongs to the event dispatch thread.
+ */
+final class CardViewer extends JPanel {
+
+    private static final int CACHE_SIZE = 64;
+    private static final int PHOTO_SIZE = 96;
+
+    private enum Section {
+
+        FORMATTED_NAMES("Formatted Names", true),
+        STRUCTURED_NAMES("Structured Names", true),
+        TITLES("Titles", false),
+        ROLES("Roles", false),
+        ORGANIZATIONS("Organizations", false),
+        EMAILS("Emails", false),
+        TELEPHONE_NUMBERS("Telephone Numbers", false),
+        URLS("URLs", false),
+        ADDRESSES("Addresses", false),
+        BIRTHDAYS("Birthdays", false);
+
+        private final String title;
+        private final boolean alwaysShown;
+
+        Section(final String title, final boolean alwaysShown) {
+            this.title = title;
+            this.alwaysShown = alwaysShown;
+        }
+
+    }
+
+    /**
+     * The row text of every section for one card. Edits replace entries rather than their cards, so the text of an
+     * entry is normally good for as long as it is cached; the revision it was prepared from is kept anyway because
+     * {@link CardEntry#setCard} can still replace an entry's card in place, as {@link PhotoThumbnails} also allows
+     * for.
+     */
+    private static final class Prepared {
+
+        private final int revision;
+        private final List<List<String>> rows = new ArrayList<>();
+
+        private Prepared(final int revision) {
+            this.revision = revision;
+            for (final Section section : Section.values()) {
+                rows.add(new ArrayList<>());
+            }
+        }
+
+        private void add(final Section section, final String row) {
+            rows.get(section.ordinal()).add(row);
+        }
+
+    }
+
+    private final PhotoThumbnails thumbnails;
+    private final JLabel photo = new JLabel();
+    private CardEntry bound;
+    private final JComponent[] sectionPanels = new JComponent[Section.values().length];
+    private final List<List<JLabel>> sectionRows = new ArrayList<>();
+    private final Map<CardEntry, Prepared> cache = new LinkedHashMap<CardEntry, Prepared>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<CardEntry, Prepared> eldest) {
+            return size() > CACHE_SIZE;
+        }
+
+    };
+
+    CardViewer(final PhotoThumbnails thumbnails) {
+        super(new BorderLayout());
+        this.thumbnails = thumbnails;
+        final JComponent sections = new JPanel();
+        sections.setLayout(new BoxLayout(sections, BoxLayout.PAGE_AXIS));
+        // Anchored at the top so that the sections keep their preferred heights.
+        add(sections, BorderLayout.NORTH);
+        photo.setAlignmentX(Component.LEFT_ALIGNMENT);
+        photo.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        sections.add(photo);
+        for (final Section section : Section.values()) {
+            final JComponent panel = new JPanel();
+            panel.setLayout(new BoxLayout(panel, BoxLayout.PAGE_AXIS));
+            panel.setBorder(BorderFactory.createTitledBorder(section.title));
+            panel.setAlignmentX(Component.LEFT_ALIGNMENT);
+            sections.add(panel);
+            sectionPanels[section.ordinal()] = panel;
+            sectionRows.add(new ArrayList<>());
+        }
+
+        bind(null);
+    }
+
+    /**
+     * Shows a card, or nothing.
+     *
+     * @param entry the entry to show, or null to show nothing
+     */
+    void bind(final CardEntry entry) {
+        final Metrics.Timer timer = entry == null ? null : Metrics.start(Metrics.Phase.RENDER);
+        final Prepared prepared = entry == null ? null : prepared(entry);
+        bound = entry;
+        showPhoto();
+        for (final Section section : Section.values()) {
+            final JComponent panel = sectionPanels[section.ordinal()];
+            final List<JLabel> labels = sectionRows.get(section.ordinal());
+            final List<String> rows = prepared == null ? List.of() : prepared.rows.get(section.ordinal());
+            while (labels.size() < rows.size()) {
+                final JLabel label = new JLabel();
+                label.setAlignmentX(Component.LEFT_ALIGNMENT);
+                label.setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
+                labels.add(label);
+                panel.add(label);
+            }
+
+            for (int i = 0; i < labels.size(); i++) {
+                final JLabel label = labels.get(i);
+                if (i < rows.size()) {
+                    label.setText(rows.get(i));
+                    label.setVisible(true);
+                } else {
+                    label.setVisible(false);
+                }
+            }
+
+            panel.setVisible(prepared != null && (section.alwaysShown || !rows.isEmpty()));
+        }
+
+        revalidate();
+        repaint();
+        scrollRectToVisible(new Rectangle(0, 0, 1, 1));
+        if (timer != null) {
+            timer.stop(1, 0);
+        }
+    }
+
+    private void showPhoto() {
+        final CardEntry entry = bound;
+        final ImageIcon icon = entry == null ? null : thumbnails.get(entry, PHOTO_SIZE, () -> {
+            if (bound == entry) {
+                showPhoto();
+            }
+        });
+        photo.setIcon(icon);
+        photo.setVisible(icon != null);
+        revalidate();
+    }
+
+    private Prepared prepared(final CardEntry entry) {
+        Prepared prepared = cache.get(entry);
+        if (prepared == null || prepared.revision != entry.getRevision()) {
+            prepared = prepare(entry.getCard(), entry.getRevision());
+            cache.put(entry, prepared);
+        }
+
+        return prepared;
+    }
+
+    private static String join(final List<String> values) {
+        return String.join(" ", values).trim();
+    }
+
+    private static Prepared prepare(final VCard card, final int revision) {
+        final Prepared prepared = new Prepared(revision);
+        for (final FormattedName n : card.getFormattedNames()) {
+            prepared.add(Section.FORMATTED_NAMES, n.getValue());
+        }
+
+        for (final StructuredName n : card.getStructuredNames()) {
+            final StringBuilder b = new StringBuilder();
+            if (!n.getPrefixes().isEmpty()) {
+                b.append("Prefixes: ").append(join(n.getPrefixes())).append("  ");
+            }
+
+            b.append("Given: ").append(n.getGiven() == null ? "" : n.getGiven()).append("  ");
+            if (!n.getAdditionalNames().isEmpty()) {
+                b.append("Additional Names: ").append(join(n.getAdditionalNames())).append("  ");
+            }
+
+            b.append("Family: ").append(n.getFamily() == null ? "" : n.getFamily());
+            if (!n.getSuffixes().isEmpty()) {
+                b.append("  Suffixes: ").append(join(n.getSuffixes()));
+            }
+
+            prepared.add(Section.STRUCTURED_NAMES, b.toString().trim());
+        }
+
+        for (final Title title : card.getTitles()) {
+            prepared.add(Section.TITLES, typed(title.getType()) + title.getValue());
+        }
+
+        for (final Role role : card.getRoles()) {
+            prepared.add(Section.ROLES, typed(role.getType()) + role.getValue());
+        }
+
+        for (final Organization o : card.getOrganizations()) {
+            prepared.add(Section.ORGANIZATIONS, (typed(o.getType()) + join(o.getValues())).trim());
+        }
+
+        for (final Email e : card.getEmails()) {
+            final StringBuilder text = new StringBuilder();
+            for (final EmailType type : e.getTypes()) {
+                text.append(typed(type.getValue()));
+            }
+
+            prepared.add(Section.EMAILS, text.append(e.getValue()).toString().trim());
+        }
+
+        for (final Telephone phone : card.getTelephoneNumbers()) {
+            final StringBuilder text = new StringBuilder();
+            for (final TelephoneType type : phone.getTypes()) {
+                text.append(typed(type.getValue()));
+            }
+
+            prepared.add(Section.TELEPHONE_NUMBERS, text.append(VCardUtil.phoneNumber(phone)).toString().trim());
+        }
+
+        for (final Url u : card.getUrls()) {
+            prepared.add(Section.URLS, (typed(u.getType()) + u.getValue()).trim());
+        }
+
+        for (final Address a : card.getAddresses()) {
+            final StringBuilder text = new StringBuilder();
+            for (final AddressType type : a.getTypes()) {
+                text.append(typed(type.getValue()));
+            }
+
+            text.append(a.getStreetAddress() == null ? "" : a.getStreetAddress());
+            prepared.add(Section.ADDRESSES, text.toString().trim());
+        }
+
+        for (final Birthday b : card.getBirthdays()) {
+            prepared.add(Section.BIRTHDAYS, birthday(b));
+        }
+
+        return prepared;
+    }
+
+    private static String typed(final String type) {
+        return type == null ? "" : "(" + type + ") ";
+    }
+
+    private static String birthday(final Birthday b) {
+        final Date date = b.getDate();
+        if (date == null) {
+            return b.getPartialDate() != null ? b.getPartialDate().toISO8601(true) : String.valueOf(b.getText());
+        }
+
+        final Calendar c = Calendar.getInstance();
+        c.setTime(date);
+        final StringBuilder text = new StringBuilder();
+        text.append(DateFormatSymbols.getInstance().getMonths()[c.get(Calendar.MONTH)]);
+        text.append(" ");
+        text.append(c.get(Calendar.DAY_OF_MONTH));
+        if (b.getParameter("X-APPLE-OMIT-YEAR") == null) {
+            text.append(", ").append(c.get(Calendar.YEAR));
+        }
+
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.stackframe;
+
+import ezvcard.property.VCardProperty;
+
+import java.util.Map;
+
+/**
+ * One cleanup step for one type of property, such as removing blank email addresses. Rules are registered with a
+ * {@link CardCleaner}, which runs every rule that applies to a property, in the order they were registered, in a
+ * single traversal of each card. A rule only reads the card it is given, so that a card that needs no cleanup is
+ * never copied.
+ *
+ * @param <P> the type of property the rule applies to, including its subclasses
+ */
+interface CleanupRule<P extends VCardProperty> {
+
+    /**
+     * What a rule did to a property.
+     */
+    enum Outcome {
+
+        /**
+         * The property was left as it was.
+         */
+        KEPT,
+
+        /**
+         * The property was changed, through {@link Context#edit}.
+         */
+        CHANGED,
+
+        /**
+         * The property is to be removed from the card; no later rule sees it.
+         */
+        REMOVED
+
+    }
+
+    /**
+     * What a rule is given besides the property, for the card being cleaned.
+     */
+    interface Context {
+
+        /**
+         * @return scratch space for this rule that lasts for one card, such as the keys of the properties it has kept
+         * so far
+         */
+        Map<Object, VCardProperty> seen();
+
+        /**
+         * Rules never change the properties they are given, which belong to the card being cleaned; they change a
+         * copy instead, which takes the original's place in the cleaned card.
+         *
+         * @param property a property of the card being cleaned, or a copy returned earlier
+         * @return the copy of the property, made the first time it is asked for
+         */
+        <T extends VCardProperty> T edit(T property);
+
+    }
+
+    /**
+     * @return a short description of what the rule does, for diagnostics
+     */
+    String getName();
+
+    Class<P> getPropertyType();
+
+    /**
+     * Cleans one property, through {@link Context#edit} if it needs changing.
+     */
+    Outcome apply(P property, Context context);
+
+}
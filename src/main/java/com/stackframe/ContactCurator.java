@@ -2,71 +2,140 @@ package com.stackframe;
 
 import ezvcard.VCard;
 import ezvcard.VCardVersion;
-import ezvcard.io.text.VCardReader;
-import ezvcard.io.text.VCardWriter;
-import ezvcard.parameter.AddressType;
-import ezvcard.parameter.EmailType;
-import ezvcard.parameter.TelephoneType;
-import ezvcard.property.Address;
-import ezvcard.property.Birthday;
-import ezvcard.property.Email;
 import ezvcard.property.FormattedName;
 import ezvcard.property.Organization;
-import ezvcard.property.Role;
 import ezvcard.property.StructuredName;
-import ezvcard.property.Telephone;
-import ezvcard.property.Title;
-import ezvcard.property.Url;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileFilter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
-import java.text.DateFormatSymbols;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.prefs.Preferences;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * The default Swing GUI for ContactCurator.
  */
 public class ContactCurator extends JFrame {
 
-    private File cardFile;
-    private final Preferences prefs = Preferences.userNodeForPackage(getClass());
-    private final JLabel statusLabel = new JLabel();
-    private final List<VCard> cards = new ArrayList<>();
-    private final JMenuItem saveMenuItem = new JMenuItem("Save");
-    private final JMenuItem saveAsMenuItem = new JMenuItem("Save As...");
-    private final JScrollPane cardViewerPane = new JScrollPane(new JPanel(), JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
-            JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+    private static final int LIST_PHOTO_SIZE = 24;
 
-    private class CardListModel extends DefaultListModel {
+    private static final Icon NO_PHOTO = new Icon() {
 
         @Override
-        public int getSize() {
-            return cards.size();
+        public void paintIcon(final Component c, final Graphics g, final int x, final int y) {
         }
 
         @Override
-        public Object getElementAt(int i) {
-            return cards.get(i);
+        public int getIconWidth() {
+            return LIST_PHOTO_SIZE;
         }
 
-        public void fireContentsChanged() {
-            super.fireContentsChanged(this, 0, cards.size() - 1);
+        @Override
+        public int getIconHeight() {
+            return LIST_PHOTO_SIZE;
         }
 
-    }
+    };
 
-    private final CardListModel cardListModel = new CardListModel();
-    private final JList<VCard> cardListView = new JList<>(cardListModel);
+    private File cardFile;
+    private final Preferences prefs = Preferences.userNodeForPackage(getClass());
+    private final JLabel statusLabel = new JLabel();
+    private final JProgressBar progressBar = new JProgressBar(0, 100);
+    private final JButton cancelButton = new JButton("Cancel");
+    private final JComponent progressPanel = new JPanel();
+    private final CardStore cards = new CardStore();
+    private final JMenuItem importMenuItem = new JMenuItem("Import...");
+    private final JMenuItem saveMenuItem = new JMenuItem("Save");
+    private final JMenuItem saveAsMenuItem = new JMenuItem("Save As...");
+    private final JMenuItem syncMenuItem = new JMenuItem("Sync with CardDAV...");
+    private final JMenuItem findDuplicatesMenuItem = new JMenuItem("Find Duplicates...");
+    private final JMenuItem advancedSearchMenuItem = new JMenuItem("Advanced Search...");
+    private final JMenuItem bulkEditMenuItem = new JMenuItem("Bulk Edit...");
+    private final PhotoThumbnails thumbnails = new PhotoThumbnails();
+    private final CardViewer cardViewer = new CardViewer(thumbnails);
+    private final JScrollPane cardViewerPane = new JScrollPane(cardViewer, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+            JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 
-    private static String listDisplayName(final VCard card) {
+    private final CardListModel cardListModel = new CardListModel(cards);
+    private final JList<CardEntry> cardListView = new JList<>(cardListModel);
+    private final JTextField searchField = new JTextField();
+    private SearchIndex<CardEntry> searchIndex;
+    private Predicate<CardEntry> filter;
+
+    /**
+     * The cards that passed the search that is the {@link #filter}, if it is one, so that edited cards can take the
+     * place of the ones they replace.
+     */
+    private Set<CardEntry> searchFound;
+
+    /**
+     * The file just read, and the store version it was read as, until the search index is ready and the file's
+     * snapshot can be written.
+     */
+    private CardStore.Source unsnapshotted;
+    private int unsnapshottedVersion;
+
+    /**
+     * Watches {@link #cardFile} for changes by other processes, and the file as this window last read or wrote it, so
+     * that its own saves are not mistaken for them.
+     */
+    private CardFileWatcher watcher;
+    private CardStore.Source watched;
+    private boolean reloadPending;
+
+    /**
+     * The journal of the edits made since {@link #cardFile} was last read or saved, recorded against {@link #watched},
+     * or null if there are none yet, and whether the cards are still exactly those of {@link #watched} in file order,
+     * so that a new journal can start without a checkpoint.
+     */
+    private EditJournal journal;
+    private boolean matchesWatched;
+
+    /**
+     * The CardDAV collection last synchronized with and what that sync left behind, or null if there was none since
+     * the cards were opened. The state is also kept in a file, so a later session carries on from it.
+     */
+    private CardDavClient cardDav;
+    private CardDavSync.State cardDavState;
+    private boolean sortByName;
+    private final JRadioButtonMenuItem fileOrderMenuItem = new JRadioButtonMenuItem("File Order", true);
+    private final JRadioButtonMenuItem nameOrderMenuItem = new JRadioButtonMenuItem("Name");
+    private SwingWorker<?, ?> task;
+    private String taskDescription;
+
+    static String listDisplayName(final VCard card) {
         final StringBuilder b = new StringBuilder();
         final StructuredName n = card.getStructuredName();
         if (n != null) {
@@ -117,6 +186,11 @@ public class ContactCurator extends JFrame {
         openMenuItem.setMnemonic(KeyEvent.VK_O);
         openMenuItem.addActionListener(actionEvent -> openFile());
 
+        fileMenu.add(importMenuItem);
+        importMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_I, ActionEvent.META_MASK));
+        importMenuItem.setMnemonic(KeyEvent.VK_I);
+        importMenuItem.addActionListener(actionEvent -> importFiles());
+
         fileMenu.add(saveMenuItem);
         saveMenuItem
                 .setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, ActionEvent.META_MASK));
@@ -129,445 +203,460 @@ public class ContactCurator extends JFrame {
         saveAsMenuItem.setMnemonic(KeyEvent.VK_A);
         saveAsMenuItem.addActionListener(actionEvent -> saveAs());
 
+        fileMenu.addSeparator();
+        fileMenu.add(syncMenuItem);
+        syncMenuItem.setMnemonic(KeyEvent.VK_Y);
+        syncMenuItem.addActionListener(actionEvent -> syncWithCardDav());
+
+        final JMenu contactsMenu = new JMenu("Contacts");
+        menuBar.add(contactsMenu);
+        contactsMenu.setMnemonic(KeyEvent.VK_C);
+        contactsMenu.add(findDuplicatesMenuItem);
+        findDuplicatesMenuItem.setMnemonic(KeyEvent.VK_D);
+        findDuplicatesMenuItem.addActionListener(actionEvent -> findDuplicates());
+        contactsMenu.add(advancedSearchMenuItem);
+        advancedSearchMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F,
+                ActionEvent.META_MASK | ActionEvent.SHIFT_MASK));
+        advancedSearchMenuItem.setMnemonic(KeyEvent.VK_A);
+        advancedSearchMenuItem.addActionListener(actionEvent -> advancedSearch());
+        contactsMenu.add(bulkEditMenuItem);
+        bulkEditMenuItem.setMnemonic(KeyEvent.VK_B);
+        bulkEditMenuItem.addActionListener(actionEvent -> bulkEdit());
+
+        final JMenu viewMenu = new JMenu("View");
+        menuBar.add(viewMenu);
+        viewMenu.setMnemonic(KeyEvent.VK_V);
+        final ButtonGroup sortGroup = new ButtonGroup();
+        viewMenu.add(fileOrderMenuItem);
+        sortGroup.add(fileOrderMenuItem);
+        fileOrderMenuItem.setMnemonic(KeyEvent.VK_F);
+        fileOrderMenuItem.addActionListener(actionEvent -> sortBy(false));
+        viewMenu.add(nameOrderMenuItem);
+        sortGroup.add(nameOrderMenuItem);
+        nameOrderMenuItem.setMnemonic(KeyEvent.VK_N);
+        nameOrderMenuItem.addActionListener(actionEvent -> sortBy(true));
+        viewMenu.addSeparator();
+        final JMenuItem diagnosticsMenuItem = new JMenuItem("Diagnostics...");
+        viewMenu.add(diagnosticsMenuItem);
+        diagnosticsMenuItem.setMnemonic(KeyEvent.VK_D);
+        diagnosticsMenuItem.addActionListener(actionEvent -> {
+            final Map<String, CardCleaner> cleaners = new LinkedHashMap<>();
+            cleaners.put("Reading", CardCleaner.getDefault());
+            cleaners.putAll(CardBulkEditor.getCleaners());
+            new DiagnosticsDialog(this, cleaners).setVisible(true);
+        });
+
         final JSplitPane splitPane = new JSplitPane();
         getContentPane().add(splitPane, BorderLayout.CENTER);
 
-        splitPane.setLeftComponent(new JScrollPane(cardListView, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
-                JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED));
+        final JComponent listPanel = new JPanel(new BorderLayout());
+        listPanel.add(searchField, BorderLayout.NORTH);
+        listPanel.add(new JScrollPane(cardListView, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+                JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED), BorderLayout.CENTER);
+        final JComponent jumpBar = new JPanel(new GridLayout(0, 1));
+        for (final char letter : CardListModel.INDEX_LETTERS.toCharArray()) {
+            final JLabel label = new JLabel(String.valueOf(letter), SwingConstants.CENTER);
+            label.setFont(label.getFont().deriveFont(label.getFont().getSize2D() * 0.75f));
+            label.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(final MouseEvent e) {
+                    jumpTo(letter);
+                }
+            });
+            jumpBar.add(label);
+        }
+
+        listPanel.add(jumpBar, BorderLayout.EAST);
+        splitPane.setLeftComponent(listPanel);
+
+        searchField.setToolTipText("Search names, organizations, emails, phone numbers and addresses");
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+
+            @Override
+            public void insertUpdate(final DocumentEvent e) {
+                applyFilter();
+            }
+
+            @Override
+            public void removeUpdate(final DocumentEvent e) {
+                applyFilter();
+            }
+
+            @Override
+            public void changedUpdate(final DocumentEvent e) {
+                applyFilter();
+            }
+
+        });
+        searchField.registerKeyboardAction(actionEvent -> searchField.setText(""),
+                KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_FOCUSED);
         splitPane.setRightComponent(cardViewerPane);
 
+        // With a fixed cell size the list never measures rows, so it only touches the ones that are visible.
+        final VCard prototype = new VCard();
+        prototype.setFormattedName("Mmmmmmmmmmmmmmm, Mmmmmmmmmmmm");
+        cardListView.setPrototypeCellValue(new CardEntry(prototype));
         cardListView.setCellRenderer(new DefaultListCellRenderer() {
             @Override
             public Component getListCellRendererComponent(final JList jList, final Object o, final int index,
                                                           final boolean isSelected, final boolean hasFocus) {
-                final VCard card = (VCard) o;
-                final String s = listDisplayName(card);
-                return super.getListCellRendererComponent(jList, s, index, isSelected, hasFocus);
+                final CardEntry entry = (CardEntry) o;
+                final Component c = super.getListCellRendererComponent(jList, entry.getDisplayName(), index,
+                        isSelected, hasFocus);
+                setToolTipText(entry.getOrigin() == null ? null : entry.getOrigin().toString());
+                // Rows without a photo get an empty square of the same size, so that the names line up.
+                final Icon thumbnail = thumbnails.get(entry, LIST_PHOTO_SIZE, cardListView::repaint);
+                setIcon(thumbnail == null ? NO_PHOTO : thumbnail);
+                return c;
             }
         });
 
         cardListView.addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
-                final List<VCard> selected = cardListView.getSelectedValuesList();
-                final JComponent view;
-                if (selected.size() == 1) {
-                    view = makeCardViewer((selected.get(0)));
-                } else {
-                    view = new JPanel();
-                }
-
-                cardViewerPane.setViewportView(view);
+                showSelected();
                 updateGUI();
             }
         });
 
-        getContentPane().add(statusLabel, BorderLayout.SOUTH);
+        final JComponent statusBar = new JPanel(new BorderLayout());
+        statusBar.add(statusLabel, BorderLayout.CENTER);
+        progressPanel.add(progressBar);
+        progressPanel.add(cancelButton);
+        progressPanel.setVisible(false);
+        statusBar.add(progressPanel, BorderLayout.EAST);
+        cancelButton.addActionListener(actionEvent -> cancelTask());
+        getContentPane().add(statusBar, BorderLayout.SOUTH);
         updateGUI();
     }
 
-    private static JComponent makeCardViewer(final VCard card) {
-        final JComponent view = new Box(BoxLayout.PAGE_AXIS);
-        System.err.println("num names=" + card.getStructuredNames().size());
-        System.err.println("names=" + card.getStructuredNames());
-        final JComponent formattedNamesPanel = new Box(BoxLayout.PAGE_AXIS);
-        formattedNamesPanel.setBorder(BorderFactory.createTitledBorder("Formatted Names"));
-        view.add(formattedNamesPanel);
-        for (final FormattedName n : card.getFormattedNames()) {
-            final JPanel p = new JPanel();
-            p.add(new JLabel(n.getValue()));
-            p.setMaximumSize(p.getMinimumSize());
-            formattedNamesPanel.add(p);
-        }
-
-        formattedNamesPanel.setMaximumSize(formattedNamesPanel.getMinimumSize());
-
-        final JComponent structuredNamesPanel = new Box(BoxLayout.PAGE_AXIS);
-        structuredNamesPanel.setBorder(BorderFactory.createTitledBorder("Structured Names"));
-        view.add(structuredNamesPanel);
-        for (final StructuredName n : card.getStructuredNames()) {
-            final JPanel p = new JPanel();
-            structuredNamesPanel.add(p);
-
-            final List<String> prefixes = n.getPrefixes();
-            if (!prefixes.isEmpty()) {
-                final JLabel prefixesLabel = new JLabel("Prefixes:");
-                p.add(prefixesLabel);
-                prefixesLabel.setMaximumSize(prefixesLabel.getMinimumSize());
-                final StringBuilder b = new StringBuilder();
-                for (final String prefix : prefixes) {
-                    b.append(prefix);
-                    b.append(" ");
-                }
-
-                final JLabel l = new JLabel(b.toString().trim());
-                prefixesLabel.setLabelFor(l);
-                p.add(l);
-            }
-
-            final JLabel givenLabel = new JLabel("Given:");
-            givenLabel.setMaximumSize(givenLabel.getMinimumSize());
-            p.add(givenLabel);
-            final JLabel given = new JLabel(n.getGiven());
-            givenLabel.setLabelFor(given);
-            p.add(given);
-
-            final List<String> additionalNames = n.getAdditionalNames();
-            if (!additionalNames.isEmpty()) {
-                final JLabel additionalNamesLabel = new JLabel("Additional Names:");
-                additionalNamesLabel.setMaximumSize(additionalNamesLabel.getMinimumSize());
-                p.add(additionalNamesLabel);
-                final StringBuilder b = new StringBuilder();
-                for (final String a : additionalNames) {
-                    b.append(a);
-                    b.append(" ");
-                }
+    private void updateGUI() {
+        updateEnabled();
+        updateStatus();
+    }
 
-                final JLabel l = new JLabel(b.toString().trim());
-                l.setMaximumSize(l.getMinimumSize());
-                additionalNamesLabel.setLabelFor(l);
-                p.add(l);
-            }
-
-            final JLabel familyLabel = new JLabel("Family:");
-            p.add(familyLabel);
-            final JLabel family = new JLabel(n.getFamily());
-            familyLabel.setLabelFor(family);
-            p.add(family);
-
-            final List<String> suffixes = n.getSuffixes();
-            if (!suffixes.isEmpty()) {
-                final JLabel suffixesLabel = new JLabel("Suffixes:");
-                suffixesLabel.setMaximumSize(suffixesLabel.getMinimumSize());
-                p.add(suffixesLabel);
-                final StringBuilder b = new StringBuilder();
-                for (final String a : suffixes) {
-                    b.append(a);
-                    b.append(" ");
-                }
+    private void updateEnabled() {
+        importMenuItem.setEnabled(task == null);
+        saveMenuItem.setEnabled(task == null && !cards.isEmpty() && cardFile != null);
+        saveAsMenuItem.setEnabled(task == null && !cards.isEmpty());
+        syncMenuItem.setEnabled(task == null);
+        findDuplicatesMenuItem.setEnabled(task == null && cards.size() > 1);
+        advancedSearchMenuItem.setEnabled(task == null && !cards.isEmpty());
+        bulkEditMenuItem.setEnabled(task == null && cardListModel.getSize() > 0);
+        searchField.setEnabled(searchIndex != null);
+    }
 
-                final JLabel l = new JLabel(b.toString().trim());
-                l.setMaximumSize(l.getMinimumSize());
-                suffixesLabel.setLabelFor(l);
-                p.add(l);
-            }
+    private void updateStatus() {
+        final StringBuilder b = new StringBuilder();
+        if (task != null) {
+            b.append(taskDescription + ": ");
+        }
 
+        if (filter != null) {
+            b.append(cardListModel.getSize() + " of ");
         }
 
-        structuredNamesPanel.setMaximumSize(structuredNamesPanel.getMinimumSize());
+        if (cards.isEmpty()) {
+            b.append("no contacts");
+        } else {
+            b.append(cards.size() + " contact");
+            if (cards.size() > 1) {
+                b.append("s");
+            }
+        }
 
-        final List<Title> titles = card.getTitles();
-        if (!titles.isEmpty()) {
-            final JComponent titlesPanel = new Box(BoxLayout.PAGE_AXIS);
-            titlesPanel.setBorder(BorderFactory.createTitledBorder("Titles"));
-            view.add(titlesPanel);
+        b.append(" ");
+        b.append(cardListView.getSelectedIndices().length);
+        b.append(" selected");
 
-            for (final Title title : titles) {
-                System.err.println("title=" + title);
-                final JPanel p = new JPanel();
-                final JLabel l = new JLabel("Title:");
-                l.setMaximumSize(l.getMinimumSize());
-                final StringBuilder text = new StringBuilder();
-                final String type = title.getType();
-                if (type != null) {
-                    text.append('(' + type + ") ");
-                }
+        statusLabel.setText(b.toString());
+    }
 
-                text.append(title.getValue());
-                final JLabel t = new JLabel(text.toString());
-                t.setMaximumSize(t.getMinimumSize());
-                l.setLabelFor(t);
-                p.add(t);
-                p.setMaximumSize(p.getMinimumSize());
-                titlesPanel.add(p);
-            }
-
-            titlesPanel.setMaximumSize(titlesPanel.getMinimumSize());
-        }
-
-        final List<Role> roles = card.getRoles();
-        if (!roles.isEmpty()) {
-            final JComponent rolesPanel = new Box(BoxLayout.PAGE_AXIS);
-            rolesPanel.setBorder(BorderFactory.createTitledBorder("Roles"));
-            view.add(rolesPanel);
-
-            for (final Role role : roles) {
-                System.err.println("role=" + role);
-                final JPanel p = new JPanel();
-                final JLabel l = new JLabel("Role:");
-                l.setMaximumSize(l.getMinimumSize());
-                final StringBuilder text = new StringBuilder();
-                final String type = role.getType();
-                if (type != null) {
-                    text.append('(' + type + ") ");
-                }
+    /**
+     * Saves the cards in the background, replacing the file only once the new contents are safely on disk. Unchanged
+     * cards are copied from the file they were read from. When the book's own file is saved, every card written in
+     * its own version has its place in the new file as its source afterwards, so the next save copies everything but
+     * what is edited in between.
+     */
+    private void save(final File file, final VCardVersion version) {
+        final List<CardEntry> snapshot = new ArrayList<>(cards.asList());
+        final int snapshotVersion = cards.version();
+        final Path source = cards.unchangedSource();
+        startTask(new SwingWorker<long[], Void>() {
 
-                text.append(role.getValue());
-                final JLabel t = new JLabel(text.toString());
-                t.setMaximumSize(t.getMinimumSize());
-                l.setLabelFor(t);
-                p.add(t);
-                p.setMaximumSize(p.getMinimumSize());
-                rolesPanel.add(p);
-            }
-
-            rolesPanel.setMaximumSize(rolesPanel.getMinimumSize());
-        }
-
-        final List<Organization> organizations = card.getOrganizations();
-        if (!organizations.isEmpty()) {
-            final JComponent sectionPanel = new Box(BoxLayout.PAGE_AXIS);
-            sectionPanel.setBorder(BorderFactory.createTitledBorder("Organizations"));
-            view.add(sectionPanel);
-
-            for (final Organization o : organizations) {
-                System.err.println("o=" + o);
-                final JPanel p = new JPanel();
-                final JLabel l = new JLabel("Organization:");
-                l.setMaximumSize(l.getMinimumSize());
-                final StringBuilder text = new StringBuilder();
-                final String type = o.getType();
-                if (type != null) {
-                    text.append('(' + type + ") ");
-                }
+            @Override
+            protected long[] doInBackground() throws IOException {
+                final Metrics.Timer timer = Metrics.start(Metrics.Phase.SAVE);
+                final long[] offsets = CardFileWriter.write(file.toPath(), snapshot, version, source,
+                        this::setProgress, this::isCancelled);
+                timer.stop(snapshot.size(), offsets[snapshot.size()]);
+                return offsets;
+            }
 
-                for (final String value : o.getValues()) {
-                    text.append(value);
-                    text.append(" ");
-                }
+            @Override
+            protected void done() {
+                taskFinished();
+                try {
+                    final long[] offsets = get();
+                    // A copy saved elsewhere leaves the cards backed by their own file.
+                    boolean converted = false;
+                    if (cards.version() == snapshotVersion && file.equals(cardFile)) {
+                        // A book large enough to have been mapped when it was opened, or with photos, stays mapped,
+                        // now to the new file, as long as its cards can be parsed again in the encoding they were
+                        // written in.
+                        final MappedCardFile mapped = (offsets[snapshot.size()] >= CardLoader.LAZY_BYTES
+                                || snapshot.stream().anyMatch(CardEntry::hasPhoto))
+                                && (version != VCardVersion.V4_0
+                                || Charset.defaultCharset().equals(StandardCharsets.UTF_8))
+                                ? CardLoader.mapQuietly(file.toPath()) : null;
+                        for (int i = 0; i < snapshot.size(); i++) {
+                            final CardEntry entry = snapshot.get(i);
+                            if (entry.getVersion() != version) {
+                                // The file now holds the card converted to another version, which may have lost
+                                // something, so the card is held as it is and saved again from memory.
+                                entry.detachSource();
+                                converted = true;
+                                continue;
+                            }
+
+                            // Copied cards keep the hash of their text; serialized ones get the hash of their bytes.
+                            final byte[] encoded = entry.getEncoded(version);
+                            if (encoded != null) {
+                                entry.setTextHash(CardSpans.hash(encoded));
+                            }
+
+                            entry.setSource(offsets[i], offsets[i + 1], version, CardLoader.mappingFor(entry, mapped));
+                            entry.unload();
+                        }
+
+                        try {
+                            cards.setSource(CardStore.Source.of(file.toPath()));
+                        } catch (final IOException e) {
+                            cards.setSource(null);
+                        }
+                    }
 
-                final JLabel t = new JLabel(text.toString().trim());
-                t.setMaximumSize(t.getMinimumSize());
-                l.setLabelFor(t);
-                p.add(t);
-                p.setMaximumSize(p.getMinimumSize());
-                sectionPanel.add(p);
-            }
-
-            sectionPanel.setMaximumSize(sectionPanel.getMinimumSize());
-        }
-
-        final List<Email> emails = card.getEmails();
-        if (!emails.isEmpty()) {
-            final JComponent sectionPanel = new Box(BoxLayout.PAGE_AXIS);
-            sectionPanel.setBorder(BorderFactory.createTitledBorder("Emails"));
-            view.add(sectionPanel);
-
-            for (final Email e : emails) {
-                System.err.println("e=" + e);
-                final JPanel p = new JPanel();
-                final JLabel l = new JLabel("Email:");
-                l.setMaximumSize(l.getMinimumSize());
-                final StringBuilder text = new StringBuilder();
-                final List<EmailType> types = e.getTypes();
-                if (types != null) {
-                    for (final EmailType type : types) {
-                        text.append('(' + type.getValue() + ") ");
+                    if (file.equals(cardFile)) {
+                        try {
+                            watched = CardStore.Source.of(file.toPath());
+                        } catch (final IOException e) {
+                            watched = null;
+                        }
+
+                        if (cards.version() == snapshotVersion) {
+                            // The cards that edits replaced or removed are no longer in the file.
+                            cards.setSuperseded(List.of());
+                        }
+
+                        if (cards.version() == snapshotVersion && !converted) {
+                            // The journal's edits are all in the file now.
+                            if (journal != null) {
+                                journal.delete();
+                                journal = null;
+                            }
+
+                            matchesWatched = true;
+                        } else {
+                            rebaseJournal();
+                        }
                     }
+                } catch (final CancellationException e) {
+                    // The file is left as it was.
+                } catch (final InterruptedException | ExecutionException e) {
+                    final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    System.err.println(cause);
+                    cause.printStackTrace();
+                    JOptionPane.showMessageDialog(ContactCurator.this,
+                            "The file could not be saved:\n" + cause.getLocalizedMessage(),
+                            "File Error", JOptionPane.ERROR_MESSAGE);
                 }
 
-                text.append(e.getValue());
-
-                final JLabel t = new JLabel(text.toString().trim());
-                t.setMaximumSize(t.getMinimumSize());
-                l.setLabelFor(t);
-                p.add(t);
-                p.setMaximumSize(p.getMinimumSize());
-                sectionPanel.add(p);
+                updateGUI();
             }
 
-            sectionPanel.setMaximumSize(sectionPanel.getMinimumSize());
-        }
-
-        final List<Telephone> phones = card.getTelephoneNumbers();
-        if (!phones.isEmpty()) {
-            final JComponent sectionPanel = new Box(BoxLayout.PAGE_AXIS);
-            sectionPanel.setBorder(BorderFactory.createTitledBorder("Telephone Numbers"));
-            view.add(sectionPanel);
+        }, "saving " + file.getName());
+    }
 
-            for (final Telephone phone : phones) {
-                System.err.println("phone=" + phone);
-                final JPanel p = new JPanel();
-                final JLabel l = new JLabel("Phone:");
-                l.setMaximumSize(l.getMinimumSize());
-                final StringBuilder text = new StringBuilder();
-                final List<TelephoneType> types = phone.getTypes();
-                if (types != null) {
-                    for (final TelephoneType type : types) {
-                        text.append('(' + type.getValue() + ") ");
-                    }
-                }
+    private void save() {
+        save(cardFile, cards.asList().stream().map(CardEntry::getVersion).max(Comparator.naturalOrder()).get());
+    }
 
-                text.append(phone.getText());
+    /**
+     * Writes the cards to a CSV or JSON Lines file in the background. The book itself is still backed by its vCard
+     * file, so the exported file is not tracked and the cards are not marked as saved.
+     */
+    private void export(final File file, final ContactFormat format) {
+        final List<CardEntry> snapshot = new ArrayList<>(cards.asList());
+        startTask(new SwingWorker<Integer, Void>() {
 
-                final JLabel t = new JLabel(text.toString().trim());
-                t.setMaximumSize(t.getMinimumSize());
-                l.setLabelFor(t);
-                p.add(t);
-                p.setMaximumSize(p.getMinimumSize());
-                sectionPanel.add(p);
+            @Override
+            protected Integer doInBackground() throws IOException {
+                return ContactTable.write(file.toPath(), snapshot.iterator(), CardEntry::getCard, format,
+                        written -> setProgress(written * 100 / snapshot.size()), this::isCancelled);
             }
 
-            sectionPanel.setMaximumSize(sectionPanel.getMinimumSize());
-        }
+            @Override
+            protected void done() {
+                taskFinished();
+                try {
+                    get();
+                } catch (final CancellationException e) {
+                    // The file is left as it was.
+                } catch (final InterruptedException | ExecutionException e) {
+                    final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    System.err.println(cause);
+                    cause.printStackTrace();
+                    JOptionPane.showMessageDialog(ContactCurator.this,
+                            "The file could not be exported:\n" + cause.getLocalizedMessage(),
+                            "File Error", JOptionPane.ERROR_MESSAGE);
+                }
 
-        final List<Url> urls = card.getUrls();
-        if (!urls.isEmpty()) {
-            final JComponent sectionPanel = new Box(BoxLayout.PAGE_AXIS);
-            sectionPanel.setBorder(BorderFactory.createTitledBorder("URLs"));
-            view.add(sectionPanel);
+                updateGUI();
+            }
 
-            for (final Url u : urls) {
-                System.err.println("u=" + u);
-                final JPanel p = new JPanel();
-                final JLabel l = new JLabel("URL:");
-                l.setMaximumSize(l.getMinimumSize());
-                final StringBuilder text = new StringBuilder();
-                final String type = u.getType();
-                if (type != null) {
-                    text.append('(' + type + ") ");
-                }
+        }, "exporting " + file.getName());
+    }
 
-                text.append(u.getValue());
+    /**
+     * Asks for a CardDAV address book and synchronizes the cards with it. The password can be left empty to sync
+     * again with the collection and user of the last sync.
+     */
+    private void syncWithCardDav() {
+        final JTextField urlField = new JTextField(prefs.get("cardDavUrl", ""), 30);
+        final JTextField userField = new JTextField(prefs.get("cardDavUser", ""), 30);
+        final JPasswordField passwordField = new JPasswordField(30);
+        final JComponent panel = new JPanel(new GridLayout(0, 1));
+        panel.add(new JLabel("Address book URL"));
+        panel.add(urlField);
+        panel.add(new JLabel("User name"));
+        panel.add(userField);
+        panel.add(new JLabel("Password"));
+        panel.add(passwordField);
+        if (JOptionPane.showConfirmDialog(this, panel, "Sync with CardDAV", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
 
-                final JLabel t = new JLabel(text.toString().trim());
-                t.setMaximumSize(t.getMinimumSize());
-                l.setLabelFor(t);
-                p.add(t);
-                p.setMaximumSize(p.getMinimumSize());
-                sectionPanel.add(p);
+        final URI url;
+        try {
+            url = new URI(urlField.getText().trim());
+            if (!"http".equalsIgnoreCase(url.getScheme()) && !"https".equalsIgnoreCase(url.getScheme())) {
+                throw new URISyntaxException(url.toString(), "not an http or https URL");
             }
+        } catch (final URISyntaxException e) {
+            JOptionPane.showMessageDialog(this, "The address book URL is not valid:\n" + e.getLocalizedMessage(),
+                    "Sync Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
 
-            sectionPanel.setMaximumSize(sectionPanel.getMinimumSize());
+        final String user = userField.getText().trim();
+        prefs.put("cardDavUrl", url.toString());
+        prefs.put("cardDavUser", user);
+        final CardDavClient client = new CardDavClient(url, user, passwordField.getPassword());
+        if (cardDav == null || !cardDav.getCollection().equals(client.getCollection())
+                || !cardDav.getUser().equals(user) || passwordField.getPassword().length > 0) {
+            cardDav = client;
         }
 
-        final List<Address> addresses = card.getAddresses();
-        if (!addresses.isEmpty()) {
-            final JComponent sectionPanel = new Box(BoxLayout.PAGE_AXIS);
-            sectionPanel.setBorder(BorderFactory.createTitledBorder("Addresses"));
-            view.add(sectionPanel);
+        if (cardDavState == null || !cardDavState.getCollection().equals(cardDav.getCollection())) {
+            cardDavState = CardDavSync.State.load(cardDavStateFile(cardDav), cardDav.getCollection());
+        }
 
-            for (final Address a : addresses) {
-                System.err.println("a=" + a);
-                final JPanel p = new JPanel();
-                final JLabel l = new JLabel("URL:");
-                l.setMaximumSize(l.getMinimumSize());
-                final StringBuilder text = new StringBuilder();
-                final List<AddressType> types = a.getTypes();
-                if (types != null) {
-                    for (final AddressType type : types) {
-                        text.append('(' + type.getValue() + ") ");
-                    }
-                }
+        sync(cardDav, cardDavState);
+    }
 
-                text.append(a.getStreetAddress());
-
-                final JLabel t = new JLabel(text.toString().trim());
-                t.setMaximumSize(t.getMinimumSize());
-                l.setLabelFor(t);
-                p.add(t);
-                p.setMaximumSize(p.getMinimumSize());
-                sectionPanel.add(p);
-            }
-
-            sectionPanel.setMaximumSize(sectionPanel.getMinimumSize());
-        }
-
-        final List<Birthday> birthdays = card.getBirthdays();
-        if (!birthdays.isEmpty()) {
-            final JComponent sectionPanel = new Box(BoxLayout.PAGE_AXIS);
-            sectionPanel.setBorder(BorderFactory.createTitledBorder("Birthdays"));
-            view.add(sectionPanel);
-
-            for (final Birthday b : birthdays) {
-                System.err.println("b=" + b);
-                final JPanel p = new JPanel();
-                final JLabel l = new JLabel("Birthday:");
-                l.setMaximumSize(l.getMinimumSize());
-                final StringBuilder text = new StringBuilder();
-                text.append(DateFormatSymbols.getInstance().getMonths()[b.getDate().getMonth()]);
-                text.append(" ");
-                text.append(b.getDate().getDate());
-                final String omitYearValue = b.getParameter("X-APPLE-OMIT-YEAR");
-                final Calendar c = Calendar.getInstance();
-                c.setTime(b.getDate());
-                final boolean omitYear = omitYearValue != null;
-                System.err.println("omitYear=" + omitYear);
-                if (!omitYear) {
-                    text.append(", " + c.get(Calendar.YEAR));
-                }
+    /**
+     * Synchronizes the cards with a CardDAV collection in the background, applying the server's changes as one edit
+     * once the local ones are written back.
+     */
+    private void sync(final CardDavClient client, final CardDavSync.State state) {
+        final int snapshotVersion = cards.version();
+        startTask(new CardDavSync(client, state, cards.asList()) {
 
-                final JLabel t = new JLabel(text.toString().trim());
-                t.setMaximumSize(t.getMinimumSize());
-                l.setLabelFor(t);
-                p.add(t);
-                p.setMaximumSize(p.getMinimumSize());
-                sectionPanel.add(p);
-            }
-
-            sectionPanel.setMaximumSize(sectionPanel.getMinimumSize());
-        }
+            @Override
+            protected void done() {
+                taskFinished();
+                // Unless the edit is applied, the next sync carries on from the state this one started from, matching
+                // its members to the cards by UID and text, so that what this one wrote is recognized.
+                cardDavState = state.detached();
+                try {
+                    final Result result = get();
+                    final boolean applied = cards.version() == snapshotVersion;
+                    if (applied) {
+                        applyEdit(result.getEdit());
+                        journal(result.getEdit());
+                        cardDavState = result.getState();
+                        saveCardDavState(cardDavState, cardDavStateFile(client));
+                    }
 
-        return view;
-    }
+                    final StringBuilder message = new StringBuilder(applied ? String.format(
+                            "%d cards fetched, %d removed, %d sent and %d deleted on the server.",
+                            result.getFetched(), result.getRemoved(), result.getPushed(), result.getDeleted())
+                            : String.format("%d cards were sent and %d deleted on the server, but the cards changed "
+                                    + "here during the sync, so the %d cards fetched and %d removed were not "
+                                    + "applied.\nThey will be fetched again on the next sync.", result.getPushed(),
+                            result.getDeleted(), result.getFetched(), result.getRemoved()));
+                    if (applied && result.getConflicts() > 0) {
+                        message.append("\n").append(result.getConflicts()).append(" cards were changed both here and "
+                                + "on the server; the server's versions were kept and these versions were added as "
+                                + "new cards.");
+                    }
 
-    private void updateGUI() {
-        updateEnabled();
-        updateStatus();
-    }
+                    result.getFailures().entrySet().stream().limit(20).forEach(failure -> message.append('\n')
+                            .append(failure.getKey()).append(": ").append(failure.getValue().getLocalizedMessage()));
+                    if (result.getFailures().size() > 20) {
+                        message.append("\n...and ").append(result.getFailures().size() - 20).append(" more");
+                    }
 
-    private void updateEnabled() {
-        saveMenuItem.setEnabled(!cards.isEmpty() && cardFile != null);
-        saveAsMenuItem.setEnabled(!cards.isEmpty());
-    }
+                    JOptionPane.showMessageDialog(ContactCurator.this, message, "Sync with CardDAV",
+                            applied && result.getFailures().isEmpty() ? JOptionPane.INFORMATION_MESSAGE
+                                    : JOptionPane.WARNING_MESSAGE);
+                } catch (final CancellationException e) {
+                    // Nothing fetched is applied.
+                } catch (final InterruptedException | ExecutionException e) {
+                    reportError(ContactCurator.this, "The cards could not be synchronized",
+                            e instanceof ExecutionException ? e.getCause() : e);
+                }
 
-    private void updateStatus() {
-        final StringBuilder b = new StringBuilder();
-        if (cards.isEmpty()) {
-            b.append("no contacts");
-        } else {
-            b.append(cards.size() + " contact");
-            if (cards.size() > 1) {
-                b.append("s");
+                updateGUI();
             }
-        }
-
-        b.append(" ");
-        b.append(cardListView.getSelectedIndices().length);
-        b.append(" selected");
 
-        statusLabel.setText(b.toString());
+        }, "syncing with " + client.getCollection().getHost());
     }
 
-    private void save(final File file, final VCardVersion version) throws IOException {
-        try {
-            getContentPane().setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+    /**
+     * Accepts directories and files in any of some formats.
+     */
+    private static final class FormatFilter extends FileFilter {
 
-            final VCardWriter writer = new VCardWriter(file, version);
-            for (final VCard c : cards) {
-                writer.write(c);
-            }
+        private final List<ContactFormat> formats;
 
-            writer.flush();
-            writer.close();
-        } finally {
-            getContentPane().setCursor(Cursor.getDefaultCursor());
+        private FormatFilter(final ContactFormat... formats) {
+            this.formats = List.of(formats);
         }
-    }
 
-    private void save() {
-        try {
-            save(cardFile, VCardUtil.highestVersion(cards));
-        } catch (final Exception e) {
-            System.err.println(e);
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this,
-                    "The file could not be saved:\n" + e.getLocalizedMessage(),
-                    "File Error", JOptionPane.ERROR_MESSAGE);
+        @Override
+        public boolean accept(final File file) {
+            return file.isDirectory() || formats.contains(ContactFormat.of(file.toPath()));
+        }
+
+        @Override
+        public String getDescription() {
+            return formats.stream().map(format -> format + " (*" + format.getExtension() + ")")
+                    .collect(Collectors.joining(", "));
         }
+
     }
 
     private void saveAs() {
         final JFileChooser chooser = new JFileChooser();
+        for (final ContactFormat format : ContactFormat.values()) {
+            final FormatFilter filter = new FormatFilter(format);
+            chooser.addChoosableFileFilter(filter);
+            if (format == ContactFormat.VCARD) {
+                chooser.setFileFilter(filter);
+            }
+        }
+
         final JComponent versionAccessory = new JPanel();
         final JLabel versionLabel = new JLabel("vCard version");
         versionAccessory.add(versionLabel);
@@ -586,17 +675,20 @@ public class ContactCurator extends JFrame {
 
         final int returnValue = chooser.showSaveDialog(this);
         if (returnValue == JFileChooser.APPROVE_OPTION) {
-            try {
-                final File selectedFile = chooser.getSelectedFile();
-                prefs.put("recentDirectory", selectedFile.getParent());
-                System.err.println("saving to " + selectedFile);
+            File selectedFile = chooser.getSelectedFile();
+            prefs.put("recentDirectory", selectedFile.getParent());
+            ContactFormat format = ContactFormat.of(selectedFile.toPath());
+            if (format == null) {
+                // A name with no known extension gets the one of the chosen filter.
+                format = chooser.getFileFilter() instanceof FormatFilter
+                        ? ((FormatFilter) chooser.getFileFilter()).formats.get(0) : ContactFormat.VCARD;
+                selectedFile = format.withExtension(selectedFile.toPath()).toFile();
+            }
+
+            if (format == ContactFormat.VCARD) {
                 save(selectedFile, versionPicker.getItemAt(versionPicker.getSelectedIndex()));
-            } catch (final Exception e) {
-                System.err.println(e);
-                e.printStackTrace();
-                JOptionPane.showMessageDialog(this,
-                        "The file could not be saved:\n" + e.getLocalizedMessage(),
-                        "File Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                export(selectedFile, format);
             }
         } else if (returnValue == JFileChooser.ERROR_OPTION) {
             JOptionPane.showMessageDialog(this,
@@ -605,7 +697,10 @@ public class ContactCurator extends JFrame {
         }
     }
 
-    private void openFile() {
+    /**
+     * @return a chooser for opening files in some formats that starts in the most recently used directory
+     */
+    private JFileChooser cardFileChooser(final ContactFormat... formats) {
         final JFileChooser chooser = new JFileChooser();
         final String recentDirectory = prefs.get("recentDirectory", null);
         if (recentDirectory != null) {
@@ -616,42 +711,23 @@ public class ContactCurator extends JFrame {
         }
 
         chooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
-        chooser.setFileFilter(new FileFilter() {
-
-            @Override
-            public boolean accept(final File file) {
-                return file.getName().toLowerCase().endsWith(".vcf");
-            }
-
-            @Override
-            public String getDescription() {
-                return "VCF (vCard) files";
-            }
+        chooser.setFileFilter(new FormatFilter(formats));
+        return chooser;
+    }
 
-        });
+    private void openFile() {
+        final JFileChooser chooser = cardFileChooser(ContactFormat.VCARD);
         final int returnValue = chooser.showOpenDialog(this);
         if (returnValue == JFileChooser.APPROVE_OPTION) {
             try {
                 final File selectedFile = chooser.getSelectedFile();
                 prefs.put("recentDirectory", selectedFile.getParent());
-                final List<VCard> newCards = open(selectedFile);
-                if (newCards.isEmpty()) {
-                    JOptionPane.showMessageDialog(this,
-                            "The file had no vCards in it.",
-                            "File Error", JOptionPane.ERROR_MESSAGE);
+                if (cards.isEmpty() && task == null) {
+                    load(selectedFile);
                 } else {
-                    if (cards.isEmpty()) {
-                        cards.addAll(newCards);
-                        cardListModel.fireContentsChanged();
-                        cardFile = selectedFile;
-                        updateGUI();
-                    } else {
-                        final ContactCurator newWindow = new ContactCurator();
-                        newWindow.cards.addAll(newCards);
-                        newWindow.cardFile = selectedFile;
-                        newWindow.updateGUI();
-                        newWindow.setVisible(true);
-                    }
+                    final ContactCurator newWindow = new ContactCurator();
+                    newWindow.setVisible(true);
+                    newWindow.load(selectedFile);
                 }
             } catch (final Exception e) {
                 System.err.println(e);
@@ -667,25 +743,1020 @@ public class ContactCurator extends JFrame {
         }
     }
 
-    private List<VCard> open(final File file) throws IOException {
-        System.err.println("opening " + file);
+    /**
+     * Lets the user choose any number of files and directories and imports every card in them into this window.
+     */
+    private void importFiles() {
+        final JFileChooser chooser = cardFileChooser(ContactFormat.values());
+        chooser.setDialogTitle("Import");
+        chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        chooser.setMultiSelectionEnabled(true);
+        final int returnValue = chooser.showOpenDialog(this);
+        if (returnValue == JFileChooser.APPROVE_OPTION) {
+            final File[] selected = chooser.getSelectedFiles();
+            if (selected.length > 0) {
+                prefs.put("recentDirectory", selected[0].getAbsoluteFile().getParent());
+                final List<Path> inputs = new ArrayList<>(selected.length);
+                for (final File file : selected) {
+                    inputs.add(file.toPath());
+                }
+
+                importCards(inputs);
+            }
+        } else if (returnValue == JFileChooser.ERROR_OPTION) {
+            JOptionPane.showMessageDialog(this,
+                    "There was an error importing the files.",
+                    "File Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Imports the cards of many files into this window in the background. Files that finish importing before the
+     * import is cancelled or fails are kept.
+     */
+    private void importCards(final List<Path> inputs) {
+        final int sizeBefore = cards.size();
+        startTask(new CardImporter(inputs) {
+
+            @Override
+            protected void process(final List<List<CardEntry>> batches) {
+                if (isCancelled()) {
+                    return;
+                }
+
+                for (final List<CardEntry> batch : batches) {
+                    cards.addAll(batch);
+                    cardListModel.entriesAppended(batch.size());
+                    journal(EditJournal.Edit.adding(batch));
+                }
+
+                updateGUI();
+            }
+
+            @Override
+            protected void done() {
+                taskFinished();
+                try {
+                    get();
+                    if (!getFailures().isEmpty()) {
+                        final StringBuilder message = new StringBuilder("Some files could not be imported:");
+                        getFailures().entrySet().stream().limit(20).forEach(failure -> message.append('\n')
+                                .append(failure.getKey().getFileName()).append(": ")
+                                .append(failure.getValue().getLocalizedMessage()));
+                        if (getFailures().size() > 20) {
+                            message.append("\n...and ").append(getFailures().size() - 20).append(" more");
+                        }
+
+                        JOptionPane.showMessageDialog(ContactCurator.this, message, "File Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    }
+                } catch (final CancellationException e) {
+                    // Whatever was imported before cancelling is kept.
+                } catch (final InterruptedException | ExecutionException e) {
+                    reportError(ContactCurator.this, "The files could not be imported",
+                            e instanceof ExecutionException ? e.getCause() : e);
+                }
+
+                if (cards.size() != sizeBefore) {
+                    if (cardListModel.isViewed()) {
+                        refreshView();
+                    }
+
+                    buildSearchIndex();
+                }
+
+                updateGUI();
+            }
+
+        }, "importing " + inputs.size() + (inputs.size() == 1 ? " item" : " items"));
+    }
+
+    private void load(final File file) {
+        cardFile = file;
+        startTask(new CardLoader(file) {
+
+            @Override
+            protected void process(final List<List<CardEntry>> batches) {
+                if (isCancelled()) {
+                    return;
+                }
+
+                for (final List<CardEntry> batch : batches) {
+                    cards.addAll(batch);
+                    cardListModel.entriesAppended(batch.size());
+                }
+
+                updateGUI();
+            }
+
+            @Override
+            protected void done() {
+                taskFinished();
+                try {
+                    get();
+                    if (cards.isEmpty()) {
+                        cardFile = null;
+                        JOptionPane.showMessageDialog(ContactCurator.this,
+                                "The file had no vCards in it.",
+                                "File Error", JOptionPane.ERROR_MESSAGE);
+                    } else {
+                        cards.setSource(getSource());
+                        if (cardListModel.isViewed()) {
+                            refreshView();
+                        }
+
+                        if (getSearchTexts() == null && getSource() != null) {
+                            unsnapshotted = getSource();
+                            unsnapshottedVersion = cards.version();
+                        }
+
+                        watch(getSource());
+                        matchesWatched = true;
+                        final EditJournal.Recovery recovery = getRecovery();
+                        if (recovery != null) {
+                            recover(recovery);
+                        }
+
+                        // Search texts from a snapshot only fit the cards as they were read.
+                        buildSearchIndex(recovery == null ? getSearchTexts() : null);
+                    }
+                } catch (final CancellationException e) {
+                    discardCards();
+                } catch (final InterruptedException | ExecutionException e) {
+                    final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    System.err.println(cause);
+                    cause.printStackTrace();
+                    discardCards();
+                    JOptionPane.showMessageDialog(ContactCurator.this,
+                            "The file could not be opened:\n" + cause.getLocalizedMessage(),
+                            "File Error", JOptionPane.ERROR_MESSAGE);
+                }
+
+                updateGUI();
+            }
+
+        }, "loading " + file.getName());
+    }
+
+    /**
+     * Runs a background task, showing its progress in the status bar and letting the user cancel it. Only one task
+     * runs at a time; its {@code done()} must call {@link #taskFinished()}.
+     */
+    private void startTask(final SwingWorker<?, ?> worker, final String description) {
+        task = worker;
+        taskDescription = description;
+        worker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                progressBar.setValue((Integer) e.getNewValue());
+            }
+        });
+        progressBar.setValue(0);
+        progressPanel.setVisible(true);
+        updateGUI();
+        worker.execute();
+    }
+
+    private void taskFinished() {
+        task = null;
+        taskDescription = null;
+        progressPanel.setVisible(false);
+        if (reloadPending) {
+            reloadPending = false;
+            SwingUtilities.invokeLater(this::cardFileChanged);
+        }
+    }
+
+    /**
+     * Starts watching {@link #cardFile} for changes made by other processes.
+     *
+     * @param source the file as it was read, or null to take it as it is now
+     */
+    private void watch(final CardStore.Source source) {
+        stopWatching();
         try {
-            getContentPane().setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-            final VCardReader r = new VCardReader(file);
-            final List<VCard> cards = r.readAll();
-            System.err.println("cards=" + cards);
-            final List<VCard> cleaned = new ArrayList<>();
-            for (final VCard card : cards) {
-                cleaned.add(VCardUtil.cleanup(card));
+            watched = source != null ? source : CardStore.Source.of(cardFile.toPath());
+            watcher = new CardFileWatcher(cardFile.toPath(), this::cardFileChanged);
+        } catch (final IOException e) {
+            // Changes will just go unnoticed.
+            System.err.println(e);
+        }
+    }
+
+    private void stopWatching() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (final IOException e) {
+                System.err.println(e);
             }
 
-            return cleaned;
-        } finally {
-            getContentPane().setCursor(Cursor.getDefaultCursor());
+            watcher = null;
         }
+
+        watched = null;
     }
 
+    /**
+     * Reloads {@link #cardFile} if it is not as this window last read or wrote it, once no other task is running.
+     */
+    private void cardFileChanged() {
+        if (watcher == null || (watched != null && watched.isUnchanged())) {
+            return;
+        }
+
+        if (task != null) {
+            reloadPending = true;
+            return;
+        }
+
+        final List<CardEntry> snapshot = new ArrayList<>(cards.asList());
+        final int snapshotVersion = cards.version();
+        startTask(new CardReloader(cardFile.toPath(), snapshot, cards.getSuperseded()) {
+
+            @Override
+            protected void done() {
+                taskFinished();
+                try {
+                    final Diff diff = get();
+                    if (cards.version() != snapshotVersion) {
+                        // The cards were edited while the file was read; read it again against the edits.
+                        SwingUtilities.invokeLater(ContactCurator.this::cardFileChanged);
+                    } else {
+                        applyReload(diff);
+                    }
+                } catch (final CancellationException e) {
+                    // The cards stay as they were until the file changes again.
+                } catch (final InterruptedException | ExecutionException e) {
+                    // The file may be half written; the next change will be tried again.
+                    final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    System.err.println(cause);
+                    cause.printStackTrace();
+                }
+
+                updateGUI();
+            }
+
+        }, "reloading " + cardFile.getName());
+    }
+
+    /**
+     * Applies the changes from a reload to the store, the list, the search index and the viewer, touching only the
+     * cards that were added, removed or changed.
+     */
+    private void applyReload(final CardReloader.Diff diff) {
+        watched = diff.getSource();
+        cards.setSource(diff.getSource());
+        for (final long[] rebased : diff.getRebased()) {
+            CardLoader.setSource(cards.get((int) rebased[0]), rebased[1], rebased[2], diff.getMapped());
+        }
+
+        cards.setSuperseded(diff.getSuperseded());
+        applyChanges(diff.getEdit());
+        rebaseJournal();
+    }
+
+    /**
+     * Applies an edit that is not in the file yet, as {@link #applyChanges} does, first recording the file's cards
+     * that it replaces or removes, so that a reload before the next save does not bring them back.
+     */
+    private void applyEdit(final EditJournal.Edit<CardEntry> edit) {
+        edit.getChangedPositions().forEach(cards::supersede);
+        Arrays.stream(edit.getRemoved()).forEach(cards::supersede);
+        applyChanges(edit);
+    }
+
+    /**
+     * Applies changes to the store, the list, the search index and the viewer, touching only the cards that were
+     * added, removed or changed. The changed cards are reported to the list as one event per run of rows, unless a
+     * name sorted or filtered list has to be worked out again for them.
+     */
+    private void applyChanges(final EditJournal.Edit<CardEntry> edit) {
+        if (edit.isEmpty()) {
+            return;
+        }
+
+        final int[] changed = new int[edit.getChangedPositions().size()];
+        boolean moved = false;
+        for (int i = 0; i < changed.length; i++) {
+            final int position = edit.getChangedPositions().get(i);
+            final CardEntry old = cards.get(position);
+            final CardEntry entry = edit.getChanged().get(i);
+            cards.set(position, entry);
+            if (searchIndex != null) {
+                searchIndex.update(old, entry);
+            }
+
+            if (searchFound != null && searchFound.remove(old)) {
+                searchFound.add(entry);
+            }
+
+            // A card whose name changed belongs somewhere else in a name sorted list.
+            moved |= sortByName && !old.getSortString().equals(entry.getSortString());
+            changed[i] = position;
+        }
+
+        if (changed.length > 0 && filter != null && searchFound == null && searchIndex != null) {
+            // The typed filter knows the cards that matched by their entries, so it is worked out again.
+            filter = searchIndex.search(searchField.getText());
+            moved = true;
+        }
+
+        if (!moved) {
+            cardListModel.entriesChanged(changed);
+        }
+
+        final int[] removed = edit.getRemoved();
+        if (searchIndex != null) {
+            for (final int position : removed) {
+                searchIndex.remove(cards.get(position));
+            }
+
+            edit.getAdded().forEach(searchIndex::add);
+        }
+
+        cards.removeAll(removed);
+        cardListModel.entriesRemoved(removed);
+        cards.addAll(edit.getAdded());
+        cardListModel.entriesAppended(edit.getAdded().size());
+        if (moved) {
+            refreshView();
+        }
+
+        showSelected();
+    }
+
+    /**
+     * Shows the selected card in the viewer if exactly one is selected. If its text is no longer in the file, which
+     * was rewritten in place without the watcher noticing, the file is read again from scratch.
+     */
+    private void showSelected() {
+        final int first = cardListView.getMinSelectionIndex();
+        try {
+            cardViewer.bind(first >= 0 && first == cardListView.getMaxSelectionIndex()
+                    ? cardListModel.getElementAt(first) : null);
+        } catch (final UncheckedIOException e) {
+            System.err.println(e);
+            cardViewer.bind(null);
+            watched = null;
+            cardFileChanged();
+        }
+    }
+
+    /**
+     * Records an edit of the cards in the journal, starting one if there is none yet. A journal cannot be started
+     * without knowing how the file looked.
+     */
+    private void journal(final EditJournal.Edit<CardEntry> edit) {
+        if (journal != null) {
+            journal.append(edit);
+        } else if (cardFile != null && watched != null && !edit.isEmpty()) {
+            // A checkpoint already holds the edit.
+            journal = EditJournal.start(cardFile.toPath(), watched,
+                    matchesWatched ? null : new ArrayList<>(cards.asList()), this::journalFailed);
+            if (matchesWatched) {
+                journal.append(edit);
+            }
+        }
+    }
+
+    /**
+     * Tells the user that their unsaved edits are no longer being journaled. Called on a journal's writer thread. The
+     * stopped journal is kept until the next save, which deletes it, so that edits are not journaled piecemeal.
+     */
+    private void journalFailed(final IOException failure) {
+        SwingUtilities.invokeLater(() -> {
+            if (journal == null || journal.getFailure() != failure) {
+                // The journal was closed and dropped as it failed.
+                return;
+            }
+
+            reportError(this, "Unsaved changes can no longer be recorded for recovery after a crash; save to keep "
+                    + "them", failure);
+        });
+    }
+
+    /**
+     * Starts the journal over after {@link #watched} changed to a file whose cards are no longer the same as the
+     * store's, or in the same order.
+     */
+    private void rebaseJournal() {
+        matchesWatched = false;
+        if (journal == null) {
+            return;
+        }
+
+        if (watched != null) {
+            journal.restart(watched, new ArrayList<>(cards.asList()));
+        } else {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Applies the edits left unsaved by an earlier session to the cards just read, and carries on with their journal.
+     */
+    private void recover(final EditJournal.Recovery recovery) {
+        if (recovery.getEdit() == null) {
+            JOptionPane.showMessageDialog(this,
+                    "Unsaved changes from an earlier session were made to a different version of this file and "
+                            + "could not be recovered.\nThey were kept in " + recovery.getStale() + ".",
+                    "Recovery", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        applyEdit(recovery.getEdit());
+        journal = EditJournal.resume(cardFile.toPath(), this::journalFailed);
+        JOptionPane.showMessageDialog(this,
+                "Unsaved changes from an earlier session were recovered.\nSave to keep them in the file.",
+                "Recovery", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private void cancelTask() {
+        if (task != null) {
+            task.cancel(true);
+        }
+    }
+
+    private static void reportError(final Component parent, final String message, final Throwable e) {
+        System.err.println(e);
+        e.printStackTrace();
+        JOptionPane.showMessageDialog(parent, message + ":\n" + e.getLocalizedMessage(), "Error",
+                JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * @return a view of the entries' cards that asks an entry for its card each time it is read, so that unloaded
+     * cards are parsed one at a time and can be dropped again, rather than all held at once
+     */
+    private static List<VCard> cards(final List<CardEntry> entries) {
+        return new AbstractList<VCard>() {
+
+            @Override
+            public VCard get(final int index) {
+                return entries.get(index).getCard();
+            }
+
+            @Override
+            public int size() {
+                return entries.size();
+            }
+
+        };
+    }
+
+    private void findDuplicates() {
+        final List<CardEntry> snapshot = new ArrayList<>(cards.asList());
+        startTask(new SwingWorker<List<int[]>, Void>() {
+
+            @Override
+            protected List<int[]> doInBackground() {
+                return new DuplicateDetector().findDuplicates(cards(snapshot));
+            }
+
+            @Override
+            protected void done() {
+                taskFinished();
+                updateGUI();
+                try {
+                    final List<int[]> groups = get();
+                    if (groups.isEmpty()) {
+                        JOptionPane.showMessageDialog(ContactCurator.this, "No duplicates were found.",
+                                "Find Duplicates", JOptionPane.INFORMATION_MESSAGE);
+                        return;
+                    }
+
+                    final List<List<CardEntry>> cardGroups = new ArrayList<>(groups.size());
+                    for (final int[] group : groups) {
+                        final List<CardEntry> cardGroup = new ArrayList<>(group.length);
+                        for (final int i : group) {
+                            cardGroup.add(snapshot.get(i));
+                        }
+
+                        cardGroups.add(cardGroup);
+                    }
+
+                    new DuplicatesDialog(ContactCurator.this, cardGroups, ContactCurator.this::selectCards,
+                            ContactCurator.this::mergeGroups).setVisible(true);
+                } catch (final CancellationException e) {
+                    // The user cancelled; there is nothing to show.
+                } catch (final InterruptedException | ExecutionException e) {
+                    reportError(ContactCurator.this, "Duplicates could not be found",
+                            e instanceof ExecutionException ? e.getCause() : e);
+                }
+            }
+
+        }, "finding duplicates");
+    }
+
+    /**
+     * Merges groups of cards in the background, replacing each group with its merged card at the position of the
+     * group's first member. Groups whose cards are no longer all present are skipped.
+     *
+     * @return false if another task is running and nothing was started
+     */
+    private boolean mergeGroups(final List<List<CardEntry>> groups, final MergePrecedence precedence) {
+        if (task != null) {
+            Toolkit.getDefaultToolkit().beep();
+            return false;
+        }
+
+        final List<CardEntry> snapshot = new ArrayList<>(cards.asList());
+        final Map<CardEntry, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            positions.put(snapshot.get(i), i);
+        }
+
+        final List<int[]> indexGroups = new ArrayList<>(groups.size());
+        for (final List<CardEntry> group : groups) {
+            final int[] indices = group.stream().map(positions::get).filter(Objects::nonNull)
+                    .mapToInt(Integer::intValue).toArray();
+            if (indices.length == group.size()) {
+                indexGroups.add(indices);
+            }
+        }
+
+        // The edit replaces each group's first member with the merged card and removes the rest.
+        indexGroups.forEach(Arrays::sort);
+        indexGroups.sort(Comparator.comparingInt(group -> group[0]));
+        final int snapshotVersion = cards.version();
+        startTask(new SwingWorker<EditJournal.Edit<CardEntry>, Void>() {
+
+            @Override
+            protected EditJournal.Edit<CardEntry> doInBackground() {
+                // Only the members of the groups are read; every other card is left alone.
+                final List<CardEntry> merged = indexGroups.parallelStream().map(group -> {
+                    final List<VCard> members = new ArrayList<>(group.length);
+                    for (final int i : group) {
+                        members.add(snapshot.get(i).getCard());
+                    }
+
+                    // The merged card is an unsaved edit of the first member, wherever that was read from.
+                    return CardEntry.edited(VCardUtil.merge(members, precedence), snapshot.get(group[0]).getOrigin());
+                }).collect(Collectors.toList());
+
+                final EditJournal.Edit<CardEntry> edit = new EditJournal.Edit<>();
+                final int[] removed = indexGroups.stream().flatMapToInt(group -> Arrays.stream(group).skip(1))
+                        .sorted().toArray();
+                for (int g = 0; g < indexGroups.size(); g++) {
+                    edit.change(indexGroups.get(g)[0], merged.get(g));
+                }
+
+                Arrays.stream(removed).forEach(edit::remove);
+                return edit;
+            }
+
+            @Override
+            protected void done() {
+                taskFinished();
+                try {
+                    final EditJournal.Edit<CardEntry> edit = get();
+                    // Nothing else can change the cards while a task runs, but check rather than corrupt them.
+                    if (cards.version() == snapshotVersion) {
+                        cardListView.clearSelection();
+                        applyEdit(edit);
+                        journal(edit);
+                    }
+                } catch (final CancellationException e) {
+                    // The address book is left as it was.
+                } catch (final InterruptedException | ExecutionException e) {
+                    reportError(ContactCurator.this, "The contacts could not be merged",
+                            e instanceof ExecutionException ? e.getCause() : e);
+                }
+
+                updateGUI();
+            }
+
+        }, "merging " + indexGroups.size() + " groups");
+        return true;
+    }
+
+    private void buildSearchIndex() {
+        buildSearchIndex(null);
+    }
+
+    /**
+     * Builds the search index in the background. If the cards change before it is done, the index is thrown away and
+     * built again; after that it is kept current incrementally.
+     *
+     * @param texts the flattened search text of every card, if it is already known, or null
+     */
+    private void buildSearchIndex(final List<String> texts) {
+        final List<CardEntry> snapshot = new ArrayList<>(cards.asList());
+        final int version = cards.version();
+        searchIndex = null;
+        new SwingWorker<SearchIndex<CardEntry>, Void>() {
+
+            @Override
+            protected SearchIndex<CardEntry> doInBackground() {
+                final Metrics.Timer timer = Metrics.start(Metrics.Phase.INDEX);
+                final SearchIndex<CardEntry> index = texts != null
+                        ? SearchIndex.of(snapshot, texts, CardEntry::getCard)
+                        : SearchIndex.build(snapshot, CardEntry::getCard);
+                timer.stop(snapshot.size(), 0);
+                return index;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    final SearchIndex<CardEntry> index = get();
+                    if (version != cards.version()) {
+                        if (!cards.isEmpty()) {
+                            buildSearchIndex();
+                        }
+                    } else {
+                        searchIndex = index;
+                        applyFilter();
+                        if (unsnapshotted != null && unsnapshottedVersion == version) {
+                            writeSnapshot(unsnapshotted, snapshot, index);
+                        }
+
+                        unsnapshotted = null;
+                    }
+                } catch (final InterruptedException | ExecutionException e) {
+                    System.err.println(e);
+                    e.printStackTrace();
+                }
+
+                updateGUI();
+            }
+
+        }.execute();
+    }
+
+    /**
+     * Writes the snapshot of a file that was just read in the background, so that it opens quickly next time.
+     * Failures are only logged, as the snapshot is just a cache.
+     */
+    private static void writeSnapshot(final CardStore.Source source, final List<CardEntry> entries,
+                                      final SearchIndex<CardEntry> index) {
+        final List<SnapshotCache.Record> records = new ArrayList<>(entries.size());
+        for (final CardEntry entry : entries) {
+            records.add(new SnapshotCache.Record(entry, index.textOf(entry)));
+        }
+
+        new SwingWorker<Void, Void>() {
+
+            @Override
+            protected Void doInBackground() throws IOException {
+                SnapshotCache.write(source, records);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (final InterruptedException | ExecutionException e) {
+                    System.err.println(e);
+                    e.printStackTrace();
+                }
+            }
+
+        }.execute();
+    }
+
+    /**
+     * @return where the state of syncing the cards with a CardDAV collection is kept between sessions
+     */
+    private Path cardDavStateFile(final CardDavClient client) {
+        return CardDavSync.State.fileFor(client.getCollection(), cardFile == null ? null : cardFile.toPath());
+    }
+
+    /**
+     * Writes the state a sync left behind in the background, so that the next session carries on from it. Failures
+     * are only logged; without the state, the next sync matches the cards to the collection's by UID and text.
+     */
+    private static void saveCardDavState(final CardDavSync.State state, final Path file) {
+        new SwingWorker<Void, Void>() {
+
+            @Override
+            protected Void doInBackground() throws IOException {
+                state.save(file);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (final InterruptedException | ExecutionException e) {
+                    System.err.println(e);
+                    e.printStackTrace();
+                }
+            }
+
+        }.execute();
+    }
+
+    /**
+     * Asks for a regular expression or fuzzy query and shows the cards that pass it.
+     */
+    private void advancedSearch() {
+        final JComboBox<CardQuery.Field> fieldPicker = new JComboBox<>(CardQuery.Field.values());
+        final JComboBox<CardQuery.Mode> modePicker = new JComboBox<>(CardQuery.Mode.values());
+        final JTextField textField = new JTextField(prefs.get("advancedSearch", ""), 30);
+        final JSpinner tolerancePicker = new JSpinner();
+        tolerancePicker.setEnabled(false);
+        modePicker.addActionListener(actionEvent -> {
+            final CardQuery.Mode mode = modePicker.getItemAt(modePicker.getSelectedIndex());
+            tolerancePicker.setEnabled(mode != CardQuery.Mode.REGEX);
+            if (mode == CardQuery.Mode.EDIT_DISTANCE) {
+                tolerancePicker.setModel(new SpinnerNumberModel(2, 0, 10, 1));
+            } else if (mode == CardQuery.Mode.SIMILARITY) {
+                tolerancePicker.setModel(new SpinnerNumberModel(0.9, 0.0, 1.0, 0.01));
+            }
+        });
+        final JComponent panel = new JPanel(new GridLayout(0, 1));
+        panel.add(fieldPicker);
+        panel.add(modePicker);
+        panel.add(textField);
+        panel.add(new JLabel("Tolerance"));
+        panel.add(tolerancePicker);
+        if (JOptionPane.showConfirmDialog(this, panel, "Advanced Search", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION || textField.getText().isEmpty()) {
+            return;
+        }
+
+        final CardQuery.Field field = fieldPicker.getItemAt(fieldPicker.getSelectedIndex());
+        final String text = textField.getText();
+        prefs.put("advancedSearch", text);
+        final CardQuery query;
+        switch (modePicker.getItemAt(modePicker.getSelectedIndex())) {
+            case EDIT_DISTANCE:
+                query = CardQuery.editDistance(field, text, ((Number) tolerancePicker.getValue()).intValue());
+                break;
+            case SIMILARITY:
+                query = CardQuery.similarity(field, text, ((Number) tolerancePicker.getValue()).doubleValue());
+                break;
+            default:
+                try {
+                    query = CardQuery.regex(field, text);
+                } catch (final PatternSyntaxException e) {
+                    JOptionPane.showMessageDialog(this, "The regular expression is not valid:\n"
+                            + e.getLocalizedMessage(), "Search Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+        }
+
+        search(query);
+    }
+
+    /**
+     * Searches every card in the background, adding the cards that pass to the list as they are found. The cards
+     * found before the search is cancelled stay listed; clearing the search field shows every card again.
+     */
+    private void search(final CardQuery query) {
+        searchField.setText("");
+        final Set<CardEntry> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Predicate<CardEntry> searchFilter = found::contains;
+        final int snapshotVersion = cards.version();
+        filter = searchFilter;
+        searchFound = found;
+        refreshView();
+        startTask(new CardSearch(cards.asList(), query) {
+
+            @Override
+            protected void process(final List<int[]> chunks) {
+                // Results can still arrive after a cancelled search is done.
+                if (filter != searchFilter || cards.version() != snapshotVersion) {
+                    return;
+                }
+
+                for (final int[] positions : chunks) {
+                    for (final int position : positions) {
+                        found.add(cards.get(position));
+                    }
+
+                    cardListModel.entriesPassed(positions);
+                }
+
+                updateStatus();
+            }
+
+            @Override
+            protected void done() {
+                taskFinished();
+                try {
+                    get();
+                } catch (final CancellationException e) {
+                    // What was found stays listed.
+                } catch (final InterruptedException | ExecutionException e) {
+                    reportError(ContactCurator.this, "The cards could not be searched",
+                            e instanceof ExecutionException ? e.getCause() : e);
+                }
+
+                if (filter == searchFilter && sortByName) {
+                    // Put what was found in name order.
+                    refreshView();
+                }
+
+                updateGUI();
+            }
+
+        }, "searching");
+    }
+
+    /**
+     * Asks for a change to make to the selected cards, or to every card listed if none are selected, and makes it.
+     */
+    private void bulkEdit() {
+        final List<CardEntry> targets = new ArrayList<>();
+        if (cardListView.isSelectionEmpty()) {
+            for (int i = 0; i < cardListModel.getSize(); i++) {
+                targets.add(cardListModel.getElementAt(i));
+            }
+        } else {
+            targets.addAll(cardListView.getSelectedValuesList());
+        }
+
+        final String[] operations = {"Set organization", "Remove properties", "Reformat phone numbers as E.164",
+                "Clean up", "Delete cards"};
+        final JComboBox<String> operationPicker = new JComboBox<>(operations);
+        final JTextField organizationField = new JTextField(prefs.get("bulkEditOrganization", ""), 30);
+        final JComboBox<String> typePicker = new JComboBox<>(
+                CardBulkEditor.REMOVABLE.keySet().toArray(new String[0]));
+        typePicker.setEnabled(false);
+        operationPicker.addActionListener(actionEvent -> {
+            organizationField.setEnabled(operationPicker.getSelectedIndex() == 0);
+            typePicker.setEnabled(operationPicker.getSelectedIndex() == 1);
+        });
+        final JComponent panel = new JPanel(new GridLayout(0, 1));
+        panel.add(new JLabel(String.format("Change %d %s cards:", targets.size(),
+                cardListView.isSelectionEmpty() ? "listed" : "selected")));
+        panel.add(operationPicker);
+        panel.add(organizationField);
+        panel.add(typePicker);
+        if (JOptionPane.showConfirmDialog(this, panel, "Bulk Edit", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+
+        final UnaryOperator<VCard> change;
+        switch (operationPicker.getSelectedIndex()) {
+            case 0:
+                final String organization = organizationField.getText().strip();
+                prefs.put("bulkEditOrganization", organization);
+                change = organization.isEmpty()
+                        ? CardBulkEditor.removeProperties("Organizations", Organization.class)
+                        : CardBulkEditor.setOrganization(organization);
+                break;
+            case 1:
+                final String type = typePicker.getItemAt(typePicker.getSelectedIndex());
+                change = CardBulkEditor.removeProperties(type, CardBulkEditor.REMOVABLE.get(type));
+                break;
+            case 2:
+                change = CardBulkEditor.reformatPhoneNumbers();
+                break;
+            case 3:
+                change = CardBulkEditor.cleanUp();
+                break;
+            default:
+                if (JOptionPane.showConfirmDialog(this, "Delete " + targets.size() + " cards?", "Bulk Edit",
+                        JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE) != JOptionPane.OK_OPTION) {
+                    return;
+                }
+
+                change = null;
+        }
+
+        final Set<CardEntry> wanted = Collections.newSetFromMap(new IdentityHashMap<>());
+        wanted.addAll(targets);
+        final int[] positions = IntStream.range(0, cards.size()).filter(i -> wanted.contains(cards.get(i)))
+                .toArray();
+        bulkEdit(positions, change, operations[operationPicker.getSelectedIndex()].toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Changes the cards at some positions in the background and applies the result as one edit, so the list is told
+     * of every changed card at once.
+     *
+     * @param change the change to make to each card, or null to delete the cards
+     */
+    private void bulkEdit(final int[] positions, final UnaryOperator<VCard> change, final String description) {
+        final int snapshotVersion = cards.version();
+        startTask(new CardBulkEditor(cards.asList(), positions, change) {
+
+            @Override
+            protected void done() {
+                taskFinished();
+                try {
+                    final EditJournal.Edit<CardEntry> edit = get();
+                    // Nothing else can change the cards while a task runs, but check rather than corrupt them.
+                    if (cards.version() == snapshotVersion) {
+                        applyEdit(edit);
+                        journal(edit);
+                    }
+                } catch (final CancellationException e) {
+                    // Nothing was changed.
+                } catch (final InterruptedException | ExecutionException e) {
+                    reportError(ContactCurator.this, "The cards could not be changed",
+                            e instanceof ExecutionException ? e.getCause() : e);
+                }
+
+                updateGUI();
+            }
+
+        }, description);
+    }
+
+    private void applyFilter() {
+        if (searchIndex == null) {
+            return;
+        }
+
+        final Predicate<CardEntry> newFilter = searchIndex.search(searchField.getText());
+        if (newFilter != null || filter != null) {
+            filter = newFilter;
+            searchFound = null;
+            refreshView();
+        }
+
+        updateStatus();
+    }
+
+    /**
+     * Recomputes the filtered and sorted view of the cards, keeping the selection.
+     */
+    private void refreshView() {
+        final List<CardEntry> selected = cardListView.getSelectedValuesList();
+        cardListModel.setView(filter, sortByName);
+        selectCards(selected);
+    }
+
+    private void sortBy(final boolean byName) {
+        if (byName != sortByName) {
+            sortByName = byName;
+            (byName ? nameOrderMenuItem : fileOrderMenuItem).setSelected(true);
+            refreshView();
+        }
+    }
+
+    /**
+     * Scrolls a name sorted list so that the first card under a letter is at the top, sorting it first if necessary.
+     */
+    private void jumpTo(final char letter) {
+        sortBy(true);
+        final int index = cardListModel.firstIndexOf(letter);
+        if (index >= 0) {
+            cardListView.setSelectedIndex(index);
+            final Rectangle cell = cardListView.getCellBounds(index, index);
+            cardListView.scrollRectToVisible(new Rectangle(cell.x, cell.y, cell.width,
+                    cardListView.getVisibleRect().height));
+        }
+    }
+
+    /**
+     * Selects the given cards in the list, matching them by identity.
+     */
+    private void selectCards(final List<CardEntry> selection) {
+        final Set<CardEntry> wanted = Collections.newSetFromMap(new IdentityHashMap<>());
+        wanted.addAll(selection);
+        final List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < cardListModel.getSize() && indices.size() < wanted.size(); i++) {
+            if (wanted.contains(cardListModel.getElementAt(i))) {
+                indices.add(i);
+            }
+        }
+
+        cardListView.setSelectedIndices(indices.stream().mapToInt(Integer::intValue).toArray());
+        if (!indices.isEmpty()) {
+            cardListView.ensureIndexIsVisible(indices.get(0));
+        }
+    }
+
+    /**
+     * Drops a partially loaded file so that a later save cannot overwrite it with an incomplete set of contacts.
+     */
+    private void discardCards() {
+        stopWatching();
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+
+        cardFile = null;
+        cardDav = null;
+        cardDavState = null;
+        if (!cards.isEmpty()) {
+            final int oldSize = cardListModel.getSize();
+            cards.clear();
+            cardListModel.storeReplaced(oldSize);
+        }
+
+        thumbnails.clear();
+    }
+
+    /**
+     * Opens the GUI, or with arguments runs the headless {@link BatchCleaner} and exits with its status.
+     */
     public static void main(final String[] args) {
+        if (args.length > 0) {
+            System.exit(BatchCleaner.run(args, System.out, System.err));
+        }
+
+        Metrics.registerMBeans();
         SwingUtilities.invokeLater(() -> new ContactCurator().setVisible(true));
     }
 
@@ -0,0 +1,85 @@
+package com.stackframe;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * The file formats contacts can be read from and written to, told apart by their file extensions. Only vCard files
+ * hold every property of a card; the other formats hold the fields {@link ContactTable} maps.
+ */
+enum ContactFormat {
+
+    VCARD("vCard", ".vcf"),
+
+    /**
+     * Comma separated values with a header row, as {@link ContactTable} lays them out.
+     */
+    CSV("CSV", ".csv"),
+
+    /**
+     * One JSON object per line, as {@link ContactTable} lays them out.
+     */
+    JSON_LINES("JSON Lines", ".jsonl");
+
+    private final String description;
+    private final String extension;
+
+    ContactFormat(final String description, final String extension) {
+        this.description = description;
+        this.extension = extension;
+    }
+
+    /**
+     * @return the file extension, including the dot
+     */
+    String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return the format of a file, or null if its extension is not one of the formats'
+     */
+    static ContactFormat of(final Path file) {
+        final String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (final ContactFormat format : values()) {
+            if (name.endsWith(format.extension)) {
+                return format;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the format of a file, taking a file with an unknown extension to be a vCard file
+     */
+    static ContactFormat orVCard(final Path file) {
+        final ContactFormat format = of(file);
+        return format == null ? VCARD : format;
+    }
+
+    /**
+     * @return true if a path is a file in one of the formats
+     */
+    static boolean isContactFile(final Path path) {
+        return Files.isRegularFile(path) && of(path) != null;
+    }
+
+    /**
+     * @return the file with its extension replaced by, or if it has none of the formats' extensions followed by, this
+     * format's
+     */
+    Path withExtension(final Path file) {
+        final String name = file.getFileName().toString();
+        final ContactFormat current = of(file);
+        final String base = current == null ? name : name.substring(0, name.length() - current.extension.length());
+        return file.resolveSibling(base + extension);
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+}
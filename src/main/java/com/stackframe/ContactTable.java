@@ -0,0 +1,951 @@
+package com.stackframe;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import ezvcard.VCard;
+import ezvcard.parameter.AddressType;
+import ezvcard.parameter.EmailType;
+import ezvcard.parameter.TelephoneType;
+import ezvcard.property.Address;
+import ezvcard.property.Birthday;
+import ezvcard.property.Email;
+import ezvcard.property.FormattedName;
+import ezvcard.property.Organization;
+import ezvcard.property.Role;
+import ezvcard.property.StructuredName;
+import ezvcard.property.Telephone;
+import ezvcard.property.Title;
+import ezvcard.property.Url;
+import ezvcard.util.PartialDate;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * Lays contacts out as CSV rows or JSON Lines objects, for tools that do not read vCards, and reads them back. The
+ * fields are the ones the card viewer shows: names, titles, roles, organizations, emails, telephone numbers, URLs,
+ * addresses and birthdays. Other properties are left out.
+ * <p>
+ * CSV has a header row and one column per field, in the order of {@link #COLUMNS}; only a card's first formatted and
+ * structured name are kept. A field with several values has them in one cell, one per line; organization units and
+ * the parts of an address are separated by semicolons, as in vCard. A backslash, newline or semicolon inside such a
+ * value is escaped with a backslash, also as in vCard, so every value reads back as it was written. Email and telephone
+ * types are left out. Columns are read by their header, so they may be in any order and unknown ones are ignored.
+ * JSON Lines has one object per card, with every value of the fields and the types of emails, telephone numbers and
+ * addresses.
+ * <p>
+ * Both directions stream: cards are taken a slice at a time and serialized or parsed in parallel, and the slices are
+ * written or handed on in order, so memory use is bounded by the slices in flight however many cards there are.
+ */
+final class ContactTable {
+
+    static final List<String> COLUMNS = List.of("Formatted Name", "Prefixes", "Given Name", "Additional Names",
+            "Family Name", "Suffixes", "Titles", "Roles", "Organizations", "Emails", "Telephone Numbers", "URLs",
+            "Addresses", "Birthdays");
+
+    /**
+     * The JSON fields of an address's parts, in vCard order.
+     */
+    private static final List<String> ADDRESS_FIELDS = List.of("poBox", "extended", "street", "locality", "region",
+            "postalCode", "country");
+
+    private static final int SLICE = 256;
+    private static final JsonFactory JSON = new JsonFactory().setRootValueSeparator(null);
+
+    private ContactTable() {
+    }
+
+    /**
+     * Groups a sequence into lists of up to {@link #SLICE} items, taken from it only as each list is asked for.
+     */
+    private static <T> Iterator<List<T>> slices(final Iterator<T> items) {
+        return new Iterator<List<T>>() {
+
+            @Override
+            public boolean hasNext() {
+                return items.hasNext();
+            }
+
+            @Override
+            public List<T> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final List<T> slice = new ArrayList<>(SLICE);
+                while (slice.size() < SLICE && items.hasNext()) {
+                    slice.add(items.next());
+                }
+
+                return slice;
+            }
+
+        };
+    }
+
+    /**
+     * Runs {@link OrderedParallel#map} on the common pool, letting I/O failures of the sink through as they are.
+     */
+    private static <T, R> void map(final Iterator<T> inputs, final OrderedParallel.Step<? super T, ? extends R> step,
+                                   final Consumer<? super R> sink, final BooleanSupplier cancelled)
+            throws IOException, InterruptedException {
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        try {
+            OrderedParallel.map(inputs, step, sink, pool, pool.getParallelism() * 2, cancelled);
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Writes cards in CSV or JSON Lines.
+     *
+     * @param items     the items to write, taken one at a time
+     * @param card      gets an item's card; it is called on the threads that serialize the cards
+     * @param format    {@link ContactFormat#CSV} or {@link ContactFormat#JSON_LINES}
+     * @param out       where to write, which is not closed
+     * @param written   receives the number of cards written so far, after each slice
+     * @param cancelled checked between slices; when it returns true, writing stops
+     * @return the number of cards written
+     * @throws IOException          if writing fails
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    static <T> int write(final Iterator<T> items, final Function<? super T, VCard> card, final ContactFormat format,
+                         final OutputStream out, final IntConsumer written, final BooleanSupplier cancelled)
+            throws IOException, InterruptedException {
+        if (format == ContactFormat.CSV) {
+            final StringBuilder header = new StringBuilder();
+            appendCsv(header, COLUMNS);
+            out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+        } else if (format != ContactFormat.JSON_LINES) {
+            throw new IllegalArgumentException(format + " is not a table format");
+        }
+
+        final int[] count = new int[1];
+        map(slices(items), slice -> {
+            final List<VCard> cards = new ArrayList<>(slice.size());
+            for (final T item : slice) {
+                cards.add(card.apply(item));
+            }
+
+            return format == ContactFormat.CSV ? csv(cards) : json(cards);
+        }, encoded -> {
+            try {
+                out.write(encoded.bytes);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            count[0] += encoded.count;
+            written.accept(count[0]);
+        }, cancelled);
+        out.flush();
+        return count[0];
+    }
+
+    /**
+     * Replaces a file with cards in CSV or JSON Lines, as {@link CardFileWriter#replace} does.
+     *
+     * @throws CancellationException if writing was cancelled or interrupted; the target is left as it was
+     * @see #write(Iterator, Function, ContactFormat, OutputStream, IntConsumer, BooleanSupplier)
+     */
+    static <T> int write(final Path target, final Iterator<T> items, final Function<? super T, VCard> card,
+                         final ContactFormat format, final IntConsumer written, final BooleanSupplier cancelled)
+            throws IOException {
+        final int[] count = new int[1];
+        CardFileWriter.replace(target, channel -> {
+            try {
+                count[0] = write(items, card, format,
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), written, cancelled);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            }
+
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException();
+            }
+        }, percent -> {
+        });
+        return count[0];
+    }
+
+    /**
+     * Reads cards from CSV or JSON Lines.
+     *
+     * @param in        the text, in UTF-8, which is not closed
+     * @param format    {@link ContactFormat#CSV} or {@link ContactFormat#JSON_LINES}
+     * @param sink      receives the cards in order, on the calling thread
+     * @param cancelled checked between slices; when it returns true, reading stops
+     * @return the number of cards read
+     * @throws IOException          if reading fails or a row or line is malformed
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    static int read(final InputStream in, final ContactFormat format, final Consumer<VCard> sink,
+                    final BooleanSupplier cancelled) throws IOException, InterruptedException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        // Spreadsheets often start UTF-8 files with a byte order mark.
+        reader.mark(1);
+        if (reader.read() != '\uFEFF') {
+            reader.reset();
+        }
+
+        final Function<String, VCard> parse;
+        if (format == ContactFormat.CSV) {
+            final String header = readRecord(reader);
+            if (header == null) {
+                return 0;
+            }
+
+            final List<String> columns = parseCsv(header);
+            parse = record -> fromRow(columns, parseCsv(record));
+        } else if (format == ContactFormat.JSON_LINES) {
+            parse = ContactTable::fromJson;
+        } else {
+            throw new IllegalArgumentException(format + " is not a table format");
+        }
+
+        final Iterator<String> records = new Iterator<String>() {
+
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = format == ContactFormat.CSV ? readRecord(reader) : readLine(reader);
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final String record = next;
+                next = null;
+                return record;
+            }
+
+        };
+
+        final int[] count = new int[1];
+        map(slices(records), slice -> {
+            final List<VCard> cards = new ArrayList<>(slice.size());
+            for (final String record : slice) {
+                cards.add(parse.apply(record));
+            }
+
+            return cards;
+        }, cards -> {
+            cards.forEach(sink);
+            count[0] += cards.size();
+        }, cancelled);
+        return count[0];
+    }
+
+    /**
+     * Reads every card of a CSV or JSON Lines file.
+     *
+     * @see #read(InputStream, ContactFormat, Consumer, BooleanSupplier)
+     */
+    static int read(final Path file, final ContactFormat format, final Consumer<VCard> sink,
+                    final BooleanSupplier cancelled) throws IOException, InterruptedException {
+        try (final InputStream in = Files.newInputStream(file)) {
+            return read(in, format, sink, cancelled);
+        }
+    }
+
+    /**
+     * The serialized text of a slice of cards.
+     */
+    private static final class Encoded {
+
+        private final byte[] bytes;
+        private final int count;
+
+        private Encoded(final byte[] bytes, final int count) {
+            this.bytes = bytes;
+            this.count = count;
+        }
+
+    }
+
+    // CSV
+
+    private static Encoded csv(final List<VCard> cards) {
+        final StringBuilder text = new StringBuilder();
+        for (final VCard card : cards) {
+            appendCsv(text, row(card));
+        }
+
+        return new Encoded(text.toString().getBytes(StandardCharsets.UTF_8), cards.size());
+    }
+
+    /**
+     * @return a card's cells, in the order of {@link #COLUMNS}
+     */
+    static List<String> row(final VCard card) {
+        final FormattedName fn = card.getFormattedName();
+        final StructuredName n = card.getStructuredName();
+        return Arrays.asList(
+                fn == null ? "" : text(fn.getValue()),
+                n == null ? "" : join(n.getPrefixes(), '\n'),
+                n == null ? "" : text(n.getGiven()),
+                n == null ? "" : join(n.getAdditionalNames(), '\n'),
+                n == null ? "" : text(n.getFamily()),
+                n == null ? "" : join(n.getSuffixes(), '\n'),
+                lines(card.getTitles(), t -> escape(t.getValue())),
+                lines(card.getRoles(), r -> escape(r.getValue())),
+                lines(card.getOrganizations(), o -> join(o.getValues(), ';')),
+                lines(card.getEmails(), e -> escape(e.getValue())),
+                lines(card.getTelephoneNumbers(), t -> escape(VCardUtil.phoneNumber(t))),
+                lines(card.getUrls(), u -> escape(u.getValue())),
+                lines(card.getAddresses(), a -> join(addressParts(a), ';')),
+                lines(card.getBirthdays(), b -> escape(birthday(b))));
+    }
+
+    private static String text(final String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * @return a value with backslashes, newlines and semicolons escaped as in vCard, or null for null
+     */
+    private static String escape(final String s) {
+        return s == null ? null : s.replace("\\", "\\\\").replace("\r\n", "\n").replace("\n", "\\n")
+                .replace(";", "\\;");
+    }
+
+    private static String join(final List<String> values, final char separator) {
+        final StringBuilder cell = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                cell.append(separator);
+            }
+
+            cell.append(text(escape(values.get(i))));
+        }
+
+        return cell.toString();
+    }
+
+    /**
+     * @param value the value of each property, already escaped
+     */
+    private static <P> String lines(final List<P> properties, final Function<P, String> value) {
+        final StringBuilder cell = new StringBuilder();
+        for (final P property : properties) {
+            final String s = value.apply(property);
+            if (s != null && !s.isEmpty()) {
+                if (cell.length() > 0) {
+                    cell.append('\n');
+                }
+
+                cell.append(s);
+            }
+        }
+
+        return cell.toString();
+    }
+
+    private static void appendCsv(final StringBuilder line, final List<String> cells) {
+        for (int i = 0; i < cells.size(); i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+
+            final String cell = cells.get(i);
+            if (cell.indexOf(',') >= 0 || cell.indexOf('"') >= 0 || cell.indexOf('\n') >= 0
+                    || cell.indexOf('\r') >= 0) {
+                line.append('"').append(cell.replace("\"", "\"\"")).append('"');
+            } else {
+                line.append(cell);
+            }
+        }
+
+        line.append("\r\n");
+    }
+
+    /**
+     * Reads one CSV record, which may span lines inside quotes, skipping blank lines.
+     *
+     * @return the record without its line break, or null at the end of the text
+     */
+    private static String readRecord(final BufferedReader reader) throws IOException {
+        final StringBuilder record = new StringBuilder();
+        boolean quoted = false;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '\n' && !quoted) {
+                if (record.length() > 0 && record.charAt(record.length() - 1) == '\r') {
+                    record.setLength(record.length() - 1);
+                }
+
+                if (record.length() > 0) {
+                    return record.toString();
+                }
+
+                continue;
+            }
+
+            record.append((char) c);
+        }
+
+        return record.length() > 0 ? record.toString() : null;
+    }
+
+    /**
+     * Splits a CSV record into its cells.
+     */
+    static List<String> parseCsv(final String record) {
+        final List<String> cells = new ArrayList<>();
+        final StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            final char c = record.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    cell.append(c);
+                } else if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                    cell.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+
+        cells.add(cell.toString());
+        return cells;
+    }
+
+    /**
+     * Splits a cell at the separators that are not escaped.
+     *
+     * @param unescape true to undo the escaping in the values, false to keep it for a further split
+     */
+    private static List<String> split(final String cell, final char separator, final boolean unescape) {
+        if (cell.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<String> values = new ArrayList<>();
+        final StringBuilder value = new StringBuilder();
+        for (int i = 0; i < cell.length(); i++) {
+            final char c = cell.charAt(i);
+            if (c == '\\' && i + 1 < cell.length()) {
+                final char escaped = cell.charAt(++i);
+                if (!unescape) {
+                    value.append(c).append(escaped);
+                } else {
+                    value.append(escaped == 'n' || escaped == 'N' ? '\n' : escaped);
+                }
+            } else if (c == separator) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+
+        values.add(value.toString());
+        return values;
+    }
+
+    private static List<String> split(final String cell) {
+        return split(cell, '\n', true);
+    }
+
+    /**
+     * Makes a card from a CSV row.
+     *
+     * @param columns the header of each cell
+     */
+    static VCard fromRow(final List<String> columns, final List<String> cells) {
+        final Map<String, String> row = new LinkedHashMap<>();
+        for (int i = 0; i < Math.min(columns.size(), cells.size()); i++) {
+            row.put(columns.get(i).strip(), cells.get(i).replace("\r\n", "\n"));
+        }
+
+        final VCard card = new VCard();
+        final String fn = row.getOrDefault("Formatted Name", "");
+        if (!fn.isEmpty()) {
+            card.setFormattedName(fn);
+        }
+
+        final StructuredName n = new StructuredName();
+        n.getPrefixes().addAll(split(row.getOrDefault("Prefixes", "")));
+        n.setGiven(emptyToNull(row.get("Given Name")));
+        n.getAdditionalNames().addAll(split(row.getOrDefault("Additional Names", "")));
+        n.setFamily(emptyToNull(row.get("Family Name")));
+        n.getSuffixes().addAll(split(row.getOrDefault("Suffixes", "")));
+        if (n.getGiven() != null || n.getFamily() != null || !n.getPrefixes().isEmpty()
+                || !n.getAdditionalNames().isEmpty() || !n.getSuffixes().isEmpty()) {
+            card.setStructuredName(n);
+        }
+
+        for (final String title : split(row.getOrDefault("Titles", ""))) {
+            card.addTitle(title);
+        }
+
+        for (final String role : split(row.getOrDefault("Roles", ""))) {
+            card.addRole(role);
+        }
+
+        for (final String org : split(row.getOrDefault("Organizations", ""), '\n', false)) {
+            final Organization organization = new Organization();
+            organization.getValues().addAll(split(org, ';', true));
+            card.addOrganization(organization);
+        }
+
+        for (final String email : split(row.getOrDefault("Emails", ""))) {
+            card.addEmail(email);
+        }
+
+        for (final String phone : split(row.getOrDefault("Telephone Numbers", ""))) {
+            card.addTelephoneNumber(phone);
+        }
+
+        for (final String url : split(row.getOrDefault("URLs", ""))) {
+            card.addUrl(url);
+        }
+
+        for (final String address : split(row.getOrDefault("Addresses", ""), '\n', false)) {
+            card.addAddress(address(split(address, ';', true)));
+        }
+
+        for (final String birthday : split(row.getOrDefault("Birthdays", ""))) {
+            card.addProperty(birthday(birthday));
+        }
+
+        return card;
+    }
+
+    private static String emptyToNull(final String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    // Values shared by both formats
+
+    /**
+     * @return an address's post office box, extended address, street address, locality, region, postal code and
+     * country, as in vCard, with absent parts empty
+     */
+    private static List<String> addressParts(final Address a) {
+        return Arrays.asList(text(a.getPoBox()), text(a.getExtendedAddressFull()), text(a.getStreetAddressFull()),
+                text(a.getLocality()), text(a.getRegion()), text(a.getPostalCode()), text(a.getCountry()));
+    }
+
+    private static Address address(final List<String> parts) {
+        final Address a = new Address();
+        a.setPoBox(part(parts, 0));
+        a.setExtendedAddress(part(parts, 1));
+        a.setStreetAddress(part(parts, 2));
+        a.setLocality(part(parts, 3));
+        a.setRegion(part(parts, 4));
+        a.setPostalCode(part(parts, 5));
+        a.setCountry(part(parts, 6));
+        return a;
+    }
+
+    private static String part(final List<String> parts, final int i) {
+        return i < parts.size() ? emptyToNull(parts.get(i)) : null;
+    }
+
+    private static DateFormat dateFormat() {
+        // Dates are read and written in the default time zone, as ezvcard does.
+        final DateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setLenient(false);
+        return format;
+    }
+
+    /**
+     * @return a birthday in ISO 8601 form, or as its text if it is not a date
+     */
+    static String birthday(final Birthday b) {
+        if (b.getDate() != null) {
+            return dateFormat().format(b.getDate());
+        }
+
+        return b.getPartialDate() != null ? b.getPartialDate().toISO8601(true) : b.getText();
+    }
+
+    /**
+     * @return a birthday written as by {@link #birthday(Birthday)}
+     */
+    static Birthday birthday(final String s) {
+        if (s.matches("\\d{4}-\\d{2}-\\d{2}")) {
+            try {
+                final Date date = dateFormat().parse(s);
+                return new Birthday(date);
+            } catch (final ParseException e) {
+                // Not a real date, so it is kept as text.
+            }
+        } else {
+            try {
+                return new Birthday(PartialDate.parse(s));
+            } catch (final IllegalArgumentException e) {
+                // Not a partial date either.
+            }
+        }
+
+        return new Birthday(s);
+    }
+
+    // JSON Lines
+
+    private static Encoded json(final List<VCard> cards) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final JsonGenerator g = JSON.createGenerator(bytes, JsonEncoding.UTF8)) {
+            for (final VCard card : cards) {
+                writeJson(g, card);
+                g.writeRaw('\n');
+            }
+        }
+
+        return new Encoded(bytes.toByteArray(), cards.size());
+    }
+
+    private static <P> void writeStrings(final JsonGenerator g, final String field, final List<P> properties,
+                                         final Function<P, String> value) throws IOException {
+        if (!properties.isEmpty()) {
+            g.writeArrayFieldStart(field);
+            for (final P property : properties) {
+                g.writeString(value.apply(property));
+            }
+
+            g.writeEndArray();
+        }
+    }
+
+    private static void writeOptional(final JsonGenerator g, final String field, final String value)
+            throws IOException {
+        if (value != null && !value.isEmpty()) {
+            g.writeStringField(field, value);
+        }
+    }
+
+    private static void writeTypes(final JsonGenerator g, final List<String> types) throws IOException {
+        if (!types.isEmpty()) {
+            writeStrings(g, "types", types, type -> type);
+        }
+    }
+
+    private static void writeJson(final JsonGenerator g, final VCard card) throws IOException {
+        g.writeStartObject();
+        writeStrings(g, "formattedNames", card.getFormattedNames(), FormattedName::getValue);
+        if (!card.getStructuredNames().isEmpty()) {
+            g.writeArrayFieldStart("names");
+            for (final StructuredName n : card.getStructuredNames()) {
+                g.writeStartObject();
+                writeStrings(g, "prefixes", n.getPrefixes(), s -> s);
+                writeOptional(g, "given", n.getGiven());
+                writeStrings(g, "additionalNames", n.getAdditionalNames(), s -> s);
+                writeOptional(g, "family", n.getFamily());
+                writeStrings(g, "suffixes", n.getSuffixes(), s -> s);
+                g.writeEndObject();
+            }
+
+            g.writeEndArray();
+        }
+
+        writeStrings(g, "titles", card.getTitles(), Title::getValue);
+        writeStrings(g, "roles", card.getRoles(), Role::getValue);
+        if (!card.getOrganizations().isEmpty()) {
+            g.writeArrayFieldStart("organizations");
+            for (final Organization o : card.getOrganizations()) {
+                g.writeStartArray();
+                for (final String unit : o.getValues()) {
+                    g.writeString(unit);
+                }
+
+                g.writeEndArray();
+            }
+
+            g.writeEndArray();
+        }
+
+        if (!card.getEmails().isEmpty()) {
+            g.writeArrayFieldStart("emails");
+            for (final Email e : card.getEmails()) {
+                g.writeStartObject();
+                g.writeStringField("value", e.getValue());
+                writeTypes(g, values(e.getTypes(), EmailType::getValue));
+                g.writeEndObject();
+            }
+
+            g.writeEndArray();
+        }
+
+        if (!card.getTelephoneNumbers().isEmpty()) {
+            g.writeArrayFieldStart("telephoneNumbers");
+            for (final Telephone t : card.getTelephoneNumbers()) {
+                g.writeStartObject();
+                g.writeStringField("value", VCardUtil.phoneNumber(t));
+                writeTypes(g, values(t.getTypes(), TelephoneType::getValue));
+                g.writeEndObject();
+            }
+
+            g.writeEndArray();
+        }
+
+        writeStrings(g, "urls", card.getUrls(), Url::getValue);
+        if (!card.getAddresses().isEmpty()) {
+            g.writeArrayFieldStart("addresses");
+            for (final Address a : card.getAddresses()) {
+                g.writeStartObject();
+                writeTypes(g, values(a.getTypes(), AddressType::getValue));
+                final List<String> parts = addressParts(a);
+                for (int i = 0; i < ADDRESS_FIELDS.size(); i++) {
+                    writeOptional(g, ADDRESS_FIELDS.get(i), parts.get(i));
+                }
+
+                g.writeEndObject();
+            }
+
+            g.writeEndArray();
+        }
+
+        writeStrings(g, "birthdays", card.getBirthdays(), ContactTable::birthday);
+        g.writeEndObject();
+    }
+
+    private static <T> List<String> values(final List<T> types, final Function<T, String> value) {
+        final List<String> values = new ArrayList<>(types.size());
+        for (final T type : types) {
+            values.add(value.apply(type));
+        }
+
+        return values;
+    }
+
+    /**
+     * Reads one line, skipping blank ones.
+     *
+     * @return the line, or null at the end of the text
+     */
+    private static String readLine(final BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isBlank()) {
+                return line;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads a JSON value into strings, lists and maps, with null for JSON null and the text of other scalars.
+     */
+    private static Object readValue(final JsonParser p) throws IOException {
+        switch (p.currentToken()) {
+            case START_OBJECT:
+                final Map<String, Object> object = new LinkedHashMap<>();
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = p.getCurrentName();
+                    p.nextToken();
+                    object.put(name, readValue(p));
+                }
+
+                return object;
+            case START_ARRAY:
+                final List<Object> array = new ArrayList<>();
+                while (p.nextToken() != JsonToken.END_ARRAY) {
+                    array.add(readValue(p));
+                }
+
+                return array;
+            case VALUE_NULL:
+                return null;
+            default:
+                return p.getText();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(final Map<String, Object> object, final String field) {
+        final Object value = object.get(field);
+        return value instanceof List ? (List<Object>) value : Collections.emptyList();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> objects(final Map<String, Object> object, final String field) {
+        final List<Map<String, Object>> objects = new ArrayList<>();
+        for (final Object value : list(object, field)) {
+            if (value instanceof Map) {
+                objects.add((Map<String, Object>) value);
+            }
+        }
+
+        return objects;
+    }
+
+    private static List<String> strings(final List<Object> values) {
+        final List<String> strings = new ArrayList<>(values.size());
+        for (final Object value : values) {
+            if (value instanceof String) {
+                strings.add((String) value);
+            }
+        }
+
+        return strings;
+    }
+
+    private static String string(final Map<String, Object> object, final String field) {
+        final Object value = object.get(field);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Makes a card from one line of JSON Lines.
+     *
+     * @throws UncheckedIOException if the line is not a JSON object
+     */
+    @SuppressWarnings("unchecked")
+    static VCard fromJson(final String line) {
+        final Map<String, Object> object;
+        try (final JsonParser p = JSON.createParser(line)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("not a JSON object: " + line);
+            }
+
+            object = (Map<String, Object>) readValue(p);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        final VCard card = new VCard();
+        for (final String fn : strings(list(object, "formattedNames"))) {
+            card.addFormattedName(new FormattedName(fn));
+        }
+
+        for (final Map<String, Object> name : objects(object, "names")) {
+            final StructuredName n = new StructuredName();
+            n.getPrefixes().addAll(strings(list(name, "prefixes")));
+            n.setGiven(string(name, "given"));
+            n.getAdditionalNames().addAll(strings(list(name, "additionalNames")));
+            n.setFamily(string(name, "family"));
+            n.getSuffixes().addAll(strings(list(name, "suffixes")));
+            card.addProperty(n);
+        }
+
+        for (final String title : strings(list(object, "titles"))) {
+            card.addTitle(title);
+        }
+
+        for (final String role : strings(list(object, "roles"))) {
+            card.addRole(role);
+        }
+
+        for (final Object units : list(object, "organizations")) {
+            if (units instanceof List) {
+                final Organization organization = new Organization();
+                organization.getValues().addAll(strings((List<Object>) units));
+                card.addOrganization(organization);
+            }
+        }
+
+        for (final Map<String, Object> e : objects(object, "emails")) {
+            final Email email = new Email(string(e, "value"));
+            for (final String type : strings(list(e, "types"))) {
+                email.getTypes().add(EmailType.get(type));
+            }
+
+            card.addEmail(email);
+        }
+
+        for (final Map<String, Object> t : objects(object, "telephoneNumbers")) {
+            final Telephone phone = new Telephone(string(t, "value"));
+            for (final String type : strings(list(t, "types"))) {
+                phone.getTypes().add(TelephoneType.get(type));
+            }
+
+            card.addTelephoneNumber(phone);
+        }
+
+        for (final String url : strings(list(object, "urls"))) {
+            card.addUrl(url);
+        }
+
+        for (final Map<String, Object> a : objects(object, "addresses")) {
+            final List<String> parts = new ArrayList<>(ADDRESS_FIELDS.size());
+            for (final String field : ADDRESS_FIELDS) {
+                parts.add(text(string(a, field)));
+            }
+
+            final Address address = address(parts);
+            for (final String type : strings(list(a, "types"))) {
+                address.getTypes().add(AddressType.get(type));
+            }
+
+            card.addAddress(address);
+        }
+
+        for (final String birthday : strings(list(object, "birthdays"))) {
+            card.addProperty(birthday(birthday));
+        }
+
+        return card;
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.stackframe;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows the totals recorded by {@link Metrics} for each phase of work, and how often each rule of the
+ * {@link CardCleaner}s it is given changed or removed a property, refreshed while the dialog is open.
+ */
+class DiagnosticsDialog extends JDialog {
+
+    private static final String[] COLUMNS = {"Phase", "Count", "Total", "Max", "Cards", "Bytes", "Cards/s"};
+    private static final String[] RULE_COLUMNS = {"Cleaner", "Cleanup rule", "Changed", "Removed"};
+
+    private static class MetricsTableModel extends AbstractTableModel {
+
+        @Override
+        public int getRowCount() {
+            return Metrics.Phase.values().length;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(final int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(final int row, final int column) {
+            final Metrics.Phase phase = Metrics.Phase.values()[row];
+            switch (column) {
+                case 0:
+                    return phase.getLabel();
+                case 1:
+                    return phase.getCount();
+                case 2:
+                    return Metrics.format(phase.getNanos());
+                case 3:
+                    return Metrics.format(phase.getMaxNanos());
+                case 4:
+                    return phase.getCards();
+                case 5:
+                    return phase.getBytes();
+                default:
+                    final long nanos = phase.getNanos();
+                    return nanos == 0 ? "" : String.format("%,.0f", phase.getCards() * 1e9 / nanos);
+            }
+        }
+
+    }
+
+    private static class RuleTableModel extends AbstractTableModel {
+
+        private final List<String> cleaners = new ArrayList<>();
+        private final List<CardCleaner.Counter> counters = new ArrayList<>();
+
+        private RuleTableModel(final Map<String, CardCleaner> cleaners) {
+            cleaners.forEach((name, cleaner) -> {
+                for (final CardCleaner.Counter counter : cleaner.getCounters()) {
+                    this.cleaners.add(name);
+                    counters.add(counter);
+                }
+            });
+        }
+
+        @Override
+        public int getRowCount() {
+            return counters.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return RULE_COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(final int column) {
+            return RULE_COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(final int row, final int column) {
+            final CardCleaner.Counter counter = counters.get(row);
+            switch (column) {
+                case 0:
+                    return cleaners.get(row);
+                case 1:
+                    return counter.getName();
+                case 2:
+                    return counter.getChanged();
+                default:
+                    return counter.getRemoved();
+            }
+        }
+
+    }
+
+    /**
+     * @param cleaners the cleaners whose rules are counted, by what they are used for
+     */
+    DiagnosticsDialog(final Frame owner, final Map<String, CardCleaner> cleaners) {
+        super(owner, "Diagnostics", false);
+        setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        final MetricsTableModel model = new MetricsTableModel();
+        final JTable table = new JTable(model);
+        table.getTableHeader().setToolTipText("Totals since startup or the last reset");
+
+        final RuleTableModel rules = new RuleTableModel(cleaners);
+        final JTable ruleTable = new JTable(rules);
+        ruleTable.getTableHeader().setToolTipText("Properties changed or removed since startup or the last reset");
+
+        final JComponent tables = new JPanel(new GridLayout(2, 1));
+        tables.add(new JScrollPane(table));
+        tables.add(new JScrollPane(ruleTable));
+        getContentPane().add(tables, BorderLayout.CENTER);
+
+        final JComponent buttons = new JPanel();
+        if (!Metrics.ENABLED) {
+            buttons.add(new JLabel("Recording is off (-Dcontactcurator.metrics=false)."));
+        }
+
+        final JButton resetButton = new JButton("Reset");
+        buttons.add(resetButton);
+        resetButton.addActionListener(actionEvent -> {
+            Metrics.reset();
+            cleaners.values().forEach(CardCleaner::resetCounters);
+            model.fireTableDataChanged();
+            rules.fireTableDataChanged();
+        });
+        getContentPane().add(buttons, BorderLayout.SOUTH);
+
+        final Timer refresh = new Timer(1000, actionEvent -> {
+            model.fireTableDataChanged();
+            rules.fireTableDataChanged();
+        });
+        refresh.start();
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(final WindowEvent e) {
+                refresh.stop();
+            }
+        });
+
+        setSize(600, 400);
+        setLocationRelativeTo(owner);
+    }
+
+}
@@ -0,0 +1,305 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.property.Email;
+import ezvcard.property.FormattedName;
+import ezvcard.property.StructuredName;
+import ezvcard.property.Telephone;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Finds groups of cards that probably describe the same contact. Candidate pairs come only from cards that share a
+ * blocking key (a normalized email address, the trailing digits of a phone number, or a phonetic form of the family
+ * and given names), so the work grows with the number of key collisions rather than with the square of the number of
+ * cards. Each candidate pair is scored on everything the two cards share, and pairs that reach the threshold are
+ * clustered with a union-find. Key extraction and scoring run in parallel.
+ * <p>
+ * The default threshold takes a shared email address, or a shared phone number together with the same or a similar
+ * sounding name. A phone number or a name alone is not enough: a switchboard or household number, or a common name,
+ * is shared by different people, and the union-find would chain them all into one group.
+ */
+public final class DuplicateDetector {
+
+    public static final double DEFAULT_THRESHOLD = 1.0;
+
+    private static final double EMAIL_SCORE = 1.0;
+    private static final double PHONE_SCORE = 0.8;
+    private static final double NAME_SCORE = 0.6;
+    private static final double PHONETIC_NAME_SCORE = 0.3;
+
+    /**
+     * Blocks larger than this (a shared switchboard number, a very common name) say little about any one pair and
+     * would cost a quadratic number of comparisons, so they are not used to generate candidates.
+     */
+    private static final int MAX_BLOCK = 500;
+
+    private final double threshold;
+
+    public DuplicateDetector() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public DuplicateDetector(final double threshold) {
+        this.threshold = threshold;
+    }
+
+    private static final class Features {
+
+        final String[] emails;
+        final String[] phones;
+        final String name;
+        final String phonetic;
+
+        Features(final String[] emails, final String[] phones, final String name, final String phonetic) {
+            this.emails = emails;
+            this.phones = phones;
+            this.name = name;
+            this.phonetic = phonetic;
+        }
+
+    }
+
+    private static final class IntList {
+
+        private int[] values = new int[2];
+        private int size;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+    }
+
+    private static String letters(final String s) {
+        if (s == null) {
+            return "";
+        }
+
+        final String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        final StringBuilder b = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            if (Character.isLetter(c)) {
+                b.append(Character.toLowerCase(c));
+            }
+        }
+
+        return b.toString();
+    }
+
+    /**
+     * American Soundex, applied to a string that has already been reduced to lower case letters.
+     */
+    static String soundex(final String letters) {
+        if (letters.isEmpty()) {
+            return "";
+        }
+
+        final String codes = "01230120022455012623010202";
+        final StringBuilder b = new StringBuilder(4);
+        b.append(letters.charAt(0));
+        char previous = code(codes, letters.charAt(0));
+        for (int i = 1; i < letters.length() && b.length() < 4; i++) {
+            final char c = letters.charAt(i);
+            final char code = code(codes, c);
+            if (code != '0' && code != previous) {
+                b.append(code);
+            }
+
+            if (c != 'h' && c != 'w') {
+                previous = code;
+            }
+        }
+
+        while (b.length() < 4) {
+            b.append('0');
+        }
+
+        return b.toString();
+    }
+
+    private static char code(final String codes, final char c) {
+        return c >= 'a' && c <= 'z' ? codes.charAt(c - 'a') : '0';
+    }
+
+    private static Features features(final VCard card) {
+        final Set<String> emails = new LinkedHashSet<>();
+        for (final Email e : card.getEmails()) {
+            final String key = VCardUtil.normalizeEmail(e.getValue());
+            if (key != null) {
+                emails.add(key);
+            }
+        }
+
+        final Set<String> phones = new LinkedHashSet<>();
+        for (final Telephone t : card.getTelephoneNumbers()) {
+            final String key = VCardUtil.normalizePhone(t);
+            if (key != null) {
+                phones.add(key);
+            }
+        }
+
+        String family = "";
+        String given = "";
+        final StructuredName n = card.getStructuredName();
+        if (n != null) {
+            family = letters(n.getFamily());
+            given = letters(n.getGiven());
+        }
+
+        if (family.isEmpty() && given.isEmpty()) {
+            final FormattedName fn = card.getFormattedName();
+            if (fn != null && fn.getValue() != null) {
+                final String[] words = fn.getValue().trim().split("\\s+");
+                given = letters(words[0]);
+                family = words.length > 1 ? letters(words[words.length - 1]) : "";
+            }
+        }
+
+        final String name = family.isEmpty() && given.isEmpty() ? null : family + '|' + given;
+        final String phonetic = name == null ? null : soundex(family) + '|' + soundex(given);
+        return new Features(emails.toArray(new String[0]), phones.toArray(new String[0]), name, phonetic);
+    }
+
+    private static boolean intersects(final String[] a, final String[] b) {
+        for (final String x : a) {
+            for (final String y : b) {
+                if (x.equals(y)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private double score(final Features a, final Features b) {
+        double score = 0;
+        if (intersects(a.emails, b.emails)) {
+            score += EMAIL_SCORE;
+        }
+
+        if (intersects(a.phones, b.phones)) {
+            score += PHONE_SCORE;
+        }
+
+        if (a.name != null && a.name.equals(b.name)) {
+            score += NAME_SCORE;
+        } else if (a.phonetic != null && a.phonetic.equals(b.phonetic)) {
+            score += PHONETIC_NAME_SCORE;
+        }
+
+        return score;
+    }
+
+    private static void index(final Map<String, IntList> index, final String key, final int i) {
+        index.computeIfAbsent(key, k -> new IntList()).add(i);
+    }
+
+    /**
+     * Finds the duplicate groups in a list of cards. The list must not be modified while this runs. Each card is read
+     * once and only its keys are kept, so a list that parses its cards when they are read never holds them all.
+     *
+     * @param cards the cards to examine
+     * @return the groups of two or more cards that are probably the same contact, as ascending indices into
+     * {@code cards}, ordered by their first member
+     */
+    public List<int[]> findDuplicates(final List<VCard> cards) {
+        final int n = cards.size();
+        final Features[] features = new Features[n];
+        IntStream.range(0, n).parallel().forEach(i -> features[i] = features(cards.get(i)));
+
+        final Map<String, IntList> index = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            final Features f = features[i];
+            for (final String email : f.emails) {
+                index(index, "e:" + email, i);
+            }
+
+            for (final String phone : f.phones) {
+                index(index, "p:" + phone, i);
+            }
+
+            if (f.phonetic != null) {
+                index(index, "n:" + f.phonetic, i);
+            }
+        }
+
+        final List<long[]> matches = index.values().parallelStream()
+                .filter(block -> block.size() > 1 && block.size() <= MAX_BLOCK)
+                .map(block -> {
+                    final int[] members = block.toArray();
+                    long[] pairs = new long[0];
+                    int count = 0;
+                    for (int x = 0; x < members.length; x++) {
+                        for (int y = x + 1; y < members.length; y++) {
+                            if (score(features[members[x]], features[members[y]]) >= threshold) {
+                                if (count == pairs.length) {
+                                    pairs = Arrays.copyOf(pairs, Math.max(4, count * 2));
+                                }
+
+                                pairs[count++] = (long) members[x] << 32 | members[y];
+                            }
+                        }
+                    }
+
+                    return Arrays.copyOf(pairs, count);
+                })
+                .filter(pairs -> pairs.length > 0)
+                .collect(Collectors.toList());
+
+        final UnionFind clusters = new UnionFind(n);
+        for (final long[] pairs : matches) {
+            for (final long pair : pairs) {
+                clusters.union((int) (pair >>> 32), (int) pair);
+            }
+        }
+
+        final int[] roots = new int[n];
+        final int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            roots[i] = clusters.find(i);
+            sizes[roots[i]]++;
+        }
+
+        final Map<Integer, IntList> groups = new HashMap<>();
+        final List<IntList> ordered = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (sizes[roots[i]] > 1) {
+                IntList group = groups.get(roots[i]);
+                if (group == null) {
+                    group = new IntList();
+                    groups.put(roots[i], group);
+                    ordered.add(group);
+                }
+
+                group.add(i);
+            }
+        }
+
+        return ordered.stream().map(IntList::toArray).collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.stackframe;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * Lists the groups of probable duplicates found by a {@link DuplicateDetector}. Choosing a group selects its cards in
+ * the main window; the selected group or all of them can then be merged.
+ */
+class DuplicatesDialog extends JDialog {
+
+    private static String describe(final List<CardEntry> group) {
+        final StringBuilder b = new StringBuilder();
+        for (final CardEntry entry : group) {
+            if (b.length() > 0) {
+                b.append(" / ");
+            }
+
+            b.append(entry.getDisplayName());
+        }
+
+        b.append(" (" + group.size() + ")");
+        return b.toString();
+    }
+
+    DuplicatesDialog(final Frame owner, final List<List<CardEntry>> groups, final Consumer<List<CardEntry>> selector,
+                     final BiPredicate<List<List<CardEntry>>, MergePrecedence> merger) {
+        super(owner, groups.size() + " Duplicate Groups", false);
+        setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        final DefaultListModel<List<CardEntry>> model = new DefaultListModel<>();
+        groups.forEach(model::addElement);
+        final JList<List<CardEntry>> groupList = new JList<>(model);
+        groupList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        groupList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(final JList jList, final Object o, final int index,
+                                                          final boolean isSelected, final boolean hasFocus) {
+                @SuppressWarnings("unchecked") final List<CardEntry> group = (List<CardEntry>) o;
+                return super.getListCellRendererComponent(jList, describe(group), index, isSelected, hasFocus);
+            }
+        });
+        groupList.addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting() && groupList.getSelectedValue() != null) {
+                selector.accept(groupList.getSelectedValue());
+            }
+        });
+
+        getContentPane().add(new JScrollPane(groupList), BorderLayout.CENTER);
+
+        final JComponent buttons = new JPanel();
+        final JLabel precedenceLabel = new JLabel("Prefer");
+        buttons.add(precedenceLabel);
+        final JComboBox<MergePrecedence> precedencePicker = new JComboBox<>(MergePrecedence.values());
+        precedenceLabel.setLabelFor(precedencePicker);
+        buttons.add(precedencePicker);
+        final JButton mergeButton = new JButton("Merge");
+        buttons.add(mergeButton);
+        mergeButton.addActionListener(actionEvent -> {
+            final int selected = groupList.getSelectedIndex();
+            if (selected >= 0 && merger.test(Collections.singletonList(model.get(selected)),
+                    precedencePicker.getItemAt(precedencePicker.getSelectedIndex()))) {
+                model.remove(selected);
+                setTitle(model.size() + " Duplicate Groups");
+            }
+        });
+        final JButton mergeAllButton = new JButton("Merge All");
+        buttons.add(mergeAllButton);
+        mergeAllButton.addActionListener(actionEvent -> {
+            if (merger.test(Collections.list(model.elements()),
+                    precedencePicker.getItemAt(precedencePicker.getSelectedIndex()))) {
+                dispose();
+            }
+        });
+        getContentPane().add(buttons, BorderLayout.SOUTH);
+        setSize(600, 400);
+        setLocationRelativeTo(owner);
+    }
+
+}
@@ -0,0 +1,782 @@
+package com.stackframe;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only journal of the edits made to an open address book since it was last saved, so that they survive a
+ * crash, or quitting without saving, at the cost of a small sequential write per edit rather than a full save. The
+ * journal is anchored to the address book file as it was last read or saved, and replaying it on top of that file
+ * gives the cards as they were after the last edit. Saving the address book makes the journal redundant, and it is
+ * deleted.
+ * <p>
+ * Each edit is recorded in terms of store positions, in the same form as a {@link CardReloader.Diff}: cards replaced
+ * in place, then positions removed, then cards appended. Where the cards no longer match their file in order, such as
+ * after a reload, the journal starts over with a checkpoint of every card instead. A checkpoint refers to the text of
+ * each unmodified card by its range in the file, so only the cards that differ from the file are written out, and
+ * replaying it leaves the cards read from those ranges as they are.
+ * <p>
+ * Records are written by a background thread, which writes everything appended since its last write at once and then
+ * forces it to disk once for all of it, so a burst of edits costs one sync. Each record is framed by its length and
+ * CRC-32C, so a record torn by a crash is recognized and dropped on replay. The first write failure stops the
+ * journal: it is passed to the failure handler, and later edits are no longer queued, as nothing would write them. The
+ * address book itself is unaffected.
+ * <p>
+ * The journal of {@code cards.vcf} is the hidden file {@code .cards.vcf.journal} next to it.
+ */
+final class EditJournal implements Closeable {
+
+    private static final int MAGIC = 0x43434a31;
+    private static final int FORMAT = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final byte EDIT = 0;
+    private static final byte CHECKPOINT = 1;
+    private static final byte SPAN = 0;
+    private static final byte TEXT = 1;
+
+    /**
+     * Changes to a list of cards, applied in order: cards replaced in place, then positions removed, then cards
+     * appended.
+     */
+    static final class Edit<T> {
+
+        private final List<Integer> changedPositions = new ArrayList<>();
+        private final List<T> changed = new ArrayList<>();
+        private final List<Integer> removed = new ArrayList<>();
+        private final List<T> added = new ArrayList<>();
+
+        /**
+         * @return an edit that appends cards
+         */
+        static <T> Edit<T> adding(final List<T> added) {
+            final Edit<T> edit = new Edit<>();
+            edit.added.addAll(added);
+            return edit;
+        }
+
+        /**
+         * Replaces the item at a position, which must be after any position already changed.
+         */
+        void change(final int position, final T item) {
+            changedPositions.add(position);
+            changed.add(item);
+        }
+
+        /**
+         * Removes the item at a position, which must be after any position already removed.
+         */
+        void remove(final int position) {
+            removed.add(position);
+        }
+
+        void add(final T item) {
+            added.add(item);
+        }
+
+        /**
+         * Works out the edit that turns one list into another, comparing items by identity.
+         *
+         * @param after the new list, which must keep the items of the old one that survive in their old order, with
+         *              any new items either in the place of removed ones or at the end
+         * @throws IllegalArgumentException if surviving items were reordered or a new item inserted before one
+         */
+        static <T> Edit<T> between(final List<T> before, final List<T> after) {
+            final Set<T> inBefore = Collections.newSetFromMap(new IdentityHashMap<>());
+            inBefore.addAll(before);
+            final Set<T> inAfter = Collections.newSetFromMap(new IdentityHashMap<>());
+            inAfter.addAll(after);
+            final Edit<T> edit = new Edit<>();
+            int j = 0;
+            for (int i = 0; i < before.size(); i++) {
+                final T next = j < after.size() ? after.get(j) : null;
+                if (next == before.get(i)) {
+                    j++;
+                } else if (inAfter.contains(before.get(i))) {
+                    throw new IllegalArgumentException("items reordered or inserted before position " + i);
+                } else if (next != null && !inBefore.contains(next)) {
+                    edit.change(i, next);
+                    j++;
+                } else {
+                    edit.remove(i);
+                }
+            }
+
+            edit.added.addAll(after.subList(j, after.size()));
+            return edit;
+        }
+
+        /**
+         * @return the same edit of a different kind of item
+         */
+        <R> Edit<R> map(final Function<? super T, ? extends R> f) {
+            final Edit<R> edit = new Edit<>();
+            edit.changedPositions.addAll(changedPositions);
+            changed.forEach(item -> edit.changed.add(f.apply(item)));
+            edit.removed.addAll(removed);
+            added.forEach(item -> edit.added.add(f.apply(item)));
+            return edit;
+        }
+
+        /**
+         * @return the positions of the items to replace, in ascending order
+         */
+        List<Integer> getChangedPositions() {
+            return changedPositions;
+        }
+
+        /**
+         * @return the replacement for each of {@link #getChangedPositions}
+         */
+        List<T> getChanged() {
+            return changed;
+        }
+
+        /**
+         * @return the positions of the items to remove, in ascending order
+         */
+        int[] getRemoved() {
+            return removed.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        List<T> getAdded() {
+            return added;
+        }
+
+        boolean isEmpty() {
+            return changedPositions.isEmpty() && removed.isEmpty() && added.isEmpty();
+        }
+
+        /**
+         * Applies the edit to a list.
+         */
+        void applyTo(final List<T> items) {
+            for (int i = 0; i < changedPositions.size(); i++) {
+                items.set(changedPositions.get(i), changed.get(i));
+            }
+
+            int next = 0;
+            int kept = 0;
+            for (int i = 0; i < items.size(); i++) {
+                if (next < removed.size() && removed.get(next) == i) {
+                    next++;
+                } else {
+                    items.set(kept++, items.get(i));
+                }
+            }
+
+            items.subList(kept, items.size()).clear();
+            items.addAll(added);
+        }
+
+    }
+
+    /**
+     * What was found in a journal when its address book was opened.
+     */
+    static final class Recovery {
+
+        private final Edit<CardEntry> edit;
+        private final Path stale;
+
+        private Recovery(final Edit<CardEntry> edit, final Path stale) {
+            this.edit = edit;
+            this.stale = stale;
+        }
+
+        /**
+         * @return the edits recorded in the journal, folded into one, or null if the journal was stale
+         */
+        Edit<CardEntry> getEdit() {
+            return edit;
+        }
+
+        /**
+         * @return where a journal that was recorded against a different version of the address book was moved to, or
+         * null
+         */
+        Path getStale() {
+            return stale;
+        }
+
+    }
+
+    /**
+     * The cards to start a journal over with, taken on the calling thread, as their ranges in the file may change
+     * before the writer thread gets to them.
+     */
+    private static final class Checkpoint {
+
+        private final List<CardEntry> entries;
+        private final long[] starts;
+        private final long[] ends;
+
+        private Checkpoint(final List<CardEntry> entries) {
+            this.entries = new ArrayList<>(entries);
+            starts = new long[entries.size()];
+            ends = new long[entries.size()];
+            for (int i = 0; i < starts.length; i++) {
+                final CardEntry entry = this.entries.get(i);
+                final boolean unchanged = entry.hasSource(entry.getVersion());
+                starts[i] = unchanged ? entry.getSourceStart() : -1;
+                ends[i] = unchanged ? entry.getSourceEnd() : -1;
+            }
+        }
+
+    }
+
+    /**
+     * A request to the writer thread.
+     */
+    private static final class Request {
+
+        private enum Kind {APPEND, RESTART, DELETE, CLOSE}
+
+        private final Kind kind;
+        private final Edit<CardEntry> edit;
+        private final CardStore.Source base;
+        private final Checkpoint checkpoint;
+
+        private Request(final Kind kind, final Edit<CardEntry> edit, final CardStore.Source base,
+                        final Checkpoint checkpoint) {
+            this.kind = kind;
+            this.edit = edit;
+            this.base = base;
+            this.checkpoint = checkpoint;
+        }
+
+    }
+
+    private final Path path;
+    private final BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Consumer<IOException> onFailure;
+    private volatile IOException failure;
+    private FileChannel channel;
+
+    private EditJournal(final Path path, final Consumer<IOException> onFailure) {
+        this.path = path;
+        this.onFailure = onFailure;
+        writer = new Thread(this::run, "journal for " + path.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return where the journal of an address book file is kept
+     */
+    static Path journalFile(final Path file) {
+        final Path absolute = file.toAbsolutePath();
+        return absolute.resolveSibling("." + absolute.getFileName() + ".journal");
+    }
+
+    /**
+     * Starts a new journal, replacing any earlier one.
+     *
+     * @param base       the address book file as it was last read or saved
+     * @param checkpoint every card, if the cards no longer match the file in order, or null; an unmodified card's
+     *                   range in its file must be a range of the base
+     * @param onFailure  called on the writer thread with the failure that stopped the journal
+     */
+    static EditJournal start(final Path file, final CardStore.Source base, final List<CardEntry> checkpoint,
+                             final Consumer<IOException> onFailure) {
+        final EditJournal journal = new EditJournal(journalFile(file), onFailure);
+        journal.restart(base, checkpoint);
+        return journal;
+    }
+
+    /**
+     * Carries on appending to the journal that was just recovered.
+     *
+     * @param onFailure called on the writer thread with the failure that stopped the journal
+     */
+    static EditJournal resume(final Path file, final Consumer<IOException> onFailure) {
+        return new EditJournal(journalFile(file), onFailure);
+    }
+
+    /**
+     * @return the failure that stopped the journal, or null if it is still being written
+     */
+    IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Records an edit. Once the journal has stopped, the edit is dropped.
+     */
+    void append(final Edit<CardEntry> edit) {
+        if (!edit.isEmpty() && failure == null) {
+            pending.add(new Request(Request.Kind.APPEND, edit, null, null));
+        }
+    }
+
+    /**
+     * Starts the journal over against a different version of the address book file.
+     *
+     * @param base       the address book file as it was last read or saved
+     * @param checkpoint every card, if the cards no longer match the file in order, or null; an unmodified card's
+     *                   range in its file must be a range of the base
+     */
+    void restart(final CardStore.Source base, final List<CardEntry> checkpoint) {
+        if (failure != null) {
+            return;
+        }
+
+        pending.add(new Request(Request.Kind.RESTART, null, base,
+                checkpoint != null ? new Checkpoint(checkpoint) : null));
+    }
+
+    /**
+     * Deletes the journal once everything before it is written, as the address book was saved.
+     */
+    void delete() {
+        if (failure == null) {
+            pending.add(new Request(Request.Kind.DELETE, null, null, null));
+            return;
+        }
+
+        // The writer has stopped, leaving a journal that is missing edits the address book now holds.
+        try {
+            writer.join();
+            Files.deleteIfExists(path);
+        } catch (final IOException e) {
+            // Its base no longer matches the file, so recovery keeps it aside rather than replaying it.
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops journaling, keeping the journal for recovery, and waits until everything appended so far is written, or
+     * until the journal has stopped; see {@link #getFailure()}.
+     */
+    @Override
+    public void close() {
+        pending.add(new Request(Request.Kind.CLOSE, null, null, null));
+        try {
+            writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        final List<Request> requests = new ArrayList<>();
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        try {
+            while (true) {
+                requests.add(pending.take());
+                pending.drainTo(requests);
+                for (final Request request : requests) {
+                    if (request.kind == Request.Kind.APPEND) {
+                        record(records, request.edit);
+                        continue;
+                    }
+
+                    flush(records);
+                    if (request.kind == Request.Kind.RESTART) {
+                        rewrite(request.base, request.checkpoint);
+                    } else {
+                        closeChannel();
+                        if (request.kind == Request.Kind.DELETE) {
+                            Files.deleteIfExists(path);
+                        }
+
+                        return;
+                    }
+                }
+
+                flush(records);
+                requests.clear();
+            }
+        } catch (final IOException e) {
+            try {
+                closeChannel();
+            } catch (final IOException closing) {
+                e.addSuppressed(closing);
+            }
+
+            failure = e;
+            onFailure.accept(e);
+        } catch (final InterruptedException e) {
+            // The journal is only written by this daemon thread, which is never interrupted.
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes the records gathered so far and forces them to disk.
+     */
+    private void flush(final ByteArrayOutputStream records) throws IOException {
+        if (records.size() == 0) {
+            return;
+        }
+
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        channel.force(false);
+        records.reset();
+    }
+
+    private void rewrite(final CardStore.Source base, final Checkpoint checkpoint) throws IOException {
+        closeChannel();
+        // The journal holds the address book's cards, so it is as readable as the address book.
+        CardFileWriter.replace(path, base.getPath(), target -> {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(base.getSize());
+            out.writeLong(base.getModified().toMillis());
+            if (checkpoint != null) {
+                final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                final DataOutputStream record = new DataOutputStream(payload);
+                record.writeByte(CHECKPOINT);
+                record.writeInt(checkpoint.entries.size());
+                for (int i = 0; i < checkpoint.starts.length; i++) {
+                    if (checkpoint.starts[i] >= 0) {
+                        record.writeByte(SPAN);
+                        record.writeLong(checkpoint.starts[i]);
+                        record.writeLong(checkpoint.ends[i]);
+                    } else {
+                        final byte[] text = CardFileWriter.encode(checkpoint.entries.get(i).getCard());
+                        record.writeByte(TEXT);
+                        record.writeInt(text.length);
+                        record.write(text);
+                    }
+                }
+
+                frame(out, payload.toByteArray());
+            }
+
+            target.write(ByteBuffer.wrap(bytes.toByteArray()));
+        }, percent -> {
+        });
+    }
+
+    private static void writeCards(final DataOutputStream out, final List<CardEntry> entries) throws IOException {
+        out.writeInt(entries.size());
+        for (final CardEntry entry : entries) {
+            final byte[] text = CardFileWriter.encode(entry.getCard());
+            out.writeInt(text.length);
+            out.write(text);
+        }
+    }
+
+    private static void record(final ByteArrayOutputStream records, final Edit<CardEntry> edit) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(EDIT);
+        out.writeInt(edit.changedPositions.size());
+        for (final int position : edit.changedPositions) {
+            out.writeInt(position);
+        }
+
+        writeCards(out, edit.changed);
+        out.writeInt(edit.removed.size());
+        for (final int position : edit.removed) {
+            out.writeInt(position);
+        }
+
+        writeCards(out, edit.added);
+        frame(new DataOutputStream(records), payload.toByteArray());
+    }
+
+    private static void frame(final DataOutputStream out, final byte[] payload) throws IOException {
+        final CRC32C crc = new CRC32C();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * @return the card, or null if the record is damaged
+     */
+    private static VCard readCard(final ByteBuffer in) {
+        final int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            return null;
+        }
+
+        final byte[] text = new byte[length];
+        in.get(text);
+        return Ezvcard.parse(new String(text, StandardCharsets.UTF_8)).first();
+    }
+
+    /**
+     * @return the cards, or null if the record is damaged
+     */
+    private static List<VCard> readCards(final ByteBuffer in) {
+        final int count = in.getInt();
+        final List<VCard> cards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final VCard card = readCard(in);
+            if (card == null) {
+                return null;
+            }
+
+            cards.add(card);
+        }
+
+        return cards;
+    }
+
+    /**
+     * A card of a checkpoint that is the text in a range of the file.
+     */
+    private static final class Span {
+
+        private final long start;
+        private final long end;
+
+        /**
+         * The card that was read from the range, or null if none was.
+         */
+        private final Object read;
+
+        private Span(final long start, final long end, final Object read) {
+            this.start = start;
+            this.end = end;
+            this.read = read;
+        }
+
+        VCard parse(final Path file) throws IOException {
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (start < 0 || end < start || end > channel.size()) {
+                    throw new IOException("[" + start + ", " + end + ") is outside " + file);
+                }
+
+                final List<VCard> cards = ParallelVCardParser.parse(ParallelVCardParser.read(channel, start, end),
+                        card -> card);
+                if (cards.size() != 1) {
+                    throw new IOException("no card at " + start + " in " + file);
+                }
+
+                return cards.get(0);
+            }
+        }
+
+    }
+
+    /**
+     * Reads a checkpoint, whose cards are either parsed or {@link Span spans} of the file.
+     *
+     * @param read the cards read from the file, by where their text starts
+     * @return the cards, or null if the record is damaged
+     */
+    private static List<Object> readCheckpoint(final ByteBuffer in, final Map<Long, Object> read) {
+        final int count = in.getInt();
+        final List<Object> cards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (in.get() == TEXT) {
+                final VCard card = readCard(in);
+                if (card == null) {
+                    return null;
+                }
+
+                cards.add(card);
+            } else {
+                final long start = in.getLong();
+                cards.add(new Span(start, in.getLong(), read.get(start)));
+            }
+        }
+
+        return cards;
+    }
+
+    /**
+     * Turns the spans of replayed cards into the cards read from them, where that keeps those cards in the order they
+     * were read in, and parses the rest again, as an edit can only replace cards in place and append new ones.
+     *
+     * @param before the cards read from the file
+     * @param after  the cards after replaying the journal
+     */
+    private static void resolveSpans(final List<Object> before, final List<Object> after, final Path file)
+            throws IOException {
+        final Map<Object, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < before.size(); i++) {
+            positions.put(before.get(i), i);
+        }
+
+        // The next position that can still be kept, and the new cards since the last one kept, each of which needs a
+        // position removed before the next one kept to take its place.
+        int next = 0;
+        int added = 0;
+        for (int i = 0; i < after.size(); i++) {
+            final Object card = after.get(i);
+            final Object read = card instanceof Span ? ((Span) card).read : card;
+            final Integer position = read == null ? null : positions.get(read);
+            if (position != null && position - next >= added) {
+                after.set(i, read);
+                next = position + 1;
+                added = 0;
+            } else {
+                if (card instanceof Span) {
+                    after.set(i, ((Span) card).parse(file));
+                }
+
+                added++;
+            }
+        }
+    }
+
+    /**
+     * @return the positions, or null if the record is damaged and refers to positions that are not there
+     */
+    private static List<Integer> readPositions(final ByteBuffer in, final int size) {
+        final int count = in.getInt();
+        final List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final int position = in.getInt();
+            if (position < 0 || position >= size) {
+                return null;
+            }
+
+            positions.add(position);
+        }
+
+        return positions;
+    }
+
+    /**
+     * Replays the journal of an address book that was just read. Recovered cards hold unsaved edits of the file's
+     * cards, so they are entries from the file that a reload keeps.
+     *
+     * @param base   the address book file as it was read
+     * @param starts for each card read from it, where its text starts in the file if it is unmodified, or -1
+     * @return what was found, or null if there is no journal, it records no edits or it cannot be read
+     */
+    static Recovery recover(final Path file, final CardStore.Source base, final long[] starts) {
+        final Path journalFile = journalFile(file);
+        try {
+            if (!Files.isRegularFile(journalFile)) {
+                return null;
+            }
+
+            final ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(journalFile));
+            final int format = in.remaining() < HEADER_BYTES || in.getInt() != MAGIC ? -1 : in.getInt();
+            if (format != FORMAT || in.getLong() != base.getSize()
+                    || in.getLong() != base.getModified().toMillis()) {
+                final Path stale = journalFile.resolveSibling(journalFile.getFileName() + ".stale");
+                Files.move(journalFile, stale, StandardCopyOption.REPLACE_EXISTING);
+                return new Recovery(null, stale);
+            }
+
+            // The cards read from the file stand for themselves; replaying only moves them around.
+            final List<Object> before = new ArrayList<>(starts.length);
+            final Map<Long, Object> read = new HashMap<>();
+            for (final long start : starts) {
+                final Object card = new Object();
+                before.add(card);
+                if (start >= 0) {
+                    read.put(start, card);
+                }
+            }
+
+            final List<Object> after = new ArrayList<>(before);
+            int valid = in.position();
+            while (in.remaining() >= 8) {
+                final int length = in.getInt();
+                final int checksum = in.getInt();
+                if (length < 1 || length > in.remaining()) {
+                    break;
+                }
+
+                final CRC32C crc = new CRC32C();
+                crc.update(in.array(), in.position(), length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                final ByteBuffer record = ByteBuffer.wrap(in.array(), in.position(), length).slice();
+                in.position(in.position() + length);
+                try {
+                    if (record.get() == CHECKPOINT) {
+                        final List<Object> checkpoint = readCheckpoint(record, read);
+                        if (checkpoint == null) {
+                            break;
+                        }
+
+                        after.clear();
+                        after.addAll(checkpoint);
+                    } else {
+                        final List<Integer> changedPositions = readPositions(record, after.size());
+                        final List<VCard> changed = changedPositions == null ? null : readCards(record);
+                        final List<Integer> removed = changed == null ? null : readPositions(record, after.size());
+                        final List<VCard> added = removed == null ? null : readCards(record);
+                        if (added == null || changed.size() != changedPositions.size()) {
+                            break;
+                        }
+
+                        final Edit<Object> edit = new Edit<>();
+                        edit.changedPositions.addAll(changedPositions);
+                        edit.changed.addAll(changed);
+                        edit.removed.addAll(removed);
+                        edit.added.addAll(added);
+                        edit.applyTo(after);
+                    }
+                } catch (final BufferUnderflowException e) {
+                    break;
+                }
+
+                valid = in.position();
+            }
+
+            if (valid < in.limit()) {
+                // A record torn by a crash is dropped, so that later records are appended after the last good one.
+                try (final FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+
+            resolveSpans(before, after, file);
+            final Edit<Object> edit = Edit.between(before, after);
+            return edit.isEmpty() ? null
+                    : new Recovery(edit.map(card -> CardEntry.edited(CardPhotos.offload((VCard) card), file)), null);
+        } catch (final IOException e) {
+            System.err.println(e);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * A vCard file mapped into memory, from which single cards are parsed on demand by their byte ranges. The operating
+ * system pages the text in and out as needed, so the heap only holds the cards that were parsed recently, which are
+ * kept in a small LRU cache.
+ * <p>
+ * A mapping keeps the file it was made from alive even if that file is replaced, so saving over it is safe. Another
+ * program may still rewrite or truncate the file in place while it is mapped, so a card is only parsed if its text
+ * still has the hash it had when it was read, and a read past the end of a truncated file fails with an
+ * {@link UncheckedIOException} rather than bringing the process down. A mapped file may be used from any thread.
+ */
+final class MappedCardFile {
+
+    /**
+     * A single mapping is limited to 2 GB, so larger files are mapped in segments of this many bytes.
+     */
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final int CACHE_SIZE = 256;
+
+    private final Path path;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+    private final Map<Long, VCard> cache = new LinkedHashMap<Long, VCard>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, VCard> eldest) {
+            return size() > CACHE_SIZE;
+        }
+
+    };
+
+    private MappedCardFile(final Path path, final long size, final MappedByteBuffer[] segments) {
+        this.path = path;
+        this.size = size;
+        this.segments = segments;
+    }
+
+    /**
+     * Maps a whole file. The mapping stays valid after the channel used to make it is closed.
+     */
+    static MappedCardFile map(final Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                final long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+
+            return new MappedCardFile(path, size, segments);
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the CRC-32C of the whole file
+     */
+    int checksum() {
+        final CRC32C crc = new CRC32C();
+        for (final MappedByteBuffer segment : segments) {
+            crc.update(segment.duplicate());
+        }
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Copies a range of the file.
+     *
+     * @throws UncheckedIOException if the file was truncated since it was mapped
+     */
+    byte[] read(final long start, final long end) {
+        if (start < 0 || end > size || start > end) {
+            throw new IndexOutOfBoundsException("[" + start + ", " + end + ") is outside the file");
+        }
+
+        final byte[] bytes = new byte[Math.toIntExact(end - start)];
+        int done = 0;
+        try {
+            while (done < bytes.length) {
+                final long position = start + done;
+                // Each reader gets its own view of the segment, so reads on different threads do not share a
+                // position.
+                final ByteBuffer segment = segments[(int) (position >> SEGMENT_BITS)].duplicate();
+                segment.position((int) (position & (SEGMENT_SIZE - 1)));
+                final int n = Math.min(bytes.length - done, segment.remaining());
+                segment.get(bytes, done, n);
+                done += n;
+            }
+        } catch (final InternalError e) {
+            // Touching a page past the end of a file truncated under the mapping faults, which the JVM reports so.
+            throw new UncheckedIOException(new IOException(path + " was truncated while it was mapped", e));
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Parses the single card in a range of the file. The card is shared with other callers and must not be modified.
+     *
+     * @param textHash the {@link CardSpans#hash} of the card's text when it was read, or 0 if it is not known
+     * @throws UncheckedIOException if the range does not hold a card, or no longer holds the text it was read with
+     */
+    VCard parse(final long start, final long end, final long textHash) {
+        synchronized (cache) {
+            final VCard card = cache.get(start);
+            if (card != null) {
+                return card;
+            }
+        }
+
+        final long begun = Metrics.now();
+        final byte[] bytes = read(start, end);
+        if (textHash != 0 && CardSpans.hash(bytes) != textHash) {
+            throw new UncheckedIOException(new IOException(path + " was rewritten at " + start
+                    + " while it was mapped"));
+        }
+
+        final List<VCard> cards;
+        try {
+            cards = ParallelVCardParser.parse(bytes, card -> card);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (cards.size() != 1) {
+            throw new UncheckedIOException(new IOException(path + " has " + cards.size() + " cards at " + start));
+        }
+
+        Metrics.add(Metrics.Phase.PARSE, begun, 1, end - start);
+        final VCard card = cards.get(0);
+        synchronized (cache) {
+            cache.put(start, card);
+        }
+
+        return card;
+    }
+
+}
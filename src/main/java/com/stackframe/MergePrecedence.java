@@ -0,0 +1,41 @@
+package com.stackframe;
+
+/**
+ * Decides which card of a duplicate group wins when the group is merged by {@link VCardUtil#merge}. Properties a card
+ * can only have one of (name, birthday, UID, ...) are taken from the winner; everything else is the union of the
+ * group, listed in precedence order.
+ */
+public enum MergePrecedence {
+
+    /**
+     * The cards in the order they appear in the address book.
+     */
+    FIRST("First in file"),
+
+    /**
+     * The cards in reverse file order, for exports that append newer copies of a contact.
+     */
+    LAST("Last in file"),
+
+    /**
+     * The card with the most properties first.
+     */
+    MOST_COMPLETE("Most complete"),
+
+    /**
+     * The card with the latest REV timestamp first; cards without one keep their file order after those that have one.
+     */
+    NEWEST("Most recently revised");
+
+    private final String description;
+
+    MergePrecedence(final String description) {
+        this.description = description;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+}
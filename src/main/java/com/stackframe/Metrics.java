@@ -0,0 +1,269 @@
+package com.stackframe;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters for the phases of work that can be slow on a big address book. Each phase accumulates how
+ * often it ran, how long it took in total and at most, and how many cards and bytes it handled. Spans timed with
+ * {@link #start} are also emitted as {@code com.stackframe.Phase} Flight Recorder events.
+ * <p>
+ * The totals can be read in the diagnostics dialog or over JMX, where each phase is a {@link PhaseMetricsMXBean}
+ * named {@code com.stackframe:type=Metrics,phase=<name>}. Running with {@code -Dcontactcurator.metrics=false} turns
+ * recording off; every call then returns after one check of a constant.
+ */
+final class Metrics {
+
+    static final boolean ENABLED = !"false".equals(System.getProperty("contactcurator.metrics"));
+
+    enum Phase {
+
+        PARSE("Parse", "Reading and parsing vCard files, including cleanup"),
+        CLEANUP("Cleanup", "Cleaning up parsed cards"),
+        INDEX("Index", "Building the search index"),
+        RENDER("Render", "Showing a card in the detail view"),
+        SEARCH("Search", "Testing every card against an advanced search"),
+        SAVE("Save", "Serializing and writing vCard files");
+
+        private final String label;
+        private final String description;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder cards = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        Phase(final String label, final String description) {
+            this.label = label;
+            this.description = description;
+        }
+
+        String getLabel() {
+            return label;
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getNanos() {
+            return nanos.sum();
+        }
+
+        long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        long getCards() {
+            return cards.sum();
+        }
+
+        long getBytes() {
+            return bytes.sum();
+        }
+
+        void reset() {
+            count.reset();
+            nanos.reset();
+            maxNanos.reset();
+            cards.reset();
+            bytes.reset();
+        }
+
+        private void add(final long elapsed, final long cardCount, final long byteCount) {
+            count.increment();
+            nanos.add(elapsed);
+            maxNanos.accumulate(elapsed);
+            cards.add(cardCount);
+            bytes.add(byteCount);
+        }
+
+    }
+
+    @Name("com.stackframe.Phase")
+    @Label("Contact Curator Phase")
+    @Category("Contact Curator")
+    @Description("A timed phase of work such as parsing, indexing or saving")
+    static final class PhaseEvent extends Event {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Cards")
+        long cards;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+    }
+
+    /**
+     * A running span of one phase, stopped exactly once.
+     */
+    static final class Timer {
+
+        private static final Timer DISABLED = new Timer(null);
+
+        private final Phase phase;
+        private final long start;
+        private final PhaseEvent event;
+
+        private Timer(final Phase phase) {
+            this.phase = phase;
+            if (phase == null) {
+                start = 0;
+                event = null;
+            } else {
+                final PhaseEvent e = new PhaseEvent();
+                event = e.isEnabled() ? e : null;
+                if (event != null) {
+                    event.begin();
+                }
+
+                start = System.nanoTime();
+            }
+        }
+
+        void stop(final long cards, final long bytes) {
+            if (phase == null) {
+                return;
+            }
+
+            phase.add(System.nanoTime() - start, cards, bytes);
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.phase = phase.label;
+                    event.cards = cards;
+                    event.bytes = bytes;
+                    event.commit();
+                }
+            }
+        }
+
+    }
+
+    private Metrics() {
+        // This class has only static methods.
+    }
+
+    /**
+     * Starts timing a span of a phase.
+     */
+    static Timer start(final Phase phase) {
+        return ENABLED ? new Timer(phase) : Timer.DISABLED;
+    }
+
+    /**
+     * @return a start time for {@link #add}, or 0 if recording is off
+     */
+    static long now() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a small, frequent piece of a phase, such as one card's cleanup, without a Flight Recorder event.
+     *
+     * @param start a time from {@link #now}
+     */
+    static void add(final Phase phase, final long start, final long cards, final long bytes) {
+        if (ENABLED) {
+            phase.add(System.nanoTime() - start, cards, bytes);
+        }
+    }
+
+    static void reset() {
+        for (final Phase phase : Phase.values()) {
+            phase.reset();
+        }
+    }
+
+    static String format(final long nanos) {
+        return String.format(Locale.ROOT, "%.1f ms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Publishes each phase on the platform MBean server. Calling this more than once has no further effect.
+     */
+    static synchronized void registerMBeans() {
+        if (!ENABLED) {
+            return;
+        }
+
+        try {
+            for (final Phase phase : Phase.values()) {
+                final ObjectName name = new ObjectName("com.stackframe:type=Metrics,phase="
+                        + phase.name().toLowerCase(Locale.ROOT));
+                if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(new PhaseMetrics(phase), name);
+                }
+            }
+        } catch (final JMException e) {
+            System.err.println(e);
+            e.printStackTrace();
+        }
+    }
+
+    private static final class PhaseMetrics implements PhaseMetricsMXBean {
+
+        private final Phase phase;
+
+        PhaseMetrics(final Phase phase) {
+            this.phase = phase;
+        }
+
+        @Override
+        public String getDescription() {
+            return phase.description;
+        }
+
+        @Override
+        public long getCount() {
+            return phase.getCount();
+        }
+
+        @Override
+        public double getTotalMillis() {
+            return phase.getNanos() / 1e6;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return phase.getMaxNanos() / 1e6;
+        }
+
+        @Override
+        public long getCards() {
+            return phase.getCards();
+        }
+
+        @Override
+        public long getBytes() {
+            return phase.getBytes();
+        }
+
+        @Override
+        public void reset() {
+            phase.reset();
+        }
+
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.stackframe;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Runs a function over a sequence of inputs concurrently while delivering the results to a sink in input order. At
+ * most a fixed window of inputs is in flight at once, so memory use is bounded no matter how long the sequence is.
+ */
+final class OrderedParallel {
+
+    private OrderedParallel() {
+    }
+
+    /**
+     * A step that may fail with a checked exception.
+     */
+    interface Step<T, R> {
+
+        R apply(T t) throws Exception;
+
+    }
+
+    /**
+     * Applies a step to every input and passes the results to a sink, in order, on the calling thread.
+     *
+     * @param inputs    the inputs
+     * @param step      the step to apply to each input on the executor
+     * @param sink      receives each result in input order
+     * @param executor  the executor to run steps on
+     * @param window    the maximum number of steps submitted but not yet delivered
+     * @param cancelled checked between results; when it returns true, outstanding steps are cancelled
+     * @throws ExecutionException   if a step fails; the remaining steps are cancelled
+     * @throws InterruptedException if the calling thread is interrupted while waiting for a result
+     */
+    static <T, R> void map(final Iterator<T> inputs, final Step<? super T, ? extends R> step,
+                           final Consumer<? super R> sink, final ExecutorService executor, final int window,
+                           final BooleanSupplier cancelled) throws ExecutionException, InterruptedException {
+        final Deque<Future<? extends R>> pending = new ArrayDeque<>();
+        try {
+            while (!cancelled.getAsBoolean()) {
+                while (pending.size() < window && inputs.hasNext()) {
+                    final T input = inputs.next();
+                    pending.add(executor.submit(() -> step.apply(input)));
+                }
+
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                sink.accept(pending.remove().get());
+            }
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.io.text.VCardReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Parses a vCard file on several cores at once. The file is first split into chunks of whole cards using
+ * {@link CardSpans}, then each chunk is read and parsed by its own {@link VCardReader} on a fork-join pool, and the
+ * parsed chunks are handed back in file order.
+ */
+final class ParallelVCardParser {
+
+    private static final long CHUNK_BYTES = 1 << 20;
+    private static final int CHUNK_CARDS = 4096;
+
+    private final ForkJoinPool pool;
+
+    ParallelVCardParser() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    ParallelVCardParser(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * The cards parsed from a run of consecutive spans, after the transform has been applied to each.
+     */
+    static final class Chunk<T> {
+
+        private final int firstSpan;
+        private final int spanCount;
+        private final long start;
+        private final long end;
+        private final byte[] bytes;
+        private final List<T> cards;
+
+        private Chunk(final int firstSpan, final int spanCount, final long start, final long end, final byte[] bytes,
+                      final List<T> cards) {
+            this.firstSpan = firstSpan;
+            this.spanCount = spanCount;
+            this.start = start;
+            this.end = end;
+            this.bytes = bytes;
+            this.cards = cards;
+        }
+
+        int getFirstSpan() {
+            return firstSpan;
+        }
+
+        int getSpanCount() {
+            return spanCount;
+        }
+
+        /**
+         * @return the file offset of the first card of this chunk
+         */
+        long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the file offset just past the last card of this chunk
+         */
+        long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the text of the chunk's spans, from {@link #getStart} to {@link #getEnd}
+         */
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        List<T> getCards() {
+            return cards;
+        }
+
+    }
+
+    private static final class Range {
+
+        final int first;
+        final int count;
+
+        Range(final int first, final int count) {
+            this.first = first;
+            this.count = count;
+        }
+
+    }
+
+    private static Iterator<Range> ranges(final CardSpans spans) {
+        return new Iterator<Range>() {
+
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < spans.size();
+            }
+
+            @Override
+            public Range next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final int first = next;
+                final long start = spans.start(first);
+                do {
+                    next++;
+                } while (next < spans.size() && next - first < CHUNK_CARDS && spans.end(next) - start <= CHUNK_BYTES);
+
+                return new Range(first, next - first);
+            }
+
+        };
+    }
+
+    static byte[] read(final FileChannel channel, final long start, final long end) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(end - start));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+
+        return buffer.array();
+    }
+
+    static <T> List<T> parse(final byte[] bytes, final Function<VCard, T> transform) throws IOException {
+        final List<T> cards = new ArrayList<>();
+        try (final VCardReader reader = new VCardReader(new InputStreamReader(new ByteArrayInputStream(bytes)))) {
+            VCard card;
+            while ((card = reader.readNext()) != null) {
+                cards.add(transform.apply(card));
+            }
+        }
+
+        return cards;
+    }
+
+    /**
+     * Parses every span of a file.
+     *
+     * @param channel   the file, which must not change while it is being parsed
+     * @param spans     the card spans of the file
+     * @param transform applied to each card on the pool as soon as it is parsed
+     * @param sink      receives each chunk, in file order, on the calling thread
+     * @param cancelled checked between chunks; when it returns true, parsing stops early
+     * @throws IOException          if the file cannot be read or parsed
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    <T> void parse(final FileChannel channel, final CardSpans spans, final Function<VCard, T> transform,
+                   final Consumer<Chunk<T>> sink, final BooleanSupplier cancelled)
+            throws IOException, InterruptedException {
+        try {
+            OrderedParallel.map(ranges(spans), range -> {
+                        final long start = spans.start(range.first);
+                        final long end = spans.end(range.first + range.count - 1);
+                        final byte[] bytes = read(channel, start, end);
+                        return new Chunk<>(range.first, range.count, start, end, bytes, parse(bytes, transform));
+                    }, sink, pool, pool.getParallelism() * 2, cancelled);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+}
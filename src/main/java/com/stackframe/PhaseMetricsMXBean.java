@@ -0,0 +1,22 @@
+package com.stackframe;
+
+/**
+ * The totals recorded by {@link Metrics} for one phase of work, as seen over JMX.
+ */
+public interface PhaseMetricsMXBean {
+
+    String getDescription();
+
+    long getCount();
+
+    double getTotalMillis();
+
+    double getMaxMillis();
+
+    long getCards();
+
+    long getBytes();
+
+    void reset();
+
+}
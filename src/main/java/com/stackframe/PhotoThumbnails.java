@@ -0,0 +1,220 @@
+package com.stackframe;
+
+import ezvcard.property.Photo;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaled images of cards' first embedded photos, for the list and the card viewer. Photos are decoded on a background
+ * thread the first time they are asked for, and the thumbnails are kept in an LRU cache of at most
+ * {@link #CACHE_SIZE} images, which can be set with the system property {@code contactcurator.thumbnails}.
+ * <p>
+ * Only the most recently requested photos are waiting to be decoded at any time, so scrolling quickly through a long
+ * list does not leave a backlog of rows that are no longer visible.
+ * <p>
+ * The cache belongs to the event dispatch thread.
+ */
+final class PhotoThumbnails {
+
+    static final int CACHE_SIZE = Integer.getInteger("contactcurator.thumbnails", 512);
+    private static final int QUEUE_SIZE = 64;
+
+    /**
+     * Stands for a photo that could not be decoded.
+     */
+    private static final ImageIcon NONE = new ImageIcon();
+
+    /**
+     * One card revision at one size.
+     */
+    private static final class Key {
+
+        private final CardEntry entry;
+        private final int revision;
+        private final int size;
+
+        private Key(final CardEntry entry, final int size) {
+            this.entry = entry;
+            this.revision = entry.getRevision();
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) o;
+            return entry == other.entry && revision == other.revision && size == other.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(entry), revision, size);
+        }
+
+    }
+
+    private final class Decode implements Runnable {
+
+        private final Key key;
+        private final Runnable loaded;
+
+        private Decode(final Key key, final Runnable loaded) {
+            this.key = key;
+            this.loaded = loaded;
+        }
+
+        @Override
+        public void run() {
+            ImageIcon icon;
+            try {
+                final BufferedImage image = decode(key.entry, key.size);
+                icon = image == null ? NONE : new ImageIcon(image);
+            } catch (final IOException | RuntimeException e) {
+                // A photo that cannot be read is left out.
+                icon = NONE;
+            }
+
+            final ImageIcon decoded = icon;
+            SwingUtilities.invokeLater(() -> {
+                pending.remove(key);
+                cache.put(key, decoded);
+                loaded.run();
+            });
+        }
+
+    }
+
+    private final Map<Key, ImageIcon> cache = new LinkedHashMap<Key, ImageIcon>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, ImageIcon> eldest) {
+            return size() > CACHE_SIZE;
+        }
+
+    };
+
+    private final Set<Key> pending = new HashSet<>();
+
+    /**
+     * Decodes one photo at a time, newest request first, dropping the oldest requests when too many are waiting.
+     */
+    private final ThreadPoolExecutor decoder = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingDeque<>(QUEUE_SIZE) {
+
+                @Override
+                public boolean offer(final Runnable r) {
+                    return offerFirst(r);
+                }
+
+            }, r -> {
+                final Thread thread = new Thread(r, "PhotoThumbnails");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }, (r, executor) -> {
+                // Requests are submitted on the event dispatch thread, so the dropped one can be forgotten here.
+                final Runnable dropped = ((LinkedBlockingDeque<Runnable>) executor.getQueue()).pollLast();
+                if (dropped != null) {
+                    pending.remove(((Decode) dropped).key);
+                }
+
+                if (!executor.getQueue().offer(r)) {
+                    pending.remove(((Decode) r).key);
+                }
+            });
+
+    PhotoThumbnails() {
+        decoder.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Gets the thumbnail of an entry's photo if it is ready, or else starts decoding it.
+     *
+     * @param size   the width and height of the square the image is scaled to fit
+     * @param loaded run on the event dispatch thread when the thumbnail is ready, to show it
+     * @return the thumbnail, or null if the entry has no photo that can be shown or it is not decoded yet
+     */
+    ImageIcon get(final CardEntry entry, final int size, final Runnable loaded) {
+        if (!entry.hasPhoto()) {
+            return null;
+        }
+
+        final Key key = new Key(entry, size);
+        final ImageIcon icon = cache.get(key);
+        if (icon != null) {
+            return icon == NONE ? null : icon;
+        }
+
+        if (pending.add(key)) {
+            decoder.execute(new Decode(key, loaded));
+        }
+
+        return null;
+    }
+
+    /**
+     * Forgets every thumbnail, as when the address book is closed.
+     */
+    void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Decodes an entry's first embedded photo and scales it to fit a square, keeping its proportions, so that every
+     * thumbnail of one size lines up whatever the shape of its photo.
+     *
+     * @return the scaled image centered in a transparent square, or null if the entry has no embedded photo in a
+     * format that can be read
+     * @throws IOException if the photo cannot be decoded
+     */
+    static BufferedImage decode(final CardEntry entry, final int size) throws IOException {
+        final Photo photo = CardPhotos.photos(entry.getCard()).stream().filter(CardPhotos::isEmbedded).findFirst()
+                .orElse(null);
+        if (photo == null) {
+            return null;
+        }
+
+        final BufferedImage image;
+        try (final InputStream in = CardPhotos.open(photo)) {
+            image = ImageIO.read(in);
+        }
+
+        if (image == null) {
+            return null;
+        }
+
+        final double scale = Math.min(1, Math.min((double) size / image.getWidth(), (double) size / image.getHeight()));
+        final int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        final int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        final BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, (size - width) / 2, (size - height) / 2, width, height, null);
+        } finally {
+            g.dispose();
+        }
+
+        return scaled;
+    }
+
+}
@@ -0,0 +1,312 @@
+package com.stackframe;
+
+import ezvcard.VCard;
+import ezvcard.property.Address;
+import ezvcard.property.Email;
+import ezvcard.property.FormattedName;
+import ezvcard.property.Nickname;
+import ezvcard.property.Organization;
+import ezvcard.property.StructuredName;
+import ezvcard.property.Telephone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * An in-memory inverted index over the names, organizations, emails, phone numbers and addresses of a set of cards,
+ * for type-ahead filtering. Each card's searchable fields are flattened once into a lower case string, and every
+ * trigram of that string is posted to a list of card ids, so a query is answered by intersecting a few posting lists
+ * and checking the surviving candidates against their flattened strings instead of walking any property lists.
+ * Queries shorter than three characters are answered by scanning the flattened strings.
+ * <p>
+ * Items are matched by identity; they are cards, or anything a card can be had from, such as a {@link CardEntry}. The
+ * index is not thread safe; it is built on a background thread and then owned by the event dispatch thread, which
+ * keeps it current with {@link #add} and {@link #remove} as cards are edited. A removed item's slot and postings are
+ * left in place and skipped at query time until most slots are dead, when the index is rebuilt from the live ones.
+ */
+final class SearchIndex<T> {
+
+    private static final char SEPARATOR = '\n';
+
+    private final Function<? super T, VCard> cardOf;
+    private Map<T, Integer> ids = new IdentityHashMap<>();
+    private List<T> items = new ArrayList<>();
+    private List<String> texts = new ArrayList<>();
+    private Map<Long, IntList> postings = new HashMap<>();
+    private int dead;
+
+    private SearchIndex(final Function<? super T, VCard> cardOf) {
+        this.cardOf = cardOf;
+    }
+
+    private static final class IntList {
+
+        private int[] values = new int[4];
+        private int size;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            values[size++] = value;
+        }
+
+    }
+
+    private static void append(final StringBuilder b, final String s) {
+        if (s != null && !s.isBlank()) {
+            b.append(s.trim().toLowerCase(Locale.ROOT)).append(SEPARATOR);
+        }
+    }
+
+    /**
+     * Flattens the searchable fields of a card into one lower case string with the fields separated by newlines.
+     */
+    static String text(final VCard card) {
+        final StringBuilder b = new StringBuilder();
+        for (final FormattedName n : card.getFormattedNames()) {
+            append(b, n.getValue());
+        }
+
+        for (final StructuredName n : card.getStructuredNames()) {
+            n.getPrefixes().forEach(s -> append(b, s));
+            append(b, n.getGiven());
+            n.getAdditionalNames().forEach(s -> append(b, s));
+            append(b, n.getFamily());
+            n.getSuffixes().forEach(s -> append(b, s));
+        }
+
+        for (final Nickname n : card.getNicknames()) {
+            n.getValues().forEach(s -> append(b, s));
+        }
+
+        for (final Organization o : card.getOrganizations()) {
+            o.getValues().forEach(s -> append(b, s));
+        }
+
+        for (final Email e : card.getEmails()) {
+            append(b, e.getValue());
+        }
+
+        for (final Telephone t : card.getTelephoneNumbers()) {
+            final String number = VCardUtil.phoneNumber(t);
+            append(b, number);
+            if (number != null) {
+                // Index the bare digits too so that a number can be found however it was punctuated.
+                append(b, number.replaceAll("[^0-9]", ""));
+            }
+        }
+
+        for (final Address a : card.getAddresses()) {
+            append(b, a.getStreetAddressFull());
+            append(b, a.getExtendedAddressFull());
+            append(b, a.getLocality());
+            append(b, a.getRegion());
+            append(b, a.getPostalCode());
+            append(b, a.getCountry());
+        }
+
+        return b.toString();
+    }
+
+    private static long trigram(final String s, final int i) {
+        return (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+    }
+
+    private static boolean hasSeparator(final String s, final int i) {
+        return s.charAt(i) == SEPARATOR || s.charAt(i + 1) == SEPARATOR || s.charAt(i + 2) == SEPARATOR;
+    }
+
+    /**
+     * Builds an index over a list of cards, flattening the cards in parallel.
+     */
+    static SearchIndex<VCard> build(final List<VCard> cards) {
+        return build(cards, card -> card);
+    }
+
+    /**
+     * Builds an index over a list of items, getting their cards and flattening them in parallel.
+     *
+     * @param cardOf gets an item's card; called from several threads at once
+     */
+    static <T> SearchIndex<T> build(final List<T> items, final Function<? super T, VCard> cardOf) {
+        return of(items, items.parallelStream().map(item -> text(cardOf.apply(item))).collect(Collectors.toList()),
+                cardOf);
+    }
+
+    /**
+     * Builds an index over a list of items from their flattened cards, as returned by {@link #text} or
+     * {@link #textOf}, without looking at the cards.
+     *
+     * @param cardOf gets an item's card when an item is added later
+     */
+    static <T> SearchIndex<T> of(final List<T> items, final List<String> texts,
+                                 final Function<? super T, VCard> cardOf) {
+        final SearchIndex<T> index = new SearchIndex<>(cardOf);
+        for (int i = 0; i < items.size(); i++) {
+            index.add(items.get(i), texts.get(i));
+        }
+
+        return index;
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    /**
+     * @return the flattened card of an item, or null if the item is not in the index
+     */
+    String textOf(final T item) {
+        final Integer id = ids.get(item);
+        return id == null ? null : texts.get(id);
+    }
+
+    void add(final T item) {
+        add(item, text(cardOf.apply(item)));
+    }
+
+    private void add(final T item, final String text) {
+        remove(item);
+        final int id = items.size();
+        ids.put(item, id);
+        items.add(item);
+        texts.add(text);
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            if (hasSeparator(text, i)) {
+                continue;
+            }
+
+            final IntList list = postings.computeIfAbsent(trigram(text, i), k -> new IntList());
+            // Ids are handed out in increasing order, so a repeat of this item's id can only be at the end.
+            if (list.size == 0 || list.values[list.size - 1] != id) {
+                list.add(id);
+            }
+        }
+    }
+
+    /**
+     * Forgets an item. Its postings are left in place and skipped at query time, until more than half of the slots
+     * belong to forgotten items and the index is compacted.
+     */
+    void remove(final T item) {
+        final Integer id = ids.remove(item);
+        if (id != null) {
+            items.set(id, null);
+            texts.set(id, null);
+            if (++dead > items.size() / 2) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from its live items. New collections are made rather than the old ones cleared, as the
+     * predicates already returned by {@link #search} go on using the old ids.
+     */
+    private void compact() {
+        final List<T> oldItems = items;
+        final List<String> oldTexts = texts;
+        ids = new IdentityHashMap<>();
+        items = new ArrayList<>(oldItems.size() - dead);
+        texts = new ArrayList<>(oldItems.size() - dead);
+        postings = new HashMap<>();
+        dead = 0;
+        for (int i = 0; i < oldItems.size(); i++) {
+            if (oldItems.get(i) != null) {
+                add(oldItems.get(i), oldTexts.get(i));
+            }
+        }
+    }
+
+    /**
+     * Replaces the entry for an item that was edited in place or swapped for a new instance.
+     */
+    void update(final T oldItem, final T newItem) {
+        remove(oldItem);
+        add(newItem);
+    }
+
+    private BitSet candidates(final String term) {
+        final BitSet result = new BitSet(items.size());
+        if (term.length() < 3) {
+            result.set(0, items.size());
+            return result;
+        }
+
+        boolean first = true;
+        for (int i = 0; i + 3 <= term.length(); i++) {
+            final IntList list = postings.get(trigram(term, i));
+            if (list == null) {
+                return new BitSet();
+            }
+
+            final BitSet ids = new BitSet(items.size());
+            for (int j = 0; j < list.size; j++) {
+                ids.set(list.values[j]);
+            }
+
+            if (first) {
+                result.or(ids);
+                first = false;
+            } else {
+                result.and(ids);
+            }
+
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the items whose cards' searchable fields contain every whitespace separated term of a query, ignoring case.
+     *
+     * @param query the query
+     * @return a predicate that accepts exactly the matching items, or null if the query is blank and so matches
+     * everything
+     */
+    Predicate<T> search(final String query) {
+        final String[] terms = query.trim().toLowerCase(Locale.ROOT).split("\\s+");
+        if (terms.length == 1 && terms[0].isEmpty()) {
+            return null;
+        }
+
+        BitSet matches = null;
+        for (final String term : terms) {
+            final BitSet candidates = candidates(term);
+            if (matches != null) {
+                candidates.and(matches);
+            }
+
+            for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+                final String text = texts.get(id);
+                if (text == null || !text.contains(term)) {
+                    candidates.clear(id);
+                }
+            }
+
+            matches = candidates;
+        }
+
+        final BitSet found = matches;
+        final Map<T, Integer> foundIds = ids;
+        return item -> {
+            final Integer id = foundIds.get(item);
+            return id != null && found.get(id);
+        };
+    }
+
+}
@@ -0,0 +1,314 @@
+package com.stackframe;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Remembers recently opened address books in a compact binary form, so that reopening one that has not changed needs
+ * no parsing at all. A snapshot holds, for every card, its list fields, its flattened search text, and either its byte
+ * range in the address book, if cleanup left it unchanged, or its cleaned text. Reopening maps the snapshot, checks it
+ * against the address book's path, size, modification time, CRC-32C and the platform encoding, and restores entries
+ * that parse their cards from the mapped address book only when they are needed.
+ * <p>
+ * Snapshots live in {@code ~/.cache/ContactCurator}, or the directory named by the system property
+ * {@code contactcurator.cacheDir}, one per address book path; only the most recently written ones are kept.
+ */
+final class SnapshotCache {
+
+    private static final int MAGIC = 0x43435331;
+    private static final int FORMAT = 3;
+    private static final int MAX_SNAPSHOTS = 16;
+    private static final byte SPAN = 0;
+    private static final byte TEXT = 1;
+
+    private SnapshotCache() {
+    }
+
+    /**
+     * What a snapshot holds for one entry, taken on the event dispatch thread so that the snapshot can be written in
+     * the background while the entries are edited.
+     */
+    static final class Record {
+
+        private final String displayName;
+        private final String sortString;
+        private final char indexLetter;
+        private final VCardVersion version;
+        private final long start;
+        private final long end;
+        private final VCard card;
+        private final long textHash;
+        private final long uidHash;
+        private final boolean photo;
+        private final String text;
+
+        Record(final CardEntry entry, final String text) {
+            displayName = entry.getDisplayName();
+            sortString = entry.getSortString();
+            indexLetter = entry.getIndexLetter();
+            version = entry.getVersion();
+            final boolean unchanged = entry.hasSource(version);
+            start = unchanged ? entry.getSourceStart() : -1;
+            end = unchanged ? entry.getSourceEnd() : -1;
+            card = unchanged ? null : entry.getCard();
+            textHash = entry.getTextHash();
+            uidHash = entry.getUidHash();
+            photo = entry.hasPhoto();
+            this.text = text;
+        }
+
+    }
+
+    /**
+     * The entries restored from a snapshot and their search texts, in file order.
+     */
+    static final class Restored {
+
+        private final List<CardEntry> entries;
+        private final List<String> texts;
+
+        private Restored(final List<CardEntry> entries, final List<String> texts) {
+            this.entries = entries;
+            this.texts = texts;
+        }
+
+        List<CardEntry> getEntries() {
+            return entries;
+        }
+
+        List<String> getTexts() {
+            return texts;
+        }
+
+    }
+
+    static Path directory() {
+        final String configured = System.getProperty("contactcurator.cacheDir");
+        return configured != null ? Path.of(configured)
+                : Path.of(System.getProperty("user.home"), ".cache", "ContactCurator");
+    }
+
+    /**
+     * Creates a directory for cache files if it does not exist yet, readable only by its owner, as the files in it
+     * hold contacts.
+     */
+    static void createDirectory(final Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            try {
+                Files.createDirectories(directory,
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } catch (final UnsupportedOperationException e) {
+                // Not every file system has POSIX permissions.
+                Files.createDirectories(directory);
+            }
+        }
+    }
+
+    /**
+     * @return a name for a file in the cache directory made from a key, such as an address book's path
+     */
+    static String digest(final String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", digest[i]));
+            }
+
+            return name.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform is required to have SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Path snapshotFile(final Path file) {
+        return directory().resolve(digest(file.toAbsolutePath().normalize().toString()) + ".snapshot");
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer in) {
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the snapshot of an address book, replacing any earlier one, unless the book changed since it was read.
+     *
+     * @param source  the address book as it was when it was read
+     * @param records one record per card, in file order
+     */
+    static void write(final CardStore.Source source, final List<Record> records) throws IOException {
+        final Path path = source.getPath().toAbsolutePath().normalize();
+        final int checksum = MappedCardFile.map(path).checksum();
+        if (!source.isUnchanged()) {
+            return;
+        }
+
+        createDirectory(directory());
+        CardFileWriter.replace(snapshotFile(path), path, channel -> {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            writeString(out, path.toString());
+            writeString(out, Charset.defaultCharset().name());
+            out.writeLong(source.getSize());
+            out.writeLong(source.getModified().toMillis());
+            out.writeInt(checksum);
+            out.writeInt(records.size());
+            for (final Record record : records) {
+                if (record.card == null) {
+                    out.writeByte(SPAN);
+                    out.writeLong(record.start);
+                    out.writeLong(record.end);
+                    out.writeByte(record.version.ordinal());
+                    writeString(out, record.displayName);
+                    writeString(out, record.sortString);
+                    out.writeChar(record.indexLetter);
+                    out.writeLong(record.uidHash);
+                    out.writeBoolean(record.photo);
+                } else {
+                    final byte[] bytes = CardFileWriter.encode(record.card);
+                    out.writeByte(TEXT);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                out.writeLong(record.textHash);
+                writeString(out, record.text);
+            }
+
+            out.flush();
+        }, percent -> {
+        });
+        evict();
+    }
+
+    /**
+     * Deletes all but the most recently written snapshots.
+     */
+    private static void evict() throws IOException {
+        final List<Path> snapshots;
+        try (final Stream<Path> list = Files.list(directory())) {
+            snapshots = list.filter(p -> p.getFileName().toString().endsWith(".snapshot"))
+                    .sorted(Comparator.comparing((Path p) -> p.toFile().lastModified()).reversed())
+                    .collect(Collectors.toList());
+        }
+
+        for (final Path stale : snapshots.subList(Math.min(MAX_SNAPSHOTS, snapshots.size()), snapshots.size())) {
+            Files.deleteIfExists(stale);
+        }
+    }
+
+    /**
+     * Restores an address book from its snapshot.
+     *
+     * @param source the address book as it is now
+     * @return the restored entries, or null if there is no snapshot, it does not match the address book or it cannot be
+     * read
+     */
+    static Restored read(final CardStore.Source source) {
+        try {
+            return readSnapshot(source);
+        } catch (final IOException e) {
+            System.err.println(e);
+            return null;
+        }
+    }
+
+    private static Restored readSnapshot(final CardStore.Source source) throws IOException {
+        final Path path = source.getPath().toAbsolutePath().normalize();
+        final Path snapshot = snapshotFile(path);
+        if (!Files.isRegularFile(snapshot)) {
+            return null;
+        }
+
+        final ByteBuffer in;
+        try (final FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT || !readString(in).equals(path.toString())
+                    || !readString(in).equals(Charset.defaultCharset().name()) || in.getLong() != source.getSize()
+                    || in.getLong() != source.getModified().toMillis()) {
+                return null;
+            }
+
+            final MappedCardFile mapped = MappedCardFile.map(path);
+            if (mapped.size() != source.getSize() || in.getInt() != mapped.checksum()) {
+                return null;
+            }
+
+            final int count = in.getInt();
+            final List<CardEntry> entries = new ArrayList<>(count);
+            final List<String> texts = new ArrayList<>(count);
+            final VCardVersion[] versions = VCardVersion.values();
+            for (int i = 0; i < count; i++) {
+                final CardEntry entry;
+                if (in.get() == SPAN) {
+                    final long start = in.getLong();
+                    final long end = in.getLong();
+                    final VCardVersion version = versions[in.get()];
+                    final String displayName = readString(in);
+                    final String sortString = readString(in);
+                    final char indexLetter = in.getChar();
+                    final long uidHash = in.getLong();
+                    entry = CardEntry.restore(displayName, sortString, indexLetter, path, start, end, version, mapped,
+                            uidHash, in.get() != 0);
+                } else {
+                    final VCard card = Ezvcard.parse(readString(in)).first();
+                    if (card == null) {
+                        // The text was cut short or damaged.
+                        return null;
+                    }
+
+                    entry = new CardEntry(CardPhotos.offload(card), true, path);
+                }
+
+                entry.setTextHash(in.getLong());
+                entries.add(entry);
+                texts.add(readString(in));
+            }
+
+            return new Restored(entries, texts);
+        } catch (final BufferUnderflowException | IndexOutOfBoundsException e) {
+            // A truncated or corrupt snapshot is as good as none; it is replaced after the file is parsed.
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.stackframe;
+
+/**
+ * A disjoint-set forest over the integers 0 to n - 1 with union by rank and path halving.
+ */
+final class UnionFind {
+
+    private final int[] parent;
+    private final byte[] rank;
+
+    UnionFind(final int n) {
+        parent = new int[n];
+        rank = new byte[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+    }
+
+    int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+
+        return i;
+    }
+
+    void union(final int a, final int b) {
+        final int ra = find(a);
+        final int rb = find(b);
+        if (ra == rb) {
+            return;
+        }
+
+        if (rank[ra] < rank[rb]) {
+            parent[ra] = rb;
+        } else if (rank[ra] > rank[rb]) {
+            parent[rb] = ra;
+        } else {
+            parent[rb] = ra;
+            rank[ra]++;
+        }
+    }
+
+}
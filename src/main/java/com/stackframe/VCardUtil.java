@@ -2,17 +2,53 @@ package com.stackframe;
 
 import ezvcard.VCard;
 import ezvcard.VCardVersion;
+import ezvcard.io.text.VCardWriter;
+import ezvcard.property.Address;
+import ezvcard.property.Anniversary;
+import ezvcard.property.Birthday;
+import ezvcard.property.Classification;
 import ezvcard.property.Email;
-import ezvcard.property.Organization;
+import ezvcard.property.FormattedName;
+import ezvcard.property.Gender;
+import ezvcard.property.Kind;
+import ezvcard.property.ProductId;
+import ezvcard.property.Revision;
+import ezvcard.property.SortString;
+import ezvcard.property.StructuredName;
+import ezvcard.property.Telephone;
+import ezvcard.property.Uid;
+import ezvcard.property.Url;
+import ezvcard.property.VCardProperty;
+import ezvcard.util.TelUri;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.function.Predicate;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
 public class VCardUtil {
 
+    /**
+     * Properties a merged card keeps only one of: the first in precedence order.
+     */
+    private static final Set<Class<? extends VCardProperty>> SINGULAR = new HashSet<>(Arrays.asList(
+            StructuredName.class, FormattedName.class, Birthday.class, Anniversary.class, Gender.class, Kind.class,
+            Revision.class, ProductId.class, Uid.class, SortString.class, Classification.class));
+
+    private static final int MERGE_SLICE = 1024;
+
     private VCardUtil() {
     }
 
@@ -20,48 +56,256 @@ public class VCardUtil {
         return s == null || s.isBlank();
     }
 
-    private static void cleanEmails(final VCard card) {
-        final List<Email> emails = card.getEmails();
-        final List<Email> toRemove = new ArrayList<>();
-        for (final Email e : emails) {
-            if (isNullOrBlank(e.getValue())) {
-                toRemove.add(e);
-            }
+    /**
+     * @param email an email address as it appears in a card
+     * @return the address trimmed and in lower case, or null if it is blank
+     */
+    public static String normalizeEmail(final String email) {
+        return isNullOrBlank(email) ? null : email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param phone a telephone property
+     * @return the number as it was written, from either its text or its tel: URI
+     */
+    public static String phoneNumber(final Telephone phone) {
+        final String text = phone.getText();
+        if (text != null) {
+            return text;
         }
 
-        toRemove.forEach(x -> card.removeProperty(x));
+        final TelUri uri = phone.getUri();
+        return uri == null ? null : uri.getNumber();
     }
 
-    private static void cleanOrganizations(final VCard card) {
-        final List<Organization> orgs = card.getOrganizations();
-        final List<Organization> toRemove = new ArrayList<>();
-        for (final Organization o : orgs) {
-            final List<String> values = o.getValues();
-            boolean keep = false;
-            for (final String s : values) {
-                if (s != null && !s.isBlank()) {
-                    keep = true;
-                    break;
-                }
-            }
+    /**
+     * Reduces a telephone number to a key that is the same however the number was punctuated and whether or not a
+     * country code was included: the last ten of its digits.
+     *
+     * @param phone a telephone property
+     * @return the key, or null if the number has too few digits to be meaningful
+     */
+    public static String normalizePhone(final Telephone phone) {
+        final String number = phoneNumber(phone);
+        if (number == null) {
+            return null;
+        }
 
-            if (!keep) {
-                toRemove.add(o);
+        final StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
             }
         }
 
-        toRemove.forEach(x -> card.removeProperty(x));
+        if (digits.length() < 7) {
+            return null;
+        }
+
+        return digits.length() > 10 ? digits.substring(digits.length() - 10) : digits.toString();
     }
 
     public static VCardVersion highestVersion(final Collection<VCard> cards) {
         return cards.stream().map(x -> x.getVersion()).max(Comparator.naturalOrder()).get();
     }
 
+    /**
+     * Cleans a card with the default {@link CardCleaner}.
+     *
+     * @return the card itself if it needed no cleanup, or else a cleaned card that shares the properties that were not
+     * changed with it, so the original should be discarded
+     */
     public static VCard cleanup(final VCard card) {
-        final VCard copy = new VCard(card);
-        cleanEmails(copy);
-        cleanOrganizations(copy);
-        return copy;
+        return CardCleaner.getDefault().clean(card);
+    }
+
+    private static String lowerTrim(final String s) {
+        return s == null ? "" : s.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The identity of a property for de-duplication while merging. Emails, phones, URLs and addresses compare on a
+     * normalized form of their value so that differences in case or punctuation do not produce two copies; anything
+     * else compares with {@link VCardProperty#equals}. Phone numbers compare as the cleaner de-duplicates them, in
+     * E.164 form where it is known.
+     */
+    private static Object mergeKey(final VCardProperty p) {
+        if (p instanceof Email) {
+            final String email = normalizeEmail(((Email) p).getValue());
+            if (email != null) {
+                return Arrays.asList(Email.class, email);
+            }
+        } else if (p instanceof Telephone) {
+            // Unlike the loose key duplicates are found by, this one never takes two numbers to be the same.
+            final String phone = CardCleaner.phoneKey((Telephone) p);
+            if (phone != null) {
+                return Arrays.asList(Telephone.class, phone);
+            }
+        } else if (p instanceof Url) {
+            final String url = ((Url) p).getValue();
+            if (!isNullOrBlank(url)) {
+                return Arrays.asList(Url.class, lowerTrim(url));
+            }
+        } else if (p instanceof Address) {
+            final Address a = (Address) p;
+            return Arrays.asList(Address.class, lowerTrim(a.getPoBox()), lowerTrim(a.getExtendedAddressFull()),
+                    lowerTrim(a.getStreetAddressFull()), lowerTrim(a.getLocality()), lowerTrim(a.getRegion()),
+                    lowerTrim(a.getPostalCode()), lowerTrim(a.getCountry()));
+        }
+
+        return p;
+    }
+
+    private static List<VCard> inPrecedenceOrder(final List<VCard> group, final MergePrecedence precedence) {
+        final List<VCard> ordered = new ArrayList<>(group);
+        switch (precedence) {
+            case FIRST:
+                break;
+            case LAST:
+                Collections.reverse(ordered);
+                break;
+            case MOST_COMPLETE:
+                ordered.sort(Comparator.comparingInt((VCard c) -> c.getProperties().size()).reversed());
+                break;
+            case NEWEST:
+                ordered.sort(Comparator.comparing((VCard c) -> c.getRevision() == null ? null
+                        : c.getRevision().getValue(), Comparator.nullsLast(Comparator.reverseOrder())));
+                break;
+            default:
+                throw new AssertionError(precedence);
+        }
+
+        return ordered;
+    }
+
+    /**
+     * Merges a group of cards that describe the same contact into one. The merged card has the highest version in the
+     * group, the singular properties of the card that wins under {@code precedence}, and the union of every other
+     * property with duplicates removed. It shares property objects with the group rather than copying them, so the
+     * group should be discarded once it has been merged.
+     *
+     * @param group      the cards to merge
+     * @param precedence which card wins
+     * @return the merged card
+     */
+    public static VCard merge(final List<VCard> group, final MergePrecedence precedence) {
+        final VCard merged = new VCard(highestVersion(group));
+        final Set<Class<?>> singularSeen = new HashSet<>();
+        final Set<Object> keys = new HashSet<>();
+        for (final VCard card : inPrecedenceOrder(group, precedence)) {
+            for (final VCardProperty p : card) {
+                if (SINGULAR.contains(p.getClass()) && !singularSeen.add(p.getClass())) {
+                    continue;
+                }
+
+                if (keys.add(mergeKey(p))) {
+                    merged.addProperty(p);
+                }
+            }
+        }
+
+        return merged;
+    }
+
+    /**
+     * Merges every duplicate group of an address book and passes the result to a sink in address book order: each
+     * group's merged card takes the place of its first member, the other members are dropped, and cards not in any
+     * group pass through unchanged. Groups are merged in parallel a slice of the address book at a time, so only a
+     * bounded number of merged cards exist at once.
+     *
+     * @param cards      the address book
+     * @param groups     the groups, as indices into {@code cards}; a card may be in at most one group
+     * @param precedence which card of each group wins
+     * @param sink       receives the resulting cards, in order, on the calling thread
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public static void mergeAll(final List<VCard> cards, final List<int[]> groups, final MergePrecedence precedence,
+                                final Consumer<VCard> sink) throws InterruptedException {
+        // For each card: -1 if it is in no group, -2 if it is merged into an earlier card, else its group's index.
+        final int[] groupOf = new int[cards.size()];
+        Arrays.fill(groupOf, -1);
+        for (int g = 0; g < groups.size(); g++) {
+            final int[] group = groups.get(g);
+            final int first = Arrays.stream(group).min().orElseThrow();
+            for (final int i : group) {
+                groupOf[i] = i == first ? g : -2;
+            }
+        }
+
+        final Iterator<Integer> slices = new Iterator<Integer>() {
+
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < cards.size();
+            }
+
+            @Override
+            public Integer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final int start = next;
+                next += MERGE_SLICE;
+                return start;
+            }
+
+        };
+
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        try {
+            OrderedParallel.map(slices, start -> {
+                final int end = Math.min(cards.size(), start + MERGE_SLICE);
+                final List<VCard> out = new ArrayList<>(end - start);
+                for (int i = start; i < end; i++) {
+                    if (groupOf[i] == -1) {
+                        out.add(cards.get(i));
+                    } else if (groupOf[i] >= 0) {
+                        final int[] group = groups.get(groupOf[i]);
+                        final List<VCard> members = new ArrayList<>(group.length);
+                        for (final int member : group) {
+                            members.add(cards.get(member));
+                        }
+
+                        out.add(merge(members, precedence));
+                    }
+                }
+
+                return out;
+            }, out -> out.forEach(sink), pool, pool.getParallelism() * 2, () -> false);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Merges every duplicate group of an address book as {@link #mergeAll(List, List, MergePrecedence, Consumer)} does,
+     * writing the result straight to a writer instead of building a merged copy of the address book.
+     *
+     * @throws IOException          if the writer fails
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public static void mergeAll(final List<VCard> cards, final List<int[]> groups, final MergePrecedence precedence,
+                                final VCardWriter writer) throws IOException, InterruptedException {
+        try {
+            mergeAll(cards, groups, precedence, card -> {
+                try {
+                    writer.write(card);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
 }
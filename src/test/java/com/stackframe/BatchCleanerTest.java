@@ -0,0 +1,162 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class BatchCleanerTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String CARD = "BEGIN:VCARD\r\nVERSION:2.1\r\nN:Lovelace;Ada;;;\r\nEMAIL;INTERNET:\r\n"
+            + "EMAIL;INTERNET:ada@engine.org\r\nEND:VCARD\r\n";
+
+    private File write(final File dir, final String name, final String content) throws IOException {
+        final File file = new File(dir, name);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void cleansDirectoriesAndReportsFailures() throws IOException {
+        final File in = folder.newFolder("in");
+        write(in, "a.vcf", CARD);
+        write(in, "nested/b.vcf", CARD + CARD);
+        write(in, "ignored.txt", CARD);
+        final File out = folder.newFolder("out");
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        final String missing = new File(folder.getRoot(), "missing.vcf").getPath();
+        final int status = BatchCleaner.run(new String[]{"--output", out.getPath(), "--version", "4.0",
+                        "--threads", "2", in.getPath(), missing}, new PrintStream(stdout), new PrintStream(stderr));
+
+        assertEquals(BatchCleaner.EXIT_FAILURES, status);
+        assertTrue(stderr.toString().contains("missing.vcf"));
+        assertTrue(stdout.toString().contains("3 files, 1 failed, 3 cards"));
+        assertTrue(stdout.toString().contains("Remove blank emails: 0 changed, 3 removed"));
+
+        final VCard cleaned = Ezvcard.parse(new File(out, "in/nested/b.vcf")).first();
+        assertEquals(VCardVersion.V4_0, cleaned.getVersion());
+        assertEquals(1, cleaned.getEmails().size());
+        assertTrue(new File(out, "in/a.vcf").isFile());
+    }
+
+    @Test
+    public void namesDirectoriesByWhereTheyAre() throws IOException {
+        final File in = folder.newFolder("in");
+        write(in, "nested/a.vcf", CARD);
+        final File out = folder.newFolder("out");
+        final PrintStream ignored = new PrintStream(new ByteArrayOutputStream());
+        assertEquals(BatchCleaner.EXIT_OK, BatchCleaner.run(new String[]{"--output", out.getPath(),
+                new File(in, "nested/..").getPath()}, ignored, ignored));
+        assertTrue(new File(out, "in/nested/a.vcf").isFile());
+        assertFalse(new File(folder.getRoot(), "nested/a.vcf").exists());
+    }
+
+    @Test
+    public void convertsToCsvAndBack() throws IOException {
+        final File in = write(folder.newFolder("in"), "a.vcf", CARD + CARD);
+        final File out = folder.newFolder("out");
+        final PrintStream ignored = new PrintStream(new ByteArrayOutputStream());
+        assertEquals(BatchCleaner.EXIT_OK, BatchCleaner.run(new String[]{"--output", out.getPath(), "--format", "csv",
+                in.getPath()}, ignored, ignored));
+
+        final File csv = new File(out, "a.csv");
+        final List<String> lines = Files.readAllLines(csv.toPath());
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).startsWith("Formatted Name,"));
+        assertTrue(lines.get(1).contains("ada@engine.org"));
+
+        final File back = folder.newFolder("back");
+        assertEquals(BatchCleaner.EXIT_OK, BatchCleaner.run(new String[]{"--output", back.getPath(), "--format", "vcf",
+                csv.getPath()}, ignored, ignored));
+        final List<VCard> cards = Ezvcard.parse(new File(back, "a.vcf")).all();
+        assertEquals(2, cards.size());
+        assertEquals("ada@engine.org", cards.get(0).getEmails().get(0).getValue());
+    }
+
+    @Test
+    public void convertsBetweenTablesAndToAGivenVersion() throws IOException {
+        final StringBuilder many = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            many.append(CARD.replace("ada@", "ada" + i + "@"));
+        }
+
+        final File in = write(folder.newFolder("in"), "a.vcf", many.toString());
+        final File csv = folder.newFolder("csv");
+        final PrintStream ignored = new PrintStream(new ByteArrayOutputStream());
+        assertEquals(BatchCleaner.EXIT_OK, BatchCleaner.run(new String[]{"--output", csv.getPath(), "--format", "csv",
+                in.getPath()}, ignored, ignored));
+
+        final File jsonl = folder.newFolder("jsonl");
+        assertEquals(BatchCleaner.EXIT_OK, BatchCleaner.run(new String[]{"--output", jsonl.getPath(), "--format",
+                "jsonl", new File(csv, "a.csv").getPath()}, ignored, ignored));
+        final List<String> lines = Files.readAllLines(new File(jsonl, "a.jsonl").toPath());
+        assertEquals(3000, lines.size());
+        assertTrue(lines.get(2999).contains("ada2999@engine.org"));
+
+        final File vcf = folder.newFolder("vcf");
+        assertEquals(BatchCleaner.EXIT_OK, BatchCleaner.run(new String[]{"--output", vcf.getPath(), "--format", "vcf",
+                "--version", "3.0", new File(jsonl, "a.jsonl").getPath()}, ignored, ignored));
+        final List<VCard> cards = Ezvcard.parse(new File(vcf, "a.vcf")).all();
+        assertEquals(3000, cards.size());
+        assertEquals(VCardVersion.V3_0, cards.get(0).getVersion());
+        assertEquals("ada0@engine.org", cards.get(0).getEmails().get(0).getValue());
+    }
+
+    @Test
+    public void mergesDuplicates() throws IOException {
+        final String other = "BEGIN:VCARD\r\nVERSION:3.0\r\nN:Hopper;Grace;;;\r\nEMAIL:grace@navy.mil\r\nEND:VCARD\r\n";
+        final String countess = CARD.replace("END:", "TITLE:Countess\r\nEND:");
+        final File in = write(folder.newFolder("in"), "a.vcf", CARD + other + countess);
+        final File out = folder.newFolder("out");
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        final PrintStream ignored = new PrintStream(new ByteArrayOutputStream());
+        assertEquals(BatchCleaner.EXIT_OK, BatchCleaner.run(new String[]{"--output", out.getPath(), "--merge",
+                "most-complete", "--version", "4.0", in.getPath()}, new PrintStream(stdout), ignored));
+        assertTrue(stdout.toString().contains("(2 cards)"));
+
+        final List<VCard> cards = Ezvcard.parse(new File(out, "a.vcf")).all();
+        assertEquals(2, cards.size());
+        assertEquals(VCardVersion.V4_0, cards.get(0).getVersion());
+        assertEquals("Countess", cards.get(0).getTitles().get(0).getValue());
+        assertEquals(1, cards.get(0).getEmails().size());
+        assertEquals("grace@navy.mil", cards.get(1).getEmails().get(0).getValue());
+    }
+
+    @Test
+    public void rejectsBadArguments() {
+        final PrintStream ignored = new PrintStream(new ByteArrayOutputStream());
+        assertEquals(BatchCleaner.EXIT_USAGE, BatchCleaner.run(new String[]{"x.vcf"}, ignored, ignored));
+        assertEquals(BatchCleaner.EXIT_USAGE, BatchCleaner.run(new String[]{"--in-place", "--version", "5.0", "x.vcf"},
+                ignored, ignored));
+        assertEquals(BatchCleaner.EXIT_USAGE, BatchCleaner.run(new String[]{"--in-place", "--format", "csv", "x.vcf"},
+                ignored, ignored));
+        assertEquals(BatchCleaner.EXIT_USAGE, BatchCleaner.run(new String[]{"--output", "out", "--format", "jsonl",
+                "--version", "4.0", "x.vcf"}, ignored, ignored));
+        assertEquals(BatchCleaner.EXIT_USAGE, BatchCleaner.run(new String[]{"--in-place", "--version", "4.0", "x.csv"},
+                ignored, ignored));
+        assertEquals(BatchCleaner.EXIT_USAGE, BatchCleaner.run(new String[]{"--in-place", "--merge", "oldest", "x.vcf"},
+                ignored, ignored));
+        assertEquals(BatchCleaner.EXIT_USAGE, BatchCleaner.run(new String[]{"--output", "out", "--format", "csv",
+                "--merge", "first", "x.vcf"}, ignored, ignored));
+    }
+
+}
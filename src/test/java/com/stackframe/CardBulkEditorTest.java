@@ -0,0 +1,98 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.VCard;
+import ezvcard.property.Note;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CardBulkEditorTest {
+
+    private static final Path ORIGIN = Path.of("cards.vcf");
+
+    private static List<CardEntry> entries(final int n) {
+        final List<CardEntry> entries = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            final VCard card = new VCard();
+            card.setFormattedName("Card " + i);
+            card.setOrganization(i % 2 == 0 ? "Acme" : "Initech");
+            card.addNote("Note " + i);
+            card.addTelephoneNumber("+1 (617) 555-" + String.format("%04d", i));
+            entries.add(new CardEntry(card, false, ORIGIN));
+        }
+
+        return entries;
+    }
+
+    private static int[] range(final int n) {
+        final int[] positions = new int[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = i;
+        }
+
+        return positions;
+    }
+
+    @Test
+    public void changesOnlyCardsThatNeedIt() throws Exception {
+        final List<CardEntry> entries = entries(2000);
+        final EditJournal.Edit<CardEntry> edit = new CardBulkEditor(entries, range(2000),
+                CardBulkEditor.setOrganization("Acme")).doInBackground();
+        assertEquals(1000, edit.getChanged().size());
+        assertEquals(Integer.valueOf(1), edit.getChangedPositions().get(0));
+        assertEquals(Integer.valueOf(1999), edit.getChangedPositions().get(999));
+        final VCard changed = edit.getChanged().get(0).getCard();
+        assertEquals(List.of("Acme"), changed.getOrganization().getValues());
+        assertEquals(1, changed.getOrganizations().size());
+        // The rest of the card is shared, in the same order.
+        assertSame(entries.get(1).getCard().getNotes().get(0), changed.getNotes().get(0));
+        assertTrue(edit.getChanged().get(0).isModified());
+        // A bulk edit is an unsaved edit of the card in its file, as a recovered one is.
+        assertTrue(edit.getChanged().get(0).isEdited());
+        assertEquals(ORIGIN, edit.getChanged().get(0).getOrigin());
+        assertEquals(0, edit.getRemoved().length);
+    }
+
+    @Test
+    public void removesAndReformatsProperties() throws Exception {
+        final List<CardEntry> entries = entries(10);
+        final EditJournal.Edit<CardEntry> removed = new CardBulkEditor(entries, new int[]{2, 5},
+                CardBulkEditor.removeProperties("Notes", Note.class)).doInBackground();
+        assertEquals(List.of(2, 5), removed.getChangedPositions());
+        assertTrue(removed.getChanged().get(1).getCard().getNotes().isEmpty());
+        assertEquals("Card 5", removed.getChanged().get(1).getCard().getFormattedName().getValue());
+
+        final EditJournal.Edit<CardEntry> reformatted = new CardBulkEditor(entries, new int[]{7},
+                CardBulkEditor.reformatPhoneNumbers()).doInBackground();
+        assertEquals("+16175550007", reformatted.getChanged().get(0).getCard().getTelephoneNumbers().get(0).getText());
+
+        entries.get(3).getCard().setFormattedName(" Card 3 ");
+        final EditJournal.Edit<CardEntry> cleaned = new CardBulkEditor(entries, new int[]{3},
+                CardBulkEditor.cleanUp()).doInBackground();
+        final VCard card = cleaned.getChanged().get(0).getCard();
+        assertEquals("Card 3", card.getFormattedName().getValue());
+        assertEquals("+16175550003", card.getTelephoneNumbers().get(0).getText());
+    }
+
+    @Test
+    public void deletesWithoutReadingCards() throws Exception {
+        final List<CardEntry> entries = entries(10);
+        final EditJournal.Edit<CardEntry> edit = new CardBulkEditor(entries, new int[]{0, 4, 9}, null)
+                .doInBackground();
+        assertArrayEquals(new int[]{0, 4, 9}, edit.getRemoved());
+        assertTrue(edit.getChanged().isEmpty());
+        edit.applyTo(entries);
+        assertEquals(7, entries.size());
+        assertNull(entries.stream().filter(e -> e.getCard().getFormattedName().getValue().equals("Card 4"))
+                .findAny().orElse(null));
+    }
+
+}
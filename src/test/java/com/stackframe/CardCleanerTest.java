@@ -0,0 +1,141 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.VCard;
+import ezvcard.parameter.EmailType;
+import ezvcard.parameter.TelephoneType;
+import ezvcard.property.Email;
+import ezvcard.property.Note;
+import ezvcard.property.Organization;
+import ezvcard.property.Telephone;
+import org.junit.Test;
+
+import java.util.List;
+
+public class CardCleanerTest {
+
+    private static long removed(final CardCleaner cleaner, final String rule) {
+        return cleaner.getCounters().stream().filter(c -> c.getName().equals(rule)).findFirst().get().getRemoved();
+    }
+
+    private static long changed(final CardCleaner cleaner, final String rule) {
+        return cleaner.getCounters().stream().filter(c -> c.getName().equals(rule)).findFirst().get().getChanged();
+    }
+
+    @Test
+    public void runsEveryRuleInOnePass() {
+        final VCard card = new VCard();
+        card.setFormattedName("  Ada Lovelace ");
+        card.addNote(new Note("  indented\n"));
+        card.addEmail(" ada@engine.org", EmailType.HOME);
+        card.addEmail("");
+        card.addEmail("ADA@engine.org ", EmailType.WORK);
+        card.addOrganization(new Organization());
+        card.addTelephoneNumber("+44 20 7946 0000", TelephoneType.HOME);
+        card.addTelephoneNumber("0044 (20) 7946-0000", TelephoneType.WORK);
+
+        final Note note = card.getNotes().get(0);
+        final CardCleaner cleaner = CardCleaner.standard();
+        final VCard cleaned = cleaner.clean(card);
+        assertNotSame(card, cleaned);
+        assertEquals("  Ada Lovelace ", card.getFormattedName().getValue());
+        assertEquals(3, card.getEmails().size());
+        assertEquals("Ada Lovelace", cleaned.getFormattedName().getValue());
+        assertSame(note, cleaned.getNotes().get(0));
+
+        final List<Email> emails = cleaned.getEmails();
+        assertEquals(1, emails.size());
+        assertEquals("ada@engine.org", emails.get(0).getValue());
+        assertEquals(List.of(EmailType.HOME, EmailType.WORK), emails.get(0).getTypes());
+        assertTrue(cleaned.getOrganizations().isEmpty());
+
+        final List<Telephone> phones = cleaned.getTelephoneNumbers();
+        assertEquals(1, phones.size());
+        assertEquals("+442079460000", phones.get(0).getText());
+        assertEquals(List.of(TelephoneType.HOME, TelephoneType.WORK), phones.get(0).getTypes());
+
+        assertEquals(3, changed(cleaner, "Trim whitespace"));
+        assertEquals(1, removed(cleaner, "Remove blank emails"));
+        assertEquals(1, removed(cleaner, "Remove duplicate emails"));
+        assertEquals(1, removed(cleaner, "Remove blank organizations"));
+        assertEquals(2, changed(cleaner, "Phone numbers to E.164"));
+        assertEquals(1, removed(cleaner, "Remove duplicate phone numbers"));
+
+        assertSame(cleaned, cleaner.clean(cleaned));
+    }
+
+    @Test
+    public void leavesFormattedCardsAloneWhenRead() {
+        final VCard card = new VCard();
+        card.setFormattedName(" Ada Lovelace");
+        card.addEmail("ada@engine.org");
+        card.addEmail("ada@engine.org");
+        card.addTelephoneNumber("+44 20 7946 0000");
+        assertSame(card, CardCleaner.baseline().clean(card));
+
+        card.addEmail(" ");
+        final VCard cleaned = CardCleaner.baseline().clean(card);
+        assertEquals(2, cleaned.getEmails().size());
+        assertEquals("+44 20 7946 0000", cleaned.getTelephoneNumbers().get(0).getText());
+    }
+
+    @Test
+    public void writesNumbersInE164Form() {
+        assertEquals("+15551234567", CardCleaner.e164("(555) 123-4567", "1"));
+        assertEquals("+15551234567", CardCleaner.e164("1-555-123-4567", "1"));
+        assertEquals("+442079460000", CardCleaner.e164("020 7946 0000", "44"));
+        assertEquals("+442079460000", CardCleaner.e164("+44 20 7946 0000", null));
+        assertNull(CardCleaner.e164("(555) 123-4567", null));
+        assertNull(CardCleaner.e164("555-1234 ext. 12", "1"));
+        assertNull(CardCleaner.e164("+1 234", null));
+        assertEquals("+442079460958", CardCleaner.e164("+44 (0)20 7946 0958", null));
+        assertNull(CardCleaner.e164("+1 617 555 1212,,123", null));
+        assertNull(CardCleaner.e164("+1 617 555 1212;ext=123", null));
+        assertNull(CardCleaner.e164("+1 617 555 1212w123", null));
+        assertNull(CardCleaner.e164("+1 617 555 1212p123", null));
+        assertNull(CardCleaner.e164("+1 617 555 1212 ext 123", null));
+    }
+
+    @Test
+    public void leavesLocalNumbersAndServiceCodesAlone() {
+        assertNull(CardCleaner.e164("555-1212", "1"));
+        assertNull(CardCleaner.e164("1 555 1212", "1"));
+        assertNull(CardCleaner.e164("*67 555 1212", "1"));
+        assertNull(CardCleaner.e164("*67 617 555 1212", "1"));
+        assertNull(CardCleaner.e164("+1 617 555 1212#", null));
+        assertNull(CardCleaner.e164("#31# 020 7946 0000", "44"));
+    }
+
+    @Test
+    public void keepsNumbersThatDifferOnlyInCountryCode() {
+        final VCard card = new VCard();
+        card.addTelephoneNumber("+44 20 7946 0958");
+        card.addTelephoneNumber("+33 20 7946 0958");
+        card.addTelephoneNumber("+1 617 555 1212,,123");
+        card.addTelephoneNumber("+1 617 555 1212,,456");
+        final VCard cleaned = CardCleaner.standard().clean(card);
+        assertEquals(4, cleaned.getTelephoneNumbers().size());
+        assertEquals("+442079460958", cleaned.getTelephoneNumbers().get(0).getText());
+        assertEquals("+332079460958", cleaned.getTelephoneNumbers().get(1).getText());
+    }
+
+    @Test
+    public void acceptsCustomRules() {
+        final CardCleaner cleaner = new CardCleaner(List.of(CardCleaner.rule("Drop notes", Note.class,
+                (note, seen) -> CleanupRule.Outcome.REMOVED)));
+        final VCard card = new VCard();
+        card.addNote("one");
+        card.addNote("one");
+        card.setFormattedName("Ada");
+        final VCard cleaned = cleaner.clean(card);
+        assertTrue(cleaned.getNotes().isEmpty());
+        assertSame(card.getFormattedName(), cleaned.getFormattedName());
+        assertEquals(2, removed(cleaner, "Drop notes"));
+    }
+
+}
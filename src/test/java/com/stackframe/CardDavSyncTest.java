@@ -0,0 +1,239 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CardDavSyncTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private CardDavTestServer server;
+    private CardDavClient client;
+    private CardDavSync.State state;
+    private final List<CardEntry> entries = new ArrayList<>();
+
+    private static String card(final String uid, final String name) {
+        return "BEGIN:VCARD\r\nVERSION:3.0\r\nUID:" + uid + "\r\nFN:" + name + "\r\nEND:VCARD\r\n";
+    }
+
+    @Before
+    public void startServer() throws Exception {
+        server = new CardDavTestServer();
+        client = new CardDavClient(server.getCollection(), null, null);
+        state = new CardDavSync.State(client.getCollection());
+        for (int i = 0; i < 250; i++) {
+            server.put("u" + i + ".vcf", card("u" + i, "Card " + i));
+        }
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    private CardDavSync.Result sync() throws Exception {
+        final CardDavSync.Result result = new CardDavSync(client, state, entries).doInBackground();
+        result.getEdit().applyTo(entries);
+        state = result.getState();
+        return result;
+    }
+
+    /**
+     * @return the name a card with a UID is put under
+     */
+    private String name(final String uid) {
+        return client.hrefFor(uid).substring("/book/".length());
+    }
+
+    private int find(final String name) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).getCard().getFormattedName().getValue().equals(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Test
+    public void fetchesOnlyWhatChanged() throws Exception {
+        assertEquals(250, sync().getFetched());
+        assertEquals(250, entries.size());
+        assertEquals(250, server.fetched.get());
+
+        server.put("u3.vcf", card("u3", "Ada"));
+        server.put("u300.vcf", card("u300", "Babbage"));
+        server.remove("u7.vcf");
+        final CardDavSync.Result result = sync();
+        assertEquals(2, result.getFetched());
+        assertEquals(1, result.getRemoved());
+        assertEquals(0, result.getPushed());
+        assertEquals(252, server.fetched.get());
+        assertEquals(250, entries.size());
+        assertEquals(3, find("Ada"));
+        assertEquals(-1, find("Card 7"));
+        assertTrue(find("Babbage") >= 0);
+
+        assertEquals(0, sync().getFetched());
+    }
+
+    @Test
+    public void pushesLocalChangesConditionally() throws Exception {
+        sync();
+        final VCard edited = new VCard(entries.get(0).getCard());
+        edited.setFormattedName("Edited");
+        entries.get(0).setCard(edited);
+        entries.remove(1);
+        final VCard added = new VCard(VCardVersion.V2_1);
+        added.setFormattedName("Added");
+        entries.add(new CardEntry(added));
+
+        final CardDavSync.Result result = sync();
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(0, result.getFetched());
+        assertEquals(2, result.getPushed());
+        assertEquals(1, result.getDeleted());
+        assertTrue(server.get("u0.vcf").contains("FN:Edited"));
+        assertNull(server.get("u1.vcf"));
+        assertEquals(250, server.names().size());
+        // The new card was given a UID to be stored under.
+        final String uid = entries.get(find("Added")).getCard().getUid().getValue();
+        assertTrue(server.get(name(uid)).contains("VERSION:3.0"));
+
+        // The server reports the writes back, but nothing needs fetching.
+        final CardDavSync.Result again = sync();
+        assertEquals(0, again.getFetched());
+        assertEquals(0, again.getPushed());
+    }
+
+    @Test
+    public void keepsBothSidesOfAConflict() throws Exception {
+        sync();
+        final VCard edited = new VCard(entries.get(5).getCard());
+        edited.setFormattedName("Local");
+        entries.get(5).setCard(edited);
+        server.put("u5.vcf", card("u5", "Remote"));
+
+        final CardDavSync.Result result = sync();
+        assertEquals(1, result.getConflicts());
+        assertEquals(5, find("Remote"));
+        final VCard local = entries.get(find("Local")).getCard();
+        assertNotEquals("u5", local.getUid().getValue());
+        assertTrue(server.get("u5.vcf").contains("FN:Remote"));
+        assertTrue(server.get(name(local.getUid().getValue())).contains("FN:Local"));
+    }
+
+    @Test
+    public void startsOverWhenTheTokenIsRejected() throws Exception {
+        sync();
+        server.put("u9.vcf", card("u9", "Changed"));
+        server.remove("u8.vcf");
+        server.expireTokens();
+
+        final CardDavSync.Result result = sync();
+        // Every member is listed again, but only the changed one is fetched.
+        assertEquals(1, result.getFetched());
+        assertEquals(1, result.getRemoved());
+        assertEquals(249, entries.size());
+        assertEquals(8, find("Changed"));
+    }
+
+    @Test
+    public void matchesExistingCardsByUidOnTheFirstSync() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            entries.add(new CardEntry(Ezvcard.parse(card("u" + i, "Local " + i)).first()));
+        }
+
+        entries.add(new CardEntry(Ezvcard.parse(card("mine", "Mine")).first()));
+        entries.add(new CardEntry(Ezvcard.parse(card("u3", "Card 3")).first()));
+        final CardDavSync.Result result = sync();
+        // The cards that differ from the server's are kept as new cards, as there is no telling which side changed.
+        assertEquals(3, result.getConflicts());
+        assertEquals(254, entries.size());
+        assertEquals(0, find("Card 0"));
+        assertEquals(3, find("Mine"));
+        assertEquals(4, find("Card 3"));
+        assertTrue(find("Local 0") >= 0);
+        assertEquals(4, result.getPushed());
+        assertTrue(server.get("mine.vcf").contains("FN:Mine"));
+    }
+
+    @Test
+    public void carriesOnFromASavedState() throws Exception {
+        sync();
+        final Path file = folder.getRoot().toPath().resolve("state.carddav");
+        state.save(file);
+        // A new session reads the cards again, so the entries are new ones.
+        entries.replaceAll(entry -> new CardEntry(new VCard(entry.getCard())));
+        state = CardDavSync.State.load(file, client.getCollection());
+        final VCard edited = new VCard(entries.get(5).getCard());
+        edited.setFormattedName("Edited");
+        entries.set(5, new CardEntry(edited));
+        server.put("u3.vcf", card("u3", "Ada"));
+        server.remove("u7.vcf");
+
+        final CardDavSync.Result result = sync();
+        assertEquals(0, result.getConflicts());
+        assertEquals(1, result.getFetched());
+        assertEquals(1, result.getRemoved());
+        assertEquals(1, result.getPushed());
+        assertEquals(249, entries.size());
+        assertEquals(-1, find("Card 7"));
+        assertNull(server.get("u7.vcf"));
+        assertTrue(server.get("u5.vcf").contains("FN:Edited"));
+        assertEquals(3, find("Ada"));
+
+        assertEquals(0, sync().getPushed());
+    }
+
+    @Test
+    public void keepsLocalChangesWhenTheStateIsLost() throws Exception {
+        sync();
+        final VCard edited = new VCard(entries.get(4).getCard());
+        edited.setFormattedName("Local");
+        entries.set(4, new CardEntry(edited));
+        state = new CardDavSync.State(client.getCollection());
+
+        final CardDavSync.Result result = sync();
+        assertEquals(1, result.getConflicts());
+        assertEquals(1, result.getPushed());
+        assertEquals(251, entries.size());
+        assertEquals(4, find("Card 4"));
+        final VCard local = entries.get(find("Local")).getCard();
+        assertTrue(server.get(name(local.getUid().getValue())).contains("FN:Local"));
+    }
+
+    @Test
+    public void recognizesItsOwnWritesWhenAResultIsDropped() throws Exception {
+        sync();
+        final VCard edited = new VCard(entries.get(2).getCard());
+        edited.setFormattedName("Edited");
+        entries.set(2, new CardEntry(edited));
+        // The edit is written, but the result is not applied.
+        new CardDavSync(client, state, entries).doInBackground();
+        state = state.detached();
+
+        final CardDavSync.Result result = sync();
+        assertEquals(0, result.getConflicts());
+        assertEquals(0, result.getPushed());
+        assertEquals(250, entries.size());
+        assertEquals(2, find("Edited"));
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.stackframe;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for a CardDAV server with one address book at {@code /book/}, answering just the requests
+ * {@link CardDavClient} makes. Sync tokens are positions in a log of changed hrefs.
+ */
+final class CardDavTestServer implements AutoCloseable {
+
+    private static final Pattern TOKEN = Pattern.compile("<D:sync-token>(.*?)</D:sync-token>");
+    private static final Pattern HREF = Pattern.compile("<D:href>(.*?)</D:href>");
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private final Map<String, String[]> members = new LinkedHashMap<>();
+    private final List<String> log = new ArrayList<>();
+    private int etags;
+    private int epoch;
+
+    /**
+     * The number of cards sent in multiget responses.
+     */
+    final AtomicInteger fetched = new AtomicInteger();
+
+    CardDavTestServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/book/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    URI getCollection() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/book/");
+    }
+
+    /**
+     * Adds or changes a card as another client would.
+     */
+    synchronized void put(final String name, final String card) {
+        store("/book/" + name, card);
+    }
+
+    synchronized void remove(final String name) {
+        members.remove("/book/" + name);
+        log.add("/book/" + name);
+    }
+
+    /**
+     * @return the text of a card, or null if there is none
+     */
+    synchronized String get(final String name) {
+        final String[] member = members.get("/book/" + name);
+        return member == null ? null : member[1];
+    }
+
+    synchronized Set<String> names() {
+        final Set<String> names = new LinkedHashSet<>();
+        members.keySet().forEach(href -> names.add(href.substring("/book/".length())));
+        return names;
+    }
+
+    /**
+     * Makes every sync token handed out so far invalid.
+     */
+    synchronized void expireTokens() {
+        epoch++;
+    }
+
+    private String store(final String href, final String card) {
+        final String etag = "\"" + ++etags + "\"";
+        members.put(href, new String[]{etag, card});
+        log.add(href);
+        return etag;
+    }
+
+    private String token() {
+        return "t" + epoch + "-" + log.size();
+    }
+
+    private static String escape(final String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private synchronized void handle(final HttpExchange exchange) throws IOException {
+        final String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        final String path = exchange.getRequestURI().getPath();
+        final String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        final String[] member = members.get(path);
+        switch (exchange.getRequestMethod()) {
+            case "REPORT":
+                if (body.contains("sync-collection")) {
+                    sync(exchange, body);
+                } else {
+                    multiget(exchange, body);
+                }
+
+                break;
+            case "PUT":
+                if (ifMatch != null ? member == null || !member[0].equals(ifMatch)
+                        : member != null && "*".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    respond(exchange, 412, null);
+                } else {
+                    exchange.getResponseHeaders().add("ETag", store(path, body));
+                    respond(exchange, member == null ? 201 : 204, null);
+                }
+
+                break;
+            case "DELETE":
+                if (member == null) {
+                    respond(exchange, 404, null);
+                } else if (ifMatch != null && !member[0].equals(ifMatch)) {
+                    respond(exchange, 412, null);
+                } else {
+                    members.remove(path);
+                    log.add(path);
+                    respond(exchange, 204, null);
+                }
+
+                break;
+            default:
+                respond(exchange, 405, null);
+        }
+    }
+
+    private void sync(final HttpExchange exchange, final String body) throws IOException {
+        final Matcher token = TOKEN.matcher(body);
+        final Set<String> hrefs = new LinkedHashSet<>();
+        if (token.find()) {
+            final String[] parts = token.group(1).substring(1).split("-");
+            if (Integer.parseInt(parts[0]) != epoch) {
+                respond(exchange, 403, "<D:error xmlns:D=\"DAV:\"><D:valid-sync-token/></D:error>");
+                return;
+            }
+
+            hrefs.addAll(log.subList(Integer.parseInt(parts[1]), log.size()));
+        } else {
+            hrefs.addAll(members.keySet());
+        }
+
+        final StringBuilder xml = new StringBuilder("<D:multistatus xmlns:D=\"DAV:\">");
+        for (final String href : hrefs) {
+            final String[] member = members.get(href);
+            xml.append("<D:response><D:href>").append(href).append("</D:href>");
+            if (member == null) {
+                xml.append("<D:status>HTTP/1.1 404 Not Found</D:status>");
+            } else {
+                xml.append("<D:propstat><D:prop><D:getetag>").append(escape(member[0]))
+                        .append("</D:getetag></D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat>");
+            }
+
+            xml.append("</D:response>");
+        }
+
+        respond(exchange, 207, xml.append("<D:sync-token>").append(token()).append("</D:sync-token></D:multistatus>")
+                .toString());
+    }
+
+    private void multiget(final HttpExchange exchange, final String body) throws IOException {
+        final StringBuilder xml = new StringBuilder("<D:multistatus xmlns:D=\"DAV:\" "
+                + "xmlns:C=\"urn:ietf:params:xml:ns:carddav\">");
+        final Matcher href = HREF.matcher(body);
+        while (href.find()) {
+            final String[] member = members.get(href.group(1));
+            xml.append("<D:response><D:href>").append(href.group(1)).append("</D:href>");
+            if (member == null) {
+                xml.append("<D:status>HTTP/1.1 404 Not Found</D:status>");
+            } else {
+                fetched.incrementAndGet();
+                xml.append("<D:propstat><D:prop><D:getetag>").append(escape(member[0]))
+                        .append("</D:getetag><C:address-data>").append(escape(member[1]))
+                        .append("</C:address-data></D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat>");
+            }
+
+            xml.append("</D:response>");
+        }
+
+        respond(exchange, 207, xml.append("</D:multistatus>").toString());
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String xml) throws IOException {
+        final byte[] bytes = xml == null ? new byte[0] : xml.getBytes(StandardCharsets.UTF_8);
+        if (xml != null) {
+            exchange.getResponseHeaders().add("Content-Type", "application/xml; charset=utf-8");
+        }
+
+        // Connections are not kept alive, as HttpServer may close an idle one just as the client reuses it.
+        exchange.getResponseHeaders().add("Connection", "close");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+public class CardFileWriterTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<VCard> cards(final int n) {
+        final List<VCard> cards = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            final VCard card = new VCard();
+            card.setFormattedName("Card " + i);
+            cards.add(card);
+        }
+
+        return cards;
+    }
+
+    @Test
+    public void replacesTheTarget() throws IOException {
+        final File target = folder.newFile("cards.vcf");
+        final long size = CardFileWriter.write(target.toPath(), cards(3), VCardVersion.V3_0, percent -> {
+        }, () -> false);
+        assertEquals(target.length(), size);
+        assertEquals(3, Ezvcard.parse(target).all().size());
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void keepsPermissionsOrLeavesNewFilesToTheOwner() throws IOException {
+        final Path existing = folder.newFile("shared.vcf").toPath();
+        Assume.assumeTrue(existing.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Files.setPosixFilePermissions(existing, PosixFilePermissions.fromString("rw-rw-r--"));
+        CardFileWriter.write(existing, cards(1), VCardVersion.V3_0, percent -> {
+        }, () -> false);
+        assertEquals("rw-rw-r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(existing)));
+
+        final Path created = folder.getRoot().toPath().resolve("new.vcf");
+        CardFileWriter.write(created, cards(1), VCardVersion.V3_0, percent -> {
+        }, () -> false);
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(created)));
+    }
+
+    @Test
+    public void leavesTheTargetAloneWhenCancelled() throws IOException {
+        final File target = folder.newFile("cards.vcf");
+        final byte[] original = "original".getBytes(StandardCharsets.UTF_8);
+        Files.write(target.toPath(), original);
+        try {
+            CardFileWriter.write(target.toPath(), cards(5000), VCardVersion.V4_0, percent -> {
+            }, () -> true);
+            fail();
+        } catch (final CancellationException e) {
+            // expected
+        }
+
+        assertArrayEquals(original, Files.readAllBytes(target.toPath()));
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void copiesUnchangedCardsFromTheSource() throws IOException {
+        final String[] texts = {
+                "BEGIN:VCARD\r\nVERSION:3.0\r\nfn:Ada\r\nEND:VCARD\r\n",
+                "BEGIN:VCARD\r\nVERSION:3.0\r\nfn:Alan\r\nEND:VCARD\r\n",
+                "BEGIN:VCARD\r\nVERSION:3.0\r\nfn:Grace\r\nEND:VCARD\r\n"};
+        final File source = folder.newFile("source.vcf");
+        Files.write(source.toPath(), String.join("", texts).getBytes(StandardCharsets.UTF_8));
+        final List<CardEntry> entries = new ArrayList<>();
+        long offset = 0;
+        for (final String text : texts) {
+            final CardEntry entry = new CardEntry(Ezvcard.parse(text).first(), false);
+            entry.setSource(offset, offset + text.length(), VCardVersion.V3_0);
+            offset += text.length();
+            entries.add(entry);
+        }
+
+        final VCard edited = new VCard(VCardVersion.V3_0);
+        edited.setFormattedName("Alan Turing");
+        entries.get(1).setCard(edited);
+
+        final File target = folder.newFile("target.vcf");
+        final long[] offsets = CardFileWriter.write(target.toPath(), entries, VCardVersion.V3_0, source.toPath(),
+                percent -> {
+                }, () -> false);
+        final String written = new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8);
+        assertEquals(texts[0], written.substring(0, (int) offsets[1]));
+        assertEquals(texts[2], written.substring((int) offsets[2]));
+        assertEquals(target.length(), offsets[3]);
+        assertEquals("Alan Turing",
+                Ezvcard.parse(written.substring((int) offsets[1], (int) offsets[2])).first().getFormattedName()
+                        .getValue());
+        assertArrayEquals(written.substring((int) offsets[1], (int) offsets[2]).getBytes(StandardCharsets.UTF_8),
+                entries.get(1).getEncoded(VCardVersion.V3_0));
+    }
+
+}
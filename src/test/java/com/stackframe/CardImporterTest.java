@@ -0,0 +1,53 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class CardImporterTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static String card(final String name) {
+        return "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:" + name + "\r\nEND:VCARD\r\n";
+    }
+
+    private Path write(final String name, final String content) throws IOException {
+        final File file = new File(folder.getRoot(), name);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file.toPath();
+    }
+
+    @Test
+    public void importsFilesAndDirectoriesInOrder() throws Exception {
+        final Path a = write("a.vcf", card("Ada") + card("Alan"));
+        write("dir/b.vcf", card("Grace"));
+        write("dir/c.vcf", card("Edsger"));
+        write("dir/notes.txt", card("Ignored"));
+        final Path missing = folder.getRoot().toPath().resolve("missing.vcf");
+
+        final List<Path> inputs = List.of(a, folder.getRoot().toPath().resolve("dir"), missing, a);
+        final List<Path> files = CardImporter.files(inputs);
+        assertEquals(4, files.size());
+        assertEquals("b.vcf", files.get(1).getFileName().toString());
+        assertEquals("c.vcf", files.get(2).getFileName().toString());
+
+        final CardImporter importer = new CardImporter(inputs);
+        assertEquals(4, (int) importer.doInBackground());
+        assertEquals(1, importer.getFailures().size());
+        assertTrue(importer.getFailures().containsKey(missing.toAbsolutePath()));
+    }
+
+}
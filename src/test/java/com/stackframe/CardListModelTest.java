@@ -0,0 +1,167 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import ezvcard.VCard;
+import ezvcard.property.StructuredName;
+import org.junit.Test;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CardListModelTest {
+
+    private static CardEntry entry(final String family) {
+        final VCard card = new VCard();
+        final StructuredName n = new StructuredName();
+        n.setFamily(family);
+        card.setStructuredName(n);
+        return new CardEntry(card);
+    }
+
+    private static List<String> events(final CardListModel model) {
+        final List<String> events = new ArrayList<>();
+        model.addListDataListener(new ListDataListener() {
+
+            @Override
+            public void intervalAdded(final ListDataEvent e) {
+                events.add("+" + e.getIndex0() + "-" + e.getIndex1());
+            }
+
+            @Override
+            public void intervalRemoved(final ListDataEvent e) {
+                events.add("-" + e.getIndex0() + "-" + e.getIndex1());
+            }
+
+            @Override
+            public void contentsChanged(final ListDataEvent e) {
+                events.add("~" + e.getIndex0() + "-" + e.getIndex1());
+            }
+
+        });
+        return events;
+    }
+
+    @Test
+    public void viewsIndexTheStore() {
+        final CardStore store = new CardStore();
+        final CardListModel model = new CardListModel(store);
+        final List<String> events = events(model);
+        final List<CardEntry> entries = Arrays.asList(entry("Turing"), entry("Babbage"), entry("Lovelace"),
+                entry("Boole"));
+        store.addAll(entries);
+        model.entriesAppended(entries.size());
+        assertEquals(Arrays.asList("+0-3"), events);
+
+        events.clear();
+        model.setView(null, true);
+        assertEquals(Arrays.asList("~0-3"), events);
+        assertSame(entries.get(1), model.getElementAt(0));
+        assertSame(entries.get(3), model.getElementAt(1));
+        assertSame(entries.get(0), model.getElementAt(3));
+        assertEquals(0, model.firstIndexOf('B'));
+        assertEquals(2, model.firstIndexOf('C'));
+        assertEquals(-1, model.firstIndexOf('Z'));
+
+        events.clear();
+        model.setView(entry -> entry.getCard().getStructuredName().getFamily().startsWith("B"), false);
+        assertEquals(Arrays.asList("-2-3", "~0-1"), events);
+        assertSame(entries.get(3), model.getElementAt(1));
+
+        events.clear();
+        model.entriesChanged(new int[]{2, 3});
+        assertEquals(Arrays.asList("~1-1"), events);
+
+        events.clear();
+        model.setView(null, false);
+        model.entriesChanged(new int[]{1, 2});
+        assertEquals(Arrays.asList("+2-3", "~0-1", "~1-2"), events);
+    }
+
+    @Test
+    public void sortsByCollationKeyAndIndexesLetters() {
+        final CardStore store = new CardStore();
+        final CardListModel model = new CardListModel(store);
+        final List<CardEntry> entries = Arrays.asList(entry("Zola"), entry("Évian"), entry(""), entry("Eaton"),
+                entry("42nd Street"), entry("evans"));
+        store.addAll(entries);
+        model.setView(null, true);
+
+        // Accents and case only break ties, and a card without a name sorts as No Name.
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < model.getSize(); i++) {
+            names.add(model.getElementAt(i).getSortString());
+        }
+
+        assertEquals(Arrays.asList("42nd Street", "Eaton", "evans", "Évian", "No Name", "Zola"), names);
+        assertEquals('#', entries.get(4).getIndexLetter());
+        assertEquals('E', entries.get(1).getIndexLetter());
+        assertEquals(0, model.firstIndexOf('#'));
+        assertEquals(1, model.firstIndexOf('A'));
+        assertEquals(1, model.firstIndexOf('E'));
+        assertEquals(4, model.firstIndexOf('F'));
+        assertEquals(5, model.firstIndexOf('Z'));
+
+        model.setView(null, false);
+        assertEquals(-1, model.firstIndexOf('E'));
+    }
+
+    @Test
+    public void removalsCompactTheView() {
+        final CardStore store = new CardStore();
+        final CardListModel model = new CardListModel(store);
+        final List<CardEntry> entries = Arrays.asList(entry("Turing"), entry("Babbage"), entry("Lovelace"),
+                entry("Boole"), entry("Hopper"));
+        store.addAll(entries);
+        model.setView(null, true);
+        final List<String> events = events(model);
+
+        store.removeAll(new int[]{1, 2});
+        model.entriesRemoved(new int[]{1, 2});
+        assertEquals(Arrays.asList("-3-3", "-0-0"), events);
+        assertEquals(3, model.getSize());
+        assertSame(entries.get(3), model.getElementAt(0));
+        assertSame(entries.get(4), model.getElementAt(1));
+        assertSame(entries.get(0), model.getElementAt(2));
+        assertEquals(1, model.firstIndexOf('H'));
+        assertEquals(2, model.firstIndexOf('L'));
+    }
+
+    @Test
+    public void searchResultsArriveAtTheEnd() {
+        final CardStore store = new CardStore();
+        final CardListModel model = new CardListModel(store);
+        store.addAll(Arrays.asList(entry("Turing"), entry("Babbage"), entry("Lovelace"), entry("Boole")));
+        model.setView(entry -> false, false);
+        final List<String> events = events(model);
+        model.entriesPassed(new int[]{1, 3});
+        model.entriesPassed(new int[]{});
+        model.entriesPassed(new int[]{0});
+        assertEquals(Arrays.asList("+0-1", "+2-2"), events);
+        assertSame(store.get(3), model.getElementAt(1));
+        assertSame(store.get(0), model.getElementAt(2));
+    }
+
+    @Test
+    public void bulkChangesAreOneEventPerRun() {
+        final CardStore store = new CardStore();
+        final CardListModel model = new CardListModel(store);
+        store.addAll(Arrays.asList(entry("Turing"), entry("Babbage"), entry("Lovelace"), entry("Boole"),
+                entry("Hopper")));
+        final List<String> events = events(model);
+        model.entriesChanged(new int[]{1, 2, 4});
+        model.entriesChanged(new int[]{});
+        assertEquals(Arrays.asList("~1-2", "~4-4"), events);
+
+        // Babbage, Boole, Hopper, Lovelace, Turing
+        model.setView(null, true);
+        events.clear();
+        model.entriesChanged(new int[]{0, 3});
+        assertEquals(Arrays.asList("~1-1", "~4-4"), events);
+    }
+
+}
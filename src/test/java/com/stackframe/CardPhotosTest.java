@@ -0,0 +1,104 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import ezvcard.parameter.ImageType;
+import ezvcard.property.Photo;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CardPhotosTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] png(final int width, final int height) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", bytes);
+        return bytes.toByteArray();
+    }
+
+    private static VCard card(final String name, final byte[] photo) {
+        final VCard card = new VCard(VCardVersion.V3_0);
+        card.setFormattedName(name);
+        if (photo != null) {
+            card.addPhoto(new Photo(photo, ImageType.PNG));
+        }
+
+        return card;
+    }
+
+    @Test
+    public void offloadedPhotosAreWrittenLikeAnyOther() throws Exception {
+        final byte[] image = png(40, 20);
+        final byte[] expected = CardFileWriter.encode(card("Ada", image));
+
+        final VCard card = CardPhotos.offload(card("Ada", image));
+        final Photo photo = card.getPhotos().get(0);
+        assertTrue(photo instanceof CardPhotos.OffHeapPhoto);
+        assertTrue(((CardPhotos.OffHeapPhoto) photo).getImage().isDirect());
+        assertArrayEquals(image, photo.getData());
+        assertArrayEquals(expected, CardFileWriter.encode(card));
+
+        final Photo copy = photo.copy();
+        assertNotSame(photo, copy);
+        assertEquals(photo, copy);
+        assertArrayEquals(image, Ezvcard.parse(new String(CardFileWriter.encode(card), StandardCharsets.UTF_8))
+                .first().getPhotos().get(0).getData());
+    }
+
+    @Test
+    public void thumbnailsFitASquare() throws Exception {
+        final CardEntry entry = new CardEntry(CardPhotos.offload(card("Ada", png(40, 20))));
+        assertTrue(entry.hasPhoto());
+        final BufferedImage thumbnail = PhotoThumbnails.decode(entry, 24);
+        assertEquals(24, thumbnail.getWidth());
+        assertEquals(24, thumbnail.getHeight());
+        // The image is 24 by 12, centered, with transparent bands above and below.
+        assertEquals(0, thumbnail.getRGB(12, 0) >>> 24);
+        assertEquals(0xff, thumbnail.getRGB(12, 12) >>> 24);
+        assertFalse(new CardEntry(card("Babbage", null)).hasPhoto());
+    }
+
+    @Test
+    public void unchangedCardsWithPhotosAreParsedOnDemand() throws Exception {
+        final Path file = folder.newFile("cards.vcf").toPath();
+        Files.write(file, (new String(CardFileWriter.encode(card("Ada", png(8, 8))), StandardCharsets.UTF_8)
+                + new String(CardFileWriter.encode(card("Babbage", null)), StandardCharsets.UTF_8))
+                .getBytes(StandardCharsets.UTF_8));
+
+        final MappedCardFile mapped = MappedCardFile.map(file);
+        final List<CardEntry> entries = new ArrayList<>();
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final CardSpans spans = CardSpans.scan(channel);
+            new ParallelVCardParser().parse(channel, spans, card -> CardLoader.entry(card, file), chunk -> {
+                CardLoader.locate(chunk, spans, true, mapped);
+                entries.addAll(chunk.getCards());
+            }, () -> false);
+        }
+
+        assertFalse(entries.get(0).isLoaded());
+        assertTrue(entries.get(1).isLoaded());
+        assertEquals(8, ImageIO.read(CardPhotos.open(entries.get(0).getCard().getPhotos().get(0))).getWidth());
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CardQueryTest {
+
+    private static VCard card(final String name, final String telephone) {
+        final VCard card = new VCard(VCardVersion.V3_0);
+        card.setFormattedName(name);
+        card.addTelephoneNumber(telephone);
+        return card;
+    }
+
+    @Test
+    public void measuresEditDistanceWithinABound() {
+        assertEquals(3, CardQuery.distance("kitten", "Sitting", 5));
+        assertEquals(0, CardQuery.distance("ada", "ADA", 0));
+        // Anything beyond the bound is reported as just past it.
+        assertEquals(2, CardQuery.distance("kitten", "sitting", 1));
+        assertEquals(3, CardQuery.distance("a", "abcdefgh", 2));
+    }
+
+    @Test
+    public void measuresJaroWinklerSimilarity() {
+        assertEquals(0.961, CardQuery.similarity("martha", "MARHTA"), 0.001);
+        assertEquals(0.84, CardQuery.similarity("dwayne", "duane"), 0.001);
+        assertEquals(1, CardQuery.similarity("ada", "ada"), 0);
+        assertEquals(0, CardQuery.similarity("abc", "xyz"), 0);
+    }
+
+    @Test
+    public void testsEachValueAndEachWord() {
+        final VCard ada = card("Ada Lovelace", "020 7946 0000");
+        final VCard grace = card("Grace Hopper", "+1 202 555 0100");
+        final CardQuery noCountryCode = CardQuery.regex(CardQuery.Field.TELEPHONE_NUMBERS, "^[^+]");
+        assertTrue(noCountryCode.test(ada));
+        assertFalse(noCountryCode.test(grace));
+
+        final CardQuery lovlace = CardQuery.editDistance(CardQuery.Field.NAMES, "Lovlace", 2);
+        assertTrue(lovlace.test(ada));
+        assertFalse(lovlace.test(grace));
+        assertFalse(CardQuery.editDistance(CardQuery.Field.EMAILS, "Lovlace", 2).test(ada));
+        assertTrue(CardQuery.similarity(CardQuery.Field.ANY, "hoper", 0.9).test(grace));
+    }
+
+    @Test
+    public void searchesEveryCard() throws Exception {
+        final List<CardEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            entries.add(new CardEntry(card("Card " + i, i % 3 == 0 ? "+44 " + i : String.valueOf(i))));
+        }
+
+        final CardSearch search = new CardSearch(entries,
+                CardQuery.regex(CardQuery.Field.TELEPHONE_NUMBERS, "^\\+"));
+        assertEquals(667, (int) search.doInBackground());
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CardReloaderTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static String card(final String name, final String uid) {
+        return "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:" + name + "\r\n" + (uid == null ? "" : "UID:" + uid + "\r\n")
+                + "END:VCARD\r\n";
+    }
+
+    private static List<CardEntry> load(final Path file) throws Exception {
+        final List<CardEntry> entries = new ArrayList<>();
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final CardSpans spans = CardSpans.scan(channel);
+            new ParallelVCardParser().parse(channel, spans, card -> CardLoader.entry(card, file), chunk -> {
+                CardLoader.locate(chunk, spans, true, null);
+                entries.addAll(chunk.getCards());
+            }, () -> false);
+        }
+
+        return entries;
+    }
+
+    @Test
+    public void reportsOnlyWhatChanged() throws Exception {
+        final Path file = folder.newFile("cards.vcf").toPath();
+        Files.write(file, (card("Ada", "a") + card("Babbage", null) + card("Curie", "c") + card("Dijkstra", "d"))
+                .getBytes(StandardCharsets.UTF_8));
+        final List<CardEntry> entries = load(file);
+        final VCard edited = new VCard(VCardVersion.V3_0);
+        edited.setFormattedName("Edsger W. Dijkstra");
+        entries.get(3).setCard(edited);
+        final VCard imported = new VCard(VCardVersion.V3_0);
+        imported.setFormattedName("Grace");
+        entries.add(new CardEntry(imported, true, folder.getRoot().toPath().resolve("other.vcf")));
+
+        final String ada = card("Ada", "a");
+        Files.write(file, (ada + card("Marie Curie", "c") + card("Hopper", null) + card("Dijkstra", "d"))
+                .getBytes(StandardCharsets.UTF_8));
+        final CardReloader.Diff diff = new CardReloader(file, entries, List.of()).doInBackground();
+
+        assertEquals(1, diff.getRebased().size());
+        assertArrayEquals(new long[]{0, 0, ada.length()}, diff.getRebased().get(0));
+        final EditJournal.Edit<CardEntry> edit = diff.getEdit();
+        assertEquals(List.of(2), edit.getChangedPositions());
+        assertEquals("Marie Curie", edit.getChanged().get(0).getDisplayName());
+        assertArrayEquals(new int[]{1}, edit.getRemoved());
+        assertEquals(1, edit.getAdded().size());
+        assertEquals("Hopper", edit.getAdded().get(0).getDisplayName());
+    }
+
+    @Test
+    public void keepsCardsThatUnsavedEditsReplacedOrRemoved() throws Exception {
+        final Path file = folder.newFile("cards.vcf").toPath();
+        final String unchanged = card("Ada", "a") + card("Babbage", null) + card("Curie", null);
+        Files.write(file, (unchanged + card("Dijkstra", "d")).getBytes(StandardCharsets.UTF_8));
+        final CardStore store = new CardStore();
+        store.addAll(load(file));
+        store.setSource(CardStore.Source.of(file));
+
+        // Babbage is replaced as a merge or bulk edit does, and Curie and Dijkstra are removed.
+        final VCard edited = new VCard(VCardVersion.V3_0);
+        edited.setFormattedName("Charles Babbage");
+        store.supersede(1);
+        store.set(1, CardEntry.edited(edited, file));
+        store.supersede(2);
+        store.supersede(3);
+        store.removeAll(new int[]{2, 3});
+
+        // Something else touches the file, changing Dijkstra's card and adding one.
+        Files.write(file, (unchanged + card("Edsger Dijkstra", "d") + card("Hopper", null))
+                .getBytes(StandardCharsets.UTF_8));
+        final CardReloader.Diff diff = new CardReloader(file, store.asList(), store.getSuperseded()).doInBackground();
+        final EditJournal.Edit<CardEntry> edit = diff.getEdit();
+        assertTrue(edit.getChangedPositions().isEmpty());
+        assertEquals(0, edit.getRemoved().length);
+        assertEquals(1, edit.getAdded().size());
+        assertEquals("Hopper", edit.getAdded().get(0).getDisplayName());
+        assertEquals(3, diff.getSuperseded().size());
+
+        // Once the file no longer has them, they are forgotten.
+        Files.write(file, card("Ada", "a").getBytes(StandardCharsets.UTF_8));
+        store.setSuperseded(diff.getSuperseded());
+        assertEquals(0, new CardReloader(file, store.asList(), store.getSuperseded()).doInBackground()
+                .getSuperseded().size());
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+
+import ezvcard.VCard;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class CardSpansTest {
+
+    private static final String FILE = "BEGIN:VCARD\r\n"
+            + "VERSION:2.1\r\n"
+            + "N:One;Card\r\n"
+            + "NOTE;ENCODING=QUOTED-PRINTABLE:soft break=\r\n"
+            + "BEGIN:VCARD\r\n"
+            + "END:VCARD\r\n"
+            + "begin:vcard\n"
+            + "version:3.0\n"
+            + "N:Two;Card\n"
+            + "NOTE:folded\n"
+            + " END:VCARD\n"
+            + "end:vcard\n"
+            + "BEGIN:VCARD\n"
+            + "VERSION:3.0\n"
+            + "N:Three;Card\n"
+            + "END:VCARD";
+
+    private static File write(final String content) throws IOException {
+        final File file = File.createTempFile("spans", ".vcf");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void findsTopLevelCardsOnly() throws IOException {
+        final File file = write(FILE);
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final CardSpans spans = CardSpans.scan(channel);
+            assertEquals(3, spans.size());
+            assertEquals(0, spans.start(0));
+            assertEquals(FILE.indexOf("begin:vcard"), spans.start(1));
+            assertEquals(FILE.indexOf("BEGIN:VCARD\nVERSION:3.0"), spans.start(2));
+            assertEquals(FILE.length(), spans.end(2));
+        }
+    }
+
+    @Test
+    public void parsesInFileOrder() throws Exception {
+        final StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            b.append("BEGIN:VCARD\r\nVERSION:3.0\r\nFN:Card ").append(i).append("\r\nEND:VCARD\r\n");
+        }
+
+        final File file = write(b.toString());
+        final List<VCard> cards = new ArrayList<>();
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final CardSpans spans = CardSpans.scan(channel);
+            new ParallelVCardParser(new ForkJoinPool(4)).parse(channel, spans, VCardUtil::cleanup,
+                    chunk -> cards.addAll(chunk.getCards()), () -> false);
+        }
+
+        assertEquals(20000, cards.size());
+        for (int i = 0; i < cards.size(); i++) {
+            assertEquals("Card " + i, cards.get(i).getFormattedName().getValue());
+        }
+    }
+
+}
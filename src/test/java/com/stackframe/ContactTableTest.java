@@ -0,0 +1,123 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import ezvcard.parameter.EmailType;
+import ezvcard.parameter.TelephoneType;
+import ezvcard.property.Address;
+import ezvcard.property.Birthday;
+import ezvcard.property.Organization;
+import ezvcard.property.StructuredName;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+public class ContactTableTest {
+
+    private static VCard ada() {
+        final VCard card = new VCard(VCardVersion.V3_0);
+        card.setFormattedName("Lovelace, Ada");
+        final StructuredName name = new StructuredName();
+        name.setGiven("Ada");
+        name.setFamily("Lovelace");
+        card.setStructuredName(name);
+        final Organization organization = new Organization();
+        organization.getValues().add("Analytical Engine");
+        organization.getValues().add("Programs");
+        card.addOrganization(organization);
+        card.addEmail("ada@engine.org", EmailType.HOME);
+        card.addEmail("\"countess\"@engine.org");
+        card.addTelephoneNumber("+44 20 1234", TelephoneType.CELL);
+        final Address address = new Address();
+        address.setStreetAddress("12 St James's Square");
+        address.setLocality("London");
+        card.addAddress(address);
+        card.addProperty(new Birthday(new GregorianCalendar(1815, Calendar.DECEMBER, 10).getTime()));
+        return card;
+    }
+
+    private static List<VCard> roundTrip(final ContactFormat format, final List<VCard> cards) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(cards.size(), ContactTable.write(cards.iterator(), card -> card, format, out, n -> {
+        }, () -> false));
+        final List<VCard> read = new ArrayList<>();
+        assertEquals(cards.size(), ContactTable.read(new ByteArrayInputStream(out.toByteArray()), format, read::add,
+                () -> false));
+        return read;
+    }
+
+    private static void assertSameFields(final VCard expected, final VCard actual) {
+        assertEquals(expected.getFormattedName().getValue(), actual.getFormattedName().getValue());
+        assertEquals(expected.getStructuredName().getGiven(), actual.getStructuredName().getGiven());
+        assertEquals(expected.getStructuredName().getFamily(), actual.getStructuredName().getFamily());
+        assertEquals(expected.getOrganization().getValues(), actual.getOrganization().getValues());
+        assertEquals(expected.getEmails().size(), actual.getEmails().size());
+        for (int i = 0; i < expected.getEmails().size(); i++) {
+            assertEquals(expected.getEmails().get(i).getValue(), actual.getEmails().get(i).getValue());
+        }
+
+        assertEquals(expected.getTelephoneNumbers().get(0).getText(), actual.getTelephoneNumbers().get(0).getText());
+        assertEquals(expected.getAddresses().get(0).getStreetAddress(),
+                actual.getAddresses().get(0).getStreetAddress());
+        assertEquals(expected.getAddresses().get(0).getLocality(), actual.getAddresses().get(0).getLocality());
+        assertEquals(expected.getBirthday().getDate(), actual.getBirthday().getDate());
+    }
+
+    @Test
+    public void csvRoundTripsQuotesCommasAndNewlines() throws Exception {
+        final List<VCard> cards = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final VCard card = ada();
+            card.setFormattedName("Lovelace, Ada " + i);
+            cards.add(card);
+        }
+
+        final List<VCard> read = roundTrip(ContactFormat.CSV, cards);
+        for (int i = 0; i < cards.size(); i++) {
+            assertSameFields(cards.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void csvKeepsSeparatorsInsideValues() throws Exception {
+        final VCard card = ada();
+        card.getOrganization().getValues().set(0, "Babbage; Lovelace");
+        card.addTitle("Countess\nof Lovelace");
+        card.addEmail("back\\slash@example.org");
+        card.getAddresses().get(0).setStreetAddress("12 St James's Square;\nFlat 2");
+        final VCard read = roundTrip(ContactFormat.CSV, List.of(card)).get(0);
+        assertSameFields(card, read);
+        assertEquals("Countess\nof Lovelace", read.getTitles().get(read.getTitles().size() - 1).getValue());
+        assertEquals("back\\slash@example.org", read.getEmails().get(read.getEmails().size() - 1).getValue());
+    }
+
+    @Test
+    public void jsonLinesKeepTypes() throws Exception {
+        final VCard read = roundTrip(ContactFormat.JSON_LINES, List.of(ada())).get(0);
+        assertSameFields(ada(), read);
+        assertTrue(read.getEmails().get(0).getTypes().contains(EmailType.HOME));
+        assertTrue(read.getTelephoneNumbers().get(0).getTypes().contains(TelephoneType.CELL));
+    }
+
+    @Test
+    public void csvColumnsAreFoundByHeader() throws Exception {
+        final String csv = "\uFEFFEmails,Unknown,Formatted Name\r\n\"a@b.org\nc@d.org\",x,\"Doe, Jane\"\r\n";
+        final List<VCard> read = new ArrayList<>();
+        ContactTable.read(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), ContactFormat.CSV, read::add,
+                () -> false);
+        assertEquals(1, read.size());
+        assertEquals("Doe, Jane", read.get(0).getFormattedName().getValue());
+        assertEquals(2, read.get(0).getEmails().size());
+        assertEquals("c@d.org", read.get(0).getEmails().get(1).getValue());
+    }
+
+}
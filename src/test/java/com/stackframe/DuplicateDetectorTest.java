@@ -0,0 +1,67 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ezvcard.VCard;
+import ezvcard.property.StructuredName;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class DuplicateDetectorTest {
+
+    private static VCard card(final String family, final String given, final String email, final String phone) {
+        final VCard card = new VCard();
+        final StructuredName n = new StructuredName();
+        n.setFamily(family);
+        n.setGiven(given);
+        card.setStructuredName(n);
+        if (email != null) {
+            card.addEmail(email);
+        }
+
+        if (phone != null) {
+            card.addTelephoneNumber(phone);
+        }
+
+        return card;
+    }
+
+    @Test
+    public void groupsCardsThatShareKeys() {
+        final List<VCard> cards = Arrays.asList(
+                card("Smith", "John", "john@example.com", null),
+                card("Jones", "Mary", null, "+1 (555) 123-4567"),
+                card("Smyth", "Jon", " JOHN@example.com", null),
+                card("Other", "Person", null, null),
+                card("Jones", "Mary", null, "555.123.4567"),
+                card("Müller", "Jürgen", null, "+49 30 1234567"),
+                card("Muller", "Jurgen", null, "+49 (30) 123-4567"));
+        final List<int[]> groups = new DuplicateDetector().findDuplicates(cards);
+        assertEquals(3, groups.size());
+        assertArrayEquals(new int[]{0, 2}, groups.get(0));
+        assertArrayEquals(new int[]{1, 4}, groups.get(1));
+        assertArrayEquals(new int[]{5, 6}, groups.get(2));
+    }
+
+    @Test
+    public void needsMoreThanAPhoneNumberOrAName() {
+        final List<VCard> cards = Arrays.asList(
+                card("Smith", "John", null, "+1 (555) 123-4567"),
+                card("Jones", "Mary", null, "+1 (555) 123-4567"),
+                card("Brown", "Alan", null, "555 123 4567"),
+                card("Smith", "John", "john@example.com", null),
+                card("Smith", "John", "jsmith@example.org", null));
+        assertEquals(0, new DuplicateDetector().findDuplicates(cards).size());
+    }
+
+    @Test
+    public void soundex() {
+        assertEquals("r163", DuplicateDetector.soundex("robert"));
+        assertEquals("r163", DuplicateDetector.soundex("rupert"));
+        assertEquals("a261", DuplicateDetector.soundex("ashcraft"));
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+public class EditJournalTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Consumer<IOException> NO_FAILURE = e -> {
+        throw new AssertionError(e);
+    };
+
+    private static CardEntry entry(final String name) {
+        final VCard card = new VCard(VCardVersion.V3_0);
+        card.setFormattedName(name);
+        return new CardEntry(card, true);
+    }
+
+    private static String name(final CardEntry entry) {
+        return entry.getCard().getFormattedName().getValue();
+    }
+
+    @Test
+    public void editsBetweenListsReplayOntoTheOldList() {
+        final List<String> before = Arrays.asList("a", "b", "c", "d", "e");
+        final List<String> after = Arrays.asList("a", "x", "d", "y");
+        final EditJournal.Edit<String> edit = EditJournal.Edit.between(before, after);
+        assertEquals(List.of(1, 4), edit.getChangedPositions());
+        assertEquals(List.of("x", "y"), edit.getChanged());
+        assertArrayEquals(new int[]{2}, edit.getRemoved());
+        assertTrue(edit.getAdded().isEmpty());
+
+        final List<String> replayed = new ArrayList<>(before);
+        edit.applyTo(replayed);
+        assertEquals(after, replayed);
+    }
+
+    @Test
+    public void recoversEditsOnTopOfTheFile() throws Exception {
+        final Path file = folder.newFile("cards.vcf").toPath();
+        Files.write(file, "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:Ada\r\nEND:VCARD\r\n".getBytes(StandardCharsets.UTF_8));
+        final CardStore.Source base = CardStore.Source.of(file);
+        final List<CardEntry> cards = new ArrayList<>(Arrays.asList(entry("Ada"), entry("Alan"), entry("Grace")));
+
+        final EditJournal journal = EditJournal.start(file, base, null, NO_FAILURE);
+        final List<CardEntry> merged = Arrays.asList(entry("Ada Lovelace"), cards.get(2));
+        journal.append(EditJournal.Edit.between(cards, merged));
+        journal.append(EditJournal.Edit.adding(List.of(entry("Edsger"))));
+        journal.close();
+
+        // A record torn by a crash is dropped.
+        final Path journalFile = EditJournal.journalFile(file);
+        final long size = Files.size(journalFile);
+        Files.write(journalFile, new byte[]{0, 0, 1, 0, 7}, StandardOpenOption.APPEND);
+
+        final EditJournal.Edit<CardEntry> edit = EditJournal.recover(file, base, new long[]{-1, -1, -1}).getEdit();
+        final List<CardEntry> recovered = new ArrayList<>(cards);
+        edit.applyTo(recovered);
+        assertEquals(3, recovered.size());
+        assertEquals("Ada Lovelace", name(recovered.get(0)));
+        assertEquals(cards.get(2), recovered.get(1));
+        assertEquals("Edsger", name(recovered.get(2)));
+        assertEquals(size, Files.size(journalFile));
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(base.getModified().toMillis() + 1000));
+        final EditJournal.Recovery stale = EditJournal.recover(file, CardStore.Source.of(file), new long[]{-1, -1, -1});
+        assertNull(stale.getEdit());
+        assertTrue(Files.exists(stale.getStale()));
+        assertNull(EditJournal.recover(file, CardStore.Source.of(file), new long[]{-1, -1, -1}));
+    }
+
+    /**
+     * @return a record as the journal frames it, with a valid checksum
+     */
+    private static byte[] frame(final byte[] payload) {
+        final CRC32C crc = new CRC32C();
+        crc.update(payload);
+        return ByteBuffer.allocate(8 + payload.length).putInt(payload.length).putInt((int) crc.getValue())
+                .put(payload).array();
+    }
+
+    @Test
+    public void dropsARecordThatDoesNotFit() throws Exception {
+        final Path file = folder.newFile("cards.vcf").toPath();
+        final CardStore.Source base = CardStore.Source.of(file);
+        final EditJournal journal = EditJournal.start(file, base, null, NO_FAILURE);
+        journal.append(EditJournal.Edit.adding(List.of(entry("Alan"))));
+        journal.close();
+
+        // An edit of a position past the end, and an edit adding a card with no text.
+        final Path journalFile = EditJournal.journalFile(file);
+        final long size = Files.size(journalFile);
+        Files.write(journalFile, frame(ByteBuffer.allocate(13).put((byte) 0).putInt(1).putInt(5).putInt(0).array()),
+                StandardOpenOption.APPEND);
+        final EditJournal.Edit<CardEntry> edit = EditJournal.recover(file, base, new long[]{-1}).getEdit();
+        assertEquals(1, edit.getAdded().size());
+        assertEquals(size, Files.size(journalFile));
+
+        Files.write(journalFile, frame(ByteBuffer.allocate(21).put((byte) 0).putInt(0).putInt(0).putInt(0).putInt(1)
+                .putInt(0).array()), StandardOpenOption.APPEND);
+        assertEquals(1, EditJournal.recover(file, base, new long[]{-1}).getEdit().getAdded().size());
+        assertEquals(size, Files.size(journalFile));
+    }
+
+    @Test
+    public void restartsFromACheckpoint() throws Exception {
+        final Path file = folder.newFile("cards.vcf").toPath();
+        final CardStore.Source base = CardStore.Source.of(file);
+        final EditJournal journal = EditJournal.start(file, base, List.of(entry("Grace"), entry("Ada")), NO_FAILURE);
+        journal.append(EditJournal.Edit.adding(List.of(entry("Alan"))));
+        journal.close();
+
+        final List<CardEntry> recovered = new ArrayList<>(List.of(entry("Babbage")));
+        EditJournal.recover(file, base, new long[]{-1}).getEdit().applyTo(recovered);
+        assertEquals(3, recovered.size());
+        assertEquals("Grace", name(recovered.get(0)));
+        assertEquals("Ada", name(recovered.get(1)));
+        assertEquals("Alan", name(recovered.get(2)));
+    }
+
+    @Test
+    public void checkpointsReferToUnmodifiedCardsByTheirRange() throws Exception {
+        final Path file = folder.newFile("cards.vcf").toPath();
+        final String ada = "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:Ada\r\nEND:VCARD\r\n";
+        final String alan = "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:Alan\r\nEND:VCARD\r\n";
+        Files.write(file, (ada + alan).getBytes(StandardCharsets.UTF_8));
+        final CardStore.Source base = CardStore.Source.of(file);
+        final List<CardEntry> cards = new ArrayList<>();
+        for (final String text : List.of(ada, alan)) {
+            final CardEntry entry = new CardEntry(Ezvcard.parse(text).first(), false, file);
+            final long start = cards.isEmpty() ? 0 : ada.length();
+            entry.setSource(start, start + text.length(), VCardVersion.V3_0);
+            cards.add(entry);
+        }
+
+        // As after a reload that found the cards in the other order.
+        final EditJournal journal = EditJournal.start(file, base, List.of(cards.get(1), entry("Grace"), cards.get(0)),
+                NO_FAILURE);
+        journal.close();
+
+        final EditJournal.Edit<CardEntry> edit = EditJournal.recover(file, base, new long[]{0, ada.length()})
+                .getEdit();
+        final List<CardEntry> recovered = new ArrayList<>(cards);
+        edit.applyTo(recovered);
+        assertEquals(3, recovered.size());
+        assertEquals(cards.get(1), recovered.get(0));
+        assertEquals("Grace", name(recovered.get(1)));
+        assertTrue(recovered.get(1).isEdited());
+        assertEquals(file, recovered.get(1).getOrigin());
+        assertEquals("Ada", name(recovered.get(2)));
+        // Alan keeps the entry read from the file; Ada moved after a new card, so her card is read from the file again.
+        assertArrayEquals(new int[]{0}, edit.getRemoved());
+        assertEquals(2, edit.getAdded().size());
+    }
+
+    @Test
+    public void stopsAtTheFirstWriteFailure() throws Exception {
+        final Path file = folder.newFile("cards.vcf").toPath();
+        final CardStore.Source base = CardStore.Source.of(file);
+        // A directory in the journal's place cannot be replaced.
+        final Path journalFile = EditJournal.journalFile(file);
+        Files.createDirectory(journalFile);
+        Files.createFile(journalFile.resolve("blocker"));
+
+        final CompletableFuture<IOException> reported = new CompletableFuture<>();
+        final EditJournal journal = EditJournal.start(file, base, null, reported::complete);
+        final IOException failure = reported.get(10, TimeUnit.SECONDS);
+        assertSame(failure, journal.getFailure());
+
+        // Later edits are dropped rather than queued for a writer that has stopped.
+        journal.append(EditJournal.Edit.adding(List.of(entry("Alan"))));
+        journal.close();
+        assertSame(failure, journal.getFailure());
+        assertTrue(Files.isDirectory(journalFile));
+    }
+}
@@ -0,0 +1,77 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class MappedCardFileTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String ADA = "BEGIN:VCARD\r\nVERSION:3.0\r\nN:Lovelace;Ada;;;\r\nFN:Ada\r\nEND:VCARD\r\n";
+    private static final String ALAN = "BEGIN:VCARD\r\nVERSION:3.0\r\nN:Turing;Alan;;;\r\nFN:Alan\r\nEND:VCARD\r\n";
+
+    @Test
+    public void unloadedEntriesParseTheirCardsOnDemand() throws IOException {
+        final File file = folder.newFile("cards.vcf");
+        Files.write(file.toPath(), (ADA + ALAN).getBytes(StandardCharsets.UTF_8));
+        final MappedCardFile mapped = MappedCardFile.map(file.toPath());
+        assertEquals(ADA + ALAN, new String(mapped.read(0, mapped.size()), StandardCharsets.UTF_8));
+
+        final CardEntry entry = new CardEntry(Ezvcard.parse(ALAN).first(), false);
+        entry.setSource(ADA.length(), ADA.length() + ALAN.length(), VCardVersion.V3_0, mapped);
+        entry.unload();
+        assertFalse(entry.isLoaded());
+        assertEquals("Turing, Alan", entry.getDisplayName());
+        assertEquals("Alan", entry.getCard().getFormattedName().getValue());
+
+        final VCard edited = new VCard(VCardVersion.V3_0);
+        edited.setFormattedName("Alan Turing");
+        entry.setCard(edited);
+        entry.unload();
+        assertTrue(entry.isLoaded());
+        assertEquals(edited, entry.getCard());
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void refusesTextRewrittenInPlace() throws IOException {
+        final File file = folder.newFile("cards.vcf");
+        Files.write(file.toPath(), ALAN.getBytes(StandardCharsets.UTF_8));
+        final MappedCardFile mapped = MappedCardFile.map(file.toPath());
+
+        final CardEntry entry = new CardEntry(Ezvcard.parse(ALAN).first(), false);
+        entry.setSource(0, ALAN.length(), VCardVersion.V3_0, mapped);
+        entry.setTextHash(CardSpans.hash(ALAN.getBytes(StandardCharsets.UTF_8)));
+        entry.unload();
+
+        // Another program rewrites the file without replacing it, so the mapping sees the new text.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(ALAN.replace("Alan", "Alex").getBytes(StandardCharsets.UTF_8));
+        }
+
+        entry.getCard();
+    }
+
+    @Test
+    public void modifiedEntriesStayLoaded() {
+        final CardEntry entry = new CardEntry(Ezvcard.parse(ADA).first(), true);
+        entry.unload();
+        assertTrue(entry.isLoaded());
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import ezvcard.io.text.VCardWriter;
+import ezvcard.property.StructuredName;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MergeTest {
+
+    private static VCard card(final VCardVersion version, final String family, final String... emails) {
+        final VCard card = new VCard(version);
+        final StructuredName n = new StructuredName();
+        n.setFamily(family);
+        card.setStructuredName(n);
+        for (final String email : emails) {
+            card.addEmail(email);
+        }
+
+        return card;
+    }
+
+    @Test
+    public void unionsPropertiesWithoutDuplicates() {
+        final VCard a = card(VCardVersion.V3_0, "Smith", "a@example.com");
+        a.addTelephoneNumber("(555) 123-4567");
+        final VCard b = card(VCardVersion.V4_0, "Smyth", "A@Example.com ", "b@example.com");
+        b.addTelephoneNumber("555.123.4567");
+        final VCard merged = VCardUtil.merge(Arrays.asList(a, b), MergePrecedence.FIRST);
+        assertEquals(VCardVersion.V4_0, merged.getVersion());
+        assertEquals("Smith", merged.getStructuredName().getFamily());
+        assertEquals(1, merged.getStructuredNames().size());
+        assertEquals(2, merged.getEmails().size());
+        assertEquals(1, merged.getTelephoneNumbers().size());
+
+        final VCard mostComplete = VCardUtil.merge(Arrays.asList(a, b), MergePrecedence.MOST_COMPLETE);
+        assertEquals("Smyth", mostComplete.getStructuredName().getFamily());
+    }
+
+    @Test
+    public void keepsNumbersThatShareTheirLastTenDigits() {
+        final VCard a = card(VCardVersion.V3_0, "Smith");
+        a.addTelephoneNumber("+44 20 1234 5678");
+        final VCard b = card(VCardVersion.V3_0, "Smith");
+        b.addTelephoneNumber("+1 201 234 5678");
+        b.addTelephoneNumber("+44 (0)20 1234-5678");
+        final VCard merged = VCardUtil.merge(Arrays.asList(a, b), MergePrecedence.FIRST);
+        assertEquals(2, merged.getTelephoneNumbers().size());
+        assertEquals("+44 20 1234 5678", merged.getTelephoneNumbers().get(0).getText());
+        assertEquals("+1 201 234 5678", merged.getTelephoneNumbers().get(1).getText());
+    }
+
+    @Test
+    public void mergeAllKeepsOrder() throws InterruptedException {
+        final List<VCard> cards = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            cards.add(card(VCardVersion.V3_0, "Card " + i));
+        }
+
+        final List<VCard> out = new ArrayList<>();
+        VCardUtil.mergeAll(cards, Collections.singletonList(new int[]{10, 2000, 4999}), MergePrecedence.FIRST,
+                out::add);
+        assertEquals(4998, out.size());
+        assertSame(cards.get(0), out.get(0));
+        assertEquals("Card 10", out.get(10).getStructuredName().getFamily());
+        assertSame(cards.get(11), out.get(11));
+        assertSame(cards.get(2001), out.get(2000));
+        assertSame(cards.get(4998), out.get(4997));
+    }
+
+    @Test
+    public void mergeAllWritesToAWriter() throws IOException, InterruptedException {
+        final List<VCard> cards = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            cards.add(card(VCardVersion.V3_0, "Card " + i, "card" + i + "@example.com"));
+        }
+
+        cards.set(2500, card(VCardVersion.V3_0, "Card 7", "seven@example.com"));
+        final StringWriter text = new StringWriter();
+        try (final VCardWriter writer = new VCardWriter(text, VCardVersion.V4_0)) {
+            VCardUtil.mergeAll(cards, Collections.singletonList(new int[]{7, 2500}), MergePrecedence.FIRST, writer);
+        }
+
+        final List<VCard> written = Ezvcard.parse(text.toString()).all();
+        assertEquals(2999, written.size());
+        assertEquals(VCardVersion.V4_0, written.get(0).getVersion());
+        assertEquals(2, written.get(7).getEmails().size());
+        assertEquals("Card 8", written.get(8).getStructuredName().getFamily());
+        assertEquals("Card 2999", written.get(2998).getStructuredName().getFamily());
+    }
+
+}
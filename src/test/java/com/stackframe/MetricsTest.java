@@ -0,0 +1,26 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class MetricsTest {
+
+    @Test
+    public void recordsSpansAndPublishesThem() throws Exception {
+        Metrics.Phase.SAVE.reset();
+        Metrics.start(Metrics.Phase.SAVE).stop(3, 100);
+        Metrics.add(Metrics.Phase.SAVE, Metrics.now(), 2, 50);
+        assertEquals(2, Metrics.Phase.SAVE.getCount());
+        assertEquals(5, Metrics.Phase.SAVE.getCards());
+        assertEquals(150, Metrics.Phase.SAVE.getBytes());
+
+        Metrics.registerMBeans();
+        final ObjectName name = new ObjectName("com.stackframe:type=Metrics,phase=save");
+        assertEquals(5L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Cards"));
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.VCard;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+public class SearchIndexTest {
+
+    private static VCard card(final String name, final String email, final String phone) {
+        final VCard card = new VCard();
+        card.setFormattedName(name);
+        card.addEmail(email);
+        card.addTelephoneNumber(phone);
+        return card;
+    }
+
+    @Test
+    public void findsSubstringsOfAnyField() {
+        final VCard ada = card("Ada Lovelace", "ada@engine.org", "+44 20 7946 0000");
+        final VCard alan = card("Alan Turing", "alan@bletchley.uk", "(555) 010-0199");
+        final SearchIndex<VCard> index = SearchIndex.build(Arrays.asList(ada, alan));
+
+        final Predicate<VCard> love = index.search("LOVE");
+        assertTrue(love.test(ada));
+        assertFalse(love.test(alan));
+
+        final Predicate<VCard> digits = index.search("5550100");
+        assertTrue(digits.test(alan));
+        assertFalse(digits.test(ada));
+
+        final Predicate<VCard> shortTerm = index.search("a");
+        assertTrue(shortTerm.test(ada) && shortTerm.test(alan));
+
+        final Predicate<VCard> both = index.search("alan uk");
+        assertTrue(both.test(alan));
+        assertFalse(index.search("alan org").test(alan));
+
+        assertNull(index.search("  "));
+    }
+
+    @Test
+    public void followsEdits() {
+        final VCard ada = card("Ada Lovelace", "ada@engine.org", "1");
+        final SearchIndex<VCard> index = SearchIndex.build(Arrays.asList(ada));
+        final VCard renamed = card("Ada King", "ada@engine.org", "1");
+        index.update(ada, renamed);
+        assertFalse(index.search("lovelace").test(renamed));
+        assertTrue(index.search("king").test(renamed));
+        assertFalse(index.search("ada").test(ada));
+    }
+
+    @Test
+    public void compactsAfterManyEdits() {
+        VCard ada = card("Ada Lovelace", "ada@engine.org", "1");
+        final VCard alan = card("Alan Turing", "alan@bletchley.uk", "2");
+        final SearchIndex<VCard> index = SearchIndex.build(Arrays.asList(ada, alan));
+        final Predicate<VCard> before = index.search("lovelace");
+        for (int i = 0; i < 10; i++) {
+            final VCard edited = card("Ada Lovelace " + i, "ada@engine.org", "1");
+            index.update(ada, edited);
+            ada = edited;
+        }
+
+        assertEquals(2, index.size());
+        assertTrue(index.search("lovelace 9").test(ada));
+        assertFalse(index.search("lovelace 8").test(ada));
+        assertTrue(index.search("turing").test(alan));
+        // A filter made before the index was compacted does not mistake the cards' new ids for the ones it found.
+        assertFalse(before.test(alan));
+    }
+
+}
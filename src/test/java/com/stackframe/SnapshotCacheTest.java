@@ -0,0 +1,100 @@
+package com.stackframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ezvcard.Ezvcard;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class SnapshotCacheTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String ADA = "BEGIN:VCARD\r\nVERSION:3.0\r\nN:Lovelace;Ada;;;\r\nFN:Ada\r\nEND:VCARD\r\n";
+    private static final String ALAN = "BEGIN:VCARD\r\nVERSION:3.0\r\nN:Turing;Alan;;;\r\nFN:Alan\r\nEND:VCARD\r\n";
+
+    @Before
+    public void useTemporaryCache() throws IOException {
+        System.setProperty("contactcurator.cacheDir", folder.newFolder("cache").getPath());
+    }
+
+    @After
+    public void restoreCache() {
+        System.clearProperty("contactcurator.cacheDir");
+    }
+
+    @Test
+    public void restoresUnchangedFilesWithoutParsing() throws IOException {
+        final Path file = folder.newFile("cards.vcf").toPath();
+        Files.write(file, (ADA + ALAN).getBytes(StandardCharsets.UTF_8));
+        final CardStore.Source source = CardStore.Source.of(file);
+
+        final CardEntry ada = new CardEntry(Ezvcard.parse(ADA).first(), false, file);
+        ada.setSource(0, ADA.length(), VCardVersion.V3_0);
+        ada.setTextHash(CardSpans.hash(ADA.getBytes(StandardCharsets.UTF_8)));
+        final VCard edited = new VCard(VCardVersion.V3_0);
+        edited.setFormattedName("Alan Turing");
+        final CardEntry alan = new CardEntry(edited, true, file);
+        SnapshotCache.write(source, List.of(new SnapshotCache.Record(ada, "ada\n"),
+                new SnapshotCache.Record(alan, "alan turing\n")));
+
+        final SnapshotCache.Restored restored = SnapshotCache.read(source);
+        assertEquals(List.of("ada\n", "alan turing\n"), restored.getTexts());
+        final CardEntry restoredAda = restored.getEntries().get(0);
+        assertFalse(restoredAda.isLoaded());
+        assertEquals("Lovelace, Ada", restoredAda.getDisplayName());
+        assertEquals('L', restoredAda.getIndexLetter());
+        assertTrue(restoredAda.hasSource(VCardVersion.V3_0));
+        assertEquals(ada.getTextHash(), restoredAda.getTextHash());
+        assertEquals("Ada", restoredAda.getCard().getFormattedName().getValue());
+        final CardEntry restoredAlan = restored.getEntries().get(1);
+        assertTrue(restoredAlan.isModified());
+        assertEquals("Alan Turing", restoredAlan.getCard().getFormattedName().getValue());
+
+        Files.write(file, (ALAN + ADA).getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, source.getModified());
+        assertNull(SnapshotCache.read(CardStore.Source.of(file)));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(source.getModified().toMillis() + 1000));
+        assertNull(SnapshotCache.read(CardStore.Source.of(file)));
+    }
+
+    @Test
+    public void keepsSnapshotsAsPrivateAsTheirAddressBooks() throws IOException {
+        final Path file = folder.newFile("cards.vcf").toPath();
+        Assume.assumeTrue(file.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Files.write(file, ADA.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r-----"));
+        final Path cache = folder.getRoot().toPath().resolve("private").resolve("cache");
+        System.setProperty("contactcurator.cacheDir", cache.toString());
+
+        final CardEntry ada = new CardEntry(Ezvcard.parse(ADA).first(), false, file);
+        ada.setSource(0, ADA.length(), VCardVersion.V3_0);
+        SnapshotCache.write(CardStore.Source.of(file), List.of(new SnapshotCache.Record(ada, "ada\n")));
+
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(cache)));
+        try (Stream<Path> snapshots = Files.list(cache)) {
+            assertEquals("rw-r-----", PosixFilePermissions.toString(
+                    Files.getPosixFilePermissions(snapshots.findFirst().get())));
+        }
+    }
+
+}